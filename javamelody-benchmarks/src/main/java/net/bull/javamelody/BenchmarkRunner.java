@@ -0,0 +1,55 @@
+/*
+ * Copyright 2008-2019 by Emeric Vernat
+ *
+ *     This file is part of Java Melody.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.bull.javamelody;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import net.bull.javamelody.internal.common.Parameters;
+
+/**
+ * Main class of the benchmarks jar: runs JMH with the given arguments and,
+ * unless a result format is given with -rf, writes the results as json in
+ * javamelody-benchmarks-&lt;version&gt;.json so that runs can be compared between versions.
+ * @author Emeric Vernat
+ */
+public final class BenchmarkRunner {
+	private BenchmarkRunner() {
+		super();
+	}
+
+	/**
+	 * Main.
+	 * @param args Arguments of JMH, for example "CounterBenchmark -wi 1 -i 3"
+	 * @throws Exception e
+	 */
+	public static void main(String[] args) throws Exception { // NOPMD
+		final List<String> arguments = new ArrayList<>(Arrays.asList(args));
+		if (!arguments.contains("-rf") && !arguments.contains("-h")
+				&& !arguments.contains("-l")) {
+			arguments.add("-rf");
+			arguments.add("json");
+			if (!arguments.contains("-rff")) {
+				arguments.add("-rff");
+				arguments.add("javamelody-benchmarks-" + Parameters.JAVAMELODY_VERSION + ".json");
+			}
+		}
+		org.openjdk.jmh.Main.main(arguments.toArray(new String[0]));
+	}
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright 2008-2019 by Emeric Vernat
+ *
+ *     This file is part of Java Melody.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.bull.javamelody;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import net.bull.javamelody.internal.model.Counter;
+
+/**
+ * Benchmark of a prepared statement executed with H2 in memory,
+ * with or without the JdbcWrapper proxy of the connection (JdbcWrapper.doExecute).
+ * @author Emeric Vernat
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class JdbcWrapperBenchmark {
+	private static final String SELECT = "select name from person where id = ?";
+
+	@Param({ "false", "true" })
+	private boolean monitored;
+
+	private Connection connection;
+	private int id;
+
+	/**
+	 * Initialisation.
+	 * @throws SQLException e
+	 */
+	@Setup
+	public void setUp() throws SQLException {
+		final Counter sqlCounter = JdbcWrapper.SINGLETON.getSqlCounter();
+		sqlCounter.setDisplayed(true);
+		sqlCounter.setUsed(true);
+		final Connection rawConnection = DriverManager
+				.getConnection("jdbc:h2:mem:benchmark" + System.identityHashCode(this));
+		if (monitored) {
+			connection = JdbcWrapper.SINGLETON.createConnectionProxy(rawConnection);
+		} else {
+			connection = rawConnection;
+		}
+		final Statement statement = connection.createStatement();
+		try {
+			statement.execute("create table person (id int primary key, name varchar(100))");
+			for (int i = 0; i < 100; i++) {
+				statement.execute("insert into person values (" + i + ", 'name" + i + "')");
+			}
+		} finally {
+			statement.close();
+		}
+	}
+
+	/**
+	 * Finalisation.
+	 * @throws SQLException e
+	 */
+	@TearDown
+	public void tearDown() throws SQLException {
+		connection.close();
+	}
+
+	/**
+	 * Benchmark.
+	 * @return String
+	 * @throws SQLException e
+	 */
+	@Benchmark
+	public String executeQuery() throws SQLException {
+		id = (id + 1) % 100;
+		final PreparedStatement statement = connection.prepareStatement(SELECT);
+		try {
+			statement.setInt(1, id);
+			final ResultSet resultSet = statement.executeQuery();
+			try {
+				resultSet.next();
+				return resultSet.getString(1);
+			} finally {
+				resultSet.close();
+			}
+		} finally {
+			statement.close();
+		}
+	}
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright 2008-2019 by Emeric Vernat
+ *
+ *     This file is part of Java Melody.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.bull.javamelody;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmark of MonitoringFilter.doFilter for a http request doing nothing,
+ * with stubs of the servlet api.
+ * @author Emeric Vernat
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MonitoringFilterBenchmark {
+	private MonitoringFilter monitoringFilter;
+	private HttpServletRequest request;
+	private HttpServletResponse response;
+	private FilterChain chain;
+
+	/**
+	 * Initialisation.
+	 * @throws ServletException e
+	 */
+	@Setup
+	public void setUp() throws ServletException {
+		final Map<String, Object> contextValues = new HashMap<>();
+		contextValues.put("getMajorVersion", 4);
+		contextValues.put("getMinorVersion", 0);
+		contextValues.put("getContextPath", "/benchmark");
+		contextValues.put("getServerInfo", "benchmark");
+		final ServletContext servletContext = createStub(ServletContext.class, contextValues);
+		final Map<String, Object> configValues = new HashMap<>();
+		configValues.put("getServletContext", servletContext);
+		configValues.put("getFilterName", "javamelody");
+		final FilterConfig filterConfig = createStub(FilterConfig.class, configValues);
+
+		final Map<String, Object> requestValues = new HashMap<>();
+		requestValues.put("getRequestURI", "/benchmark/test");
+		requestValues.put("getContextPath", "/benchmark");
+		requestValues.put("getMethod", "GET");
+		requestValues.put("getServletContext", servletContext);
+		request = createStub(HttpServletRequest.class, requestValues);
+		response = createStub(HttpServletResponse.class, new HashMap<String, Object>());
+		chain = new FilterChain() {
+			@Override
+			public void doFilter(ServletRequest servletRequest, ServletResponse servletResponse) {
+				// rien
+			}
+		};
+
+		monitoringFilter = new MonitoringFilter();
+		monitoringFilter.init(filterConfig);
+	}
+
+	/**
+	 * Finalisation.
+	 */
+	@TearDown
+	public void tearDown() {
+		monitoringFilter.destroy();
+	}
+
+	/**
+	 * Benchmark.
+	 * @throws IOException e
+	 * @throws ServletException e
+	 */
+	@Benchmark
+	@Threads(1)
+	public void doFilter() throws IOException, ServletException {
+		monitoringFilter.doFilter(request, response, chain);
+	}
+
+	/**
+	 * Benchmark.
+	 * @throws IOException e
+	 * @throws ServletException e
+	 */
+	@Benchmark
+	@Threads(4)
+	public void doFilter4Threads() throws IOException, ServletException {
+		monitoringFilter.doFilter(request, response, chain);
+	}
+
+	/**
+	 * Stub d'une interface de l'api servlet : les méthodes retournent la valeur définie
+	 * pour leur nom ou sinon null, false ou 0.
+	 */
+	private static <T> T createStub(Class<T> interfaceClass, final Map<String, Object> values) {
+		final InvocationHandler invocationHandler = new InvocationHandler() {
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				final Object value = values.get(method.getName());
+				if (value != null) {
+					return value;
+				}
+				final Class<?> returnType = method.getReturnType();
+				if (returnType == boolean.class) {
+					return Boolean.FALSE;
+				} else if (returnType == int.class) {
+					return 0;
+				} else if (returnType == long.class) {
+					return 0L;
+				}
+				return null;
+			}
+		};
+		return interfaceClass.cast(Proxy.newProxyInstance(interfaceClass.getClassLoader(),
+				new Class<?>[] { interfaceClass }, invocationHandler));
+	}
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright 2008-2019 by Emeric Vernat
+ *
+ *     This file is part of Java Melody.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.bull.javamelody;
+
+import java.lang.reflect.AccessibleObject;
+import java.lang.reflect.Method;
+import java.util.concurrent.TimeUnit;
+
+import org.aopalliance.intercept.MethodInvocation;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmark of MonitoringSpringInterceptor.invoke around a trivial method.
+ * @author Emeric Vernat
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MonitoringSpringInterceptorBenchmark {
+	private MonitoringSpringInterceptor interceptor;
+	private MethodInvocation invocation;
+
+	/**
+	 * Service monitoré.
+	 */
+	public static class BenchmarkService {
+		/**
+		 * @return String
+		 */
+		public String test() {
+			return "test";
+		}
+	}
+
+	/**
+	 * Initialisation.
+	 * @throws NoSuchMethodException e
+	 */
+	@Setup
+	public void setUp() throws NoSuchMethodException {
+		interceptor = new MonitoringSpringInterceptor();
+		final BenchmarkService service = new BenchmarkService();
+		final Method method = BenchmarkService.class.getMethod("test");
+		invocation = new MethodInvocation() {
+			@Override
+			public Object proceed() {
+				return service.test();
+			}
+
+			@Override
+			public Object getThis() {
+				return service;
+			}
+
+			@Override
+			public AccessibleObject getStaticPart() {
+				return method;
+			}
+
+			@Override
+			public Object[] getArguments() {
+				return new Object[0];
+			}
+
+			@Override
+			public Method getMethod() {
+				return method;
+			}
+		};
+	}
+
+	/**
+	 * Benchmark.
+	 * @return Object
+	 * @throws Throwable e
+	 */
+	@Benchmark
+	@Threads(1)
+	public Object invoke() throws Throwable {
+		return interceptor.invoke(invocation);
+	}
+
+	/**
+	 * Benchmark.
+	 * @return Object
+	 * @throws Throwable e
+	 */
+	@Benchmark
+	@Threads(4)
+	public Object invoke4Threads() throws Throwable {
+		return interceptor.invoke(invocation);
+	}
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright 2008-2019 by Emeric Vernat
+ *
+ *     This file is part of Java Melody.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.bull.javamelody.internal.model;
+
+import java.io.File;
+import java.io.IOException;
+
+import net.bull.javamelody.Parameter;
+import net.bull.javamelody.internal.common.Parameters;
+
+/**
+ * Temporary storage directory for the benchmarks writing files.
+ * @author Emeric Vernat
+ */
+final class BenchmarkStorage {
+	static final String APPLICATION = "benchmark";
+
+	private final File storageDirectory;
+
+	BenchmarkStorage() throws IOException {
+		super();
+		storageDirectory = File.createTempFile("javamelody-benchmark", "");
+		if (!storageDirectory.delete() || !storageDirectory.mkdirs()) {
+			throw new IOException("Can't create " + storageDirectory);
+		}
+		System.setProperty(
+				Parameters.PARAMETER_SYSTEM_PREFIX + Parameter.STORAGE_DIRECTORY.getCode(),
+				storageDirectory.getPath());
+	}
+
+	static Counter createCounter(String name, int requestsCount) {
+		final Counter result = new Counter(name, "db.png");
+		result.setApplication(APPLICATION);
+		for (int i = 0; i < requestsCount; i++) {
+			result.addRequest("select * from table" + i + " where id = ?", i % 100, -1, -1,
+					false, -1);
+		}
+		return result;
+	}
+
+	void delete() {
+		delete(storageDirectory);
+	}
+
+	private static void delete(File file) {
+		final File[] files = file.listFiles();
+		if (files != null) {
+			for (final File child : files) {
+				delete(child);
+			}
+		}
+		if (!file.delete()) {
+			file.deleteOnExit();
+		}
+	}
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright 2008-2019 by Emeric Vernat
+ *
+ *     This file is part of Java Melody.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.bull.javamelody.internal.model;
+
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmark of Counter.addRequest, for single and multi-threaded hits,
+ * without transformation of the request, with a transform pattern or with the sql normalizer,
+ * and for nested contexts http -&gt; spring -&gt; sql.
+ * @author Emeric Vernat
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CounterBenchmark {
+	// sql with an unbound in list, as transformed by the sql-transform-pattern in the user guide
+	private static final String SQL_REQUEST = "select * from person where id in (1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16, 17, 18, 19, 20) and name = 'test'";
+	private static final String SQL_TRANSFORM_PATTERN = "\\([\\d\\s,%]+\\)|'[^']*'";
+
+	@Param({ "none", "pattern", "normalized" })
+	private String transform;
+
+	private Counter sqlCounter;
+	private Counter springCounter;
+	private Counter httpCounter;
+
+	/**
+	 * Initialisation.
+	 */
+	@Setup
+	public void setUp() {
+		sqlCounter = new Counter(Counter.SQL_COUNTER_NAME, "db.png");
+		springCounter = new Counter("spring", "beans.png", sqlCounter);
+		httpCounter = new Counter(Counter.HTTP_COUNTER_NAME, "dbweb.png", sqlCounter);
+		if ("pattern".equals(transform)) {
+			sqlCounter.setRequestTransformPattern(
+					Pattern.compile(SQL_TRANSFORM_PATTERN, Pattern.MULTILINE | Pattern.DOTALL));
+		} else if ("normalized".equals(transform)) {
+			sqlCounter.setSqlNormalized(true);
+		}
+	}
+
+	/**
+	 * Benchmark.
+	 */
+	@Benchmark
+	@Threads(1)
+	public void addSqlRequest() {
+		sqlCounter.addRequest(SQL_REQUEST, 2, -1, -1, false, -1);
+	}
+
+	/**
+	 * Benchmark.
+	 */
+	@Benchmark
+	@Threads(4)
+	public void addSqlRequest4Threads() {
+		sqlCounter.addRequest(SQL_REQUEST, 2, -1, -1, false, -1);
+	}
+
+	/**
+	 * Benchmark of a http request calling a spring bean executing 3 sql requests.
+	 */
+	@Benchmark
+	@Threads(1)
+	public void nestedContexts() {
+		nestedContexts0();
+	}
+
+	/**
+	 * Benchmark of a http request calling a spring bean executing 3 sql requests.
+	 */
+	@Benchmark
+	@Threads(4)
+	public void nestedContexts4Threads() {
+		nestedContexts0();
+	}
+
+	private void nestedContexts0() {
+		httpCounter.bindContext("/test GET", "/test GET", null, -1, -1);
+		try {
+			springCounter.bindContext("TestService.test", "TestService.test", null, -1, -1);
+			for (int i = 0; i < 3; i++) {
+				// as in JdbcWrapper.doExecute
+				sqlCounter.bindContext(SQL_REQUEST, SQL_REQUEST, null, -1, -1);
+				sqlCounter.addRequest(SQL_REQUEST, 2, -1, -1, false, -1);
+			}
+			springCounter.addRequestForCurrentContext(false);
+			httpCounter.addRequestForCurrentContext(false);
+		} finally {
+			httpCounter.unbindContext();
+		}
+	}
+}
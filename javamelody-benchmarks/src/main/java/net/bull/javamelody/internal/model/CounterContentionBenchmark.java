@@ -0,0 +1,105 @@
+/*
+ * Copyright 2008-2019 by Emeric Vernat
+ *
+ *     This file is part of Java Melody.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.bull.javamelody.internal.model;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Contention on a single hot request (like a health check) in Counter.addRequest,
+ * with and without striped accumulation, from 1 to 64 threads.
+ * The throughput with striped=true should scale with the number of threads
+ * while it does not with the monitor of the request.
+ * @author Emeric Vernat
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CounterContentionBenchmark {
+	private static final String REQUEST_NAME = "/health GET";
+
+	@Param({ "false", "true" })
+	private boolean striped;
+
+	private Counter counter;
+
+	/**
+	 * Initialisation.
+	 */
+	@Setup(Level.Iteration)
+	public void setUp() {
+		counter = new Counter(Counter.HTTP_COUNTER_NAME, "dbweb.png");
+		counter.setStriped(striped);
+	}
+
+	private void addRequest() {
+		counter.addRequest(REQUEST_NAME, 5, 1, 10, false, 1000);
+	}
+
+	/**
+	 * Benchmark.
+	 */
+	@Benchmark
+	@Threads(1)
+	public void addRequest1Thread() {
+		addRequest();
+	}
+
+	/**
+	 * Benchmark.
+	 */
+	@Benchmark
+	@Threads(4)
+	public void addRequest4Threads() {
+		addRequest();
+	}
+
+	/**
+	 * Benchmark.
+	 */
+	@Benchmark
+	@Threads(16)
+	public void addRequest16Threads() {
+		addRequest();
+	}
+
+	/**
+	 * Benchmark.
+	 */
+	@Benchmark
+	@Threads(64)
+	public void addRequest64Threads() {
+		addRequest();
+	}
+}
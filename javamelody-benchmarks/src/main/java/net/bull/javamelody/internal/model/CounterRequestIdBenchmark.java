@@ -0,0 +1,89 @@
+/*
+ * Copyright 2008-2019 by Emeric Vernat
+ *
+ *     This file is part of Java Melody.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.bull.javamelody.internal.model;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmark of the id of a CounterRequest: SHA-1 with MessageDigest.getInstance at each call
+ * (as before), SHA-1 with a MessageDigest per thread, and id found in the cache by name.
+ * Use "-prof gc" to compare the allocations.
+ * @author Emeric Vernat
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CounterRequestIdBenchmark {
+	private static final String COUNTER_NAME = Counter.SQL_COUNTER_NAME;
+	private static final String REQUEST_NAME = "select name, address, phone from person where id = ?";
+	private static final char[] HEX_ARRAY = "0123456789abcdef".toCharArray();
+
+	/**
+	 * Benchmark of the previous implementation.
+	 * @return String
+	 * @throws NoSuchAlgorithmException e
+	 */
+	@Benchmark
+	public String sha1WithGetInstance() throws NoSuchAlgorithmException {
+		final MessageDigest messageDigest = MessageDigest.getInstance("SHA-1");
+		messageDigest.update(REQUEST_NAME.getBytes());
+		final byte[] digest = messageDigest.digest();
+		final int l = COUNTER_NAME.length();
+		final char[] chars = new char[l + digest.length * 2];
+		COUNTER_NAME.getChars(0, l, chars, 0);
+		for (int j = 0; j < digest.length; j++) {
+			final int v = digest[j] & 0xFF;
+			chars[j * 2 + l] = HEX_ARRAY[v >>> 4];
+			chars[j * 2 + 1 + l] = HEX_ARRAY[v & 0x0F];
+		}
+		return new String(chars);
+	}
+
+	/**
+	 * Benchmark of a new request name, not in the cache.
+	 * @return String
+	 */
+	@Benchmark
+	public String sha1WithThreadLocalDigest() {
+		return CounterRequest.computeId(REQUEST_NAME, COUNTER_NAME);
+	}
+
+	/**
+	 * Benchmark of a request name already in the cache.
+	 * @return String
+	 */
+	@Benchmark
+	public String cachedId() {
+		return CounterRequest.buildId(REQUEST_NAME, COUNTER_NAME);
+	}
+}
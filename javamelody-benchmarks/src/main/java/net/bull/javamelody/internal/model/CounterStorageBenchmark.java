@@ -0,0 +1,90 @@
+/*
+ * Copyright 2008-2019 by Emeric Vernat
+ *
+ *     This file is part of Java Melody.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.bull.javamelody.internal.model;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmark of CounterStorage.writeToFile and readFromFile, as done at each collect.
+ * @author Emeric Vernat
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CounterStorageBenchmark {
+	@Param({ "100", "10000" })
+	private int requestsCount;
+
+	private BenchmarkStorage storage;
+	private Counter counter;
+
+	/**
+	 * Initialisation.
+	 * @throws IOException e
+	 */
+	@Setup
+	public void setUp() throws IOException {
+		storage = new BenchmarkStorage();
+		counter = BenchmarkStorage.createCounter(Counter.SQL_COUNTER_NAME, requestsCount);
+		counter.writeToFile();
+	}
+
+	/**
+	 * Finalisation.
+	 */
+	@TearDown
+	public void tearDown() {
+		storage.delete();
+	}
+
+	/**
+	 * Benchmark.
+	 * @throws IOException e
+	 */
+	@Benchmark
+	public void writeToFile() throws IOException {
+		counter.writeToFile();
+	}
+
+	/**
+	 * Benchmark.
+	 * @return Counter
+	 * @throws IOException e
+	 */
+	@Benchmark
+	public Counter readFromFile() throws IOException {
+		return new CounterStorage(counter).readFromFile();
+	}
+}
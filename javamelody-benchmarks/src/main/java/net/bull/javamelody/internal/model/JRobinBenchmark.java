@@ -0,0 +1,107 @@
+/*
+ * Copyright 2008-2019 by Emeric Vernat
+ *
+ *     This file is part of Java Melody.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.bull.javamelody.internal.model;
+
+import java.io.IOException;
+import java.util.Timer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import net.bull.javamelody.Parameter;
+import net.bull.javamelody.internal.common.Parameters;
+
+/**
+ * Benchmark of JRobin.addValue, as called for each graph at each collect,
+ * and of JRobin.addValueLater, as called for each request graph at each collect.
+ * At most one sample per second is written in the rrd file:
+ * the other calls measure the cost of the pool of rrd files and of the sample,
+ * and of the sync of the rrd file to the disk depending on rrd-sync-strategy.
+ * @author Emeric Vernat
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class JRobinBenchmark {
+	@Param({ "close", "batched" })
+	private String syncStrategy;
+
+	private BenchmarkStorage storage;
+	private Timer timer;
+	private JRobin jrobin;
+	private double value;
+
+	/**
+	 * Initialisation.
+	 * @throws IOException e
+	 */
+	@Setup
+	public void setUp() throws IOException {
+		storage = new BenchmarkStorage();
+		System.setProperty(
+				Parameters.PARAMETER_SYSTEM_PREFIX + Parameter.RRD_SYNC_STRATEGY.getCode(),
+				syncStrategy);
+		timer = new Timer("javamelody-benchmark", true);
+		JRobin.initBackendFactory(timer);
+		jrobin = JRobin.createInstance(BenchmarkStorage.APPLICATION, "benchmark", null);
+	}
+
+	/**
+	 * Finalisation.
+	 */
+	@TearDown
+	public void tearDown() {
+		JRobin.stop();
+		timer.cancel();
+		storage.delete();
+	}
+
+	/**
+	 * Benchmark.
+	 * @throws IOException e
+	 */
+	@Benchmark
+	public void addValue() throws IOException {
+		value++;
+		jrobin.addValue(value);
+	}
+
+	/**
+	 * Benchmark of the cost for the collect thread (the value is written by the writer threads).
+	 * @throws IOException e
+	 */
+	@Benchmark
+	public void addValueLater() throws IOException {
+		value++;
+		jrobin.addValueLater(value);
+	}
+}
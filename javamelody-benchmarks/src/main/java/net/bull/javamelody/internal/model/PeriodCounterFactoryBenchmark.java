@@ -0,0 +1,117 @@
+/*
+ * Copyright 2008-2019 by Emeric Vernat
+ *
+ *     This file is part of Java Melody.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.bull.javamelody.internal.model;
+
+import java.io.IOException;
+import java.util.Calendar;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmark of the week and year counters of PeriodCounterFactory,
+ * with day counter files for the last 366 days like in a long running application.
+ * @author Emeric Vernat
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PeriodCounterFactoryBenchmark {
+	@Param({ "100", "1000" })
+	private int requestsCount;
+
+	private BenchmarkStorage storage;
+	private PeriodCounterFactory periodCounterFactory;
+
+	/**
+	 * Initialisation.
+	 * @throws IOException e
+	 */
+	@Setup
+	public void setUp() throws IOException {
+		storage = new BenchmarkStorage();
+		final Counter counter = BenchmarkStorage.createCounter(Counter.SQL_COUNTER_NAME,
+				requestsCount);
+		periodCounterFactory = new PeriodCounterFactory(counter);
+		final Calendar calendar = Calendar.getInstance();
+		for (int i = 1; i < Period.ANNEE.getDurationDays(); i++) {
+			calendar.add(Calendar.DAY_OF_YEAR, -1);
+			final Counter dayCounter = periodCounterFactory
+					.createDayCounterAtDate(calendar.getTime());
+			dayCounter.addRequestsAndErrors(counter);
+			dayCounter.writeToFile();
+		}
+	}
+
+	/**
+	 * Finalisation.
+	 */
+	@TearDown
+	public void tearDown() {
+		storage.delete();
+	}
+
+	/**
+	 * Benchmark (the week, month and year rollups are computed and saved in the warmup iteration).
+	 * @return Counter
+	 * @throws IOException e
+	 */
+	@Benchmark
+	public Counter getYearCounter() throws IOException {
+		return periodCounterFactory.getYearCounter();
+	}
+
+	/**
+	 * Benchmark.
+	 * @return Counter
+	 * @throws IOException e
+	 */
+	@Benchmark
+	public Counter getWeekCounter() throws IOException {
+		return periodCounterFactory.getWeekCounter();
+	}
+
+	/**
+	 * Benchmark of a custom period of 200 days.
+	 * @return Counter
+	 * @throws IOException e
+	 */
+	@Benchmark
+	public Counter getCustomCounter() throws IOException {
+		final Calendar startDate = Calendar.getInstance();
+		startDate.add(Calendar.DAY_OF_YEAR, -200);
+		final Calendar endDate = Calendar.getInstance();
+		endDate.add(Calendar.DAY_OF_YEAR, -1);
+		return periodCounterFactory
+				.getCustomCounter(Range.createCustomRange(startDate.getTime(), endDate.getTime()));
+	}
+}
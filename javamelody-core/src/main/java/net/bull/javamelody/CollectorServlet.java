@@ -17,10 +17,17 @@
  */
 package net.bull.javamelody;
 
+import java.io.ByteArrayOutputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.StreamCorruptedException;
+import java.net.URL;
 import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
 
 import javax.servlet.ServletConfig;
 import javax.servlet.ServletException;
@@ -35,9 +42,11 @@ import org.apache.logging.log4j.core.config.Configurator;
 
 import net.bull.javamelody.internal.common.HttpParameter;
 import net.bull.javamelody.internal.common.I18N;
+import net.bull.javamelody.internal.common.InputOutput;
 import net.bull.javamelody.internal.common.Parameters;
 import net.bull.javamelody.internal.model.Collector;
 import net.bull.javamelody.internal.model.CollectorServer;
+import net.bull.javamelody.internal.model.LabradorRetriever;
 import net.bull.javamelody.internal.web.CollectorController;
 import net.bull.javamelody.internal.web.HttpAuth;
 import net.bull.javamelody.internal.web.MonitoringController;
@@ -103,6 +112,14 @@ public class CollectorServlet extends HttpServlet {
 				CollectorController.writeOnlyAddApplication(resp);
 				return;
 			}
+			// une requête transmise par une autre instance n'est pas transmise de nouveau
+			final boolean shardProxiedRequest = CollectorController.isShardProxiedRequest(req);
+			final URL shardUrl = collectorServer.getOtherShardUrl(application);
+			if (shardUrl != null && !shardProxiedRequest) {
+				// l'application est collectée par une autre instance du serveur de collecte
+				collectorController.doShardProxy(req, resp, application, shardUrl);
+				return;
+			}
 			if (!collectorServer.isApplicationDataAvailable(application)
 					&& HttpParameter.ACTION.getParameterFrom(req) == null) {
 				CollectorController.writeDataUnavailableForApplication(application, resp);
@@ -129,6 +146,18 @@ public class CollectorServlet extends HttpServlet {
 			return;
 		}
 
+		final String action = req.getParameter("action");
+		if ("pushNode".equals(action) || "unregisterPushNode".equals(action)) {
+			// données envoyées par un noeud en mode push (paramètre collector-push-url)
+			try {
+				pushNode(req, resp, action);
+			} catch (final IOException | IllegalArgumentException e) {
+				LOGGER.warn(e.toString(), e);
+				resp.sendError(HttpServletResponse.SC_BAD_REQUEST, e.toString());
+			}
+			return;
+		}
+
 		// post du formulaire d'ajout d'application à monitorer
 		I18N.bindLocale(req.getLocale());
 		try {
@@ -192,6 +221,73 @@ public class CollectorServlet extends HttpServlet {
 		}
 	}
 
+	private void pushNode(HttpServletRequest req, HttpServletResponse resp, String action)
+			throws IOException {
+		final String appName = req.getParameter("appName");
+		final String appUrls = req.getParameter("appUrls");
+		final String pushId = req.getParameter("pushId");
+		if (appName == null || appUrls == null || pushId == null) {
+			throw new IllegalArgumentException("appName, appUrls and pushId are required");
+		}
+		if (!appUrls.startsWith("http://") && !appUrls.startsWith("https://")) {
+			throw new IllegalArgumentException(I18N.getString("urls_format"));
+		}
+		final List<URL> urls = Parameters.parseUrls(appUrls);
+		if (urls.size() != 1) {
+			throw new IllegalArgumentException("Only one url is expected for a pushed node");
+		}
+		final URL nodeUrl = urls.get(0);
+		final URL shardUrl = collectorServer.getOtherShardUrl(appName);
+		if (shardUrl != null) {
+			forwardPushToShard(req, resp, shardUrl);
+			return;
+		}
+		if ("unregisterPushNode".equals(action)) {
+			collectorServer.removePushedNode(appName, nodeUrl);
+			LOGGER.info("monitored application node removed: " + appName + ", url: " + appUrls);
+			resp.setStatus(HttpServletResponse.SC_NO_CONTENT);
+			return;
+		}
+		InputStream input = req.getInputStream();
+		if ("gzip".equals(req.getHeader("Content-Encoding"))) {
+			input = new GZIPInputStream(input);
+		}
+		if (!collectorServer.addNodePush(appName, nodeUrl, pushId, input)) {
+			// file d'attente pleine pour cette application, le noeud renverra ces données plus tard
+			resp.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE,
+					"Too many pushed data waiting for the application " + appName);
+			return;
+		}
+		resp.setStatus(HttpServletResponse.SC_NO_CONTENT);
+	}
+
+	private static void forwardPushToShard(HttpServletRequest req, HttpServletResponse resp,
+			URL shardUrl) throws IOException {
+		// l'application est collectée par une autre instance du serveur de collecte,
+		// les données du noeud lui sont transmises telles quelles
+		final ByteArrayOutputStream payload = new ByteArrayOutputStream();
+		InputOutput.pump(req.getInputStream(), payload);
+		final Map<String, String> headers = new LinkedHashMap<>();
+		if (req.getContentType() != null) {
+			headers.put("Content-Type", req.getContentType());
+		}
+		for (final String header : Arrays.asList("Content-Encoding", "Authorization")) {
+			if (req.getHeader(header) != null) {
+				headers.put(header, req.getHeader(header));
+			}
+		}
+		final URL url = new URL(shardUrl.toString() + '?' + req.getQueryString());
+		try {
+			new LabradorRetriever(url, headers).post(payload);
+		} catch (final IOException e) {
+			// le noeud renverra ces données plus tard
+			LOGGER.warn(e.toString(), e);
+			resp.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, e.toString());
+			return;
+		}
+		resp.setStatus(HttpServletResponse.SC_NO_CONTENT);
+	}
+
 	/** {@inheritDoc} */
 	@Override
 	public void destroy() {
@@ -23,6 +23,7 @@ import java.security.CodeSource;
 import java.sql.Driver;
 import java.sql.DriverManager;
 import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashSet;
@@ -45,6 +46,7 @@ import net.bull.javamelody.internal.model.JRobin;
 import net.bull.javamelody.internal.model.JobInformations;
 import net.bull.javamelody.internal.model.MBeans;
 import net.bull.javamelody.internal.model.MavenArtifact;
+import net.bull.javamelody.internal.model.NodePushSender;
 import net.bull.javamelody.internal.model.Period;
 import net.bull.javamelody.internal.model.SamplingProfiler;
 import net.bull.javamelody.internal.model.UpdateChecker;
@@ -65,6 +67,7 @@ class FilterContext {
 	private final Timer timer;
 	private final SamplingProfiler samplingProfiler;
 	private final TimerTask collectTimerTask;
+	private final NodePushSender nodePushSender;
 	private final Set<ObjectName> jmxNames = new HashSet<>();
 
 	private static final class CollectTimerTask extends TimerTask {
@@ -136,6 +139,8 @@ class FilterContext {
 
 			initCollect();
 
+			this.nodePushSender = initNodePushSender();
+
 			if (Parameter.JMX_EXPOSE_ENABLED.getValueAsBoolean()) {
 				initJmxExpose();
 			}
@@ -191,6 +196,18 @@ class FilterContext {
 		}
 
 		setRequestTransformPatterns(counters);
+		final String stripedCounters = Parameter.STRIPED_COUNTERS.getValue();
+		if (stripedCounters != null) {
+			for (final Counter counter : getCountersByNames(counters, stripedCounters)) {
+				counter.setStriped(true);
+			}
+		}
+		final String normalizedCounters = Parameter.NORMALIZED_COUNTERS.getValue();
+		if (normalizedCounters != null) {
+			for (final Counter counter : getCountersByNames(counters, normalizedCounters)) {
+				counter.setSqlNormalized(true);
+			}
+		}
 		final String displayedCounters = Parameter.DISPLAYED_COUNTERS.getValue();
 		if (displayedCounters == null) {
 			// par défaut, les compteurs http, sql, error et log (et ceux qui sont utilisés) sont affichés
@@ -250,6 +267,28 @@ class FilterContext {
 		}
 	}
 
+	private static List<Counter> getCountersByNames(List<Counter> counters, String names) {
+		final List<Counter> result = new ArrayList<>();
+		for (final String name : names.split(",")) {
+			final String counterName = name.trim();
+			if (counterName.isEmpty()) {
+				continue;
+			}
+			boolean found = false;
+			for (final Counter counter : counters) {
+				if (counterName.equalsIgnoreCase(counter.getName())) {
+					result.add(counter);
+					found = true;
+					break;
+				}
+			}
+			if (!found) {
+				throw new IllegalArgumentException("Unknown counter: " + counterName);
+			}
+		}
+		return result;
+	}
+
 	private void initCollect() {
 		try {
 			Class.forName("org.jrobin.core.RrdDb");
@@ -290,6 +329,16 @@ class FilterContext {
 		}
 	}
 
+	private NodePushSender initNodePushSender() {
+		try {
+			// envoi des données au serveur de collecte si le paramètre collector-push-url est défini
+			return NodePushSender.start(collector, Parameters.getServletContext());
+		} catch (final IOException e) {
+			LOG.warn("push of data to the collector server disabled: " + e, e);
+			return null;
+		}
+	}
+
 	private SamplingProfiler initSamplingProfiler() {
 		if (Parameter.SAMPLING_SECONDS.getValue() != null) {
 			final SamplingProfiler sampler;
@@ -471,6 +520,10 @@ class FilterContext {
 		} finally {
 			MonitoringInitialContextFactory.stop();
 
+			if (nodePushSender != null) {
+				// on retire ce noeud du serveur de collecte en mode push
+				nodePushSender.stop();
+			}
 			// on arrête le thread du collector,
 			// on persiste les compteurs pour les relire à l'initialisation et ne pas perdre les stats
 			// et on vide les compteurs
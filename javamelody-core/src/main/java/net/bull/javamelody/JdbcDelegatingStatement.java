@@ -0,0 +1,565 @@
+/*
+ * Copyright 2008-2019 by Emeric Vernat
+ *
+ *     This file is part of Java Melody.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.bull.javamelody;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLWarning;
+import java.sql.Statement;
+
+/**
+ * {@link Statement} jdbc déléguant au statement initial, utilisé à la place d'un proxy
+ * si le paramètre jdbc-wrapper vaut "delegating".
+ * Seules les méthodes execute*, addBatch et getConnection sont instrumentées,
+ * les autres méthodes sont appelées directement sans réflexion ni allocation.
+ * @author Emeric Vernat
+ */
+class JdbcDelegatingStatement implements Statement {
+	final JdbcWrapper jdbcWrapper;
+	private final Statement statement;
+	private final Connection connection;
+	private String requestName;
+	private JdbcDelegatingResultSet resultSet;
+	// nombre d'appels à addBatch depuis la dernière exécution du batch
+	private int batchSize;
+
+	JdbcDelegatingStatement(JdbcWrapper jdbcWrapper, String query, Statement statement,
+			Connection connection) {
+		super();
+		assert jdbcWrapper != null;
+		assert statement != null;
+		assert connection != null;
+		this.jdbcWrapper = jdbcWrapper;
+		this.requestName = query;
+		this.statement = statement;
+		this.connection = connection;
+	}
+
+	final String getRequestNameForExecute(String sql) {
+		if (sql != null) {
+			// la méthode est du type executeQuery(String), executeUpdate(String, ...) ou execute(String),
+			// alors la requête sql est le premier argument (et pas celle du prepareStatement)
+			requestName = sql;
+		}
+		return getRequestNameForExecute();
+	}
+
+	final String getRequestNameForExecuteBatch() {
+		if (requestName != null && !requestName.startsWith("/* BATCH */ ")) {
+			// 1 "hit" du batch est équivalent à plusieurs exécutions de la requête dans la base.
+			// requestName peut être null si executeBatch() sans prepareStatement(String) ni addBatch(String)
+			requestName = "/* BATCH */ " + requestName;
+		}
+		return getRequestNameForExecute();
+	}
+
+	final String getRequestNameForExecute() {
+		// si on n'a pas trouvé la requête, on prend "null"
+		requestName = String.valueOf(requestName);
+		return requestName;
+	}
+
+	final void addedToBatch() {
+		batchSize++;
+	}
+
+	final ResultSet createResultSet(String request, ResultSet delegate) {
+		final JdbcDelegatingResultSet result = jdbcWrapper.createResultSetWrapper(request,
+				delegate, this);
+		if (result == null) {
+			return delegate;
+		}
+		// une nouvelle exécution ferme le précédent ResultSet du statement
+		closeResultSet();
+		resultSet = result;
+		return result;
+	}
+
+	private void closeResultSet() {
+		if (resultSet != null) {
+			resultSet.addFetchesToCounter();
+			resultSet = null;
+		}
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		return statement.equals(obj);
+	}
+
+	@Override
+	public int hashCode() {
+		return statement.hashCode();
+	}
+
+	@Override
+	public ResultSet executeQuery(String sql) throws SQLException {
+		final String request = getRequestNameForExecute(sql);
+		final long start = jdbcWrapper.startExecute(request);
+		boolean systemError = true;
+		try {
+			final ResultSet result = statement.executeQuery(sql);
+			systemError = false;
+			return createResultSet(request, result);
+		} catch (final SQLException e) {
+			systemError = JdbcWrapper.isSystemError(e);
+			throw e;
+		} finally {
+			jdbcWrapper.endExecute(request, start, systemError);
+		}
+	}
+
+	@Override
+	public int executeUpdate(String sql) throws SQLException {
+		final String request = getRequestNameForExecute(sql);
+		final long start = jdbcWrapper.startExecute(request);
+		boolean systemError = true;
+		try {
+			final int result = statement.executeUpdate(sql);
+			systemError = false;
+			return result;
+		} catch (final SQLException e) {
+			systemError = JdbcWrapper.isSystemError(e);
+			throw e;
+		} finally {
+			jdbcWrapper.endExecute(request, start, systemError);
+		}
+	}
+
+	@Override
+	public void close() throws SQLException {
+		try {
+			statement.close();
+		} finally {
+			// fermer le statement ferme aussi son ResultSet
+			closeResultSet();
+		}
+	}
+
+	@Override
+	public int getMaxFieldSize() throws SQLException {
+		return statement.getMaxFieldSize();
+	}
+
+	@Override
+	public void setMaxFieldSize(int max) throws SQLException {
+		statement.setMaxFieldSize(max);
+	}
+
+	@Override
+	public int getMaxRows() throws SQLException {
+		return statement.getMaxRows();
+	}
+
+	@Override
+	public void setMaxRows(int max) throws SQLException {
+		statement.setMaxRows(max);
+	}
+
+	@Override
+	public void setEscapeProcessing(boolean enable) throws SQLException {
+		statement.setEscapeProcessing(enable);
+	}
+
+	@Override
+	public int getQueryTimeout() throws SQLException {
+		return statement.getQueryTimeout();
+	}
+
+	@Override
+	public void setQueryTimeout(int seconds) throws SQLException {
+		statement.setQueryTimeout(seconds);
+	}
+
+	@Override
+	public void cancel() throws SQLException {
+		statement.cancel();
+	}
+
+	@Override
+	public SQLWarning getWarnings() throws SQLException {
+		return statement.getWarnings();
+	}
+
+	@Override
+	public void clearWarnings() throws SQLException {
+		statement.clearWarnings();
+	}
+
+	@Override
+	public void setCursorName(String name) throws SQLException {
+		statement.setCursorName(name);
+	}
+
+	@Override
+	public boolean execute(String sql) throws SQLException {
+		final String request = getRequestNameForExecute(sql);
+		final long start = jdbcWrapper.startExecute(request);
+		boolean systemError = true;
+		try {
+			final boolean result = statement.execute(sql);
+			systemError = false;
+			return result;
+		} catch (final SQLException e) {
+			systemError = JdbcWrapper.isSystemError(e);
+			throw e;
+		} finally {
+			jdbcWrapper.endExecute(request, start, systemError);
+		}
+	}
+
+	@Override
+	public ResultSet getResultSet() throws SQLException {
+		return createResultSet(String.valueOf(requestName), statement.getResultSet());
+	}
+
+	@Override
+	public int getUpdateCount() throws SQLException {
+		return statement.getUpdateCount();
+	}
+
+	@Override
+	public boolean getMoreResults() throws SQLException {
+		return statement.getMoreResults();
+	}
+
+	@Override
+	public void setFetchDirection(int direction) throws SQLException {
+		statement.setFetchDirection(direction);
+	}
+
+	@Override
+	public int getFetchDirection() throws SQLException {
+		return statement.getFetchDirection();
+	}
+
+	@Override
+	public void setFetchSize(int rows) throws SQLException {
+		statement.setFetchSize(rows);
+	}
+
+	@Override
+	public int getFetchSize() throws SQLException {
+		return statement.getFetchSize();
+	}
+
+	@Override
+	public int getResultSetConcurrency() throws SQLException {
+		return statement.getResultSetConcurrency();
+	}
+
+	@Override
+	public int getResultSetType() throws SQLException {
+		return statement.getResultSetType();
+	}
+
+	@Override
+	public void addBatch(String sql) throws SQLException {
+		if (sql != null) {
+			// la requête sera utilisée lors de l'appel à executeBatch()
+			requestName = sql;
+		}
+		statement.addBatch(sql);
+		batchSize++;
+	}
+
+	@Override
+	public void clearBatch() throws SQLException {
+		statement.clearBatch();
+		batchSize = 0;
+	}
+
+	@Override
+	public int[] executeBatch() throws SQLException {
+		final String request = getRequestNameForExecuteBatch();
+		final long start = jdbcWrapper.startExecute(request);
+		boolean systemError = true;
+		try {
+			final int[] result = statement.executeBatch();
+			systemError = false;
+			return result;
+		} catch (final SQLException e) {
+			systemError = JdbcWrapper.isSystemError(e);
+			throw e;
+		} finally {
+			jdbcWrapper.endExecute(request, start, systemError, batchSize);
+			// le batch est vidé par son exécution
+			batchSize = 0;
+		}
+	}
+
+	@Override
+	public Connection getConnection() throws SQLException {
+		return connection;
+	}
+
+	@Override
+	public boolean getMoreResults(int current) throws SQLException {
+		return statement.getMoreResults(current);
+	}
+
+	@Override
+	public ResultSet getGeneratedKeys() throws SQLException {
+		return statement.getGeneratedKeys();
+	}
+
+	@Override
+	public int executeUpdate(String sql, int autoGeneratedKeys) throws SQLException {
+		final String request = getRequestNameForExecute(sql);
+		final long start = jdbcWrapper.startExecute(request);
+		boolean systemError = true;
+		try {
+			final int result = statement.executeUpdate(sql, autoGeneratedKeys);
+			systemError = false;
+			return result;
+		} catch (final SQLException e) {
+			systemError = JdbcWrapper.isSystemError(e);
+			throw e;
+		} finally {
+			jdbcWrapper.endExecute(request, start, systemError);
+		}
+	}
+
+	@Override
+	public int executeUpdate(String sql, int[] columnIndexes) throws SQLException {
+		final String request = getRequestNameForExecute(sql);
+		final long start = jdbcWrapper.startExecute(request);
+		boolean systemError = true;
+		try {
+			final int result = statement.executeUpdate(sql, columnIndexes);
+			systemError = false;
+			return result;
+		} catch (final SQLException e) {
+			systemError = JdbcWrapper.isSystemError(e);
+			throw e;
+		} finally {
+			jdbcWrapper.endExecute(request, start, systemError);
+		}
+	}
+
+	@Override
+	public int executeUpdate(String sql, String[] columnNames) throws SQLException {
+		final String request = getRequestNameForExecute(sql);
+		final long start = jdbcWrapper.startExecute(request);
+		boolean systemError = true;
+		try {
+			final int result = statement.executeUpdate(sql, columnNames);
+			systemError = false;
+			return result;
+		} catch (final SQLException e) {
+			systemError = JdbcWrapper.isSystemError(e);
+			throw e;
+		} finally {
+			jdbcWrapper.endExecute(request, start, systemError);
+		}
+	}
+
+	@Override
+	public boolean execute(String sql, int autoGeneratedKeys) throws SQLException {
+		final String request = getRequestNameForExecute(sql);
+		final long start = jdbcWrapper.startExecute(request);
+		boolean systemError = true;
+		try {
+			final boolean result = statement.execute(sql, autoGeneratedKeys);
+			systemError = false;
+			return result;
+		} catch (final SQLException e) {
+			systemError = JdbcWrapper.isSystemError(e);
+			throw e;
+		} finally {
+			jdbcWrapper.endExecute(request, start, systemError);
+		}
+	}
+
+	@Override
+	public boolean execute(String sql, int[] columnIndexes) throws SQLException {
+		final String request = getRequestNameForExecute(sql);
+		final long start = jdbcWrapper.startExecute(request);
+		boolean systemError = true;
+		try {
+			final boolean result = statement.execute(sql, columnIndexes);
+			systemError = false;
+			return result;
+		} catch (final SQLException e) {
+			systemError = JdbcWrapper.isSystemError(e);
+			throw e;
+		} finally {
+			jdbcWrapper.endExecute(request, start, systemError);
+		}
+	}
+
+	@Override
+	public boolean execute(String sql, String[] columnNames) throws SQLException {
+		final String request = getRequestNameForExecute(sql);
+		final long start = jdbcWrapper.startExecute(request);
+		boolean systemError = true;
+		try {
+			final boolean result = statement.execute(sql, columnNames);
+			systemError = false;
+			return result;
+		} catch (final SQLException e) {
+			systemError = JdbcWrapper.isSystemError(e);
+			throw e;
+		} finally {
+			jdbcWrapper.endExecute(request, start, systemError);
+		}
+	}
+
+	@Override
+	public int getResultSetHoldability() throws SQLException {
+		return statement.getResultSetHoldability();
+	}
+
+	@Override
+	public boolean isClosed() throws SQLException {
+		return statement.isClosed();
+	}
+
+	@Override
+	public void setPoolable(boolean poolable) throws SQLException {
+		statement.setPoolable(poolable);
+	}
+
+	@Override
+	public boolean isPoolable() throws SQLException {
+		return statement.isPoolable();
+	}
+
+	@Override
+	public void closeOnCompletion() throws SQLException {
+		statement.closeOnCompletion();
+	}
+
+	@Override
+	public boolean isCloseOnCompletion() throws SQLException {
+		return statement.isCloseOnCompletion();
+	}
+
+	@Override
+	public long getLargeUpdateCount() throws SQLException {
+		return statement.getLargeUpdateCount();
+	}
+
+	@Override
+	public void setLargeMaxRows(long max) throws SQLException {
+		statement.setLargeMaxRows(max);
+	}
+
+	@Override
+	public long getLargeMaxRows() throws SQLException {
+		return statement.getLargeMaxRows();
+	}
+
+	@Override
+	public long[] executeLargeBatch() throws SQLException {
+		final String request = getRequestNameForExecuteBatch();
+		final long start = jdbcWrapper.startExecute(request);
+		boolean systemError = true;
+		try {
+			final long[] result = statement.executeLargeBatch();
+			systemError = false;
+			return result;
+		} catch (final SQLException e) {
+			systemError = JdbcWrapper.isSystemError(e);
+			throw e;
+		} finally {
+			jdbcWrapper.endExecute(request, start, systemError, batchSize);
+			// le batch est vidé par son exécution
+			batchSize = 0;
+		}
+	}
+
+	@Override
+	public long executeLargeUpdate(String sql) throws SQLException {
+		final String request = getRequestNameForExecute(sql);
+		final long start = jdbcWrapper.startExecute(request);
+		boolean systemError = true;
+		try {
+			final long result = statement.executeLargeUpdate(sql);
+			systemError = false;
+			return result;
+		} catch (final SQLException e) {
+			systemError = JdbcWrapper.isSystemError(e);
+			throw e;
+		} finally {
+			jdbcWrapper.endExecute(request, start, systemError);
+		}
+	}
+
+	@Override
+	public long executeLargeUpdate(String sql, int autoGeneratedKeys) throws SQLException {
+		final String request = getRequestNameForExecute(sql);
+		final long start = jdbcWrapper.startExecute(request);
+		boolean systemError = true;
+		try {
+			final long result = statement.executeLargeUpdate(sql, autoGeneratedKeys);
+			systemError = false;
+			return result;
+		} catch (final SQLException e) {
+			systemError = JdbcWrapper.isSystemError(e);
+			throw e;
+		} finally {
+			jdbcWrapper.endExecute(request, start, systemError);
+		}
+	}
+
+	@Override
+	public long executeLargeUpdate(String sql, int[] columnIndexes) throws SQLException {
+		final String request = getRequestNameForExecute(sql);
+		final long start = jdbcWrapper.startExecute(request);
+		boolean systemError = true;
+		try {
+			final long result = statement.executeLargeUpdate(sql, columnIndexes);
+			systemError = false;
+			return result;
+		} catch (final SQLException e) {
+			systemError = JdbcWrapper.isSystemError(e);
+			throw e;
+		} finally {
+			jdbcWrapper.endExecute(request, start, systemError);
+		}
+	}
+
+	@Override
+	public long executeLargeUpdate(String sql, String[] columnNames) throws SQLException {
+		final String request = getRequestNameForExecute(sql);
+		final long start = jdbcWrapper.startExecute(request);
+		boolean systemError = true;
+		try {
+			final long result = statement.executeLargeUpdate(sql, columnNames);
+			systemError = false;
+			return result;
+		} catch (final SQLException e) {
+			systemError = JdbcWrapper.isSystemError(e);
+			throw e;
+		} finally {
+			jdbcWrapper.endExecute(request, start, systemError);
+		}
+	}
+
+	@Override
+	public <T> T unwrap(Class<T> iface) throws SQLException {
+		return statement.unwrap(iface);
+	}
+
+	@Override
+	public boolean isWrapperFor(Class<?> iface) throws SQLException {
+		return statement.isWrapperFor(iface);
+	}
+}
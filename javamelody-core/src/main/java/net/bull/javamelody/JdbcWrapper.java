@@ -24,6 +24,7 @@ import java.lang.reflect.Method;
 import java.lang.reflect.Proxy;
 import java.sql.Connection;
 import java.sql.Driver;
+import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.ArrayList;
@@ -43,6 +44,7 @@ import javax.sql.DataSource;
 import net.bull.javamelody.internal.common.LOG;
 import net.bull.javamelody.internal.common.Parameters;
 import net.bull.javamelody.internal.model.ConnectionInformations;
+import net.bull.javamelody.internal.model.ConnectionLatencies;
 import net.bull.javamelody.internal.model.Counter;
 
 /**
@@ -67,6 +69,8 @@ public final class JdbcWrapper {
 	static final AtomicInteger BUILD_QUEUE_LENGTH = new AtomicInteger();
 	static final AtomicLong BUILD_QUEUE_WAITING_DURATIONS_SUM = new AtomicLong();
 	static final Map<Integer, ConnectionInformations> USED_CONNECTION_INFORMATIONS = new ConcurrentHashMap<>();
+	// histogrammes des temps d'attente de getConnection et de détention des connexions par DataSource
+	static final Map<String, ConnectionLatencies> CONNECTION_LATENCIES_BY_DATASOURCE = new ConcurrentHashMap<>();
 
 	private static final int MAX_USED_CONNECTION_INFORMATIONS = 500;
 
@@ -77,6 +81,9 @@ public final class JdbcWrapper {
 	private boolean jboss;
 	private boolean glassfish;
 	private boolean weblogic;
+	private boolean delegatingWrappers;
+	private boolean resultSetMetricsEnabled;
+	private boolean sqlShapesEnabled;
 
 	static final class ConnectionInformationsComparator
 			implements Comparator<ConnectionInformations>, Serializable {
@@ -102,6 +109,9 @@ public final class JdbcWrapper {
 		private String requestName;
 		private final Statement statement;
 		private final Connection connection;
+		private JdbcDelegatingResultSet resultSet;
+		// nombre d'appels à addBatch depuis la dernière exécution du batch
+		private int batchSize;
 
 		StatementInvocationHandler(String query, Statement statement, Connection connection) {
 			super();
@@ -123,13 +133,14 @@ public final class JdbcWrapper {
 			} else if (isHashCodeMethod(methodName, args)) {
 				return statement.hashCode();
 			} else if (methodName.startsWith("execute")) {
+				final boolean batch = "executeBatch".equals(methodName)
+						|| "executeLargeBatch".equals(methodName);
 				if (isFirstArgAString(args)) {
 					// la méthode est du type executeQuery(String), executeUpdate(String),
 					// executeUpdate(String, ...) ou execute(String sql),
 					// alors la requête sql est le premier argument (et pas query)
 					requestName = (String) args[0];
-				} else if (("executeBatch".equals(methodName)
-						|| "executeLargeBatch".equals(methodName)) && requestName != null
+				} else if (batch && requestName != null
 						&& !requestName.startsWith("/* BATCH */ ")) {
 					// if executeBatch, add a prefix in the request name to explain that
 					// 1 batch "hit" is equivalent to several exec of the request in the db.
@@ -142,27 +153,72 @@ public final class JdbcWrapper {
 				// si on n'a pas trouvé la requête, on prend "null"
 				requestName = String.valueOf(requestName);
 
-				return doExecute(requestName, statement, method, args);
-			} else if ("addBatch".equals(methodName) && isFirstArgAString(args)) {
-				// Bien que déconseillée la méthode est addBatch(String),
-				// la requête sql est alors le premier argument
-				// (elle sera utilisée lors de l'appel à executeBatch())
-
-				// Rq : on ne conserve que la dernière requête de addBatch.
-				// Rq : si addBatch(String) est appelée, puis que executeUpdate(String)
-				// la requête du batch est correctement ignorée ci-dessus.
-				// Rq : si connection.prepareStatement(String).addBatch(String) puis executeUpdate()
-				// sont appelées (et pas executeBatch()) alors la requête conservée est
-				// faussement celle du batch mais l'application cloche grave.
-				requestName = (String) args[0];
+				if (batch) {
+					try {
+						return doExecute(requestName, statement, method, args, batchSize);
+					} finally {
+						// le batch est vidé par son exécution
+						batchSize = 0;
+					}
+				}
+				return createResultSetIfNeeded(proxy,
+						doExecute(requestName, statement, method, args));
+			} else if ("addBatch".equals(methodName)) {
+				batchSize++;
+				if (isFirstArgAString(args)) {
+					// Bien que déconseillée la méthode est addBatch(String),
+					// la requête sql est alors le premier argument
+					// (elle sera utilisée lors de l'appel à executeBatch())
+
+					// Rq : on ne conserve que la dernière requête de addBatch.
+					// Rq : si addBatch(String) est appelée, puis que executeUpdate(String)
+					// la requête du batch est correctement ignorée ci-dessus.
+					// Rq : si connection.prepareStatement(String).addBatch(String) puis executeUpdate()
+					// sont appelées (et pas executeBatch()) alors la requête conservée est
+					// faussement celle du batch mais l'application cloche grave.
+					requestName = (String) args[0];
+				}
+			} else if ("clearBatch".equals(methodName)) {
+				batchSize = 0;
 			} else if ("getConnection".equals(methodName) && (args == null || args.length == 0)) {
 				return connection;
+			} else if ("getResultSet".equals(methodName) && (args == null || args.length == 0)) {
+				requestName = String.valueOf(requestName);
+				return createResultSetIfNeeded(proxy, method.invoke(statement, args));
+			} else if ("close".equals(methodName) && (args == null || args.length == 0)) {
+				try {
+					return method.invoke(statement, args);
+				} finally {
+					// fermer le statement ferme aussi son ResultSet
+					closeResultSet();
+				}
 			}
 
 			// ce n'est pas une méthode executeXxx du Statement
 			return method.invoke(statement, args);
 		}
 
+		private Object createResultSetIfNeeded(Object proxy, Object result) {
+			if (result instanceof ResultSet) {
+				final JdbcDelegatingResultSet resultSetWrapper = createResultSetWrapper(
+						requestName, (ResultSet) result, (Statement) proxy);
+				if (resultSetWrapper != null) {
+					// une nouvelle exécution ferme le précédent ResultSet du statement
+					closeResultSet();
+					resultSet = resultSetWrapper;
+					return resultSetWrapper;
+				}
+			}
+			return result;
+		}
+
+		private void closeResultSet() {
+			if (resultSet != null) {
+				resultSet.addFetchesToCounter();
+				resultSet = null;
+			}
+		}
+
 		private boolean isFirstArgAString(Object[] args) {
 			return args != null && args.length > 0 && args[0] instanceof String;
 		}
@@ -173,24 +229,21 @@ public final class JdbcWrapper {
 	 */
 	private class ConnectionInvocationHandler implements InvocationHandler {
 		private final Connection connection;
+		private final ConnectionLatencies connectionLatencies;
+		private long openingTime;
 		private boolean alreadyClosed;
 
-		ConnectionInvocationHandler(Connection connection) {
+		ConnectionInvocationHandler(Connection connection,
+				ConnectionLatencies connectionLatencies) {
 			super();
 			assert connection != null;
 			this.connection = connection;
+			this.connectionLatencies = connectionLatencies;
 		}
 
 		void init() {
-			// on limite la taille pour éviter une éventuelle saturation mémoire
-			if (isConnectionInformationsEnabled()
-					&& USED_CONNECTION_INFORMATIONS.size() < MAX_USED_CONNECTION_INFORMATIONS) {
-				USED_CONNECTION_INFORMATIONS.put(
-						ConnectionInformations.getUniqueIdOfConnection(connection),
-						new ConnectionInformations());
-			}
-			USED_CONNECTION_COUNT.incrementAndGet();
-			TRANSACTION_COUNT.incrementAndGet();
+			openingTime = System.nanoTime();
+			connectionOpened(connection);
 		}
 
 		/** {@inheritDoc} */
@@ -220,9 +273,7 @@ public final class JdbcWrapper {
 				return result;
 			} finally {
 				if ("close".equals(methodName) && !alreadyClosed) {
-					USED_CONNECTION_COUNT.decrementAndGet();
-					USED_CONNECTION_INFORMATIONS
-							.remove(ConnectionInformations.getUniqueIdOfConnection(connection));
+					connectionClosed(connection, connectionLatencies, openingTime);
 					alreadyClosed = true;
 				}
 			}
@@ -321,6 +372,9 @@ public final class JdbcWrapper {
 		this.servletContext = null;
 		connectionInformationsEnabled = Parameters.isSystemActionsEnabled()
 				&& !Parameters.isNoDatabase();
+		delegatingWrappers = isDelegatingWrappersParameter();
+		resultSetMetricsEnabled = Parameter.JDBC_RESULT_SET_METRICS_ENABLED.getValueAsBoolean();
+		sqlShapesEnabled = Parameter.JDBC_SQL_SHAPES_ENABLED.getValueAsBoolean();
 	}
 
 	void initServletContext(ServletContext context) {
@@ -334,6 +388,35 @@ public final class JdbcWrapper {
 		weblogic = serverInfo.contains("WebLogic");
 		connectionInformationsEnabled = Parameters.isSystemActionsEnabled()
 				&& !Parameters.isNoDatabase();
+		delegatingWrappers = isDelegatingWrappersParameter();
+		resultSetMetricsEnabled = Parameter.JDBC_RESULT_SET_METRICS_ENABLED.getValueAsBoolean();
+		sqlShapesEnabled = Parameter.JDBC_SQL_SHAPES_ENABLED.getValueAsBoolean();
+	}
+
+	private static boolean isDelegatingWrappersParameter() {
+		final String jdbcWrapper = Parameter.JDBC_WRAPPER.getValue();
+		if (jdbcWrapper == null || "proxy".equalsIgnoreCase(jdbcWrapper)) {
+			return false;
+		} else if ("delegating".equalsIgnoreCase(jdbcWrapper)) {
+			// les classes delegating implémentent les méthodes jdbc 4.2 avec java.sql.SQLType,
+			// qui n'existe qu'à partir de java 8 : sinon, les proxys sont utilisés
+			if (!isSqlTypeAvailable()) {
+				LOG.info("jdbc-wrapper delegating needs java 8 or later, proxy used instead");
+				return false;
+			}
+			return true;
+		}
+		throw new IllegalArgumentException(
+				"The parameter jdbc-wrapper should be proxy or delegating, not " + jdbcWrapper);
+	}
+
+	private static boolean isSqlTypeAvailable() {
+		try {
+			Class.forName("java.sql.SQLType");
+			return true;
+		} catch (final ClassNotFoundException e) {
+			return false;
+		}
 	}
 
 	public static int getUsedConnectionCount() {
@@ -364,6 +447,41 @@ public final class JdbcWrapper {
 		return BUILD_QUEUE_WAITING_DURATIONS_SUM.get();
 	}
 
+	/**
+	 * @return Copie des histogrammes des temps d'attente et de détention des connexions,
+	 * par DataSource triées par nom
+	 */
+	public static List<ConnectionLatencies> getConnectionLatenciesList() {
+		final List<ConnectionLatencies> result = new ArrayList<>(
+				CONNECTION_LATENCIES_BY_DATASOURCE.size());
+		for (final ConnectionLatencies connectionLatencies : CONNECTION_LATENCIES_BY_DATASOURCE
+				.values()) {
+			result.add(connectionLatencies.copy());
+		}
+		Collections.sort(result, new Comparator<ConnectionLatencies>() {
+			@Override
+			public int compare(ConnectionLatencies latencies1, ConnectionLatencies latencies2) {
+				return latencies1.getDataSourceName().compareTo(latencies2.getDataSourceName());
+			}
+		});
+		return Collections.unmodifiableList(result);
+	}
+
+	static ConnectionLatencies getConnectionLatencies(String dataSourceName) {
+		ConnectionLatencies connectionLatencies = CONNECTION_LATENCIES_BY_DATASOURCE
+				.get(dataSourceName);
+		if (connectionLatencies == null) {
+			final ConnectionLatencies newConnectionLatencies = new ConnectionLatencies(
+					dataSourceName);
+			connectionLatencies = CONNECTION_LATENCIES_BY_DATASOURCE.putIfAbsent(dataSourceName,
+					newConnectionLatencies);
+			if (connectionLatencies == null) {
+				connectionLatencies = newConnectionLatencies;
+			}
+		}
+		return connectionLatencies;
+	}
+
 	public static List<ConnectionInformations> getConnectionInformationsList() {
 		final List<ConnectionInformations> result = new ArrayList<>(
 				USED_CONNECTION_INFORMATIONS.values());
@@ -402,53 +520,137 @@ public final class JdbcWrapper {
 
 	Object doExecute(String requestName, Statement statement, Method method, Object[] args)
 			throws IllegalAccessException, InvocationTargetException {
+		return doExecute(requestName, statement, method, args, -1);
+	}
+
+	private Object doExecute(String requestName, Statement statement, Method method,
+			Object[] args, int batchSize) throws IllegalAccessException, InvocationTargetException {
 		assert requestName != null;
 		assert statement != null;
 		assert method != null;
 
-		// on ignore les requêtes explain exécutées par DatabaseInformations
-		if (!sqlCounter.isDisplayed() || requestName.startsWith("explain ")) {
-			ACTIVE_CONNECTION_COUNT.incrementAndGet();
-			try {
-				return method.invoke(statement, args);
-			} finally {
-				ACTIVE_CONNECTION_COUNT.decrementAndGet();
-			}
-		}
-
-		final long start = System.currentTimeMillis();
+		final long start = startExecute(requestName);
 		boolean systemError = true;
 		try {
-			ACTIVE_CONNECTION_COUNT.incrementAndGet();
-
-			// note perf: selon un paramètre current-sql(/requests)-disabled,
-			// on pourrait ici ne pas binder un nouveau contexte à chaque requête sql
-			sqlCounter.bindContext(requestName, requestName, null, -1, -1);
-
 			final Object result = method.invoke(statement, args);
 			systemError = false;
 			return result;
 		} catch (final InvocationTargetException e) {
 			if (e.getCause() instanceof SQLException) {
-				final int errorCode = ((SQLException) e.getCause()).getErrorCode();
-				if (errorCode >= 20000 && errorCode < 30000) {
-					// Dans Oracle par exemple, les erreurs 20000 à 30000 sont standardisées
-					// comme étant des erreurs lancées par l'application dans des procédures stockées
-					// pour être traitées comme des erreurs de saisies ou comme des règles de gestion.
-					// Ce ne sont donc pas des erreurs systèmes.
-					systemError = false;
-				}
+				systemError = isSystemError((SQLException) e.getCause());
 			}
 			throw e;
 		} finally {
-			// Rq : on n'utilise pas la création du statement et l'appel à la méthode close du statement
-			// comme début et fin d'une connexion active, car en fonction de l'application
-			// la méthode close du statement peut ne jamais être appelée
-			// (par exemple, seule la méthode close de la connection peut être appelée ce qui ferme aussi le statement)
+			endExecute(requestName, start, systemError, batchSize);
+		}
+	}
+
+	/**
+	 * Début de l'exécution d'une requête sql.
+	 * @param requestName Requête sql
+	 * @return Date de début, ou -1 si la requête n'est pas enregistrée dans le compteur sql
+	 */
+	long startExecute(String requestName) {
+		// Rq : on n'utilise pas la création du statement et l'appel à la méthode close du statement
+		// comme début et fin d'une connexion active, car en fonction de l'application
+		// la méthode close du statement peut ne jamais être appelée
+		// (par exemple, seule la méthode close de la connection peut être appelée ce qui ferme aussi le statement)
+		ACTIVE_CONNECTION_COUNT.incrementAndGet();
+		// on ignore les requêtes explain exécutées par DatabaseInformations
+		if (!sqlCounter.isDisplayed() || requestName.startsWith("explain ")) {
+			return -1;
+		}
+		// note perf: selon un paramètre current-sql(/requests)-disabled,
+		// on pourrait ici ne pas binder un nouveau contexte à chaque requête sql
+		sqlCounter.bindContext(requestName, requestName, null, -1, -1);
+		return System.currentTimeMillis();
+	}
+
+	/**
+	 * Fin de l'exécution d'une requête sql.
+	 * @param requestName Requête sql
+	 * @param start Date de début retournée par startExecute
+	 * @param systemError true si erreur système
+	 */
+	void endExecute(String requestName, long start, boolean systemError) {
+		endExecute(requestName, start, systemError, -1);
+	}
+
+	/**
+	 * Fin de l'exécution d'une requête sql ou d'un batch.
+	 * @param requestName Requête sql
+	 * @param start Date de début retournée par startExecute
+	 * @param systemError true si erreur système
+	 * @param batchSize Nombre d'appels à addBatch pour executeBatch, ou -1 si ce n'est pas un batch
+	 */
+	void endExecute(String requestName, long start, boolean systemError, int batchSize) {
+		ACTIVE_CONNECTION_COUNT.decrementAndGet();
+		if (start != -1) {
 			// Rq : pas de temps cpu pour les requêtes sql car c'est 0 ou quasiment 0
-			ACTIVE_CONNECTION_COUNT.decrementAndGet();
 			final long duration = Math.max(System.currentTimeMillis() - start, 0);
 			sqlCounter.addRequest(requestName, duration, -1, -1, systemError, -1);
+			if (batchSize >= 0) {
+				sqlCounter.addBatchExecution(requestName, batchSize, duration);
+			}
+			if (sqlShapesEnabled) {
+				sqlCounter.addRequestShape(requestName);
+			}
+		}
+	}
+
+	/**
+	 * Crée si besoin le ResultSet qui compte les lignes lues, le temps et les octets de la requête sql.
+	 * @param requestName Requête sql
+	 * @param resultSet ResultSet initial
+	 * @param statement Statement retourné par ResultSet.getStatement()
+	 * @return JdbcDelegatingResultSet ou null si les métriques de ResultSet ne sont pas activées
+	 */
+	JdbcDelegatingResultSet createResultSetWrapper(String requestName, ResultSet resultSet,
+			Statement statement) {
+		if (!resultSetMetricsEnabled || resultSet == null
+				|| resultSet instanceof JdbcDelegatingResultSet || !sqlCounter.isDisplayed()
+				|| requestName.startsWith("explain ")) {
+			return null;
+		}
+		return new JdbcDelegatingResultSet(this, requestName, resultSet, statement);
+	}
+
+	void addResultSetFetches(String requestName, long fetchedRows, long fetchDurationsNanos,
+			long fetchedBytes) {
+		// temps en microsecondes dans le counter, car le temps de next() est souvent < 1 ms
+		sqlCounter.addResultSetFetches(requestName, fetchedRows, fetchDurationsNanos / 1000,
+				fetchedBytes);
+	}
+
+	static boolean isSystemError(SQLException e) {
+		// Dans Oracle par exemple, les erreurs 20000 à 30000 sont standardisées
+		// comme étant des erreurs lancées par l'application dans des procédures stockées
+		// pour être traitées comme des erreurs de saisies ou comme des règles de gestion.
+		// Ce ne sont donc pas des erreurs systèmes.
+		final int errorCode = e.getErrorCode();
+		return errorCode < 20000 || errorCode >= 30000;
+	}
+
+	void connectionOpened(Connection connection) {
+		// on limite la taille pour éviter une éventuelle saturation mémoire
+		if (isConnectionInformationsEnabled()
+				&& USED_CONNECTION_INFORMATIONS.size() < MAX_USED_CONNECTION_INFORMATIONS) {
+			USED_CONNECTION_INFORMATIONS.put(
+					ConnectionInformations.getUniqueIdOfConnection(connection),
+					new ConnectionInformations());
+		}
+		USED_CONNECTION_COUNT.incrementAndGet();
+		TRANSACTION_COUNT.incrementAndGet();
+	}
+
+	static void connectionClosed(Connection connection, ConnectionLatencies connectionLatencies,
+			long openingTime) {
+		USED_CONNECTION_COUNT.decrementAndGet();
+		USED_CONNECTION_INFORMATIONS
+				.remove(ConnectionInformations.getUniqueIdOfConnection(connection));
+		if (connectionLatencies != null) {
+			// temps de détention de la connexion obtenue par getConnection de la DataSource
+			connectionLatencies.addHoldTime((System.nanoTime() - openingTime) / 1000000);
 		}
 	}
 
@@ -800,6 +1002,9 @@ public final class JdbcWrapper {
 	public DataSource createDataSourceProxy(String name, final DataSource dataSource) {
 		assert dataSource != null;
 		JdbcWrapperHelper.pullDataSourceProperties(name, dataSource);
+		// sans nom (dataSource non JNDI et non Spring), le nom de la classe est utilisé
+		final ConnectionLatencies connectionLatencies = getConnectionLatencies(
+				name != null ? name : dataSource.getClass().getName());
 		final InvocationHandler invocationHandler = new AbstractInvocationHandler<DataSource>(
 				dataSource) {
 			private static final long serialVersionUID = 1L;
@@ -807,9 +1012,20 @@ public final class JdbcWrapper {
 			/** {@inheritDoc} */
 			@Override
 			public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
-				Object result = method.invoke(dataSource, args);
+				if (!"getConnection".equals(method.getName())) {
+					return method.invoke(dataSource, args);
+				}
+				// temps d'attente d'une connexion du pool, y compris en cas d'échec
+				// (par exemple, timeout du pool saturé)
+				final long start = System.nanoTime();
+				Object result;
+				try {
+					result = method.invoke(dataSource, args);
+				} finally {
+					connectionLatencies.addWaitTime((System.nanoTime() - start) / 1000000);
+				}
 				if (result instanceof Connection) {
-					result = createConnectionProxy((Connection) result);
+					result = createConnectionProxy((Connection) result, connectionLatencies);
 				}
 				return result;
 			}
@@ -832,14 +1048,33 @@ public final class JdbcWrapper {
 	 * @return Connection
 	 */
 	public Connection createConnectionProxy(Connection connection) {
+		return createConnectionProxy(connection, null);
+	}
+
+	/**
+	 * Crée un proxy d'une {@link Connection} jdbc.
+	 * @param connection Connection
+	 * @param connectionLatencies Histogrammes de la DataSource de la connexion ou null
+	 * @return Connection
+	 */
+	Connection createConnectionProxy(Connection connection,
+			ConnectionLatencies connectionLatencies) {
 		assert connection != null;
 		// même si le counter sql n'est pas affiché on crée un proxy de la connexion
 		// pour avoir les graphiques USED_CONNECTION_COUNT et ACTIVE_CONNECTION_COUNT (cf issue 160)
 		if (isMonitoringDisabled()) {
 			return connection;
 		}
+		if (delegatingWrappers) {
+			if (isProxyAlready(connection)) {
+				return connection;
+			}
+			// classes déléguant sans réflexion, le proxy reste utilisé pour les dataSources
+			connectionOpened(connection);
+			return new JdbcDelegatingConnection(this, connection, connectionLatencies);
+		}
 		final ConnectionInvocationHandler invocationHandler = new ConnectionInvocationHandler(
-				connection);
+				connection, connectionLatencies);
 		final Connection result = createProxy(connection, invocationHandler);
 		if (result != connection) {
 			invocationHandler.init();
@@ -899,6 +1134,9 @@ public final class JdbcWrapper {
 	}
 
 	static boolean isProxyAlready(Object object) {
+		if (object instanceof JdbcDelegatingConnection || object instanceof JdbcDelegatingStatement) {
+			return true;
+		}
 		return Proxy.isProxyClass(object.getClass()) && Proxy.getInvocationHandler(object)
 				.getClass().getName().equals(DelegatingInvocationHandler.class.getName());
 		// utilisation de Proxy.getInvocationHandler(object).getClass().getName().equals(DelegatingInvocationHandler.class.getName())
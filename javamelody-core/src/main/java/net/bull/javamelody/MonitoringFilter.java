@@ -411,9 +411,12 @@ public class MonitoringFilter implements Filter {
 		if ("stop".equalsIgnoreCase(HttpParameter.COLLECTOR.getParameterFrom(httpRequest))) {
 			// on a été appelé par un serveur de collecte qui fera l'aggrégation dans le temps,
 			// le stockage et les courbes, donc on arrête le timer s'il est démarré
-			// et on vide les stats pour que le serveur de collecte ne récupère que les deltas
-			for (final Counter counter : collector.getCounters()) {
-				counter.clear();
+			// et on vide les stats pour que le serveur de collecte ne récupère que les deltas,
+			// sauf si le serveur de collecte utilise les générations pour recevoir les deltas
+			if (!collector.isDeltaCollectUsed()) {
+				for (final Counter counter : collector.getCounters()) {
+					counter.clear();
+				}
 			}
 
 			if (!collector.isStopped()) {
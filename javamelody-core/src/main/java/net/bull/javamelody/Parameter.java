@@ -49,6 +49,19 @@ public enum Parameter {
 	 */
 	MAX_RRD_DISK_USAGE_MB("max-rrd-disk-usage-mb"),
 
+	/**
+	 * true to store all the graphs of an application in a few segment files (graphs-n.rrds)
+	 * instead of one rrd file per graph, existing rrd files being imported (false by default).
+	 */
+	CONSOLIDATED_RRD_STORAGE("consolidated-rrd-storage"),
+
+	/**
+	 * Strategy to force the rrd files to the disk: "close" to force each file written when closed,
+	 * "periodic" to force the open files every 5 minutes, or "batched" to force together
+	 * the files written in the last 5 minutes ("close" by default).
+	 */
+	RRD_SYNC_STRATEGY("rrd-sync-strategy"),
+
 	/**
 	 * Période en secondes du sampling pour trouver les hotspots (null par défaut : pas de sampling).
 	 * Une valeur de 10 est recommandée (c'est-à-dire 10 secondes) pour ne pas entraîner d'overhead,
@@ -163,6 +176,18 @@ public enum Parameter {
 	 */
 	DISPLAYED_COUNTERS("displayed-counters"),
 
+	/**
+	 * Counters whose most used requests are accumulated without lock, in per-thread cells,
+	 * to avoid contention on servers with many cores, for example "http,sql" (null by default).
+	 */
+	STRIPED_COUNTERS("striped-counters"),
+
+	/**
+	 * Counters whose sql requests are normalized before aggregation, without regular expression:
+	 * literals are replaced by ? and "in" lists are collapsed, for example "sql" (null by default).
+	 */
+	NORMALIZED_COUNTERS("normalized-counters"),
+
 	/**
 	 * Liste des noms de rapports personnalisés (null par défaut).<br/>
 	 */
@@ -196,6 +221,13 @@ public enum Parameter {
 	 */
 	GZIP_COMPRESSION_DISABLED("gzip-compression-disabled"),
 
+	/**
+	 * Active l'écriture non bloquante (servlet 3.1) des rapports html, pdf et sérialisés ("false" par défaut).
+	 * Le rapport est rendu dans des buffers, puis envoyé sans occuper un thread du serveur
+	 * pendant la transmission à un client lent.
+	 */
+	ASYNC_REPORT_OUTPUT_ENABLED("async-report-output-enabled"),
+
 	/**
 	 * Active les actions systèmes telles que Ramasse-miettes, Invalidation sessions et Heap-dump (true par défaut).
 	 */
@@ -263,6 +295,26 @@ public enum Parameter {
 	 */
 	REWRAP_DATASOURCES("rewrap-datasources"),
 
+	/**
+	 * Type des objets jdbc de monitoring des connexions et statements :
+	 * proxy (java.lang.reflect.Proxy, par défaut) ou delegating (classes déléguant sans réflexion).
+	 * Avec delegating, les interfaces propres au driver ne sont accessibles que par unwrap.
+	 * Delegating nécessite java 8 ou plus, sinon proxy est utilisé.
+	 */
+	JDBC_WRAPPER("jdbc-wrapper"),
+
+	/**
+	 * true | false, true pour compter les lignes lues, le temps passé dans ResultSet.next()
+	 * et une estimation des octets lus, par requête sql (false par défaut).
+	 */
+	JDBC_RESULT_SET_METRICS_ENABLED("jdbc-result-set-metrics-enabled"),
+
+	/**
+	 * true | false, true pour compter par requête sql le nombre de textes sql distincts avant agrégation,
+	 * ce qui permet de détecter des listes "in (?, ?, ...)" de longueurs variables par exemple (false par défaut).
+	 */
+	JDBC_SQL_SHAPES_ENABLED("jdbc-sql-shapes-enabled"),
+
 	/**
 	 * Nom JNDI de la session mail pour l'envoi par mail de rapport de hebdomadaire (null par défaut).
 	 */
@@ -290,10 +342,86 @@ public enum Parameter {
 
 	/**
 	 * Format du transport entre un serveur de collecte et une application monitorée
-	 * (serialized : sérialisation java par défaut et recommandée pour les performances, xml : possible).
+	 * (serialized : sérialisation java par défaut, xml : possible,
+	 * binary : format binaire plus compact et plus rapide pour les counters, avec repli sur serialized
+	 * pour les applications monitorées d'une version précédente).
 	 */
 	TRANSPORT_FORMAT("transport-format"),
 
+	/**
+	 * Deadline in seconds for the collect of data on each node of an application by a collector server,
+	 * after which the node is considered unavailable for this collect (30 by default).
+	 */
+	COLLECTOR_NODE_TIMEOUT_SECONDS("collector-node-timeout-seconds"),
+
+	/**
+	 * URL du serveur de collecte auquel l'application monitorée envoie elle-même ses données (mode push),
+	 * par exemple "http://collector:8080/" (null par défaut, c'est-à-dire mode pull où le serveur
+	 * de collecte appelle les applications monitorées).
+	 */
+	COLLECTOR_PUSH_URL("collector-push-url"),
+
+	/**
+	 * URL de ce noeud de l'application monitorée dans le serveur de collecte en mode push
+	 * (http://hostname/contextPath par défaut, à définir s'il y a plusieurs instances par machine).
+	 */
+	COLLECTOR_PUSH_NODE_URL("collector-push-node-url"),
+
+	/**
+	 * true pour que le serveur de collecte ajoute une application inconnue lorsqu'un de ses noeuds
+	 * envoie ses données en mode push (false par défaut : l'application doit d'abord être ajoutée
+	 * dans le serveur de collecte et les données des autres applications sont refusées).
+	 */
+	COLLECTOR_PUSH_ADD_APPLICATIONS("collector-push-add-applications"),
+
+	/**
+	 * URL de cette instance du serveur de collecte, appelable par les autres instances
+	 * (null par défaut). Si ce paramètre est défini, les instances partageant le même répertoire de stockage
+	 * se répartissent les applications par hachage cohérent et transmettent les rapports
+	 * à l'instance qui collecte l'application.
+	 */
+	COLLECTOR_SHARD_URL("collector-shard-url"),
+
+	/**
+	 * Secret partagé par les instances du serveur de collecte (null par défaut), pour signer
+	 * les requêtes transmises à l'instance qui collecte l'application. Nécessaire pour les actions
+	 * si la protection contre CSRF est active, car sans signature l'instance qui reçoit la requête
+	 * ne fait pas confiance au token transmis.
+	 */
+	COLLECTOR_SHARD_SECRET("collector-shard-secret"),
+
+	/**
+	 * Budget mémoire en Mo des données des compteurs dans le serveur de collecte (null par défaut, sans limite).
+	 * Au-delà, les données des applications consultées le moins récemment sont déchargées
+	 * dans le répertoire de stockage et relues à la consultation suivante.
+	 */
+	COLLECTOR_MEMORY_BUDGET_MB("collector-memory-budget-mb"),
+
+	/**
+	 * Taille maximum en Mo du cache des images des graphiques dans le serveur de collecte (16 par défaut).
+	 * Les images sont invalidées à chaque collecte, 0 désactive le cache.
+	 */
+	COLLECTOR_GRAPH_CACHE_SIZE_MB("collector-graph-cache-size-mb"),
+
+	/**
+	 * Client http utilisé par un serveur de collecte pour appeler les applications monitorées :
+	 * jdk (java.net.http.HttpClient avec pool de connexions et HTTP/2 en https, par défaut si java 11+)
+	 * ou urlconnection (HttpURLConnection, par défaut avant java 11).
+	 */
+	HTTP_CLIENT("http-client"),
+
+	/**
+	 * Timeout de connexion en millisecondes des appels http d'un serveur de collecte (20000 par défaut),
+	 * qui peut être défini aussi pour un node avec le paramètre "http-connect-timeout.host:port".
+	 */
+	HTTP_CONNECT_TIMEOUT("http-connect-timeout"),
+
+	/**
+	 * Timeout de lecture en millisecondes des appels http d'un serveur de collecte (60000 par défaut),
+	 * qui peut être défini aussi pour un node avec le paramètre "http-read-timeout.host:port".
+	 */
+	HTTP_READ_TIMEOUT("http-read-timeout"),
+
 	/**
 	 * To fix the locale of the reports (default to null, ie locale is given by the language of the browser).<br/>
 	 * Example values: "en_US", "en", "fr_FR", "de_DE" or "pt_BR"
@@ -325,6 +453,11 @@ public enum Parameter {
 	 */
 	CONNECTIONS_STACK_TRACES_DISABLED("connections-stack-traces-disabled"),
 
+	/**
+	 * Nombre N pour ne capturer la stack-trace d'ouverture que d'une connexion jdbc sur N (1 par défaut : toutes les connexions).
+	 */
+	CONNECTIONS_STACK_TRACES_SAMPLING("connections-stack-traces-sampling"),
+
 	/**
 	 * URL http du fichier jar javamelody-swing (null par défaut : le fichier sera téléchargé depuis https://github.com/javamelody/javamelody selon la version). <br/>
 	 * Ce paramètre est surtout utile quand les utilisateurs n'ont pas accès à Internet pour télécharger sur github.
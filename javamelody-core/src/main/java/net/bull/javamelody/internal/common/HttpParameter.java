@@ -38,6 +38,8 @@ public enum HttpParameter {
 	PATH("path"),
 	JMX_VALUE("jmxValue"),
 	COLLECTOR("collector"),
+	COLLECTOR_ID("collectorId"),
+	GENERATION("generation"),
 	RESOURCE("resource"),
 	FORMAT("format"),
 	WIDTH("width"),
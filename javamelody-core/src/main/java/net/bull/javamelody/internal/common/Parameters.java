@@ -22,10 +22,15 @@ import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.RandomAccessFile;
 import java.net.InetAddress;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.UnknownHostException;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
@@ -58,9 +63,13 @@ public final class Parameters {
 	private static final String DEFAULT_DIRECTORY = "javamelody";
 	// nom du fichier stockant les applications et leurs urls dans le répertoire de stockage
 	private static final String COLLECTOR_APPLICATIONS_FILENAME = "applications.properties";
+	// verrou du fichier des applications entre les instances du serveur de collecte
+	// partageant le même répertoire de stockage
+	private static final String COLLECTOR_APPLICATIONS_LOCK_FILENAME = "applications.lock";
 	private static final boolean PDF_ENABLED = computePdfEnabled();
 	private static Map<String, List<URL>> urlsByApplications;
 	private static Map<String, List<String>> applicationsByAggregationApplications;
+	private static long collectorApplicationsLastModified;
 
 	private static FilterConfig filterConfig;
 	private static ServletContext servletContext;
@@ -130,40 +139,77 @@ public final class Parameters {
 		return Collections.unmodifiableMap(applicationsByAggregationApplications);
 	}
 
-	public static void addCollectorApplication(String application, List<URL> urls)
+	/**
+	 * Relit les applications si le fichier a été modifié par une autre instance du serveur de collecte
+	 * partageant le même répertoire de stockage.
+	 * @throws IOException e
+	 */
+	public static void reloadCollectorApplicationsIfModified() throws IOException {
+		if (urlsByApplications != null
+				&& getCollectorApplicationsFile().lastModified() != collectorApplicationsLastModified) {
+			readCollectorApplications();
+		}
+	}
+
+	public static synchronized void addCollectorApplication(String application, List<URL> urls)
 			throws IOException {
 		assert application != null;
 		assert urls != null && !urls.isEmpty();
-		// initialisation si besoin
-		getCollectorUrlsByApplications();
-
-		urlsByApplications.put(application, urls);
-		writeCollectorApplications();
+		try (FileChannel lockChannel = lockCollectorApplications()) {
+			urlsByApplications.put(application, urls);
+			writeCollectorApplications();
+		}
 	}
 
-	public static void addCollectorAggregationApplication(String aggregationApplication,
-			List<String> aggregatedApplications) throws IOException {
+	public static synchronized void addCollectorAggregationApplication(
+			String aggregationApplication, List<String> aggregatedApplications)
+			throws IOException {
 		assert aggregationApplication != null;
 		assert aggregatedApplications != null && !aggregatedApplications.isEmpty();
-		// initialisation si besoin
-		getCollectorUrlsByApplications();
-
-		applicationsByAggregationApplications.put(aggregationApplication, aggregatedApplications);
-		writeCollectorApplications();
+		try (FileChannel lockChannel = lockCollectorApplications()) {
+			applicationsByAggregationApplications.put(aggregationApplication,
+					aggregatedApplications);
+			writeCollectorApplications();
+		}
 	}
 
-	public static void removeCollectorApplication(String application) throws IOException {
+	public static synchronized void removeCollectorApplication(String application)
+			throws IOException {
 		assert application != null;
-		// initialisation si besoin
-		getCollectorUrlsByApplications();
+		try (FileChannel lockChannel = lockCollectorApplications()) {
+			if (urlsByApplications.containsKey(application)) {
+				urlsByApplications.remove(application);
+			} else {
+				applicationsByAggregationApplications.remove(application);
+			}
+			synchronizeAggregationApplications();
+			writeCollectorApplications();
+		}
+	}
 
-		if (urlsByApplications.containsKey(application)) {
-			urlsByApplications.remove(application);
-		} else {
-			applicationsByAggregationApplications.remove(application);
+	/**
+	 * Verrouille le fichier des applications pour une modification, jusqu'à la fermeture
+	 * du FileChannel retourné, et relit les applications pour ne pas perdre les modifications
+	 * faites entre temps par une autre instance du serveur de collecte.
+	 * @return FileChannel à fermer après la modification
+	 * @throws IOException e
+	 */
+	private static FileChannel lockCollectorApplications() throws IOException {
+		final File directory = getCollectorApplicationsFile().getParentFile();
+		if (!directory.mkdirs() && !directory.exists()) {
+			throw new IOException("JavaMelody directory can't be created: " + directory.getPath());
+		}
+		final FileChannel lockChannel = new RandomAccessFile(
+				new File(directory, COLLECTOR_APPLICATIONS_LOCK_FILENAME), "rw").getChannel();
+		try {
+			// attend la fin d'une modification par une autre instance
+			lockChannel.lock();
+			readCollectorApplications();
+			return lockChannel;
+		} catch (final IOException | RuntimeException e) {
+			lockChannel.close();
+			throw e;
 		}
-		synchronizeAggregationApplications();
-		writeCollectorApplications();
 	}
 
 	private static void writeCollectorApplications() throws IOException {
@@ -204,9 +250,20 @@ public final class Parameters {
 		if (!directory.mkdirs() && !directory.exists()) {
 			throw new IOException("JavaMelody directory can't be created: " + directory.getPath());
 		}
-		try (FileOutputStream output = new FileOutputStream(collectorApplicationsFile)) {
+		// écriture dans un fichier temporaire renommé ensuite, pour que les autres instances
+		// ne lisent jamais un fichier incomplet
+		final File temporaryFile = new File(directory, COLLECTOR_APPLICATIONS_FILENAME + ".tmp");
+		try (FileOutputStream output = new FileOutputStream(temporaryFile)) {
 			properties.store(output, "urls of the applications to monitor");
 		}
+		try {
+			Files.move(temporaryFile.toPath(), collectorApplicationsFile.toPath(),
+					StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (final AtomicMoveNotSupportedException e) {
+			Files.move(temporaryFile.toPath(), collectorApplicationsFile.toPath(),
+					StandardCopyOption.REPLACE_EXISTING);
+		}
+		collectorApplicationsLastModified = collectorApplicationsFile.lastModified();
 	}
 
 	private static void readCollectorApplications() throws IOException {
@@ -220,6 +277,7 @@ public final class Parameters {
 		final Map<String, List<URL>> applications = new TreeMap<>();
 		final Map<String, List<String>> aggregationApplications = new TreeMap<>();
 		final File file = getCollectorApplicationsFile();
+		collectorApplicationsLastModified = file.lastModified();
 		if (file.exists()) {
 			final Properties properties = new Properties();
 			try (FileInputStream input = new FileInputStream(file)) {
@@ -0,0 +1,60 @@
+/*
+ * Copyright 2008-2019 by Emeric Vernat
+ *
+ *     This file is part of Java Melody.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.bull.javamelody.internal.model;
+
+import java.io.Serializable;
+
+/**
+ * Génération de la collecte envoyée par une application monitorée à un serveur de collecte,
+ * avec les counters en delta depuis la génération acquittée par ce serveur de collecte.
+ * @author Emeric Vernat
+ */
+public class CollectGeneration implements Serializable {
+	private static final long serialVersionUID = 1L;
+
+	private final long generation;
+	private final boolean fullSnapshot;
+
+	CollectGeneration(long generation, boolean fullSnapshot) {
+		super();
+		this.generation = generation;
+		this.fullSnapshot = fullSnapshot;
+	}
+
+	/**
+	 * @return Numéro de génération, à acquitter par le serveur de collecte lors de la collecte suivante
+	 */
+	public long getGeneration() {
+		return generation;
+	}
+
+	/**
+	 * @return true si les counters envoyés sont complets (premier appel ou redémarrage de l'application)
+	 * 	et non un delta
+	 */
+	public boolean isFullSnapshot() {
+		return fullSnapshot;
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public String toString() {
+		return getClass().getSimpleName() + "[generation=" + getGeneration() + ", fullSnapshot="
+				+ isFullSnapshot() + ']';
+	}
+}
@@ -0,0 +1,186 @@
+/*
+ * Copyright 2008-2019 by Emeric Vernat
+ *
+ *     This file is part of Java Melody.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.bull.javamelody.internal.model;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Graphe des collectes des applications et des agrégations d'applications dans le serveur de collecte.
+ *
+ * Chaque agrégation est collectée dès que les collectes de ses applications agrégées sont terminées,
+ * donc les agrégations indépendantes sont collectées en parallèle dans l'executor.
+ * Les agrégations qui forment un cycle entre elles ne sont pas collectées.
+ * @author Emeric Vernat
+ */
+final class CollectGraph {
+	private final Executor executor;
+	private final CollectTask collectTask;
+	private final Map<String, List<String>> aggregationApplicationsByApplication = new LinkedHashMap<>();
+	private final Map<String, AtomicInteger> pendingCountsByApplication = new LinkedHashMap<>();
+	private final Set<String> cyclicApplications;
+	private final CountDownLatch latch;
+
+	/**
+	 * Collecte d'une application ou d'une agrégation, qui ne doit lancer aucune exception.
+	 */
+	interface CollectTask {
+		void collect(String application);
+	}
+
+	/**
+	 * Constructeur.
+	 * @param executor Executor des collectes
+	 * @param applications Applications (hors agrégations)
+	 * @param applicationsByAggregationApplication Applications agrégées par agrégation
+	 * @param collectTask Collecte d'une application
+	 */
+	CollectGraph(Executor executor, Collection<String> applications,
+			Map<String, List<String>> applicationsByAggregationApplication,
+			CollectTask collectTask) {
+		super();
+		assert executor != null;
+		assert collectTask != null;
+		this.executor = executor;
+		this.collectTask = collectTask;
+		for (final String application : applications) {
+			pendingCountsByApplication.put(application, new AtomicInteger());
+		}
+		for (final String aggregationApplication : applicationsByAggregationApplication
+				.keySet()) {
+			pendingCountsByApplication.put(aggregationApplication, new AtomicInteger());
+		}
+		for (final Map.Entry<String, List<String>> entry : applicationsByAggregationApplication
+				.entrySet()) {
+			final String aggregationApplication = entry.getKey();
+			for (final String aggregatedApplication : new LinkedHashSet<>(entry.getValue())) {
+				// une application agrégée inconnue ici (non collectée par cette instance par exemple)
+				// ne retarde pas l'agrégation
+				if (pendingCountsByApplication.containsKey(aggregatedApplication)) {
+					pendingCountsByApplication.get(aggregationApplication).incrementAndGet();
+					List<String> aggregationApplications = aggregationApplicationsByApplication
+							.get(aggregatedApplication);
+					if (aggregationApplications == null) {
+						aggregationApplications = new ArrayList<>();
+						aggregationApplicationsByApplication.put(aggregatedApplication,
+								aggregationApplications);
+					}
+					aggregationApplications.add(aggregationApplication);
+				}
+			}
+		}
+		this.cyclicApplications = Collections.unmodifiableSet(findCyclicApplications());
+		this.latch = new CountDownLatch(
+				pendingCountsByApplication.size() - cyclicApplications.size());
+	}
+
+	private Set<String> findCyclicApplications() {
+		// tri topologique : ce qui reste ensuite dépend d'un cycle
+		final Map<String, Integer> pendingCounts = new LinkedHashMap<>();
+		final List<String> readyApplications = new ArrayList<>();
+		for (final Map.Entry<String, AtomicInteger> entry : pendingCountsByApplication
+				.entrySet()) {
+			pendingCounts.put(entry.getKey(), entry.getValue().get());
+			if (entry.getValue().get() == 0) {
+				readyApplications.add(entry.getKey());
+			}
+		}
+		while (!readyApplications.isEmpty()) {
+			final String application = readyApplications.remove(readyApplications.size() - 1);
+			pendingCounts.remove(application);
+			for (final String aggregationApplication : getAggregationApplications(application)) {
+				final int pendingCount = pendingCounts.get(aggregationApplication) - 1;
+				pendingCounts.put(aggregationApplication, pendingCount);
+				if (pendingCount == 0) {
+					readyApplications.add(aggregationApplication);
+				}
+			}
+		}
+		return new LinkedHashSet<>(pendingCounts.keySet());
+	}
+
+	/**
+	 * Lance les collectes qui ne dépendent d'aucune autre.
+	 */
+	void start() {
+		// liste faite avant de lancer les collectes, car elles décrémentent les compteurs
+		final List<String> readyApplications = new ArrayList<>();
+		for (final Map.Entry<String, AtomicInteger> entry : pendingCountsByApplication
+				.entrySet()) {
+			if (entry.getValue().get() == 0) {
+				readyApplications.add(entry.getKey());
+			}
+		}
+		for (final String application : readyApplications) {
+			submit(application);
+		}
+	}
+
+	private void submit(final String application) {
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					collectTask.collect(application);
+				} finally {
+					for (final String aggregationApplication : getAggregationApplications(
+							application)) {
+						if (pendingCountsByApplication.get(aggregationApplication)
+								.decrementAndGet() == 0) {
+							submit(aggregationApplication);
+						}
+					}
+					latch.countDown();
+				}
+			}
+		});
+	}
+
+	private List<String> getAggregationApplications(String application) {
+		final List<String> aggregationApplications = aggregationApplicationsByApplication
+				.get(application);
+		if (aggregationApplications == null) {
+			return Collections.emptyList();
+		}
+		return aggregationApplications;
+	}
+
+	/**
+	 * Attend la fin de toutes les collectes lancées.
+	 * @throws InterruptedException e
+	 */
+	void await() throws InterruptedException {
+		latch.await();
+	}
+
+	/**
+	 * @return Agrégations non collectées car elles forment un cycle entre elles ou en dépendent
+	 */
+	Set<String> getCyclicApplications() {
+		return cyclicApplications;
+	}
+}
@@ -19,7 +19,9 @@ package net.bull.javamelody.internal.model;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Collection;
 import java.util.Collections;
@@ -62,11 +64,20 @@ public class Collector { // NOPMD
 	private final Map<String, CounterRequest> requestsById = new HashMap<>();
 	private final Map<Counter, Counter> dayCountersByCounter = new LinkedHashMap<>();
 	private final Map<Counter, Boolean> firstCollectDoneByCounter = new HashMap<>();
+	private final CounterDeltaTracker counterDeltaTracker = new CounterDeltaTracker();
+	// si les données des compteurs sont déchargées sur disque (serveur de collecte avec budget mémoire),
+	// les counters ne contiennent que les hits reçus depuis et les totaux au déchargement sont gardés ici
+	private final Map<Counter, CounterRequest> spilledGlobalRequestsByCounter = new HashMap<>();
+	private boolean spilled;
 	private long transactionCount = NOT_A_NUMBER;
 	private long cpuTimeMillis = NOT_A_NUMBER;
 	private long gcTimeMillis = NOT_A_NUMBER;
 	private long tomcatBytesReceived = NOT_A_NUMBER;
 	private long tomcatBytesSent = NOT_A_NUMBER;
+	// histogrammes cumulés lors de la collecte précédente par noeud et par DataSource,
+	// pour les percentiles de la période
+	private Map<String, long[]> connectionHistogramsByKey = Collections.emptyMap();
+	private long connectionLatenciesTime;
 	private long lastCollectDuration;
 	private Throwable lastCollectorException;
 	private long estimatedMemorySize;
@@ -308,6 +319,32 @@ public class Collector { // NOPMD
 		return getRangeCounter(range, dayCountersByCounter.get(counter));
 	}
 
+	/**
+	 * Retourne les counters en delta depuis la génération acquittée par un serveur de collecte.
+	 * @param collectorId Identifiant du serveur de collecte
+	 * @param acknowledgedGeneration Génération acquittée (0 si aucune)
+	 * @return Liste de Counter suivie d'un {@link CollectGeneration}
+	 */
+	public List<Serializable> getDeltaCounters(String collectorId, long acknowledgedGeneration) {
+		return counterDeltaTracker.getDelta(counters, collectorId, acknowledgedGeneration);
+	}
+
+	/**
+	 * @return true si un serveur de collecte a demandé les counters en delta,
+	 * 	et alors ils ne doivent plus être vidés après chaque collecte
+	 */
+	public boolean isDeltaCollectUsed() {
+		return counterDeltaTracker.isUsed();
+	}
+
+	/**
+	 * @return Estimation de la mémoire des counters gardés pour les deltas,
+	 * 	qui n'est pas libérée par {@link #spill()}
+	 */
+	long getDeltaSnapshotsEstimatedMemorySize() {
+		return counterDeltaTracker.getEstimatedMemorySize();
+	}
+
 	public void collectLocalContextWithoutErrors() {
 		// ici on n'inclue pas les informations de la bdd et des threads
 		// car on n'en a pas besoin pour la collecte et cela économise des requêtes sql
@@ -338,6 +375,57 @@ public class Collector { // NOPMD
 		lastCollectDuration = Math.max(0, System.currentTimeMillis() - start);
 	}
 
+	/**
+	 * Enregistre dans un graphique par noeud les durées de la dernière collecte
+	 * par le serveur de collecte sur les noeuds de l'application.
+	 * @param durationsByNode Durées en millisecondes par noeud (hôte et port)
+	 */
+	public void collectNodeDurationsWithoutErrors(Map<String, Long> durationsByNode) {
+		try {
+			synchronized (this) {
+				for (final Map.Entry<String, Long> entry : durationsByNode.entrySet()) {
+					final String node = entry.getKey();
+					// nom de fichier constant et valide quels que soient l'hôte et le port
+					final String name = "nodeCollect" + Integer.toHexString(node.hashCode());
+					addJRobinValue(getOtherJRobin(name, node), entry.getValue());
+				}
+			}
+		} catch (final Throwable t) { // NOPMD
+			LOG.warn("exception while collecting durations of nodes: " + t, t);
+		}
+	}
+
+	/**
+	 * Enregistre dans un graphique le nombre de données reçues par minute
+	 * des noeuds de l'application en mode push.
+	 * @param nodePushesCount Nombre de données reçues depuis la collecte précédente
+	 */
+	public void collectNodePushesWithoutErrors(int nodePushesCount) {
+		try {
+			synchronized (this) {
+				addJRobinValue(getOtherJRobin("nodePushes"),
+						nodePushesCount * 60d / Parameters.getResolutionSeconds());
+			}
+		} catch (final Throwable t) { // NOPMD
+			LOG.warn("exception while collecting pushes of nodes: " + t, t);
+		}
+	}
+
+	/**
+	 * Enregistre dans un graphique le temps de fusion des données des applications agrégées
+	 * dans une agrégation d'applications.
+	 * @param aggregationDuration Temps de la fusion en millisecondes
+	 */
+	public void collectAggregationDurationWithoutErrors(long aggregationDuration) {
+		try {
+			synchronized (this) {
+				addJRobinValue(getOtherJRobin("aggregationDuration"), aggregationDuration);
+			}
+		} catch (final Throwable t) { // NOPMD
+			LOG.warn("exception while collecting duration of aggregation: " + t, t);
+		}
+	}
+
 	private synchronized long collect(List<JavaInformations> javaInformationsList)
 			throws IOException {
 		long memorySize = 0;
@@ -350,6 +438,14 @@ public class Collector { // NOPMD
 				collectJavaInformations(javaInformationsList);
 				collectOtherJavaInformations(javaInformationsList);
 				collectTomcatInformations(javaInformationsList);
+				collectConnectionLatencies(javaInformationsList);
+			}
+			if (spilled && isDayChangedSinceSpill()) {
+				// le jour a changé pendant le déchargement : on relit les données pour que les hits
+				// reçus depuis le déchargement soient ajoutés au compteur du jour où ils ont été reçus
+				// et non à celui du nouveau jour (les données seront de nouveau déchargées
+				// si le budget mémoire est toujours dépassé)
+				reloadIfSpilled();
 			}
 			for (final Counter counter : counters) {
 				// counter.isDisplayed() peut changer pour spring, ejb, guice ou services selon l'utilisation
@@ -628,6 +724,116 @@ public class Collector { // NOPMD
 		this.tomcatBytesSent = bytesSent;
 	}
 
+	private void collectConnectionLatencies(List<JavaInformations> javaInformationsList)
+			throws IOException {
+		final long now = System.currentTimeMillis();
+		final Map<String, long[]> histogramsByKey = new HashMap<>();
+		final Map<String, long[]> periodWaitTimesByDataSource = new LinkedHashMap<>();
+		final Map<String, long[]> periodHoldTimesByDataSource = new LinkedHashMap<>();
+		for (final JavaInformations javaInformations : javaInformationsList) {
+			// liste null si le noeud a une ancienne version de javamelody
+			final List<ConnectionLatencies> connectionLatenciesList = javaInformations
+					.getConnectionLatenciesList();
+			if (connectionLatenciesList != null) {
+				// un noeud redémarré est un autre noeud, dont les histogrammes repartent de zéro
+				final Date startDate = javaInformations.getStartDate();
+				final String nodeKey = javaInformations.getHost() + '\n'
+						+ javaInformations.getPID() + '\n'
+						+ (startDate != null ? startDate.getTime() : 0);
+				final boolean startedDuringPeriod = startDate != null
+						&& connectionLatenciesTime != 0
+						&& startDate.getTime() >= connectionLatenciesTime;
+				for (final ConnectionLatencies connectionLatencies : connectionLatenciesList) {
+					final String dataSourceName = connectionLatencies.getDataSourceName();
+					final String key = nodeKey + '\n' + dataSourceName;
+					final long[] waitTimes = toHistogram(connectionLatencies.getWaitTimeCounts(),
+							connectionLatencies.getWaitTimesOverflowSum());
+					final long[] holdTimes = toHistogram(connectionLatencies.getHoldTimeCounts(),
+							connectionLatencies.getHoldTimesOverflowSum());
+					histogramsByKey.put(key + "\nwait", waitTimes);
+					histogramsByKey.put(key + "\nhold", holdTimes);
+					addHistogram(periodWaitTimesByDataSource, dataSourceName,
+							getPeriodHistogram(waitTimes,
+									connectionHistogramsByKey.get(key + "\nwait"),
+									startedDuringPeriod));
+					addHistogram(periodHoldTimesByDataSource, dataSourceName,
+							getPeriodHistogram(holdTimes,
+									connectionHistogramsByKey.get(key + "\nhold"),
+									startedDuringPeriod));
+				}
+			}
+		}
+
+		for (final String dataSourceName : periodWaitTimesByDataSource.keySet()) {
+			// 95ème percentile des temps d'attente de getConnection et de détention des connexions
+			// sur la dernière période, par DataSource tous noeuds confondus
+			// (nom de fichier constant et valide quel que soit le nom de la DataSource)
+			final String suffix = Integer.toHexString(dataSourceName.hashCode());
+			addJRobinValue(getOtherJRobin("connectionWaitTimes" + suffix, dataSourceName),
+					getPercentile(periodWaitTimesByDataSource.get(dataSourceName)));
+			addJRobinValue(getOtherJRobin("connectionHoldTimes" + suffix, dataSourceName),
+					getPercentile(periodHoldTimesByDataSource.get(dataSourceName)));
+		}
+		// les noeuds qui ne sont plus là sont oubliés
+		this.connectionHistogramsByKey = histogramsByKey;
+		this.connectionLatenciesTime = now;
+	}
+
+	// nombres par intervalle, suivis de la somme des durées du dernier intervalle
+	private static long[] toHistogram(long[] counts, long overflowSum) {
+		final long[] histogram = Arrays.copyOf(counts, counts.length + 1);
+		histogram[counts.length] = overflowSum;
+		return histogram;
+	}
+
+	/**
+	 * Retourne l'histogramme de la période d'un noeud pour une DataSource.
+	 * @param histogram Histogramme cumulé depuis le démarrage du noeud
+	 * @param previousHistogram Histogramme cumulé lors de la collecte précédente ou null
+	 * @param startedDuringPeriod true si le noeud a démarré depuis la collecte précédente
+	 * @return Histogramme de la période, ou null si c'est seulement la base de la période suivante
+	 */
+	static long[] getPeriodHistogram(long[] histogram, long[] previousHistogram,
+			boolean startedDuringPeriod) {
+		if (previousHistogram == null) {
+			// noeud vu pour la première fois : s'il a démarré pendant la période, tout son histogramme
+			// est dans la période, sinon il ne sert que de base (premier appel ou noeud injoignable)
+			return startedDuringPeriod ? histogram : null;
+		}
+		final long[] periodHistogram = histogram.clone();
+		for (int i = 0; i < periodHistogram.length; i++) {
+			periodHistogram[i] -= previousHistogram[i];
+			if (periodHistogram[i] < 0) {
+				// histogramme remis à zéro depuis la collecte précédente : nouvelle base,
+				// et les valeurs depuis la remise à zéro sont dans la période
+				return histogram;
+			}
+		}
+		return periodHistogram;
+	}
+
+	private static void addHistogram(Map<String, long[]> histogramsByDataSource,
+			String dataSourceName, long[] histogram) {
+		if (histogram == null) {
+			return;
+		}
+		final long[] totalHistogram = histogramsByDataSource.get(dataSourceName);
+		if (totalHistogram == null) {
+			histogramsByDataSource.put(dataSourceName, histogram.clone());
+		} else {
+			for (int i = 0; i < totalHistogram.length; i++) {
+				totalHistogram[i] += histogram[i];
+			}
+		}
+	}
+
+	private static long getPercentile(long[] histogram) {
+		final int bucketsCount = histogram.length - 1;
+		// 0 s'il n'y a eu aucune connexion pendant la période
+		return Math.max(ConnectionLatencies.getPercentile(
+				Arrays.copyOf(histogram, bucketsCount), histogram[bucketsCount], 95), 0);
+	}
+
 	private void collectSessionsMeanAge(long sessionAgeSum, int sessionCount) throws IOException {
 		if (sessionCount >= 0 && getCounterByName(Counter.HTTP_COUNTER_NAME) != null) {
 			final long sessionAgeMeanInMinutes;
@@ -714,6 +920,12 @@ public class Collector { // NOPMD
 				systemErrorsJRobin = getOtherJRobin(counterName + "SystemErrors");
 			}
 
+			final CounterRequest spilledGlobalRequest = spilledGlobalRequestsByCounter.get(counter);
+			if (spilledGlobalRequest != null) {
+				// compteur déchargé : les hits reçus depuis s'ajoutent aux totaux du déchargement
+				newGlobalRequest.addHits(spilledGlobalRequest);
+			}
+
 			final CounterRequest globalRequest = globalRequestsByCounter.get(counter);
 			if (globalRequest != null) {
 				// on clone et on soustrait les précédents totaux
@@ -739,13 +951,20 @@ public class Collector { // NOPMD
 					// s'il y a eu des requêtes, on persiste le compteur pour ne pas perdre les stats
 					// en cas de crash ou d'arrêt brutal (mais normalement ils seront aussi persistés
 					// lors de l'arrêt du serveur)
-					counter.writeToFile();
+					// (sauf s'il est déchargé, car le fichier contient alors plus que le counter)
+					if (!spilled) {
+						counter.writeToFile();
+					}
 				}
 			}
 
 			// on sauvegarde les nouveaux totaux pour la prochaine fois
 			globalRequestsByCounter.put(counter, newGlobalRequest);
 		}
+		if (spilled) {
+			// les données par requête et du jour seront mises à jour au rechargement
+			return 0;
+		}
 
 		// données de temps moyen pour les courbes par requête
 		final long dayCounterEstimatedMemorySize = collectCounterRequestsAndErrorsData(counter,
@@ -828,8 +1047,9 @@ public class Collector { // NOPMD
 						newRequest.getName());
 				// plus nécessaire: if (dayCounter.isErrorCounter()) requestJRobin.addValue(lastPeriodRequest.getHits());
 
-				// pas addJRobinValue ici, il y en aurait trop pour Graphite
-				requestJRobin.addValue(lastPeriodRequest.getMean());
+				// pas addJRobinValue ici, il y en aurait trop pour Graphite,
+				// et écriture différée car il peut y avoir des milliers de fichiers RRD à écrire
+				requestJRobin.addValueLater(lastPeriodRequest.getMean());
 			}
 
 			// agrégation de la requête sur le compteur pour le jour courant
@@ -920,9 +1140,13 @@ public class Collector { // NOPMD
 	}
 
 	private JRobin getOtherJRobin(String name) throws IOException {
+		return getOtherJRobin(name, null);
+	}
+
+	private JRobin getOtherJRobin(String name, String requestName) throws IOException {
 		JRobin jrobin = otherJRobins.get(name);
 		if (jrobin == null) {
-			jrobin = JRobin.createInstance(getApplication(), name, null);
+			jrobin = JRobin.createInstance(getApplication(), name, requestName);
 			otherJRobins.put(name, jrobin);
 		}
 		return jrobin;
@@ -984,6 +1208,104 @@ public class Collector { // NOPMD
 		return Collections.unmodifiableCollection(displayedJRobins);
 	}
 
+	/**
+	 * Décharge sur disque les données des compteurs et des compteurs du jour pour libérer la mémoire
+	 * (serveur de collecte avec budget mémoire). Les graphiques des compteurs continuent
+	 * d'être alimentés avec les hits reçus ensuite, qui sont ajoutés aux données relues
+	 * par {@link #reloadIfSpilled()}.
+	 * @throws IOException e
+	 */
+	public synchronized void spill() throws IOException {
+		if (spilled || stopped) {
+			return;
+		}
+		for (final Counter counter : counters) {
+			final List<CounterRequest> requests = counter.getRequests();
+			if (!counter.isErrorCounter()) {
+				final CounterRequest globalRequest = new CounterRequest(
+						counter.getName() + " global", counter.getName());
+				for (final CounterRequest request : requests) {
+					globalRequest.addHits(request);
+				}
+				spilledGlobalRequestsByCounter.put(counter, globalRequest);
+			}
+			// les hits reçus depuis la dernière collecte sont ajoutés maintenant au compteur du jour
+			final Counter dayCounter = getCurrentDayCounter(counter);
+			if (Boolean.TRUE.equals(firstCollectDoneByCounter.get(counter))) {
+				for (final CounterRequest request : requests) {
+					final CounterRequest previousRequest = requestsById.get(request.getId());
+					if (previousRequest != null) {
+						request.removeHits(previousRequest);
+					}
+					dayCounter.addHits(request);
+				}
+			}
+			if (dayCounter.isErrorCounter()) {
+				dayCounter.addErrors(getDeltaOfErrors(counter, dayCounter));
+			}
+			counter.writeToFile();
+			dayCounter.writeToFile();
+		}
+		for (final Counter counter : counters) {
+			counter.clear();
+			dayCountersByCounter.get(counter).clear();
+		}
+		requestsById.clear();
+		requestJRobinsById.clear();
+		estimatedMemorySize = 0;
+		spilled = true;
+	}
+
+	/**
+	 * Relit les données des compteurs déchargées sur disque par {@link #spill()}, s'il y a lieu,
+	 * en y ajoutant les hits reçus depuis.
+	 * @return true si les données étaient déchargées
+	 * @throws IOException e
+	 */
+	public synchronized boolean reloadIfSpilled() throws IOException {
+		if (!spilled) {
+			return false;
+		}
+		for (final Counter counter : counters) {
+			// hits reçus depuis le déchargement, pas encore dans le compteur du jour
+			final List<CounterRequest> spilledRequests = counter.getRequests();
+			counter.readFromFile();
+			// ces hits sont ajoutés au compteur du jour du déchargement, avant le changement de jour
+			// s'il y a lieu, et il est enregistré pour être inclus dans les rollups de ce jour
+			final Counter dayCounter = dayCountersByCounter.get(counter);
+			dayCounter.readFromFile();
+			for (final CounterRequest request : spilledRequests) {
+				dayCounter.addHits(request);
+			}
+			dayCounter.writeToFile();
+			getCurrentDayCounter(counter);
+			// la prochaine collecte ajoutera au compteur du jour seulement les hits suivants
+			for (final CounterRequest request : counter.getRequests()) {
+				requestsById.put(request.getId(), request);
+			}
+		}
+		spilledGlobalRequestsByCounter.clear();
+		spilled = false;
+		return true;
+	}
+
+	public synchronized boolean isSpilled() {
+		return spilled;
+	}
+
+	private boolean isDayChangedSinceSpill() {
+		// les compteurs du jour ont gardé la date du jour du déchargement
+		final Calendar calendar = Calendar.getInstance();
+		final int currentDayOfYear = calendar.get(Calendar.DAY_OF_YEAR);
+		for (final Counter dayCounter : dayCountersByCounter.values()) {
+			calendar.setTime(dayCounter.getStartDate());
+			if (calendar.get(Calendar.DAY_OF_YEAR) != currentDayOfYear) {
+				return true;
+			}
+		}
+		return false;
+	}
+
 	/**
 	 * Purge les données pour un compteur à partir de son nom.
 	 * @param counterName Nom du compteur
@@ -1010,6 +1332,8 @@ public class Collector { // NOPMD
 	public void stop() {
 		try {
 			try {
+				// les counters déchargés ne contiennent que les derniers hits, on relit donc les fichiers
+				reloadIfSpilled();
 				// on persiste les compteurs pour les relire à l'initialisation et ne pas perdre les stats
 				for (final Counter counter : counters) {
 					counter.writeToFile();
@@ -18,12 +18,27 @@
 package net.bull.javamelody.internal.model;
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.jrobin.core.Archive;
 import org.jrobin.core.Robin;
@@ -34,39 +49,65 @@ import net.bull.javamelody.internal.common.InputOutput;
 
 /**
  * Merge files of several data directories into one directory.
+ * The files are merged in parallel, each file in one task of a fork-join pool.
  * @author Emeric Vernat
  */
 abstract class CollectorDataMerge {
+	// fichier des noms de fichiers déjà fusionnés, pour reprendre une fusion interrompue
+	static final String RESUME_FILE_NAME = ".javamelody-merge";
+
+	private static final long PROGRESS_LOG_PERIOD_MILLIS = 10000;
+
 	private final List<File> sourceDirectories;
 	private final File targetDirectory;
+	private final boolean resumable;
+	private final int parallelism;
+	private final AtomicInteger mergedFilesCount = new AtomicInteger();
+	private final AtomicLong mergedBytes = new AtomicLong();
+	private final AtomicLong lastProgressLogTime = new AtomicLong();
+	private long start;
+	private int filesCount;
+	private OutputStream resumeOutput;
 
 	// tri par dates décroissantes de fichiers
 	private static final Comparator<File> FILES_COMPARATOR = new Comparator<File>() {
 		@Override
 		public int compare(File o1, File o2) {
-			return (int) (o2.lastModified() - o1.lastModified());
+			return Long.compare(o2.lastModified(), o1.lastModified());
 		}
 	};
 
 	CollectorDataMerge(List<File> sourceDirectories, File targetDirectory) {
+		this(sourceDirectories, targetDirectory, false);
+	}
+
+	/**
+	 * Constructeur.
+	 * @param sourceDirectories Répertoires à fusionner
+	 * @param targetDirectory Répertoire cible
+	 * @param resumable Si true, les fichiers fusionnés sont notés dans le répertoire cible
+	 * et une fusion interrompue reprend après les fichiers déjà fusionnés
+	 */
+	CollectorDataMerge(List<File> sourceDirectories, File targetDirectory, boolean resumable) {
 		super();
 		this.sourceDirectories = sourceDirectories;
 		this.targetDirectory = targetDirectory;
+		this.resumable = resumable;
+		this.parallelism = Runtime.getRuntime().availableProcessors();
 	}
 
 	protected abstract void log(String msg);
 
 	int mergeDirectories() throws IOException {
-		final List<String> mergedFileNames = new ArrayList<>();
+		final Map<String, List<File>> filesToMergeByFileName = new LinkedHashMap<>();
 		for (final File directory : sourceDirectories) {
 			final List<File> files = listFiles(directory);
 			for (final File file : files) {
 				final String fileName = file.getName();
-				if (!mergedFileNames.contains(fileName)) {
+				if (!filesToMergeByFileName.containsKey(fileName)) {
 					if (isFileExcluded(fileName)) {
 						log("Excluding " + fileName);
 					} else {
-						mergedFileNames.add(fileName);
 						final List<File> filesToMerge = new ArrayList<>();
 						for (final File directoryToMerge : sourceDirectories) {
 							final File fileToMerge = new File(directoryToMerge, fileName);
@@ -75,118 +116,246 @@ abstract class CollectorDataMerge {
 							}
 						}
 						assert !filesToMerge.isEmpty();
-						final File target = new File(targetDirectory, fileName);
-						if (fileName.endsWith(".rrd")) {
-							log("Merging " + fileName);
-							if (filesToMerge.size() == 1) {
-								InputOutput.copyFile(filesToMerge.get(0),
-										new File(targetDirectory, fileName));
-							} else {
-								Collections.sort(filesToMerge, FILES_COMPARATOR);
-								mergeGraphs(filesToMerge, target);
-							}
-						} else if (fileName.endsWith(".ser.gz")) {
-							log("Merging " + fileName);
-							if (filesToMerge.size() == 1) {
-								InputOutput.copyFile(filesToMerge.get(0),
-										new File(targetDirectory, fileName));
-							} else {
-								Collections.sort(filesToMerge, FILES_COMPARATOR);
-								mergeStatistics(filesToMerge, target);
-							}
+						filesToMergeByFileName.put(fileName, filesToMerge);
+					}
+				}
+			}
+		}
+
+		final File resumeFile = new File(targetDirectory, RESUME_FILE_NAME);
+		final Set<String> alreadyMergedFileNames = readResumeFile(resumeFile);
+		filesCount = filesToMergeByFileName.size();
+		start = System.currentTimeMillis();
+		lastProgressLogTime.set(start);
+		mergedFilesCount.set(0);
+		mergedBytes.set(0);
+		if (!alreadyMergedFileNames.isEmpty()) {
+			log("Resuming merge, " + alreadyMergedFileNames.size()
+					+ " files already merged in " + targetDirectory);
+		}
+		if (resumable) {
+			resumeOutput = new FileOutputStream(resumeFile, true);
+		}
+		try {
+			mergeFiles(filesToMergeByFileName, alreadyMergedFileNames);
+		} finally {
+			if (resumeOutput != null) {
+				resumeOutput.close();
+				resumeOutput = null;
+			}
+		}
+		// fusion terminée, il n'y a plus rien à reprendre
+		if (resumeFile.exists()) {
+			InputOutput.deleteFile(resumeFile);
+		}
+		logProgress();
+		return filesCount;
+	}
+
+	private void mergeFiles(Map<String, List<File>> filesToMergeByFileName,
+			Set<String> alreadyMergedFileNames) throws IOException {
+		final ForkJoinPool pool = new ForkJoinPool(parallelism);
+		try {
+			final List<Future<Void>> futures = new ArrayList<>();
+			for (final Map.Entry<String, List<File>> entry : filesToMergeByFileName.entrySet()) {
+				final String fileName = entry.getKey();
+				final List<File> filesToMerge = entry.getValue();
+				if (alreadyMergedFileNames.contains(fileName)) {
+					mergedFilesCount.incrementAndGet();
+					continue;
+				}
+				futures.add(pool.submit(new Callable<Void>() {
+					@Override
+					public Void call() throws IOException {
+						mergeFile(fileName, filesToMerge);
+						return null;
+					}
+				}));
+			}
+			IOException exception = null;
+			for (final Future<Void> future : futures) {
+				try {
+					future.get();
+				} catch (final ExecutionException e) {
+					if (exception == null) {
+						if (e.getCause() instanceof IOException) {
+							exception = (IOException) e.getCause();
 						} else {
-							log("Ignoring " + fileName);
-						}
-						if (target.exists()) {
-							target.setLastModified(filesToMerge.get(0).lastModified());
+							exception = new IOException(e.getCause().toString(), e.getCause());
 						}
 					}
+				} catch (final InterruptedException e) {
+					Thread.currentThread().interrupt();
+					// les fichiers fusionnés jusqu'ici ne seront pas refaits en reprise
+					throw new IOException("Merge interrupted", e);
 				}
 			}
+			if (exception != null) {
+				throw exception;
+			}
+		} finally {
+			pool.shutdownNow();
 		}
-		return mergedFileNames.size();
+	}
+
+	private void mergeFile(String fileName, List<File> filesToMerge) throws IOException {
+		final File target = new File(targetDirectory, fileName);
+		if (fileName.endsWith(".rrd")) {
+			log("Merging " + fileName);
+			if (filesToMerge.size() == 1) {
+				InputOutput.copyFile(filesToMerge.get(0), target);
+			} else {
+				Collections.sort(filesToMerge, FILES_COMPARATOR);
+				mergeGraphs(filesToMerge, target);
+			}
+		} else if (fileName.endsWith(".ser.gz")) {
+			log("Merging " + fileName);
+			if (filesToMerge.size() == 1) {
+				InputOutput.copyFile(filesToMerge.get(0), target);
+			} else {
+				Collections.sort(filesToMerge, FILES_COMPARATOR);
+				mergeStatistics(filesToMerge, target);
+			}
+		} else {
+			log("Ignoring " + fileName);
+		}
+		if (target.exists()) {
+			target.setLastModified(filesToMerge.get(0).lastModified());
+		}
+		fileMerged(fileName, filesToMerge);
+	}
+
+	private void fileMerged(String fileName, List<File> filesToMerge) throws IOException {
+		long bytes = 0;
+		for (final File file : filesToMerge) {
+			bytes += file.length();
+		}
+		mergedBytes.addAndGet(bytes);
+		mergedFilesCount.incrementAndGet();
+		if (resumeOutput != null) {
+			synchronized (resumeOutput) {
+				resumeOutput.write((fileName + '\n').getBytes(StandardCharsets.UTF_8));
+				resumeOutput.flush();
+			}
+		}
+		final long now = System.currentTimeMillis();
+		final long lastLogTime = lastProgressLogTime.get();
+		if (now - lastLogTime >= PROGRESS_LOG_PERIOD_MILLIS
+				&& lastProgressLogTime.compareAndSet(lastLogTime, now)) {
+			logProgress();
+		}
+	}
+
+	private void logProgress() {
+		final int merged = mergedFilesCount.get();
+		final long durationMillis = Math.max(System.currentTimeMillis() - start, 1);
+		final long kilobytes = mergedBytes.get() / 1024;
+		log("Progress: " + merged + " / " + filesCount + " files ("
+				+ (filesCount == 0 ? 100 : merged * 100 / filesCount) + " %), " + kilobytes
+				+ " KB read at " + kilobytes * 1000 / durationMillis + " KB/s");
+	}
+
+	private Set<String> readResumeFile(File resumeFile) throws IOException {
+		if (!resumable || !resumeFile.exists()) {
+			return Collections.emptySet();
+		}
+		final String content;
+		try (InputStream input = new FileInputStream(resumeFile)) {
+			content = InputOutput.pumpToString(input, StandardCharsets.UTF_8);
+		}
+		final List<String> lines = new ArrayList<>(Arrays.asList(content.split("\n")));
+		if (!content.endsWith("\n") && !lines.isEmpty()) {
+			// la dernière ligne est incomplète si la fusion a été interrompue pendant son écriture
+			lines.remove(lines.size() - 1);
+		}
+		final Set<String> fileNames = new HashSet<>(lines);
+		fileNames.remove("");
+		return fileNames;
 	}
 
 	private boolean isFileExcluded(String fileName) {
 		// on exclu les fichiers rrd tels que httpf4562103f5fef56778018769947b2e02609bc1db.rrd
 		// car les temps moyens par requête sont moins importants que les autres fichiers et ce serait long à merger
-		return fileName.endsWith(".rrd") && fileName.length() > 40;
+		return fileName.endsWith(".rrd") && fileName.length() > 40
+				|| RESUME_FILE_NAME.equals(fileName);
 	}
 
 	private void mergeGraphs(final List<File> sources, final File target) throws IOException {
+		// le fichier le plus récent donne la structure et la date de fin du fichier fusionné,
+		// puis chaque ligne de chaque archive est calculée en une passe sur tous les fichiers
+		InputOutput.copyFile(sources.get(0), target);
+		final List<RrdDb> sourceRrdDbs = new ArrayList<>();
 		try {
-			RrdDb mergedRrdDb = null;
-			Double coeff = null;
-			final String name = target.getName();
-			final boolean percentageValues = "cpu.rrd".equals(name) || "gc.rrd".equals(name)
-					|| "systemCpuLoad.rrd".equals(name) || name.endsWith("SystemErrors.rrd");
-			final File lastSource = sources.get(sources.size() - 1);
-			for (final File source : sources) {
-				if (mergedRrdDb == null) {
-					InputOutput.copyFile(source, target);
-					mergedRrdDb = new RrdDb(target.getPath());
-				} else {
-					if (percentageValues && source.equals(lastSource)) {
-						// cpu and gc should be in percentage between 0 and 100,
-						// so we use a coeff to compute 'sum of values / nb of values' for the last RRD when we have the sum
-						coeff = 1d / sources.size();
-					}
-					final RrdDb sourceRrdDb = new RrdDb(source.getPath());
-					try {
-						mergeRrdDbs(sourceRrdDb, mergedRrdDb, coeff);
-					} finally {
-						sourceRrdDb.close();
-					}
+			final RrdDb mergedRrdDb = new RrdDb(target.getPath());
+			try {
+				for (final File source : sources.subList(1, sources.size())) {
+					sourceRrdDbs.add(new RrdDb(source.getPath(), true));
 				}
+				final String name = target.getName();
+				final boolean percentageValues = "cpu.rrd".equals(name) || "gc.rrd".equals(name)
+						|| "systemCpuLoad.rrd".equals(name) || name.endsWith("SystemErrors.rrd");
+				// cpu and gc should be in percentage between 0 and 100,
+				// so we use a coeff to compute 'sum of values / nb of values'
+				final Double coeff = percentageValues ? 1d / sources.size() : null;
+				mergeRrdDbs(sourceRrdDbs, mergedRrdDb, coeff);
+			} finally {
+				mergedRrdDb.close();
 			}
-			assert mergedRrdDb != null;
-			mergedRrdDb.close();
 		} catch (final RrdException e) {
 			log(e.toString());
 			InputOutput.deleteFile(target);
+		} finally {
+			for (final RrdDb sourceRrdDb : sourceRrdDbs) {
+				sourceRrdDb.close();
+			}
 		}
 	}
 
-	private void mergeRrdDbs(final RrdDb sourceRrdDb, final RrdDb mergedRrdDb, Double coeff)
-			throws IOException, RrdException {
+	private void mergeRrdDbs(final List<RrdDb> sourceRrdDbs, final RrdDb mergedRrdDb,
+			Double coeff) throws IOException {
 		// On suppose que les RRD à merger entre eux ont la même structure
 		// (headers, datasources, ordres des archives, etc)
 		// puisque normalement ils ont été créés toujours de la même façon.
 		// Donc pour l'instant, on se contente de copier les valeurs brutes directement
-		assert sourceRrdDb.getArcCount() == mergedRrdDb.getArcCount();
-		assert sourceRrdDb.getDsCount() == mergedRrdDb.getDsCount();
-		for (int i = 0; i < sourceRrdDb.getArcCount(); i++) {
-			final Archive sourceArchive = sourceRrdDb.getArchive(i);
+		final int sourcesCount = sourceRrdDbs.size();
+		final Robin[] sourceRobins = new Robin[sourcesCount];
+		final int[] deltaSteps = new int[sourcesCount];
+		for (int i = 0; i < mergedRrdDb.getArcCount(); i++) {
 			final Archive mergedArchive = mergedRrdDb.getArchive(i);
-			assert sourceArchive.getArcStep() == mergedArchive.getArcStep();
-			assert sourceArchive.getConsolFun().equals(mergedArchive.getConsolFun());
-			for (int j = 0; j < sourceRrdDb.getDsCount(); j++) {
-				final Robin sourceRobin = sourceArchive.getRobin(j);
-				final Robin mergedRobin = mergedArchive.getRobin(j);
-				final double[] sourceValues = sourceRobin.getValues();
-				final double[] mergedValues = mergedRobin.getValues();
-				assert sourceValues.length == mergedValues.length;
-				final int deltaSteps = (int) ((mergedArchive.getEndTime()
-						- sourceArchive.getEndTime()) / mergedArchive.getArcStep());
+			for (int s = 0; s < sourcesCount; s++) {
+				final RrdDb sourceRrdDb = sourceRrdDbs.get(s);
+				assert sourceRrdDb.getArcCount() == mergedRrdDb.getArcCount();
+				assert sourceRrdDb.getDsCount() == mergedRrdDb.getDsCount();
+				final Archive sourceArchive = sourceRrdDb.getArchive(i);
+				assert sourceArchive.getArcStep() == mergedArchive.getArcStep();
+				assert sourceArchive.getConsolFun().equals(mergedArchive.getConsolFun());
+				assert sourceArchive.getRows() == mergedArchive.getRows();
 				// les fichiers à merger sont triés par dates descendantes
 				// donc deltaSteps >= 0 en général et les valeurs sources sont plus vieilles
 				// càd que les valeurs à la fin de mergedValues sont plus récentes que les valeurs à la fin de sourceValues
-				if (deltaSteps >= 0) {
-					for (int k = 0; k < mergedValues.length - deltaSteps; k++) {
-						mergedValues[k] = addDoubles(mergedValues[k], sourceValues[k + deltaSteps]);
-						if (coeff != null) {
-							mergedValues[k] *= coeff;
+				deltaSteps[s] = (int) ((mergedArchive.getEndTime() - sourceArchive.getEndTime())
+						/ mergedArchive.getArcStep());
+			}
+			final int rows = mergedArchive.getRows();
+			for (int j = 0; j < mergedRrdDb.getDsCount(); j++) {
+				final Robin mergedRobin = mergedArchive.getRobin(j);
+				for (int s = 0; s < sourcesCount; s++) {
+					sourceRobins[s] = sourceRrdDbs.get(s).getArchive(i).getRobin(j);
+				}
+				// ligne par ligne, sans charger toutes les valeurs des archives
+				for (int k = 0; k < rows; k++) {
+					double value = mergedRobin.getValue(k);
+					for (int s = 0; s < sourcesCount; s++) {
+						final int sourceRow = k + deltaSteps[s];
+						if (sourceRow >= 0 && sourceRow < rows) {
+							value = addDoubles(value, sourceRobins[s].getValue(sourceRow));
 						}
 					}
-				} else {
-					for (int k = -deltaSteps; k < mergedValues.length; k++) {
-						mergedValues[k] = addDoubles(mergedValues[k], sourceValues[k + deltaSteps]);
-						if (coeff != null) {
-							mergedValues[k] *= coeff;
-						}
+					if (coeff != null) {
+						value *= coeff;
 					}
+					mergedRobin.setValue(k, value);
 				}
-				mergedRobin.setValues(mergedValues);
 			}
 		}
 	}
@@ -201,6 +370,7 @@ abstract class CollectorDataMerge {
 	}
 
 	private void mergeStatistics(final List<File> sources, final File target) throws IOException {
+		// un seul fichier source est lu en mémoire à la fois, en plus du counter fusionné
 		Counter mergedCounter = null;
 		for (final File source : sources) {
 			final Counter counter;
@@ -213,7 +383,7 @@ abstract class CollectorDataMerge {
 			if (mergedCounter == null) {
 				mergedCounter = counter;
 			} else {
-				for (final CounterRequest request : counter.getRequests()) {
+				for (final CounterRequest request : counter.getRequestsWithoutClone()) {
 					mergedCounter.addHits(request);
 				}
 				if (counter.isErrorCounter()) {
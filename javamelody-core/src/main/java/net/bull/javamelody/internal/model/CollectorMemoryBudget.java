@@ -0,0 +1,176 @@
+/*
+ * Copyright 2008-2019 by Emeric Vernat
+ *
+ *     This file is part of Java Melody.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.bull.javamelody.internal.model;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.bull.javamelody.Parameter;
+import net.bull.javamelody.internal.common.LOG;
+
+/**
+ * Budget mémoire du serveur de collecte (paramètre collector-memory-budget-mb).
+ *
+ * Quand la mémoire estimée des collectors dépasse le budget, les données des compteurs des applications
+ * consultées le moins récemment sont déchargées dans le répertoire de stockage ({@link Collector#spill()})
+ * et relues à la consultation suivante ({@link Collector#reloadIfSpilled()}).
+ * @author Emeric Vernat
+ */
+final class CollectorMemoryBudget {
+	private final long maxMemorySize;
+	private final Map<String, Long> lastViewTimesByApplication = new ConcurrentHashMap<>();
+	private final AtomicLong spillCount = new AtomicLong();
+	private final AtomicLong reloadCount = new AtomicLong();
+
+	CollectorMemoryBudget(long maxMemorySize) {
+		super();
+		assert maxMemorySize > 0;
+		this.maxMemorySize = maxMemorySize;
+	}
+
+	/**
+	 * @return CollectorMemoryBudget si le paramètre collector-memory-budget-mb est défini, null sinon
+	 */
+	static CollectorMemoryBudget createIfEnabled() {
+		final String parameter = Parameter.COLLECTOR_MEMORY_BUDGET_MB.getValue();
+		if (parameter == null) {
+			return null;
+		}
+		final long maxMemoryMb = Long.parseLong(parameter);
+		if (maxMemoryMb <= 0) {
+			throw new IllegalStateException(
+					"The parameter collector-memory-budget-mb should be > 0");
+		}
+		return new CollectorMemoryBudget(maxMemoryMb * 1024 * 1024);
+	}
+
+	/**
+	 * Relit si besoin les données d'une application consultée.
+	 * @param application Code de l'application
+	 * @param collector Collector de l'application
+	 */
+	void view(String application, Collector collector) {
+		lastViewTimesByApplication.put(application, System.currentTimeMillis());
+		try {
+			if (collector.reloadIfSpilled()) {
+				reloadCount.incrementAndGet();
+			}
+		} catch (final IOException e) {
+			// les données partielles seront affichées
+			LOG.warn("exception while reloading counters of application " + application, e);
+		}
+	}
+
+	/**
+	 * Estime la mémoire utilisée par les données des applications, qu'elles soient déchargeables ou non.
+	 * @param remoteCollectorsByApplication RemoteCollector par application
+	 * @param queuedNodePushesSize Taille des données reçues des noeuds en mode push en attente
+	 * @return long
+	 */
+	static long estimateMemorySize(Map<String, RemoteCollector> remoteCollectorsByApplication,
+			long queuedNodePushesSize) {
+		long memorySize = queuedNodePushesSize;
+		for (final RemoteCollector remoteCollector : remoteCollectorsByApplication.values()) {
+			// les statistiques par noeud restent en mémoire même si le collector est déchargé
+			memorySize += remoteCollector.getNodeContributionsEstimatedMemorySize();
+			final Collector collector = remoteCollector.getCollector();
+			if (collector != null) {
+				// les counters gardés pour les deltas aussi
+				memorySize += collector.getDeltaSnapshotsEstimatedMemorySize();
+				if (!collector.isSpilled()) {
+					memorySize += collector.getEstimatedMemorySize();
+				}
+			}
+		}
+		return memorySize;
+	}
+
+	/**
+	 * Décharge les applications consultées le moins récemment jusqu'à respecter le budget.
+	 * @param remoteCollectorsByApplication RemoteCollector par application
+	 * @param queuedNodePushesSize Taille des données reçues des noeuds en mode push en attente
+	 */
+	void enforce(Map<String, RemoteCollector> remoteCollectorsByApplication,
+			long queuedNodePushesSize) {
+		final List<Collector> residentCollectors = new ArrayList<>();
+		for (final RemoteCollector remoteCollector : remoteCollectorsByApplication.values()) {
+			final Collector collector = remoteCollector.getCollector();
+			if (collector != null && !collector.isSpilled()) {
+				residentCollectors.add(collector);
+			}
+		}
+		long memorySize = estimateMemorySize(remoteCollectorsByApplication,
+				queuedNodePushesSize);
+		if (memorySize <= maxMemorySize) {
+			return;
+		}
+		Collections.sort(residentCollectors, new Comparator<Collector>() {
+			@Override
+			public int compare(Collector collector1, Collector collector2) {
+				return Long.compare(getLastViewTime(collector1.getApplication()),
+						getLastViewTime(collector2.getApplication()));
+			}
+		});
+		for (final Collector collector : residentCollectors) {
+			if (memorySize <= maxMemorySize) {
+				break;
+			}
+			final long collectorMemorySize = collector.getEstimatedMemorySize();
+			try {
+				collector.spill();
+				memorySize -= collectorMemorySize;
+				spillCount.incrementAndGet();
+				LOG.debug("counters of application " + collector.getApplication()
+						+ " spilled to disk, " + collectorMemorySize / 1024 + " KB");
+			} catch (final IOException e) {
+				LOG.warn("exception while spilling counters of application "
+						+ collector.getApplication(), e);
+			}
+		}
+	}
+
+	private long getLastViewTime(String application) {
+		final Long lastViewTime = lastViewTimesByApplication.get(application);
+		if (lastViewTime == null) {
+			return 0;
+		}
+		return lastViewTime;
+	}
+
+	void removeApplication(String application) {
+		lastViewTimesByApplication.remove(application);
+	}
+
+	long getMaxMemorySize() {
+		return maxMemorySize;
+	}
+
+	long getSpillCount() {
+		return spillCount.get();
+	}
+
+	long getReloadCount() {
+		return reloadCount.get();
+	}
+}
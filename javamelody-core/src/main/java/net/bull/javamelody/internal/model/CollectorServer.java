@@ -18,23 +18,25 @@
 package net.bull.javamelody.internal.model;
 
 import java.io.File;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.Serializable;
 import java.net.URL;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.ConcurrentModificationException;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
+import java.util.Set;
 import java.util.Timer;
 import java.util.TimerTask;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -43,6 +45,8 @@ import net.bull.javamelody.Parameter;
 import net.bull.javamelody.internal.common.LOG;
 import net.bull.javamelody.internal.common.Mailer;
 import net.bull.javamelody.internal.common.Parameters;
+import net.bull.javamelody.internal.model.NodePushIngester.NodePush;
+import net.bull.javamelody.internal.model.NodePushIngester.NodePushHandler;
 import net.bull.javamelody.internal.model.SamplingProfiler.SampledMethod;
 import net.bull.javamelody.internal.web.MailReport;
 
@@ -60,11 +64,74 @@ public class CollectorServer {
 	private final Map<String, Throwable> lastCollectExceptionsByApplication = new ConcurrentHashMap<>();
 	private final Map<String, RemoteCollector> remoteCollectorsByApplication = new ConcurrentHashMap<>();
 
-	private final ExecutorService executorService = Executors
-			.newFixedThreadPool(NB_COLLECT_THREADS);
+	private final ExecutorService executorService = NodeCollectScheduler
+			.createExecutorService("javamelody collect", NB_COLLECT_THREADS);
+
+	// remoteCollectors créés à la réception des données de noeuds en mode push,
+	// avant la première collecte de leur application
+	private final Map<String, RemoteCollector> pushedRemoteCollectorsByApplication = new ConcurrentHashMap<>();
+	// pas de synchronized sur this pour les noeuds en mode push, car addCollectorAggregationApplication
+	// attend les threads de collecte qui ajoutent les données reçues
+	private final Object pushedNodesLock = new Object();
+	private final NodePushIngester nodePushIngester = new NodePushIngester(executorService,
+			new NodePushHandler() {
+				@Override
+				public void ingest(String application, List<NodePush> nodePushes) {
+					ingestNodePushesWithoutErrors(application, nodePushes);
+				}
+			});
 
 	private final Timer timer;
 
+	// répartition des applications entre les instances, ou null si une seule instance
+	private final CollectorShards collectorShards;
+
+	// budget mémoire des données des compteurs, ou null si sans limite
+	private final CollectorMemoryBudget memoryBudget = CollectorMemoryBudget.createIfEnabled();
+
+	// cache des images des graphiques, ou null si désactivé
+	private final GraphCache graphCache = GraphCache.createIfEnabled();
+
+	/**
+	 * Flux comptant les octets lus, pour la taille des données reçues d'un noeud en mode push.
+	 */
+	private static final class CountingInputStream extends FilterInputStream {
+		private long count;
+
+		CountingInputStream(InputStream input) {
+			super(input);
+		}
+
+		@Override
+		public int read() throws IOException {
+			final int result = super.read();
+			if (result != -1) {
+				count++;
+			}
+			return result;
+		}
+
+		@Override
+		public int read(byte[] bytes, int off, int len) throws IOException {
+			final int result = super.read(bytes, off, len);
+			if (result != -1) {
+				count += result;
+			}
+			return result;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			final long result = super.skip(n);
+			count += result;
+			return result;
+		}
+
+		long getCount() {
+			return count;
+		}
+	}
+
 	/**
 	 * Constructeur.
 	 * @throws IOException e
@@ -74,6 +141,11 @@ public class CollectorServer {
 		boolean initOk = false;
 		this.timer = new Timer("collector", true);
 		try {
+			this.collectorShards = CollectorShards.createIfEnabled();
+			if (collectorShards != null) {
+				LOGGER.info("collector server instances sharing the applications: "
+						+ collectorShards.getShardUrls());
+			}
 			LOGGER.info(
 					"reading applications list from: " + Parameters.getCollectorApplicationsFile());
 			final Map<String, List<URL>> urlsByApplication = Parameters
@@ -120,75 +192,147 @@ public class CollectorServer {
 
 	public void collectWithoutErrors() {
 		try {
+			refreshShards();
 			final Map<String, List<URL>> urlsByApplication = new LinkedHashMap<>(
 					Parameters.getCollectorUrlsByApplications());
-			final List<Future<?>> futures = collectForApplicationsWithoutErrors(urlsByApplication);
-
 			final Map<String, List<String>> applicationsByAggregationApplication = new LinkedHashMap<>(
 					Parameters.getApplicationsByAggregationApplication());
-			if (!applicationsByAggregationApplication.isEmpty()) {
-				// on attend la fin des collectes par application avant les collectes par aggrégation
-				for (final Future<?> future : futures) {
-					future.get();
-				}
-				while (!applicationsByAggregationApplication.isEmpty()) {
-					final int initialSize = applicationsByAggregationApplication.size();
-					final Iterator<Entry<String, List<String>>> it = applicationsByAggregationApplication
-							.entrySet().iterator();
-					while (it.hasNext()) {
-						final Map.Entry<String, List<String>> entry = it.next();
-						final String aggregationApplication = entry.getKey();
-						final List<String> aggregatedApplications = entry.getValue();
-						// est-ce que cette agrégation dépend d'une autre agrégation pas encore collectée ?
-						boolean aggregationOfAggregationYetToBeDone = false;
-						for (final String aggregatedApplication : aggregatedApplications) {
-							if (applicationsByAggregationApplication
-									.containsKey(aggregatedApplication)) {
-								aggregationOfAggregationYetToBeDone = true;
-								break;
-							}
-						}
-						// si oui, on ne fait pas la collecte de cette agrégation avant l'autre agrégation
-						if (!aggregationOfAggregationYetToBeDone) {
-							// si non, on fait la collecte de cette agrégation maintenant.
-							// Pas la peine de lister les URLs, elles seront recalculées dans RemoteCollector.getURLs()
-							final List<URL> urls = new ArrayList<>();
-							collectForApplicationWithoutErrors(aggregationApplication, urls);
-							it.remove();
+			if (collectorShards != null) {
+				// cette instance collecte seulement ses applications
+				removeApplicationsOfOtherShards(urlsByApplication.keySet());
+				removeApplicationsOfOtherShards(applicationsByAggregationApplication.keySet());
+			}
+			// les agrégations sont collectées dès que leurs applications agrégées sont collectées,
+			// et en parallèle si elles sont indépendantes
+			final CollectGraph collectGraph = new CollectGraph(executorService,
+					urlsByApplication.keySet(), applicationsByAggregationApplication,
+					new CollectGraph.CollectTask() {
+						@Override
+						public void collect(String application) {
+							// Pas la peine de lister les URLs des agrégations,
+							// elles seront recalculées dans RemoteCollector.getURLs()
+							final List<URL> urls = urlsByApplication.containsKey(application)
+									? urlsByApplication.get(application)
+									: new ArrayList<URL>();
+							collectForApplicationWithoutErrors(application, urls);
 						}
-					}
-					if (applicationsByAggregationApplication.size() == initialSize) {
-						// il reste des agrégations à collecter, mais elles forment un cycle entre elles
-						// ce qui n'est pas censé arriver
-						throw new IOException("Cycle of aggregations detected");
-					}
+					});
+			collectGraph.start();
+
+			if (!applicationsByAggregationApplication.isEmpty() || memoryBudget != null) {
+				// on attend la fin des collectes par agrégation, ou avant de vérifier le budget mémoire
+				collectGraph.await();
+				if (!collectGraph.getCyclicApplications().isEmpty()) {
+					// il reste des agrégations non collectées, car elles forment un cycle entre elles
+					// ce qui n'est pas censé arriver
+					throw new IOException("Cycle of aggregations detected: "
+							+ collectGraph.getCyclicApplications());
 				}
 			}
 			// les nouveaux counters ont été aggrégés, on peut les oublier
 			for (final RemoteCollector remoteCollector : remoteCollectorsByApplication.values()) {
 				remoteCollector.clearNewCounters();
 			}
-		} catch (final IOException | ExecutionException | InterruptedException
-				| ConcurrentModificationException e) {
+			if (memoryBudget != null) {
+				memoryBudget.enforce(remoteCollectorsByApplication,
+						nodePushIngester.getQueuedBytes());
+			}
+		} catch (final IOException | InterruptedException | ConcurrentModificationException e) {
 			LOGGER.warn(e.getMessage(), e);
 		}
 	}
 
-	private List<Future<?>> collectForApplicationsWithoutErrors(
-			Map<String, List<URL>> urlsByApplication) {
-		final List<Future<?>> futures = new ArrayList<>();
-		for (final Map.Entry<String, List<URL>> entry : urlsByApplication.entrySet()) {
-			final String application = entry.getKey();
-			final List<URL> urls = entry.getValue();
-			final Future<?> future = executorService.submit(new Runnable() {
-				@Override
-				public void run() {
-					collectForApplicationWithoutErrors(application, urls);
+	private void refreshShards() throws IOException {
+		if (collectorShards == null) {
+			return;
+		}
+		final List<String> previousShardUrls = collectorShards.getShardUrls();
+		collectorShards.refresh();
+		if (!previousShardUrls.equals(collectorShards.getShardUrls())) {
+			LOGGER.info("collector server instances sharing the applications: "
+					+ collectorShards.getShardUrls());
+		}
+		// des applications ont pu être ajoutées ou retirées par une autre instance
+		Parameters.reloadCollectorApplicationsIfModified();
+		final Set<String> releasedShardKeys = new LinkedHashSet<>();
+		for (final String application : new ArrayList<>(remoteCollectorsByApplication.keySet())) {
+			if (getOtherShardUrl(application) != null) {
+				// une autre instance collecte maintenant cette application,
+				// ses counters sont enregistrés dans le répertoire de stockage partagé pour qu'elle les relise
+				LOGGER.info("the application " + application
+						+ " is now collected by the collector server "
+						+ getOtherShardUrl(application));
+				lastCollectExceptionsByApplication.remove(application);
+				final RemoteCollector remoteCollector = remoteCollectorsByApplication
+						.remove(application);
+				if (remoteCollector != null && remoteCollector.getCollector() != null) {
+					remoteCollector.getCollector().stop();
 				}
-			});
-			futures.add(future);
+				releasedShardKeys.add(getShardKey(application));
+			}
 		}
-		return futures;
+		// après l'arrêt de toutes ces applications, la nouvelle instance peut les collecter
+		collectorShards.release(releasedShardKeys);
+	}
+
+	private void removeApplicationsOfOtherShards(Collection<String> applications)
+			throws IOException {
+		final Iterator<String> it = applications.iterator();
+		while (it.hasNext()) {
+			final String application = it.next();
+			if (getOtherShardUrl(application) != null || !isHandedOver(application)) {
+				it.remove();
+			}
+		}
+	}
+
+	private boolean isHandedOver(String application) throws IOException {
+		// une application dont cette instance vient de devenir responsable n'est collectée
+		// qu'après son arrêt par l'instance qui la collectait, pour ne pas écrire les mêmes fichiers
+		return collectorShards == null || isApplicationDataAvailable(application)
+				|| collectorShards.isHandedOver(getShardKey(application));
+	}
+
+	/**
+	 * Retourne l'URL de l'instance du serveur de collecte qui collecte une application,
+	 * si ce n'est pas cette instance (paramètre collector-shard-url).
+	 * @param application Code de l'application
+	 * @return URL, ou null si l'application est collectée par cette instance
+	 * @throws IOException e
+	 */
+	public URL getOtherShardUrl(String application) throws IOException {
+		if (collectorShards == null) {
+			return null;
+		}
+		final String shardUrl = collectorShards.getShardUrl(getShardKey(application));
+		if (shardUrl.equals(collectorShards.getLocalShardUrl())) {
+			return null;
+		}
+		return new URL(shardUrl);
+	}
+
+	private static String getShardKey(String application) throws IOException {
+		// une application agrégée est collectée par l'instance de son agrégation,
+		// qui a besoin en mémoire des données des applications agrégées
+		final Map<String, List<String>> applicationsByAggregationApplication = Parameters
+				.getApplicationsByAggregationApplication();
+		String shardKey = application;
+		// au plus une itération par agrégation, s'il y avait un cycle
+		for (int i = 0; i < applicationsByAggregationApplication.size(); i++) {
+			String aggregationApplication = null;
+			for (final Map.Entry<String, List<String>> entry : applicationsByAggregationApplication
+					.entrySet()) {
+				if (entry.getValue().contains(shardKey)) {
+					aggregationApplication = entry.getKey();
+					break;
+				}
+			}
+			if (aggregationApplication == null) {
+				break;
+			}
+			shardKey = aggregationApplication;
+		}
+		return shardKey;
 	}
 
 	public String collectForApplicationForAction(String application, List<URL> urls)
@@ -235,7 +379,10 @@ public class CollectorServer {
 		final boolean remoteCollectorAvailable = isApplicationDataAvailable(application);
 		final RemoteCollector remoteCollector;
 		if (!remoteCollectorAvailable) {
-			if (application.endsWith(JENKINS_NODES_SUFFIX)) {
+			if (pushedRemoteCollectorsByApplication.containsKey(application)) {
+				// des noeuds de l'application ont déjà envoyé des données en mode push
+				remoteCollector = pushedRemoteCollectorsByApplication.get(application);
+			} else if (application.endsWith(JENKINS_NODES_SUFFIX)) {
 				// nécessaire ici après redémarrage du serveur de collecte
 				final String monitoringPath = Parameters.getMonitoringPath();
 				final List<URL> monitoringNodesUrls = new ArrayList<>(urls.size());
@@ -265,6 +412,7 @@ public class CollectorServer {
 			// puisqu'on ne peut pas forcément au démarrage
 			// car la webapp à monitorer peut être indisponible
 			remoteCollectorsByApplication.put(application, remoteCollector);
+			pushedRemoteCollectorsByApplication.remove(application);
 
 			if (Parameter.MAIL_SESSION.getValue() != null
 					&& Parameter.ADMIN_EMAILS.getValue() != null) {
@@ -304,10 +452,30 @@ public class CollectorServer {
 		final long start = System.currentTimeMillis();
 
 		final String messageForReport = remoteCollector.collectData();
+		final long collectDataDuration = System.currentTimeMillis() - start;
 		final List<JavaInformations> javaInformationsList = remoteCollector
 				.getJavaInformationsList();
 		final Collector collector = remoteCollector.getCollector();
 		collector.collectWithoutErrors(javaInformationsList);
+		// après l'enregistrement des counters, les générations acquittées correspondantes
+		remoteCollector.saveAcknowledgedGenerations();
+		if (remoteCollector.isAggregationApplication()) {
+			// temps de fusion des deltas des applications agrégées
+			collector.collectAggregationDurationWithoutErrors(collectDataDuration);
+		}
+		collector.collectNodeDurationsWithoutErrors(remoteCollector.getNodeCollectDurations());
+		if (remoteCollector.isPushedByNodes()) {
+			collector.collectNodePushesWithoutErrors(remoteCollector.getAndResetNodePushesCount());
+			final List<URL> staleNodeUrls = remoteCollector.removeStalePushedNodes();
+			if (!staleNodeUrls.isEmpty()) {
+				LOGGER.info("nodes removed from the application " + application
+						+ " as they have not pushed data for a long time: " + staleNodeUrls);
+				removePushedNodes(application, staleNodeUrls);
+			}
+		}
+		if (graphCache != null) {
+			graphCache.invalidate(application);
+		}
 		LOGGER.info("collect for the application " + application + " done in "
 				+ (System.currentTimeMillis() - start) + "ms");
 		if (LOGGER.isDebugEnabled()) {
@@ -411,13 +579,191 @@ public class CollectorServer {
 	}
 
 	public synchronized void removeCollectorApplication(String application) throws IOException {
+		removeCollectorApplicationWithoutLock(application);
+	}
+
+	private void removeCollectorApplicationWithoutLock(String application) throws IOException {
 		Parameters.removeCollectorApplication(application);
+		pushedRemoteCollectorsByApplication.remove(application);
+		nodePushIngester.removeApplication(application);
+		if (memoryBudget != null) {
+			memoryBudget.removeApplication(application);
+		}
+		if (graphCache != null) {
+			graphCache.removeApplication(application);
+		}
 		final RemoteCollector remoteCollector = remoteCollectorsByApplication.remove(application);
 		if (remoteCollector != null && remoteCollector.getCollector() != null) {
 			remoteCollector.getCollector().stop();
 		}
 	}
 
+	/**
+	 * Reçoit les données envoyées par un noeud d'une application en mode push,
+	 * qui seront ajoutées par lot dans un thread de collecte.
+	 * @param application Nom de l'application
+	 * @param nodeUrl URL du noeud
+	 * @param pushId Identifiant de l'instance du noeud
+	 * @param input Données au format binaire
+	 * @return false si trop de données de cette application sont en attente
+	 * @throws IOException e
+	 */
+	public boolean addNodePush(String application, URL nodeUrl, String pushId, InputStream input)
+			throws IOException {
+		if (!Parameter.COLLECTOR_PUSH_ADD_APPLICATIONS.getValueAsBoolean()
+				&& !Parameters.getCollectorUrlsByApplications().containsKey(application)) {
+			throw new IllegalArgumentException("Unknown application " + application
+					+ ", add it in the collector server or set the parameter "
+					+ Parameter.COLLECTOR_PUSH_ADD_APPLICATIONS.getCode());
+		}
+		// refus avant de lire les données, si la file est pleine
+		if (!nodePushIngester.hasCapacity(application)) {
+			return false;
+		}
+		final CountingInputStream countingInput = new CountingInputStream(input);
+		final Serializable serializable;
+		try {
+			serializable = TransportFormat.BINARY.readSerializableFrom(countingInput);
+		} catch (final ClassNotFoundException e) {
+			throw new IOException(e.getMessage(), e);
+		}
+		if (!(serializable instanceof List) || !containsJavaInformations((List<?>) serializable)) {
+			throw new IOException("Unexpected data pushed by " + nodeUrl);
+		}
+		@SuppressWarnings("unchecked")
+		final List<Serializable> serialized = (List<Serializable>) serializable;
+		return nodePushIngester.offer(application,
+				new NodePush(nodeUrl, pushId, serialized, countingInput.getCount()));
+	}
+
+	private static boolean containsJavaInformations(List<?> list) {
+		for (final Object object : list) {
+			if (object instanceof JavaInformations) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	void ingestNodePushesWithoutErrors(String application, List<NodePush> nodePushes) {
+		try {
+			final RemoteCollector remoteCollector = getRemoteCollectorForNodePushes(application,
+					nodePushes);
+			remoteCollector.addNodePushes(nodePushes);
+			if (!isApplicationDataAvailable(application) && isHandedOver(application)) {
+				// premières données reçues pour cette application depuis le démarrage :
+				// collecte de suite pour l'afficher, comme lors de l'ajout d'une application
+				collectForApplicationWithoutErrors(application, remoteCollector.getURLs());
+			}
+		} catch (final Throwable e) { // NOPMD
+			// il ne doit y avoir aucune erreur dans cette task
+			LOGGER.warn("exception while adding data pushed by nodes of the application "
+					+ application);
+			LOGGER.warn(e.toString(), e);
+		}
+	}
+
+	private RemoteCollector getRemoteCollectorForNodePushes(String application,
+			List<NodePush> nodePushes) throws IOException {
+		synchronized (pushedNodesLock) {
+			if (Parameters.getApplicationsByAggregationApplication().containsKey(application)) {
+				throw new IOException("An aggregation " + application
+						+ " has already been added. Choose another name.");
+			}
+			final List<URL> currentUrls = Parameters.getCollectorUrlsByApplications()
+					.get(application);
+			final List<URL> urls;
+			if (currentUrls == null) {
+				urls = new ArrayList<>();
+			} else {
+				urls = new ArrayList<>(currentUrls);
+			}
+			boolean nodeAdded = false;
+			for (final NodePush nodePush : nodePushes) {
+				if (indexOfUrl(urls, nodePush.getNodeUrl()) == -1) {
+					urls.add(nodePush.getNodeUrl());
+					nodeAdded = true;
+				}
+			}
+			if (nodeAdded) {
+				// l'application n'est pas collectée avant l'ajout comme dans addCollectorApplication,
+				// puisque les noeuds en mode push ne peuvent pas forcément être appelés
+				Parameters.addCollectorApplication(application, urls);
+				LOGGER.info("urls of the monitored application with pushed data: " + application
+						+ ", " + urls);
+			}
+			RemoteCollector remoteCollector = remoteCollectorsByApplication.get(application);
+			if (remoteCollector == null) {
+				remoteCollector = pushedRemoteCollectorsByApplication.get(application);
+				if (remoteCollector == null) {
+					remoteCollector = new RemoteCollector(application, urls);
+					pushedRemoteCollectorsByApplication.put(application, remoteCollector);
+				}
+			}
+			if (nodeAdded) {
+				remoteCollector.setURLs(urls);
+			}
+			return remoteCollector;
+		}
+	}
+
+	/**
+	 * Retire un noeud d'une application en mode push, lorsqu'il est arrêté.
+	 * @param application Nom de l'application
+	 * @param nodeUrl URL du noeud
+	 * @throws IOException e
+	 */
+	public void removePushedNode(String application, URL nodeUrl) throws IOException {
+		removePushedNodes(application, Collections.singletonList(nodeUrl));
+	}
+
+	private void removePushedNodes(String application, List<URL> nodeUrls) throws IOException {
+		synchronized (pushedNodesLock) {
+			final List<URL> currentUrls = Parameters.getCollectorUrlsByApplications()
+					.get(application);
+			if (currentUrls == null) {
+				return;
+			}
+			final List<URL> urls = new ArrayList<>(currentUrls);
+			for (final URL nodeUrl : nodeUrls) {
+				final int index = indexOfUrl(urls, nodeUrl);
+				if (index != -1) {
+					urls.remove(index);
+				}
+			}
+			if (urls.isEmpty()) {
+				removeCollectorApplicationWithoutLock(application);
+				return;
+			}
+			Parameters.addCollectorApplication(application, urls);
+			RemoteCollector remoteCollector = remoteCollectorsByApplication.get(application);
+			if (remoteCollector == null) {
+				remoteCollector = pushedRemoteCollectorsByApplication.get(application);
+			}
+			if (remoteCollector != null) {
+				remoteCollector.setURLs(urls);
+				for (final URL nodeUrl : nodeUrls) {
+					remoteCollector.removePushedNode(nodeUrl);
+				}
+			}
+		}
+	}
+
+	private static int indexOfUrl(List<URL> urls, URL url) {
+		// pas de URL.equals qui résout les noms d'hôtes
+		final String urlInExternalForm = url.toExternalForm();
+		for (int i = 0; i < urls.size(); i++) {
+			if (urls.get(i).toExternalForm().equals(urlInExternalForm)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	int getNodePushQueueSize(String application) {
+		return nodePushIngester.getQueueSize(application);
+	}
+
 	public synchronized void removeCollectorApplicationNodes(String appName, List<URL> nodeUrls)
 			throws IOException {
 		final List<URL> currentUrls = Parameters.getCollectorUrlsByApplications().get(appName);
@@ -498,7 +844,65 @@ public class CollectorServer {
 		if (remoteCollector == null) {
 			return null;
 		}
-		return remoteCollector.getCollector();
+		final Collector collector = remoteCollector.getCollector();
+		if (memoryBudget != null && collector != null) {
+			// les données de l'application consultée sont relues si elles ont été déchargées
+			memoryBudget.view(application, collector);
+		}
+		return collector;
+	}
+
+	/**
+	 * @return Cache des images des graphiques, ou null si le paramètre collector-graph-cache-size-mb vaut 0
+	 */
+	public GraphCache getGraphCache() {
+		return graphCache;
+	}
+
+	/**
+	 * @return true si le paramètre collector-memory-budget-mb est défini
+	 */
+	public boolean isMemoryBudgetEnabled() {
+		return memoryBudget != null;
+	}
+
+	/**
+	 * @return Budget mémoire en octets des données des compteurs
+	 */
+	public long getMemoryBudget() {
+		assert memoryBudget != null;
+		return memoryBudget.getMaxMemorySize();
+	}
+
+	/**
+	 * @return Applications dont les données des compteurs sont en mémoire
+	 */
+	public List<String> getResidentApplications() {
+		final List<String> residentApplications = new ArrayList<>();
+		for (final Map.Entry<String, RemoteCollector> entry : remoteCollectorsByApplication
+				.entrySet()) {
+			final Collector collector = entry.getValue().getCollector();
+			if (collector != null && !collector.isSpilled()) {
+				residentApplications.add(entry.getKey());
+			}
+		}
+		return residentApplications;
+	}
+
+	/**
+	 * @return Nombre de déchargements sur disque des données des compteurs depuis le démarrage
+	 */
+	public long getSpillCount() {
+		assert memoryBudget != null;
+		return memoryBudget.getSpillCount();
+	}
+
+	/**
+	 * @return Nombre de rechargements depuis le disque des données des compteurs depuis le démarrage
+	 */
+	public long getReloadCount() {
+		assert memoryBudget != null;
+		return memoryBudget.getReloadCount();
 	}
 
 	/**
@@ -559,6 +963,18 @@ public class CollectorServer {
 	 */
 	public String getFirstApplication() {
 		if (remoteCollectorsByApplication.isEmpty()) {
+			if (collectorShards != null) {
+				// les applications sont peut-être collectées par les autres instances
+				try {
+					final Map<String, List<URL>> urlsByApplication = Parameters
+							.getCollectorUrlsByApplications();
+					if (!urlsByApplication.isEmpty()) {
+						return urlsByApplication.keySet().iterator().next();
+					}
+				} catch (final IOException e) {
+					LOGGER.warn(e.toString(), e);
+				}
+			}
 			return null;
 		}
 		return remoteCollectorsByApplication.keySet().iterator().next();
@@ -0,0 +1,232 @@
+/*
+ * Copyright 2008-2019 by Emeric Vernat
+ *
+ *     This file is part of Java Melody.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.bull.javamelody.internal.model;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import net.bull.javamelody.Parameter;
+import net.bull.javamelody.internal.common.InputOutput;
+import net.bull.javamelody.internal.common.Parameters;
+
+/**
+ * Répartition des applications entre plusieurs instances du serveur de collecte
+ * (paramètre collector-shard-url), par hachage cohérent des noms d'applications.
+ *
+ * Les instances partagent le répertoire de stockage : chacune y déclare son url dans un petit fichier
+ * du répertoire "shards", réécrit à chaque collecte, et une instance dont le fichier n'a pas été réécrit
+ * depuis 3 périodes est considérée arrêtée. Lorsqu'une instance démarre ou s'arrête, seules les applications
+ * de son segment de l'anneau changent d'instance.
+ *
+ * L'instance qui collectait une application l'arrête et enregistre ses données seulement à sa collecte
+ * suivante, puis déclare l'avoir relâchée par un fichier du répertoire "shards". La nouvelle instance
+ * attend ce fichier, ou au plus 2 périodes, avant de collecter l'application, pour que les deux instances
+ * n'écrivent pas en même temps les mêmes fichiers.
+ * @author Emeric Vernat
+ */
+final class CollectorShards {
+	private static final String SHARDS_DIRECTORY_NAME = "shards";
+	private static final String SHARD_FILE_SUFFIX = ".shard";
+	// nombre de points par instance sur l'anneau, pour une répartition homogène
+	private static final int VIRTUAL_NODES_PER_SHARD = 128;
+	private static final int STALE_PERIODS = 3;
+	private static final String RELEASED_FILE_SUFFIX = ".released";
+	// une période pour la prochaine collecte de l'instance précédente, une autre pour son arrêt
+	private static final int HANDOVER_PERIODS = 2;
+
+	private final String localShardUrl;
+	private final File shardsDirectory;
+	private volatile List<String> shardUrls = Collections.emptyList();
+	private volatile SortedMap<Long, String> ring = new TreeMap<>();
+	// dates auxquelles cette instance est devenue responsable des clés pas encore relâchées
+	private final Map<String, Long> claimTimesByKey = new HashMap<>();
+
+	CollectorShards(String localShardUrl, File shardsDirectory) {
+		super();
+		assert localShardUrl != null;
+		assert shardsDirectory != null;
+		this.localShardUrl = localShardUrl;
+		this.shardsDirectory = shardsDirectory;
+		setShardUrls(Collections.singletonList(localShardUrl));
+	}
+
+	/**
+	 * @return CollectorShards si le paramètre collector-shard-url est défini, null sinon
+	 * @throws IOException e
+	 */
+	static CollectorShards createIfEnabled() throws IOException {
+		final String localShardUrl = Parameter.COLLECTOR_SHARD_URL.getValue();
+		if (localShardUrl == null) {
+			return null;
+		}
+		// vérification du format de l'url
+		new URL(localShardUrl);
+		final CollectorShards collectorShards = new CollectorShards(localShardUrl,
+				new File(Parameters.getStorageDirectory(""), SHARDS_DIRECTORY_NAME));
+		collectorShards.refresh();
+		return collectorShards;
+	}
+
+	/**
+	 * Déclare cette instance et relit les instances actives.
+	 * @throws IOException e
+	 */
+	void refresh() throws IOException {
+		if (!shardsDirectory.mkdirs() && !shardsDirectory.exists()) {
+			throw new IOException("JavaMelody directory can't be created: " + shardsDirectory);
+		}
+		final File localShardFile = new File(shardsDirectory,
+				Integer.toHexString(localShardUrl.hashCode()) + SHARD_FILE_SUFFIX);
+		try (OutputStream output = new FileOutputStream(localShardFile)) {
+			output.write(localShardUrl.getBytes(StandardCharsets.UTF_8));
+		}
+
+		final long staleTime = System.currentTimeMillis()
+				- STALE_PERIODS * Parameters.getResolutionSeconds() * 1000L;
+		final List<String> urls = new ArrayList<>();
+		urls.add(localShardUrl);
+		final File[] files = shardsDirectory.listFiles();
+		if (files != null) {
+			for (final File file : files) {
+				if (file.getName().endsWith(SHARD_FILE_SUFFIX) && !file.equals(localShardFile)
+						&& file.lastModified() >= staleTime) {
+					try (InputStream input = new FileInputStream(file)) {
+						final String url = InputOutput.pumpToString(input, StandardCharsets.UTF_8)
+								.trim();
+						if (!url.isEmpty() && !urls.contains(url)) {
+							urls.add(url);
+						}
+					}
+				}
+			}
+		}
+		Collections.sort(urls);
+		if (!urls.equals(shardUrls)) {
+			setShardUrls(urls);
+		}
+	}
+
+	private void setShardUrls(List<String> urls) {
+		final SortedMap<Long, String> newRing = new TreeMap<>();
+		for (final String url : urls) {
+			for (int i = 0; i < VIRTUAL_NODES_PER_SHARD; i++) {
+				newRing.put(hash(url + '#' + i), url);
+			}
+		}
+		this.ring = newRing;
+		this.shardUrls = Collections.unmodifiableList(urls);
+	}
+
+	/**
+	 * @param key Clé de répartition (nom d'application)
+	 * @return URL de l'instance qui collecte cette clé
+	 */
+	String getShardUrl(String key) {
+		final SortedMap<Long, String> currentRing = ring;
+		final SortedMap<Long, String> tailMap = currentRing.tailMap(hash(key));
+		if (tailMap.isEmpty()) {
+			// fin de l'anneau, on revient au premier point
+			return currentRing.get(currentRing.firstKey());
+		}
+		return tailMap.get(tailMap.firstKey());
+	}
+
+	/**
+	 * Indique si cette instance peut collecter une clé locale qu'elle ne collectait pas encore,
+	 * c'est-à-dire si l'instance qui la collectait avant l'a relâchée ou a eu le temps de le faire.
+	 * @param key Clé de répartition (nom d'application)
+	 * @return boolean
+	 */
+	synchronized boolean isHandedOver(String key) {
+		if (shardUrls.size() == 1) {
+			// aucune autre instance active ne peut collecter cette clé
+			claimTimesByKey.remove(key);
+			return true;
+		}
+		final long now = System.currentTimeMillis();
+		Long claimTime = claimTimesByKey.get(key);
+		if (claimTime == null) {
+			claimTime = now;
+			claimTimesByKey.put(key, claimTime);
+		}
+		// la date d'un fichier peut être arrondie à la seconde selon le système de fichiers
+		return getReleasedFile(key).lastModified() >= claimTime / 1000 * 1000
+				|| now - claimTime >= HANDOVER_PERIODS * Parameters.getResolutionSeconds() * 1000L;
+	}
+
+	/**
+	 * Déclare que cette instance ne collecte plus des clés et a enregistré leurs données.
+	 * @param keys Clés de répartition (noms d'applications)
+	 * @throws IOException e
+	 */
+	synchronized void release(Collection<String> keys) throws IOException {
+		for (final String key : keys) {
+			claimTimesByKey.remove(key);
+			try (OutputStream output = new FileOutputStream(getReleasedFile(key))) {
+				output.write(localShardUrl.getBytes(StandardCharsets.UTF_8));
+			}
+		}
+	}
+
+	private File getReleasedFile(String key) {
+		return new File(shardsDirectory, Long.toHexString(hash(key)) + RELEASED_FILE_SUFFIX);
+	}
+
+	boolean isLocal(String key) {
+		return localShardUrl.equals(getShardUrl(key));
+	}
+
+	String getLocalShardUrl() {
+		return localShardUrl;
+	}
+
+	List<String> getShardUrls() {
+		return shardUrls;
+	}
+
+	static long hash(String key) {
+		// pas de String.hashCode, trop peu dispersé pour un anneau
+		final byte[] digest;
+		try {
+			digest = MessageDigest.getInstance("MD5").digest(key.getBytes(StandardCharsets.UTF_8));
+		} catch (final NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+		long result = 0;
+		for (int i = 0; i < 8; i++) {
+			result = result << 8 | digest[i] & 0xFF;
+		}
+		return result;
+	}
+}
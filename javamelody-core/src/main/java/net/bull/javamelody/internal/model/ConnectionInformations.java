@@ -17,6 +17,8 @@
  */
 package net.bull.javamelody.internal.model;
 
+import java.io.IOException;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.sql.Connection;
 import java.util.ArrayList;
@@ -40,7 +42,9 @@ public class ConnectionInformations implements Serializable {
 	private static final boolean CONNECTIONS_STACK_TRACES_DISABLED = Parameter.CONNECTIONS_STACK_TRACES_DISABLED
 			.getValueAsBoolean();
 	private final long openingTime;
-	private final StackTraceElement[] openingStackTrace;
+	// stack-trace créée à partir de capturedStack au premier affichage ou à la sérialisation
+	private StackTraceElement[] openingStackTrace;
+	private final transient StackTraceCapture.CapturedStack capturedStack;
 	private final long threadId;
 
 	public ConnectionInformations() {
@@ -48,9 +52,9 @@ public class ConnectionInformations implements Serializable {
 		this.openingTime = System.currentTimeMillis();
 		final Thread currentThread = Thread.currentThread();
 		if (CONNECTIONS_STACK_TRACES_DISABLED) {
-			this.openingStackTrace = null;
+			this.capturedStack = null;
 		} else {
-			this.openingStackTrace = currentThread.getStackTrace();
+			this.capturedStack = StackTraceCapture.captureIfSampled();
 		}
 		this.threadId = currentThread.getId();
 	}
@@ -66,25 +70,39 @@ public class ConnectionInformations implements Serializable {
 	}
 
 	public List<StackTraceElement> getOpeningStackTrace() {
-		if (openingStackTrace == null) {
+		final StackTraceElement[] elements = getOpeningStackTraceElements();
+		if (elements == null) {
 			return Collections.emptyList();
 		}
-		final List<StackTraceElement> stackTrace = new ArrayList<>(
-				Arrays.asList(openingStackTrace));
+		final List<StackTraceElement> stackTrace = new ArrayList<>(Arrays.asList(elements));
 		// on enlève les premiers éléments qui sont forcément ceux de javamelody
-		// (Thread.getStackTrace(), constructeur ConnectionInformations,
-		// JdbcWrapper.createConnectionProxy, appelant de createConnectionProxy...)
-		stackTrace.remove(0);
-		while (stackTrace.get(0).getClassName().startsWith(OWN_PACKAGE)) {
+		// (constructeur ConnectionInformations, ou Thread.getStackTrace() dans les versions précédentes)
+		while (!stackTrace.isEmpty() && (stackTrace.get(0).getClassName().startsWith(OWN_PACKAGE)
+				|| Thread.class.getName().equals(stackTrace.get(0).getClassName()))) {
 			stackTrace.remove(0);
 		}
 		return stackTrace;
 	}
 
+	private StackTraceElement[] getOpeningStackTraceElements() {
+		if (openingStackTrace == null && capturedStack != null) {
+			// les éléments sont partagés par les connexions ouvertes au même point d'appel
+			openingStackTrace = capturedStack.getStackTrace();
+		}
+		return openingStackTrace;
+	}
+
 	public long getThreadId() {
 		return threadId;
 	}
 
+	private void writeObject(ObjectOutputStream output) throws IOException {
+		// la capture est transient : la stack-trace est créée avant la sérialisation
+		// pour le serveur de collecte
+		getOpeningStackTraceElements();
+		output.defaultWriteObject();
+	}
+
 	/** {@inheritDoc} */
 	@Override
 	public String toString() {
@@ -0,0 +1,199 @@
+/*
+ * Copyright 2008-2019 by Emeric Vernat
+ *
+ *     This file is part of Java Melody.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.bull.javamelody.internal.model;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * Histogrammes des temps d'attente de getConnection() et des temps de détention des connexions
+ * (de getConnection() à close()) pour une DataSource jdbc.
+ * Les intervalles des histogrammes sont fixes, en millisecondes, et les valeurs sont cumulées
+ * depuis le démarrage comme attendu par Prometheus.
+ * Les instances sont sérialisables pour pouvoir être transmises au serveur de collecte.
+ * @author Emeric Vernat
+ */
+public class ConnectionLatencies implements Serializable {
+	private static final long serialVersionUID = 1L;
+
+	// bornes supérieures incluses des intervalles en millisecondes,
+	// le dernier intervalle (au-delà de 30 s) n'a pas de borne
+	private static final long[] BUCKET_BOUNDS = { 1, 2, 5, 10, 25, 50, 100, 250, 500, 1000,
+			2500, 5000, 10000, 30000, };
+
+	private final String dataSourceName;
+	private final long[] waitTimeCounts;
+	private long waitTimesSum;
+	// somme des durées du dernier intervalle, sans borne, pour son percentile
+	private long waitTimesOverflowSum;
+	private final long[] holdTimeCounts;
+	private long holdTimesSum;
+	private long holdTimesOverflowSum;
+
+	public ConnectionLatencies(String dataSourceName) {
+		super();
+		assert dataSourceName != null;
+		this.dataSourceName = dataSourceName;
+		this.waitTimeCounts = new long[BUCKET_BOUNDS.length + 1];
+		this.holdTimeCounts = new long[BUCKET_BOUNDS.length + 1];
+	}
+
+	private ConnectionLatencies(ConnectionLatencies connectionLatencies) {
+		super();
+		this.dataSourceName = connectionLatencies.dataSourceName;
+		this.waitTimeCounts = connectionLatencies.waitTimeCounts.clone();
+		this.waitTimesSum = connectionLatencies.waitTimesSum;
+		this.waitTimesOverflowSum = connectionLatencies.waitTimesOverflowSum;
+		this.holdTimeCounts = connectionLatencies.holdTimeCounts.clone();
+		this.holdTimesSum = connectionLatencies.holdTimesSum;
+		this.holdTimesOverflowSum = connectionLatencies.holdTimesOverflowSum;
+	}
+
+	/**
+	 * @return Bornes supérieures incluses des intervalles en millisecondes, sans le dernier intervalle
+	 */
+	public static long[] getBucketBounds() {
+		return BUCKET_BOUNDS.clone();
+	}
+
+	static int getBucketIndex(long duration) {
+		final int index = Arrays.binarySearch(BUCKET_BOUNDS, duration);
+		if (index >= 0) {
+			return index;
+		}
+		// point d'insertion, soit BUCKET_BOUNDS.length si au-delà de la dernière borne
+		return -index - 1;
+	}
+
+	/**
+	 * Percentile estimé à partir d'un histogramme : c'est la borne supérieure de l'intervalle
+	 * contenant ce percentile, ou pour le dernier intervalle qui n'a pas de borne,
+	 * la moyenne des durées de cet intervalle (au moins la dernière borne).
+	 * @param counts Nombres par intervalle
+	 * @param overflowSum Somme des durées du dernier intervalle
+	 * @param percentile Percentile entre 1 et 100
+	 * @return Durée en millisecondes ou -1 si l'histogramme est vide
+	 */
+	public static long getPercentile(long[] counts, long overflowSum, int percentile) {
+		assert percentile > 0 && percentile <= 100;
+		final long count = getCount(counts);
+		if (count == 0) {
+			return -1;
+		}
+		// rang arrondi au supérieur de la valeur du percentile
+		final long rank = (count * percentile + 99) / 100;
+		long cumulativeCount = 0;
+		for (int i = 0; i < BUCKET_BOUNDS.length; i++) {
+			cumulativeCount += counts[i];
+			if (cumulativeCount >= rank) {
+				return BUCKET_BOUNDS[i];
+			}
+		}
+		// percentile au-delà de la dernière borne : on ne le confond pas avec cette borne
+		// (la somme est nulle si elle vient d'un noeud d'une version précédente)
+		final long overflowCount = counts[BUCKET_BOUNDS.length];
+		return Math.max(overflowSum / overflowCount, BUCKET_BOUNDS[BUCKET_BOUNDS.length - 1]);
+	}
+
+	public static long getCount(long[] counts) {
+		long count = 0;
+		for (final long bucketCount : counts) {
+			count += bucketCount;
+		}
+		return count;
+	}
+
+	public String getDataSourceName() {
+		return dataSourceName;
+	}
+
+	/**
+	 * @return Nombres de getConnection() par intervalle de temps d'attente
+	 */
+	public synchronized long[] getWaitTimeCounts() {
+		return waitTimeCounts.clone();
+	}
+
+	/**
+	 * @return Somme des temps d'attente de getConnection() en millisecondes
+	 */
+	public synchronized long getWaitTimesSum() {
+		return waitTimesSum;
+	}
+
+	/**
+	 * @return Somme des temps d'attente de getConnection() au-delà de la dernière borne
+	 */
+	public synchronized long getWaitTimesOverflowSum() {
+		return waitTimesOverflowSum;
+	}
+
+	/**
+	 * @return Nombres de connexions fermées par intervalle de temps de détention
+	 */
+	public synchronized long[] getHoldTimeCounts() {
+		return holdTimeCounts.clone();
+	}
+
+	/**
+	 * @return Somme des temps de détention des connexions en millisecondes
+	 */
+	public synchronized long getHoldTimesSum() {
+		return holdTimesSum;
+	}
+
+	/**
+	 * @return Somme des temps de détention des connexions au-delà de la dernière borne
+	 */
+	public synchronized long getHoldTimesOverflowSum() {
+		return holdTimesOverflowSum;
+	}
+
+	public synchronized void addWaitTime(long duration) {
+		final int bucketIndex = getBucketIndex(duration);
+		waitTimeCounts[bucketIndex]++;
+		waitTimesSum += duration;
+		if (bucketIndex == BUCKET_BOUNDS.length) {
+			waitTimesOverflowSum += duration;
+		}
+	}
+
+	public synchronized void addHoldTime(long duration) {
+		final int bucketIndex = getBucketIndex(duration);
+		holdTimeCounts[bucketIndex]++;
+		holdTimesSum += duration;
+		if (bucketIndex == BUCKET_BOUNDS.length) {
+			holdTimesOverflowSum += duration;
+		}
+	}
+
+	/**
+	 * @return Copie des histogrammes à cet instant, pour JavaInformations
+	 */
+	public synchronized ConnectionLatencies copy() {
+		return new ConnectionLatencies(this);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public String toString() {
+		return getClass().getSimpleName() + "[dataSourceName=" + getDataSourceName()
+				+ ", waitTimesCount=" + getCount(getWaitTimeCounts()) + ", holdTimesCount="
+				+ getCount(getHoldTimeCounts()) + ']';
+	}
+}
@@ -27,7 +27,6 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
-import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import javax.servlet.http.HttpServletRequest;
@@ -99,7 +98,11 @@ public class Counter implements Cloneable, Serializable { // NOPMD
 	 * mais peut être redéfini par exemple pour le counter des erreurs http ou celui des logs.
 	 */
 	static final int MAX_REQUESTS_COUNT = 10000;
-	private static final String TRANSFORM_REPLACEMENT = "\\" + TRANSFORM_REPLACEMENT_CHAR;
+	/**
+	 * Nombre de hits à partir duquel une requête d'un counter "striped"
+	 * est accumulée sans verrou, dans des cellules par thread.
+	 */
+	static final int STRIPED_HITS_THRESHOLD = 1000;
 	private static final long serialVersionUID = 6759729262180992976L;
 	private String application;
 	private boolean displayed = true;
@@ -124,7 +127,8 @@ public class Counter implements Cloneable, Serializable { // NOPMD
 	// puisque si on crée des threads alors la requête parente peut se terminer avant les threads
 	// et le contexte serait incomplet.
 	private final transient ThreadLocal<CounterRequestContext> contextThreadLocal;
-	private transient Pattern requestTransformPattern;
+	private transient RequestNameTransformer requestNameTransformer;
+	private transient boolean striped;
 
 	/**
 	 * Comparateur pour ordonner les requêtes par sommes des durées.
@@ -359,7 +363,8 @@ public class Counter implements Cloneable, Serializable { // NOPMD
 	 * @return Pattern
 	 */
 	Pattern getRequestTransformPattern() {
-		return requestTransformPattern;
+		final RequestNameTransformer transformer = requestNameTransformer;
+		return transformer != null ? transformer.getPattern() : null;
 	}
 
 	/**
@@ -368,7 +373,85 @@ public class Counter implements Cloneable, Serializable { // NOPMD
 	 * @param requestTransformPattern Pattern
 	 */
 	public void setRequestTransformPattern(Pattern requestTransformPattern) {
-		this.requestTransformPattern = requestTransformPattern;
+		setRequestNameTransformer(requestTransformPattern, isSqlNormalized());
+	}
+
+	/**
+	 * Retourne true si les requêtes sql de ce counter sont normalisées avant agrégation
+	 * (littéraux remplacés par ? et listes "in" réduites).
+	 * @return boolean
+	 */
+	boolean isSqlNormalized() {
+		final RequestNameTransformer transformer = requestNameTransformer;
+		return transformer != null && transformer.isSqlNormalized();
+	}
+
+	/**
+	 * Définit si les requêtes sql de ce counter sont normalisées avant agrégation
+	 * (littéraux remplacés par ? et listes "in" réduites, sans expression régulière).
+	 * @param sqlNormalized boolean
+	 */
+	public void setSqlNormalized(boolean sqlNormalized) {
+		setRequestNameTransformer(getRequestTransformPattern(), sqlNormalized);
+	}
+
+	private void setRequestNameTransformer(Pattern requestTransformPattern,
+			boolean sqlNormalized) {
+		if (requestTransformPattern == null && !sqlNormalized) {
+			this.requestNameTransformer = null;
+		} else {
+			this.requestNameTransformer = new RequestNameTransformer(requestTransformPattern,
+					sqlNormalized);
+		}
+	}
+
+	/**
+	 * Retourne le nombre de noms de requêtes transformés absents du cache
+	 * (0 s'il n'y a pas de transformation).
+	 * @return long
+	 */
+	public long getTransformCacheMisses() {
+		final RequestNameTransformer transformer = requestNameTransformer;
+		return transformer != null ? transformer.getCacheMisses() : 0;
+	}
+
+	/**
+	 * Retourne le nombre de noms de requêtes transformés trouvés dans le cache
+	 * (0 s'il n'y a pas de transformation).
+	 * @return long
+	 */
+	public long getTransformCacheHits() {
+		final RequestNameTransformer transformer = requestNameTransformer;
+		return transformer != null ? transformer.getCacheHits() : 0;
+	}
+
+	/**
+	 * Retourne le nombre de noms de requêtes transformés évincés du cache plein
+	 * (0 s'il n'y a pas de transformation).
+	 * @return long
+	 */
+	public long getTransformCacheEvictions() {
+		final RequestNameTransformer transformer = requestNameTransformer;
+		return transformer != null ? transformer.getCacheEvictions() : 0;
+	}
+
+	/**
+	 * Retourne true si les statistiques des requêtes les plus sollicitées de ce counter
+	 * sont accumulées sans verrou, dans des cellules par thread.
+	 * @return boolean
+	 */
+	boolean isStriped() {
+		return striped;
+	}
+
+	/**
+	 * Définit si les statistiques des requêtes les plus sollicitées de ce counter
+	 * sont accumulées sans verrou, dans des cellules par thread
+	 * (pour éviter la contention sur les serveurs avec de nombreux cœurs).
+	 * @param striped boolean
+	 */
+	public void setStriped(boolean striped) {
+		this.striped = striped;
 	}
 
 	/**
@@ -389,14 +472,30 @@ public class Counter implements Cloneable, Serializable { // NOPMD
 	}
 
 	/**
-	 * Retourne l'estimation pessimiste de l'occupation mémoire de counter
-	 * (c'est-à-dire la dernière taille sérialisée non compressée de ce counter)
+	 * Retourne l'estimation de l'occupation mémoire de ce counter dans le heap,
+	 * calculée lors du dernier enregistrement de son fichier
+	 * (le fichier, en format compact, est bien plus petit que les objets en mémoire).
 	 * @return long
 	 */
 	long getEstimatedMemorySize() {
 		return estimatedMemorySize;
 	}
 
+	private long estimateMemorySize() {
+		long result = 0;
+		for (final CounterRequest request : getRequestsWithoutClone()) {
+			result += request.getEstimatedMemorySize();
+		}
+		if (errors != null) {
+			synchronized (errors) {
+				for (final CounterError error : errors) {
+					result += error.getEstimatedMemorySize();
+				}
+			}
+		}
+		return result;
+	}
+
 	public void bindContextIncludingCpu(String requestName) {
 		bindContext(requestName, requestName, null, ThreadInformations.getCurrentThreadCpuTime(),
 				ThreadInformations.getCurrentThreadAllocatedBytes());
@@ -488,20 +587,40 @@ public class Counter implements Cloneable, Serializable { // NOPMD
 
 		final CounterRequestContext context = contextThreadLocal.get();
 		final CounterRequest request = getCounterRequestInternal(aggregateRequestName);
-		synchronized (request) {
-			// on synchronise par l'objet request pour éviter de mélanger des ajouts de hits
-			// concurrents entre plusieurs threads pour le même type de requête.
-			// Rq : on pourrait remplacer ce bloc synchronized par un synchronized
-			// sur les méthodes addHit et addChildHits dans la classe CounterRequest.
-			request.addHit(duration, cpuTime, allocatedKBytes, systemError, systemErrorStackTrace,
-					responseSize);
-
-			if (context != null) {
-				// on ajoute dans la requête parente toutes les requêtes filles du contexte
-				if (context.getParentCounter() == this) {
-					request.addChildHits(context);
+		final CounterRequestAccumulator accumulator = request.getAccumulator();
+		if (accumulator != null && systemErrorStackTrace == null && (context == null
+				|| context.getChildRequestsExecutionsByRequestId().isEmpty())) {
+			// requête très sollicitée d'un counter "striped" : pas de synchronized sur request,
+			// les statistiques sont accumulées dans la cellule du thread courant
+			// et seront réduites lors du clone de request
+			if (context != null && context.getParentCounter() == this) {
+				accumulator.addHit(duration, cpuTime, allocatedKBytes, systemError, responseSize,
+						context.getChildHits(), context.getChildDurationsSum());
+			} else {
+				accumulator.addHit(duration, cpuTime, allocatedKBytes, systemError, responseSize,
+						0, 0);
+			}
+		} else {
+			synchronized (request) {
+				// on synchronise par l'objet request pour éviter de mélanger des ajouts de hits
+				// concurrents entre plusieurs threads pour le même type de requête.
+				// Rq : on pourrait remplacer ce bloc synchronized par un synchronized
+				// sur les méthodes addHit et addChildHits dans la classe CounterRequest.
+				request.addHit(duration, cpuTime, allocatedKBytes, systemError,
+						systemErrorStackTrace, responseSize);
+
+				if (context != null) {
+					// on ajoute dans la requête parente toutes les requêtes filles du contexte
+					if (context.getParentCounter() == this) {
+						request.addChildHits(context);
+					}
+					request.addChildRequests(context.getChildRequestsExecutionsByRequestId());
+				}
+				if (striped && accumulator == null
+						&& request.getHits() >= STRIPED_HITS_THRESHOLD) {
+					// les requêtes peu sollicitées n'ont pas d'accumulateur pour économiser la mémoire
+					request.startAccumulator();
 				}
-				request.addChildRequests(context.getChildRequestsExecutionsByRequestId());
 			}
 		}
 		// perf: on fait le reste hors du synchronized sur request
@@ -578,6 +697,40 @@ public class Counter implements Cloneable, Serializable { // NOPMD
 		}
 	}
 
+	public void addResultSetFetches(String requestName, long fetchedRows, long fetchDurationMicros,
+			long fetchedBytes) {
+		// appelée à la fin d'un ResultSet, après addRequest pour l'exécution de la requête sql
+		final String aggregateRequestName = getAggregateRequestName(requestName);
+		final CounterRequest request = requests.get(aggregateRequestName);
+		if (request != null) {
+			synchronized (request) {
+				request.addResultSetFetches(fetchedRows, fetchDurationMicros, fetchedBytes);
+			}
+		}
+	}
+
+	public void addBatchExecution(String requestName, long batchSize, long duration) {
+		// appelée après addRequest pour l'exécution du batch
+		final String aggregateRequestName = getAggregateRequestName(requestName);
+		final CounterRequest request = requests.get(aggregateRequestName);
+		if (request != null) {
+			synchronized (request) {
+				request.addBatchExecution(batchSize, duration);
+			}
+		}
+	}
+
+	public void addRequestShape(String requestName) {
+		// la forme est le nom de la requête avant agrégation
+		final String aggregateRequestName = getAggregateRequestName(requestName);
+		final CounterRequest request = requests.get(aggregateRequestName);
+		if (request != null) {
+			synchronized (request) {
+				request.addShape(requestName.hashCode());
+			}
+		}
+	}
+
 	/**
 	 * Retourne true si ce counter est un counter d'error
 	 * (c'est-à-dire si son nom est "error", "log" ou "job").
@@ -621,24 +774,19 @@ public class Counter implements Cloneable, Serializable { // NOPMD
 	}
 
 	private String getAggregateRequestName(String requestName) {
-		final String aggregateRequestName;
-		if (requestTransformPattern == null) {
-			aggregateRequestName = requestName;
-		} else {
-			// ce pattern optionnel permet de transformer la description de la requête
-			// pour supprimer des parties variables (identifiant d'objet par exemple)
-			// et pour permettre l'agrégation sur cette requête
-			final Matcher matcher = requestTransformPattern.matcher(requestName);
-			try {
-				aggregateRequestName = matcher.replaceAll(TRANSFORM_REPLACEMENT);
-			} catch (final StackOverflowError e) {
-				// regexp can throw StackOverflowError for (A|B)*
-				// see https://github.com/javamelody/javamelody/issues/480
-				LOG.warn(e.toString(), e);
-				return requestName;
-			}
+		final RequestNameTransformer transformer = requestNameTransformer;
+		if (transformer == null) {
+			return requestName;
+		}
+		try {
+			// le nom transformé est gardé en cache pour ne pas évaluer le pattern à chaque hit
+			return transformer.transform(requestName);
+		} catch (final StackOverflowError e) {
+			// regexp can throw StackOverflowError for (A|B)*
+			// see https://github.com/javamelody/javamelody/issues/480
+			LOG.warn(e.toString(), e);
+			return requestName;
 		}
-		return aggregateRequestName;
 	}
 
 	void addRequestsAndErrors(Counter newCounter) {
@@ -651,7 +799,7 @@ public class Counter implements Cloneable, Serializable { // NOPMD
 		// Rq: cette méthode est thread-safe comme les autres méthodes dans cette classe,
 		// bien que cela ne soit à priori pas nécessaire telle qu'elle est utilisée dans CollectorServlet
 		for (final CounterRequest newRequest : newCounter.getRequests()) {
-			if (newRequest.getHits() > 0) {
+			if (newRequest.getHits() > 0 || newRequest.hasStatisticsWithoutHits()) {
 				final CounterRequest request = getCounterRequestInternal(newRequest.getName());
 				synchronized (request) {
 					request.addHits(newRequest);
@@ -659,6 +807,14 @@ public class Counter implements Cloneable, Serializable { // NOPMD
 			}
 		}
 
+		removeRequestsIfOverflow();
+
+		if (isErrorCounter()) {
+			addErrors(newCounter.getErrors());
+		}
+	}
+
+	void removeRequestsIfOverflow() {
 		int size = requests.size();
 		final int maxRequests = getMaxRequestsCount();
 		if (size > maxRequests) {
@@ -679,10 +835,6 @@ public class Counter implements Cloneable, Serializable { // NOPMD
 				}
 			}
 		}
-
-		if (isErrorCounter()) {
-			addErrors(newCounter.getErrors());
-		}
 	}
 
 	void addHits(CounterRequest counterRequest) {
@@ -696,6 +848,11 @@ public class Counter implements Cloneable, Serializable { // NOPMD
 		}
 	}
 
+	// utilisé pour la lecture d'un fichier de counter (CounterStorageFormat)
+	void putRequest(CounterRequest request) {
+		requests.put(request.getName(), request);
+	}
+
 	public void addErrors(List<CounterError> counterErrorList) {
 		assert errorCounter;
 		if (counterErrorList.isEmpty()) {
@@ -799,6 +956,14 @@ public class Counter implements Cloneable, Serializable { // NOPMD
 		return requests.size();
 	}
 
+	/**
+	 * @return Liste des requêtes sans clone, seulement pour un counter qui n'est plus modifié
+	 * 	(par exemple le clone enregistré dans writeToFile)
+	 */
+	List<CounterRequest> getRequestsWithoutClone() {
+		return new ArrayList<>(requests.values());
+	}
+
 	/**
 	 * @return Liste des requêtes non triées,
 	 * 	la liste et ses objets peuvent être utilisés sans synchronized et sans crainte d'accès concurrents.
@@ -909,13 +1074,7 @@ public class Counter implements Cloneable, Serializable { // NOPMD
 	//CHECKSTYLE:OFF
 	public Counter clone() { // NOPMD
 		//CHECKSTYLE:ON
-		final Counter clone = new Counter(getName(), getStorageName(), getIconName(),
-				getChildCounterName(), new ThreadLocal<CounterRequestContext>());
-		clone.application = getApplication();
-		clone.startDate = getStartDate();
-		clone.maxRequestsCount = getMaxRequestsCount();
-		clone.displayed = isDisplayed();
-		clone.requestTransformPattern = getRequestTransformPattern();
+		final Counter clone = cloneWithoutRequests();
 		// on ne copie pas rootCurrentContextsByThreadId car on ne fournit pas les requêtes en cours
 		// qui sont très rapidement obsolètes au serveur de collecte (et sinon cela poserait la question
 		// des clones de parentCounter, de l'agrégation, de la synchro d'horloge pour la durée
@@ -931,6 +1090,37 @@ public class Counter implements Cloneable, Serializable { // NOPMD
 		return clone;
 	}
 
+	/**
+	 * Crée un counter avec les mêmes propriétés que celui-ci mais avec seulement les requêtes
+	 * et les erreurs en paramètres, pour envoyer un delta à un serveur de collecte.
+	 * @param deltaRequests Requêtes (non clonées)
+	 * @param deltaErrors Erreurs, pour le counter des erreurs
+	 * @return Counter
+	 */
+	Counter createDelta(List<CounterRequest> deltaRequests, List<CounterError> deltaErrors) {
+		final Counter delta = cloneWithoutRequests();
+		for (final CounterRequest request : deltaRequests) {
+			delta.requests.put(request.getName(), request);
+		}
+		if (errors != null) {
+			delta.errors.addAll(deltaErrors);
+		}
+		return delta;
+	}
+
+	private Counter cloneWithoutRequests() {
+		final Counter clone = new Counter(getName(), getStorageName(), getIconName(),
+				getChildCounterName(), new ThreadLocal<CounterRequestContext>());
+		clone.application = getApplication();
+		clone.startDate = getStartDate();
+		clone.maxRequestsCount = getMaxRequestsCount();
+		clone.displayed = isDisplayed();
+		// le transformer est partagé avec son cache, il est thread-safe
+		clone.requestNameTransformer = requestNameTransformer;
+		clone.striped = isStriped();
+		return clone;
+	}
+
 	/**
 	 * Enregistre le counter.
 	 * @throws IOException e
@@ -941,7 +1131,8 @@ public class Counter implements Cloneable, Serializable { // NOPMD
 		// on n'écrit pas rootCurrentContextsByThreadId en fichier
 		// puisque ces données ne seront plus vraies dans quelques secondes (clear pour être sûr ici)
 		counter.rootCurrentContextsByThreadId.clear();
-		estimatedMemorySize = new CounterStorage(counter).writeToFile();
+		new CounterStorage(counter).writeToFile();
+		estimatedMemorySize = counter.estimateMemorySize();
 	}
 
 	/**
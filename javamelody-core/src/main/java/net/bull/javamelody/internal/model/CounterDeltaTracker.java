@@ -0,0 +1,264 @@
+/*
+ * Copyright 2008-2019 by Emeric Vernat
+ *
+ *     This file is part of Java Melody.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.bull.javamelody.internal.model;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Calcul dans une application monitorée des deltas de counters à envoyer à chaque serveur de collecte.
+ *
+ * Pour chaque serveur de collecte, on garde les counters (clonés) des deux dernières générations envoyées.
+ * Le serveur de collecte acquitte la génération reçue lors de la collecte suivante et on lui envoie alors
+ * seulement les requêtes dont les statistiques ont changé depuis cette génération, avec les nouvelles erreurs.
+ * Si la dernière réponse a été perdue, le serveur de collecte acquitte encore la génération précédente
+ * et le delta est calculé depuis celle-ci. Si le serveur de collecte est inconnu (premier appel ou
+ * redémarrage de l'application) ou si la génération acquittée n'est ni la dernière ni la précédente
+ * (plusieurs réponses perdues, redémarrage du serveur de collecte), les counters sont envoyés complets.
+ * @author Emeric Vernat
+ */
+class CounterDeltaTracker {
+	// nombre maximum de serveurs de collecte suivis, pour borner la mémoire utilisée
+	private static final int MAX_COLLECTOR_SERVERS = 10;
+
+	@SuppressWarnings("serial")
+	private final Map<String, CollectorServerGenerations> generationsByCollectorId = new LinkedHashMap<String, CollectorServerGenerations>() {
+		@Override
+		protected boolean removeEldestEntry(
+				Map.Entry<String, CollectorServerGenerations> eldest) {
+			return size() > MAX_COLLECTOR_SERVERS;
+		}
+	};
+	private long lastGeneration;
+
+	/**
+	 * Counters envoyés pour une génération.
+	 */
+	private static final class Snapshot {
+		private final long generation;
+		private final Map<String, Map<String, CounterRequest>> requestsByCounterName = new HashMap<>();
+		private final Map<String, List<CounterError>> errorsByCounterName = new HashMap<>();
+		private long estimatedMemorySize;
+
+		Snapshot(long generation, List<Counter> counters) {
+			super();
+			this.generation = generation;
+			for (final Counter counter : counters) {
+				final Map<String, CounterRequest> requestsByName = new HashMap<>();
+				for (final CounterRequest request : counter.getRequestsWithoutClone()) {
+					requestsByName.put(request.getName(), request);
+					estimatedMemorySize += request.getEstimatedMemorySize();
+				}
+				requestsByCounterName.put(counter.getName(), requestsByName);
+				if (counter.isErrorCounter()) {
+					final List<CounterError> errors = counter.getErrors();
+					errorsByCounterName.put(counter.getName(), errors);
+					for (final CounterError error : errors) {
+						estimatedMemorySize += error.getEstimatedMemorySize();
+					}
+				}
+			}
+		}
+
+		long getGeneration() {
+			return generation;
+		}
+
+		long getEstimatedMemorySize() {
+			return estimatedMemorySize;
+		}
+
+		Map<String, CounterRequest> getRequestsByName(String counterName) {
+			return requestsByCounterName.get(counterName);
+		}
+
+		List<CounterError> getErrors(String counterName) {
+			return errorsByCounterName.get(counterName);
+		}
+	}
+
+	/**
+	 * Deux dernières générations envoyées à un serveur de collecte.
+	 */
+	private static final class CollectorServerGenerations {
+		private Snapshot previous;
+		private Snapshot latest;
+
+		Snapshot getSnapshot(long acknowledgedGeneration) {
+			if (latest != null && latest.getGeneration() == acknowledgedGeneration) {
+				return latest;
+			}
+			if (previous != null && previous.getGeneration() == acknowledgedGeneration) {
+				// la dernière réponse n'a pas été reçue par le serveur de collecte
+				return previous;
+			}
+			// sinon, la génération acquittée est inconnue (plusieurs réponses perdues ou redémarrage
+			// du serveur de collecte) : un delta depuis une génération que le serveur de collecte
+			// n'a pas reçue perdrait des hits, donc on envoie les counters complets
+			return null;
+		}
+
+		void add(Snapshot snapshot) {
+			previous = latest;
+			latest = snapshot;
+		}
+
+		long getEstimatedMemorySize() {
+			long result = 0;
+			if (previous != null) {
+				result += previous.getEstimatedMemorySize();
+			}
+			if (latest != null) {
+				result += latest.getEstimatedMemorySize();
+			}
+			return result;
+		}
+	}
+
+	/**
+	 * Retourne les counters en delta pour un serveur de collecte, suivis de la génération.
+	 * @param counters Counters de l'application (non clonés)
+	 * @param collectorId Identifiant du serveur de collecte
+	 * @param acknowledgedGeneration Génération acquittée par le serveur de collecte (0 si aucune)
+	 * @return Liste de Counter suivie d'un {@link CollectGeneration}
+	 */
+	synchronized List<Serializable> getDelta(List<Counter> counters, String collectorId,
+			long acknowledgedGeneration) {
+		assert collectorId != null;
+		// on clone les counters pour ne pas avoir de problèmes de concurrences d'accès,
+		// et ces clones sont gardés comme génération de référence pour le prochain delta
+		final List<Counter> clonedCounters = new ArrayList<>(counters.size());
+		for (final Counter counter : counters) {
+			clonedCounters.add(counter.clone());
+		}
+		lastGeneration++;
+		final Snapshot snapshot = new Snapshot(lastGeneration, clonedCounters);
+
+		CollectorServerGenerations generations = generationsByCollectorId.get(collectorId);
+		final Snapshot baseSnapshot;
+		if (generations == null) {
+			generations = new CollectorServerGenerations();
+			generationsByCollectorId.put(collectorId, generations);
+			baseSnapshot = null;
+		} else {
+			baseSnapshot = generations.getSnapshot(acknowledgedGeneration);
+		}
+		generations.add(snapshot);
+
+		final List<Serializable> result = new ArrayList<>(clonedCounters.size() + 1);
+		for (final Counter clonedCounter : clonedCounters) {
+			if (baseSnapshot == null) {
+				result.add(clonedCounter);
+			} else {
+				result.add(createDelta(clonedCounter, baseSnapshot));
+			}
+		}
+		result.add(new CollectGeneration(lastGeneration, baseSnapshot == null));
+
+		// comme les counters ne sont plus vidés après chaque collecte,
+		// on borne ici le nombre de requêtes dans l'application monitorée
+		// (les requêtes supprimées ont déjà été incluses dans cette génération)
+		for (final Counter counter : counters) {
+			counter.removeRequestsIfOverflow();
+		}
+		return result;
+	}
+
+	synchronized boolean isUsed() {
+		return !generationsByCollectorId.isEmpty();
+	}
+
+	/**
+	 * @return Estimation de la mémoire des counters gardés pour les deltas des serveurs de collecte
+	 */
+	synchronized long getEstimatedMemorySize() {
+		long result = 0;
+		for (final CollectorServerGenerations generations : generationsByCollectorId.values()) {
+			result += generations.getEstimatedMemorySize();
+		}
+		return result;
+	}
+
+	private static Counter createDelta(Counter counter, Snapshot baseSnapshot) {
+		final Map<String, CounterRequest> baseRequestsByName = baseSnapshot
+				.getRequestsByName(counter.getName());
+		final List<CounterRequest> requests = counter.getRequestsWithoutClone();
+		final List<CounterRequest> deltaRequests = new ArrayList<>();
+		for (final CounterRequest request : requests) {
+			final CounterRequest baseRequest;
+			if (baseRequestsByName == null) {
+				baseRequest = null;
+			} else {
+				baseRequest = baseRequestsByName.get(request.getName());
+			}
+			if (baseRequest == null || !request.isSameCreation(baseRequest)
+					|| request.getHits() < baseRequest.getHits()) {
+				// nouvelle requête, requête supprimée (removeRequestsIfOverflow) puis recréée,
+				// ou requête vidée depuis (purge des données par exemple)
+				deltaRequests.add(request);
+			} else if (request.hasChangedSince(baseRequest)) {
+				// le snapshot garde la requête non modifiée, le delta en est un clone
+				final CounterRequest deltaRequest = request.clone();
+				deltaRequest.removeHits(baseRequest);
+				deltaRequests.add(deltaRequest);
+			}
+			// sinon la requête n'a pas changé et n'est pas envoyée
+		}
+		final List<CounterError> deltaErrors;
+		if (counter.isErrorCounter()) {
+			deltaErrors = getNewErrors(counter.getErrors(),
+					baseSnapshot.getErrors(counter.getName()));
+		} else {
+			deltaErrors = null;
+		}
+		return counter.createDelta(deltaRequests, deltaErrors);
+	}
+
+	private static List<CounterError> getNewErrors(List<CounterError> errors,
+			List<CounterError> baseErrors) {
+		if (baseErrors == null || baseErrors.isEmpty()) {
+			return errors;
+		}
+		// les erreurs sont triées par date, les nouvelles sont après la dernière erreur déjà envoyée
+		// (en comptant celles ayant la même date que cette dernière)
+		final long lastTime = baseErrors.get(baseErrors.size() - 1).getTime();
+		int sameTimeCount = 0;
+		for (final CounterError baseError : baseErrors) {
+			if (baseError.getTime() == lastTime) {
+				sameTimeCount++;
+			}
+		}
+		final List<CounterError> result = new ArrayList<>();
+		for (final CounterError error : errors) {
+			if (error.getTime() > lastTime) {
+				result.add(error);
+			} else if (error.getTime() == lastTime) {
+				if (sameTimeCount > 0) {
+					sameTimeCount--;
+				} else {
+					result.add(error);
+				}
+			}
+		}
+		return result;
+	}
+}
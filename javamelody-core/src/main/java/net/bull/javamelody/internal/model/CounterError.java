@@ -48,6 +48,18 @@ public class CounterError implements Serializable {
 	private final String message;
 	private final String stackTrace;
 
+	// utilisé pour la lecture d'un fichier de counter (CounterStorageFormat)
+	CounterError(long time, String remoteUser, String httpRequest, String message,
+			String stackTrace) {
+		super();
+		assert message != null;
+		this.time = time;
+		this.remoteUser = remoteUser;
+		this.httpRequest = httpRequest;
+		this.message = message;
+		this.stackTrace = stackTrace;
+	}
+
 	public CounterError(String message, String stackTrace) {
 		super();
 		assert message != null;
@@ -116,6 +128,17 @@ public class CounterError implements Serializable {
 		return new Date(time);
 	}
 
+	/**
+	 * @return Estimation de l'occupation mémoire de cette erreur dans le heap, en octets
+	 * (y compris le noeud de la liste des erreurs du counter)
+	 */
+	long getEstimatedMemorySize() {
+		return 64 + CounterRequest.getEstimatedMemorySize(remoteUser)
+				+ CounterRequest.getEstimatedMemorySize(httpRequest)
+				+ CounterRequest.getEstimatedMemorySize(message)
+				+ CounterRequest.getEstimatedMemorySize(stackTrace);
+	}
+
 	public String getRemoteUser() {
 		return remoteUser;
 	}
@@ -23,6 +23,9 @@ import java.security.NoSuchAlgorithmException;
 import java.util.Collections;
 import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Données statistiques d'une requête identifiée, hors paramètres dynamiques comme un identifiant,
@@ -36,9 +39,24 @@ import java.util.Map;
 public class CounterRequest implements Cloneable, Serializable {
 	private static final long serialVersionUID = -4301825473892026959L;
 	private static final char[] HEX_ARRAY = "0123456789abcdef".toCharArray();
+	private static final int MAX_CACHED_IDS_COUNT = 10000;
+	private static final int MAX_CACHED_NAME_LENGTH = 2000;
+	// ids déjà calculés par nom de counter puis par nom de requête, pour ne pas recalculer le SHA-1
+	// à chaque création d'une requête de même nom (après un clear du counter par exemple)
+	private static final ConcurrentMap<String, ConcurrentMap<String, String>> IDS_BY_COUNTER_NAME = new ConcurrentHashMap<>();
+	// un MessageDigest par thread, car MessageDigest.getInstance est coûteux
+	// (pas de sous-classe de ThreadLocal pour ne pas retenir le classloader de la webapp)
+	private static final ThreadLocal<MessageDigest> MESSAGE_DIGEST = new ThreadLocal<>();
+	// nombre de statistiques de getStatistics et setStatistics, et index du maximum
+	static final int STATISTICS_COUNT = 13;
+	static final int MAXIMUM_STATISTIC = 3;
+	private static final AtomicLong CREATIONS_COUNT = new AtomicLong();
 
 	private final String name;
 	private final String id;
+	// numéro de création, gardé par les clones, pour distinguer une requête supprimée
+	// puis recréée avec le même nom (voir CounterDeltaTracker)
+	private final transient long creation = CREATIONS_COUNT.incrementAndGet();
 	// tous ces champs de type long sont initialisés à 0,
 	// il peut être supposé que le type long est suffisant
 	// sans dépassement de capacité (max : 2^63-1 soit un peu moins de 10^19)
@@ -53,11 +71,19 @@ public class CounterRequest implements Cloneable, Serializable {
 	private long responseSizesSum;
 	private long childHits;
 	private long childDurationsSum;
+	// lignes, temps de next() en microsecondes et octets estimés des ResultSet (requêtes sql)
+	private long fetchedRowsSum;
+	private long fetchDurationsSum;
+	private long fetchedBytesSum;
 	private String stackTrace;
 	@SuppressWarnings("all")
 	private Map<String, Long> childRequestsExecutionsByRequestId;
 
 	private CounterRequestRumData rumData;
+	// tailles des batchs et formes de la requête, seulement pour certaines requêtes sql
+	private CounterRequestSqlData sqlData;
+	// accumulateur sans verrou, seulement pour les requêtes très sollicitées d'un counter "striped"
+	private transient volatile CounterRequestAccumulator accumulator;
 
 	/**
 	 * Interface du contexte d'une requête en cours.
@@ -105,6 +131,10 @@ public class CounterRequest implements Cloneable, Serializable {
 	 * @return Nombre d'exécution de cette requête
 	 */
 	public long getHits() {
+		final CounterRequestAccumulator myAccumulator = accumulator;
+		if (myAccumulator != null) {
+			return hits + myAccumulator.getHits();
+		}
 		return hits;
 	}
 
@@ -112,22 +142,23 @@ public class CounterRequest implements Cloneable, Serializable {
 	 * @return Number of system errors
 	 */
 	public long getSystemErrors() {
-		return systemErrors;
+		return reduced().systemErrors;
 	}
 
 	/**
 	 * @return Somme des temps d'exécution de cette requête
 	 */
 	public long getDurationsSum() {
-		return durationsSum;
+		return reduced().durationsSum;
 	}
 
 	/**
 	 * @return Moyenne des temps d'exécution
 	 */
 	public int getMean() {
-		if (hits > 0) {
-			return (int) (durationsSum / hits);
+		final CounterRequest reduced = reduced();
+		if (reduced.hits > 0) {
+			return (int) (reduced.durationsSum / reduced.hits);
 		}
 		return -1;
 	}
@@ -166,10 +197,11 @@ public class CounterRequest implements Cloneable, Serializable {
 		//      https://github.com/apache/sirona/blob/trunk/api/src/main/java/org/apache/sirona/counters/OptimizedStatistics.java
 		//      https://en.wikipedia.org/wiki/Central_moment
 
-		if (hits > 0) {
-			return (int) Math
-					.sqrt((durationsSquareSum - (double) durationsSum * durationsSum / hits)
-							/ (hits - 1));
+		final CounterRequest reduced = reduced();
+		if (reduced.hits > 0) {
+			return (int) Math.sqrt((reduced.durationsSquareSum
+					- (double) reduced.durationsSum * reduced.durationsSum / reduced.hits)
+					/ (reduced.hits - 1));
 		}
 		return -1;
 	}
@@ -178,22 +210,23 @@ public class CounterRequest implements Cloneable, Serializable {
 	 * @return Maximum des temps d'exécution de cette requête
 	 */
 	public long getMaximum() {
-		return maximum;
+		return reduced().maximum;
 	}
 
 	/**
 	 * @return Somme temps cpu pour l'exécution de cette requête
 	 */
 	public long getCpuTimeSum() {
-		return cpuTimeSum;
+		return reduced().cpuTimeSum;
 	}
 
 	/**
 	 * @return Moyenne des temps cpu pour l'exécution de cette requête
 	 */
 	public int getCpuTimeMean() {
-		if (hits > 0) {
-			return (int) (cpuTimeSum / hits);
+		final CounterRequest reduced = reduced();
+		if (reduced.hits > 0) {
+			return (int) (reduced.cpuTimeSum / reduced.hits);
 		}
 		return -1;
 	}
@@ -202,8 +235,9 @@ public class CounterRequest implements Cloneable, Serializable {
 	 * @return Moyenne des Ko alloués pour l'exécution de cette requête
 	 */
 	public int getAllocatedKBytesMean() {
-		if (hits > 0 && allocatedKBytesSum >= 0) {
-			return (int) (allocatedKBytesSum / hits);
+		final CounterRequest reduced = reduced();
+		if (reduced.hits > 0 && reduced.allocatedKBytesSum >= 0) {
+			return (int) (reduced.allocatedKBytesSum / reduced.hits);
 		}
 		return -1;
 	}
@@ -215,8 +249,9 @@ public class CounterRequest implements Cloneable, Serializable {
 		// pourcentage d'erreurs systèmes entre 0 et 100,
 		// le type de retour est float pour être mesurable
 		// car il est probable que le pourcentage soit inférieur à 1%
-		if (hits > 0) {
-			return Math.min(100f * systemErrors / hits, 100f);
+		final CounterRequest reduced = reduced();
+		if (reduced.hits > 0) {
+			return Math.min(100f * reduced.systemErrors / reduced.hits, 100f);
 		}
 		return 0;
 	}
@@ -225,8 +260,9 @@ public class CounterRequest implements Cloneable, Serializable {
 	 * @return Moyenne des tailles des réponses (http en particulier)
 	 */
 	public long getResponseSizeMean() {
-		if (hits > 0) {
-			return responseSizesSum / hits;
+		final CounterRequest reduced = reduced();
+		if (reduced.hits > 0) {
+			return reduced.responseSizesSum / reduced.hits;
 		}
 		return -1L;
 	}
@@ -235,15 +271,17 @@ public class CounterRequest implements Cloneable, Serializable {
 	 * @return Booléen selon qu'il existe des requêtes filles (sql en particulier)
 	 */
 	public boolean hasChildHits() {
-		return childHits > 0;
+		final CounterRequestAccumulator myAccumulator = accumulator;
+		return childHits > 0 || myAccumulator != null && myAccumulator.getChildHits() > 0;
 	}
 
 	/**
 	 * @return Nombre moyen d'exécutions des requêtes filles (sql en particulier)
 	 */
 	public int getChildHitsMean() {
-		if (hits > 0) {
-			return (int) (childHits / hits);
+		final CounterRequest reduced = reduced();
+		if (reduced.hits > 0) {
+			return (int) (reduced.childHits / reduced.hits);
 		}
 		return -1;
 	}
@@ -252,12 +290,53 @@ public class CounterRequest implements Cloneable, Serializable {
 	 * @return Moyenne des temps d'exécutions des requêtes filles (sql en particulier)
 	 */
 	public int getChildDurationsMean() {
-		if (hits > 0) {
-			return (int) (childDurationsSum / hits);
+		final CounterRequest reduced = reduced();
+		if (reduced.hits > 0) {
+			return (int) (reduced.childDurationsSum / reduced.hits);
 		}
 		return -1;
 	}
 
+	/**
+	 * @return Booléen selon que des lignes de ResultSet ont été lues (sql en particulier)
+	 */
+	public boolean hasFetchedRows() {
+		return fetchedRowsSum > 0 || fetchDurationsSum > 0;
+	}
+
+	/**
+	 * @return Nombre moyen de lignes lues dans les ResultSet par exécution
+	 */
+	public long getFetchedRowsMean() {
+		final CounterRequest reduced = reduced();
+		if (reduced.hits > 0) {
+			return reduced.fetchedRowsSum / reduced.hits;
+		}
+		return -1L;
+	}
+
+	/**
+	 * @return Temps moyen passé dans ResultSet.next() par exécution, en millisecondes
+	 */
+	public float getFetchDurationsMean() {
+		final CounterRequest reduced = reduced();
+		if (reduced.hits > 0) {
+			return reduced.fetchDurationsSum / 1000f / reduced.hits;
+		}
+		return -1f;
+	}
+
+	/**
+	 * @return Moyenne des octets estimés lus dans les ResultSet par exécution
+	 */
+	public long getFetchedBytesMean() {
+		final CounterRequest reduced = reduced();
+		if (reduced.hits > 0) {
+			return reduced.fetchedBytesSum / reduced.hits;
+		}
+		return -1L;
+	}
+
 	/**
 	 * @return Map des nombres d'exécutions par requêtes filles
 	 */
@@ -270,6 +349,40 @@ public class CounterRequest implements Cloneable, Serializable {
 		}
 	}
 
+	/**
+	 * @return Estimation de l'occupation mémoire de cette requête dans le heap, en octets
+	 * (objets et chaînes, y compris l'entrée dans la map du counter)
+	 */
+	long getEstimatedMemorySize() {
+		// en-têtes et champs des objets, en supposant des références compressées (heap < 32 Go)
+		long result = 160 + getEstimatedMemorySize(name) + getEstimatedMemorySize(id)
+				+ getEstimatedMemorySize(stackTrace);
+		if (childRequestsExecutionsByRequestId != null) {
+			synchronized (this) {
+				// map et tableau, puis pour chaque entrée : entrée, Long et id de la requête fille
+				result += 64 + childRequestsExecutionsByRequestId.size() * 48L;
+				for (final String childRequestId : childRequestsExecutionsByRequestId.keySet()) {
+					result += getEstimatedMemorySize(childRequestId);
+				}
+			}
+		}
+		if (rumData != null) {
+			result += 48;
+		}
+		if (sqlData != null) {
+			result += sqlData.getEstimatedMemorySize();
+		}
+		return result;
+	}
+
+	static long getEstimatedMemorySize(String string) {
+		if (string == null) {
+			return 0;
+		}
+		// objet String et tableau de char (2 octets par caractère avant java 9)
+		return 40 + 2L * string.length();
+	}
+
 	public boolean containsChildRequest(String requestId) {
 		if (childRequestsExecutionsByRequestId == null) {
 			return false;
@@ -290,6 +403,10 @@ public class CounterRequest implements Cloneable, Serializable {
 		return rumData;
 	}
 
+	public CounterRequestSqlData getSqlData() {
+		return sqlData;
+	}
+
 	void addHit(long duration, int cpuTime, int allocatedKBytes, boolean systemError,
 			String systemErrorStackTrace, long responseSize) {
 		hits++;
@@ -309,6 +426,104 @@ public class CounterRequest implements Cloneable, Serializable {
 		responseSizesSum += responseSize;
 	}
 
+	void addResultSetFetches(long fetchedRows, long fetchDurationMicros, long fetchedBytes) {
+		fetchedRowsSum += fetchedRows;
+		fetchDurationsSum += fetchDurationMicros;
+		fetchedBytesSum += fetchedBytes;
+	}
+
+	void addBatchExecution(long batchSize, long duration) {
+		if (sqlData == null) {
+			sqlData = new CounterRequestSqlData();
+		}
+		sqlData.addBatch(batchSize, duration);
+	}
+
+	void addShape(int shape) {
+		if (sqlData == null) {
+			sqlData = new CounterRequestSqlData();
+		}
+		sqlData.addShape(shape);
+	}
+
+	CounterRequestAccumulator getAccumulator() {
+		return accumulator;
+	}
+
+	// requête dont les cellules de l'accumulateur sont réduites, pour que les statistiques lues
+	// sur une requête d'un counter "striped" soient cohérentes avec getHits() (clone seulement
+	// s'il y a un accumulateur, c'est-à-dire pas pour les clones utilisés par les rapports)
+	private CounterRequest reduced() {
+		if (accumulator == null) {
+			return this;
+		}
+		return clone();
+	}
+
+	void startAccumulator() {
+		if (accumulator == null) {
+			accumulator = new CounterRequestAccumulator();
+		}
+	}
+
+	private void addAccumulatedHits(CounterRequestAccumulator myAccumulator) {
+		// réduction des cellules de l'accumulateur dans ce clone
+		hits += myAccumulator.getHits();
+		durationsSum += myAccumulator.getDurationsSum();
+		durationsSquareSum += myAccumulator.getDurationsSquareSum();
+		maximum = Math.max(maximum, myAccumulator.getMaximum());
+		cpuTimeSum += myAccumulator.getCpuTimeSum();
+		allocatedKBytesSum += myAccumulator.getAllocatedKBytesSum();
+		systemErrors += myAccumulator.getSystemErrors();
+		responseSizesSum += myAccumulator.getResponseSizesSum();
+		childHits += myAccumulator.getChildHits();
+		childDurationsSum += myAccumulator.getChildDurationsSum();
+	}
+
+	// statistiques dans l'ordre des champs, pour CounterStorageFormat
+	void getStatistics(long[] statistics) {
+		assert accumulator == null;
+		statistics[0] = hits;
+		statistics[1] = durationsSum;
+		statistics[2] = durationsSquareSum;
+		statistics[3] = maximum;
+		statistics[4] = cpuTimeSum;
+		statistics[5] = allocatedKBytesSum;
+		statistics[6] = systemErrors;
+		statistics[7] = responseSizesSum;
+		statistics[8] = childHits;
+		statistics[9] = childDurationsSum;
+		statistics[10] = fetchedRowsSum;
+		statistics[11] = fetchDurationsSum;
+		statistics[12] = fetchedBytesSum;
+	}
+
+	void setStatistics(long[] statistics, String systemErrorStackTrace,
+			Map<String, Long> childRequests, CounterRequestRumData requestRumData,
+			CounterRequestSqlData requestSqlData) {
+		hits = statistics[0];
+		durationsSum = statistics[1];
+		durationsSquareSum = statistics[2];
+		maximum = statistics[3];
+		cpuTimeSum = statistics[4];
+		allocatedKBytesSum = statistics[5];
+		systemErrors = statistics[6];
+		responseSizesSum = statistics[7];
+		childHits = statistics[8];
+		childDurationsSum = statistics[9];
+		fetchedRowsSum = statistics[10];
+		fetchDurationsSum = statistics[11];
+		fetchedBytesSum = statistics[12];
+		stackTrace = systemErrorStackTrace;
+		if (childRequests != null && !childRequests.isEmpty()) {
+			childRequestsExecutionsByRequestId = childRequests;
+		} else {
+			childRequestsExecutionsByRequestId = null;
+		}
+		rumData = requestRumData;
+		sqlData = requestSqlData;
+	}
+
 	void addChildHits(ICounterRequestContext context) {
 		childHits += context.getChildHits();
 		childDurationsSum += context.getChildDurationsSum();
@@ -361,6 +576,11 @@ public class CounterRequest implements Cloneable, Serializable {
 			}
 			addChildRequests(request.childRequestsExecutionsByRequestId);
 		}
+		// les lectures d'un ResultSet peuvent être comptées après le hit de la requête,
+		// donc elles sont ajoutées même dans un delta sans nouveau hit
+		fetchedRowsSum += request.fetchedRowsSum;
+		fetchDurationsSum += request.fetchDurationsSum;
+		fetchedBytesSum += request.fetchedBytesSum;
 		if (request.rumData != null) {
 			if (rumData != null) {
 				rumData.addHits(request.rumData);
@@ -368,6 +588,59 @@ public class CounterRequest implements Cloneable, Serializable {
 				rumData = request.rumData.clone();
 			}
 		}
+		if (request.sqlData != null) {
+			if (sqlData != null) {
+				sqlData.addHits(request.sqlData);
+			} else {
+				sqlData = request.sqlData.clone();
+			}
+		}
+	}
+
+	/**
+	 * Indique si les statistiques ont changé par rapport à une version précédente de la requête,
+	 * y compris sans nouveau hit (données RUM, lectures de ResultSet, batchs et formes sql).
+	 * @param request Version précédente de cette requête (clonée)
+	 * @return boolean
+	 */
+	boolean hasChangedSince(CounterRequest request) {
+		assert request != null;
+		if (hits != request.hits || fetchedRowsSum != request.fetchedRowsSum
+				|| fetchDurationsSum != request.fetchDurationsSum
+				|| fetchedBytesSum != request.fetchedBytesSum) {
+			return true;
+		}
+		final long rumHits = rumData != null ? rumData.getHits() : 0;
+		final long previousRumHits = request.rumData != null ? request.rumData.getHits() : 0;
+		if (rumHits != previousRumHits) {
+			return true;
+		}
+		if (sqlData == null) {
+			return request.sqlData != null;
+		}
+		return request.sqlData == null
+				|| sqlData.getBatchesCount() != request.sqlData.getBatchesCount()
+				|| sqlData.getShapesCount() != request.sqlData.getShapesCount();
+	}
+
+	/**
+	 * @param request Autre requête ou clone
+	 * @return true si la requête est un clone de la même création que cette requête,
+	 * et non une requête de même nom supprimée puis recréée depuis
+	 */
+	boolean isSameCreation(CounterRequest request) {
+		return creation == request.creation;
+	}
+
+	/**
+	 * @return true si la requête n'a pas de hit mais a d'autres statistiques, comme dans un delta
+	 * de {@link CounterDeltaTracker} après une donnée RUM ou une lecture de ResultSet
+	 */
+	boolean hasStatisticsWithoutHits() {
+		return hits == 0 && (fetchedRowsSum != 0 || fetchDurationsSum != 0 || fetchedBytesSum != 0
+				|| rumData != null && rumData.getHits() != 0
+				|| sqlData != null && (sqlData.getBatchesCount() != 0
+						|| sqlData.getShapesCount() != 0));
 	}
 
 	void removeHits(CounterRequest request) {
@@ -394,9 +667,15 @@ public class CounterRequest implements Cloneable, Serializable {
 
 			removeChildHits(request);
 		}
+		fetchedRowsSum -= request.fetchedRowsSum;
+		fetchDurationsSum -= request.fetchDurationsSum;
+		fetchedBytesSum -= request.fetchedBytesSum;
 		if (rumData != null && request.rumData != null) {
 			rumData.removeHits(request.rumData);
 		}
+		if (sqlData != null && request.sqlData != null) {
+			sqlData.removeHits(request.sqlData);
+		}
 	}
 
 	private void removeChildHits(CounterRequest request) {
@@ -441,6 +720,15 @@ public class CounterRequest implements Cloneable, Serializable {
 			if (rumData != null) {
 				clone.rumData = rumData.clone();
 			}
+			if (sqlData != null) {
+				clone.sqlData = sqlData.clone();
+			}
+			final CounterRequestAccumulator myAccumulator = accumulator;
+			if (myAccumulator != null) {
+				// le clone n'a pas d'accumulateur, ses statistiques sont réduites ici
+				clone.accumulator = null;
+				clone.addAccumulatedHits(myAccumulator);
+			}
 			return clone;
 		} catch (final CloneNotSupportedException e) {
 			// ne peut arriver puisque CounterRequest implémente Cloneable
@@ -449,8 +737,41 @@ public class CounterRequest implements Cloneable, Serializable {
 	}
 
 	// retourne l'id supposé unique de la requête pour le stockage
-	private static String buildId(String name, String counterName) {
-		final MessageDigest messageDigest = getMessageDigestInstance();
+	static String buildId(String name, String counterName) {
+		if (name.length() > MAX_CACHED_NAME_LENGTH) {
+			return computeId(name, counterName);
+		}
+		ConcurrentMap<String, String> ids = IDS_BY_COUNTER_NAME.get(counterName);
+		if (ids == null) {
+			ids = new ConcurrentHashMap<>();
+			final ConcurrentMap<String, String> previousIds = IDS_BY_COUNTER_NAME
+					.putIfAbsent(counterName, ids);
+			if (previousIds != null) {
+				ids = previousIds;
+			}
+		}
+		String id = ids.get(name);
+		if (id == null) {
+			id = computeId(name, counterName);
+			if (ids.size() >= MAX_CACHED_IDS_COUNT) {
+				// le cache est borné : il est simplement vidé lorsqu'il est plein
+				ids.clear();
+			}
+			ids.put(name, id);
+		}
+		return id;
+	}
+
+	// le format de l'id (nom du counter suivi du SHA-1 hexadécimal du nom de la requête)
+	// ne doit pas changer, car il est utilisé dans les noms des fichiers rrd existants
+	// et dans les urls des graphiques
+	static String computeId(String name, String counterName) {
+		MessageDigest messageDigest = MESSAGE_DIGEST.get();
+		if (messageDigest == null) {
+			messageDigest = getMessageDigestInstance();
+			MESSAGE_DIGEST.set(messageDigest);
+		}
+		// digest() réinitialise messageDigest pour l'appel suivant
 		messageDigest.update(name.getBytes());
 		final byte[] digest = messageDigest.digest();
 
@@ -0,0 +1,145 @@
+/*
+ * Copyright 2008-2019 by Emeric Vernat
+ *
+ *     This file is part of Java Melody.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.bull.javamelody.internal.model;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Accumulateur sans verrou des statistiques d'une {@link CounterRequest} très sollicitée,
+ * réparties en cellules selon le thread courant (à la manière de LongAdder)
+ * pour éviter la contention sur le moniteur de la requête avec de nombreux cœurs.
+ *
+ * Les cellules ne sont réduites que lors du clone de la requête,
+ * c'est-à-dire pour les rapports ou pour la collecte, ou dans un clone lors de la lecture
+ * d'une statistique sur la requête elle-même.
+ * La réduction n'est pas atomique : comme pour LongAdder, un hit en cours d'ajout
+ * peut n'être que partiellement visible, mais il sera complet lors de la réduction suivante.
+ * @author Emeric Vernat
+ */
+final class CounterRequestAccumulator {
+	private static final int HITS = 0;
+	private static final int DURATIONS_SUM = 1;
+	private static final int DURATIONS_SQUARE_SUM = 2;
+	private static final int MAXIMUM = 3;
+	private static final int CPU_TIME_SUM = 4;
+	private static final int ALLOCATED_KBYTES_SUM = 5;
+	private static final int SYSTEM_ERRORS = 6;
+	private static final int RESPONSE_SIZES_SUM = 7;
+	private static final int CHILD_HITS = 8;
+	private static final int CHILD_DURATIONS_SUM = 9;
+	// 16 longs, soit 128 octets par cellule : deux cellules ne partagent pas une ligne de cache
+	// (pas de "false sharing" entre les threads)
+	static final int CELL_SIZE = 16;
+	private static final int MAX_CELLS_COUNT = 64;
+	private static final int CELLS_COUNT = computeCellsCount();
+	// la première cellule n'est pas utilisée, elle sert de padding avec l'en-tête du tableau
+	static final int CELLS_LENGTH = (CELLS_COUNT + 1) * CELL_SIZE;
+
+	private final AtomicLongArray cells = new AtomicLongArray(CELLS_LENGTH);
+
+	private static int computeCellsCount() {
+		final int processors = Runtime.getRuntime().availableProcessors();
+		int result = 1;
+		while (result < processors && result < MAX_CELLS_COUNT) {
+			result <<= 1;
+		}
+		return result;
+	}
+
+	static int getCellOffset() {
+		// mélange de l'id du thread pour répartir les threads entre les cellules
+		final long threadId = Thread.currentThread().getId();
+		final int hash = (int) (threadId ^ threadId >>> 32) * 0x9E3779B9;
+		return ((hash >>> 16 ^ hash) & (CELLS_COUNT - 1)) * CELL_SIZE + CELL_SIZE;
+	}
+
+	void addHit(long duration, int cpuTime, int allocatedKBytes, boolean systemError,
+			long responseSize, int childHits, int childDurationsSum) {
+		final int offset = getCellOffset();
+		cells.getAndIncrement(offset + HITS);
+		cells.getAndAdd(offset + DURATIONS_SUM, duration);
+		cells.getAndAdd(offset + DURATIONS_SQUARE_SUM, duration * duration);
+		long maximum = cells.get(offset + MAXIMUM);
+		while (duration > maximum
+				&& !cells.compareAndSet(offset + MAXIMUM, maximum, duration)) {
+			maximum = cells.get(offset + MAXIMUM);
+		}
+		cells.getAndAdd(offset + CPU_TIME_SUM, cpuTime);
+		cells.getAndAdd(offset + ALLOCATED_KBYTES_SUM, allocatedKBytes);
+		if (systemError) {
+			cells.getAndIncrement(offset + SYSTEM_ERRORS);
+		}
+		cells.getAndAdd(offset + RESPONSE_SIZES_SUM, responseSize);
+		if (childHits != 0) {
+			cells.getAndAdd(offset + CHILD_HITS, childHits);
+			cells.getAndAdd(offset + CHILD_DURATIONS_SUM, childDurationsSum);
+		}
+	}
+
+	private long sum(int field) {
+		long result = 0;
+		for (int offset = CELL_SIZE; offset < cells.length(); offset += CELL_SIZE) {
+			result += cells.get(offset + field);
+		}
+		return result;
+	}
+
+	long getHits() {
+		return sum(HITS);
+	}
+
+	long getDurationsSum() {
+		return sum(DURATIONS_SUM);
+	}
+
+	long getDurationsSquareSum() {
+		return sum(DURATIONS_SQUARE_SUM);
+	}
+
+	long getMaximum() {
+		long result = 0;
+		for (int offset = CELL_SIZE; offset < cells.length(); offset += CELL_SIZE) {
+			result = Math.max(result, cells.get(offset + MAXIMUM));
+		}
+		return result;
+	}
+
+	long getCpuTimeSum() {
+		return sum(CPU_TIME_SUM);
+	}
+
+	long getAllocatedKBytesSum() {
+		return sum(ALLOCATED_KBYTES_SUM);
+	}
+
+	long getSystemErrors() {
+		return sum(SYSTEM_ERRORS);
+	}
+
+	long getResponseSizesSum() {
+		return sum(RESPONSE_SIZES_SUM);
+	}
+
+	long getChildHits() {
+		return sum(CHILD_HITS);
+	}
+
+	long getChildDurationsSum() {
+		return sum(CHILD_DURATIONS_SUM);
+	}
+}
@@ -73,6 +73,21 @@ public class CounterRequestRumData implements Serializable, Cloneable {
 		hits++;
 	}
 
+	// statistiques dans l'ordre des champs, pour CounterStorageFormat
+	void getStatistics(long[] statistics) {
+		statistics[0] = hits;
+		statistics[1] = networkTimeSum;
+		statistics[2] = domProcessingSum;
+		statistics[3] = pageRenderingSum;
+	}
+
+	void setStatistics(long[] statistics) {
+		hits = statistics[0];
+		networkTimeSum = statistics[1];
+		domProcessingSum = statistics[2];
+		pageRenderingSum = statistics[3];
+	}
+
 	void addHits(CounterRequestRumData rumData) {
 		if (rumData.hits != 0) {
 			hits += rumData.hits;
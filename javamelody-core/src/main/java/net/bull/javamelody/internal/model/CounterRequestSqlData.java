@@ -0,0 +1,205 @@
+/*
+ * Copyright 2008-2019 by Emeric Vernat
+ *
+ *     This file is part of Java Melody.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.bull.javamelody.internal.model;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * Données complémentaires d'une requête sql : tailles des batchs (executeBatch),
+ * lignes par seconde des batchs et nombre de formes distinctes de la requête avant agrégation.
+ *
+ * Une forme est le texte sql exécuté, avant la transformation éventuelle du nom de la requête :
+ * de nombreuses formes pour une même requête signalent par exemple des listes "in (?, ?, ...)"
+ * de longueurs variables, qui empêchent la base de données de réutiliser ses plans d'exécution.
+ * @author Emeric Vernat
+ */
+public class CounterRequestSqlData implements Serializable, Cloneable {
+	static final int BATCH_SIZE_RANGES_COUNT = 6;
+	// batchSizeCounts, batchedRowsSum et batchDurationsSum
+	static final int STATISTICS_COUNT = BATCH_SIZE_RANGES_COUNT + 2;
+	// au-delà, les formes ne sont plus comptées
+	static final int MAX_SHAPES_COUNT = 1000;
+	private static final long serialVersionUID = 3206484271094356893L;
+	private static final String[] BATCH_SIZE_RANGES = { "0-1", "2-10", "11-100", "101-1000",
+			"1001-10000", "10001+", };
+
+	// nombres de batchs par tranche de taille : 0-1, 2-10, 11-100, 101-1000, 1001-10000, 10001+
+	private long[] batchSizeCounts = new long[BATCH_SIZE_RANGES_COUNT];
+	private long batchedRowsSum;
+	private long batchDurationsSum;
+	// hashCodes triés des textes sql, null si aucune forme
+	private int[] shapes;
+	private int shapesCount;
+
+	public static String getBatchSizeRange(int index) {
+		return BATCH_SIZE_RANGES[index];
+	}
+
+	static int getBatchSizeRangeIndex(long batchSize) {
+		int index = 0;
+		long limit = 1;
+		while (batchSize > limit && index < BATCH_SIZE_RANGES_COUNT - 1) {
+			index++;
+			limit *= 10;
+		}
+		return index;
+	}
+
+	public long[] getBatchSizeCounts() {
+		return batchSizeCounts.clone();
+	}
+
+	public long getBatchesCount() {
+		long result = 0;
+		for (final long count : batchSizeCounts) {
+			result += count;
+		}
+		return result;
+	}
+
+	public long getBatchedRowsMean() {
+		final long batchesCount = getBatchesCount();
+		if (batchesCount > 0) {
+			return batchedRowsSum / batchesCount;
+		}
+		return -1L;
+	}
+
+	public long getBatchedRowsPerSecond() {
+		if (getBatchesCount() > 0) {
+			// durées en ms, au moins 1 ms pour ne pas diviser par 0
+			return batchedRowsSum * 1000 / Math.max(batchDurationsSum, 1);
+		}
+		return -1L;
+	}
+
+	/**
+	 * @return Estimation de l'occupation mémoire dans le heap, en octets
+	 */
+	long getEstimatedMemorySize() {
+		// objet et tableau des tranches de taille, puis tableau des formes
+		return 96 + (shapes == null ? 0 : 16 + 4L * shapes.length);
+	}
+
+	/**
+	 * @return Nombre de formes distinctes de la requête sql, limité à MAX_SHAPES_COUNT
+	 */
+	public int getShapesCount() {
+		return shapesCount;
+	}
+
+	public boolean isShapesCountLimitReached() {
+		return shapesCount >= MAX_SHAPES_COUNT;
+	}
+
+	void addBatch(long batchSize, long duration) {
+		batchSizeCounts[getBatchSizeRangeIndex(batchSize)]++;
+		batchedRowsSum += batchSize;
+		batchDurationsSum += duration;
+	}
+
+	void addShape(int shape) {
+		if (shapes == null) {
+			shapes = new int[8];
+		}
+		final int index = Arrays.binarySearch(shapes, 0, shapesCount, shape);
+		if (index >= 0 || shapesCount >= MAX_SHAPES_COUNT) {
+			// forme déjà connue (cas le plus fréquent, sans allocation) ou limite atteinte
+			return;
+		}
+		final int insertionIndex = -index - 1;
+		if (shapesCount == shapes.length) {
+			shapes = Arrays.copyOf(shapes, Math.min(shapes.length * 2, MAX_SHAPES_COUNT));
+		}
+		System.arraycopy(shapes, insertionIndex, shapes, insertionIndex + 1,
+				shapesCount - insertionIndex);
+		shapes[insertionIndex] = shape;
+		shapesCount++;
+	}
+
+	// statistiques dans l'ordre des champs, pour CounterStorageFormat
+	void getStatistics(long[] statistics) {
+		System.arraycopy(batchSizeCounts, 0, statistics, 0, BATCH_SIZE_RANGES_COUNT);
+		statistics[BATCH_SIZE_RANGES_COUNT] = batchedRowsSum;
+		statistics[BATCH_SIZE_RANGES_COUNT + 1] = batchDurationsSum;
+	}
+
+	void setStatistics(long[] statistics) {
+		System.arraycopy(statistics, 0, batchSizeCounts, 0, BATCH_SIZE_RANGES_COUNT);
+		batchedRowsSum = statistics[BATCH_SIZE_RANGES_COUNT];
+		batchDurationsSum = statistics[BATCH_SIZE_RANGES_COUNT + 1];
+	}
+
+	int[] getShapes() {
+		if (shapes == null) {
+			return new int[0];
+		}
+		return Arrays.copyOf(shapes, shapesCount);
+	}
+
+	void setShapes(int[] newShapes) {
+		for (final int shape : newShapes) {
+			addShape(shape);
+		}
+	}
+
+	void addHits(CounterRequestSqlData sqlData) {
+		for (int i = 0; i < BATCH_SIZE_RANGES_COUNT; i++) {
+			batchSizeCounts[i] += sqlData.batchSizeCounts[i];
+		}
+		batchedRowsSum += sqlData.batchedRowsSum;
+		batchDurationsSum += sqlData.batchDurationsSum;
+		for (int i = 0; i < sqlData.shapesCount; i++) {
+			addShape(sqlData.shapes[i]);
+		}
+	}
+
+	void removeHits(CounterRequestSqlData sqlData) {
+		for (int i = 0; i < BATCH_SIZE_RANGES_COUNT; i++) {
+			batchSizeCounts[i] -= sqlData.batchSizeCounts[i];
+		}
+		batchedRowsSum -= sqlData.batchedRowsSum;
+		batchDurationsSum -= sqlData.batchDurationsSum;
+		// les formes ne peuvent pas être enlevées : un nombre de formes distinctes n'est pas additif,
+		// il reste celui de la période la plus large
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public CounterRequestSqlData clone() { // NOPMD
+		try {
+			final CounterRequestSqlData clone = (CounterRequestSqlData) super.clone();
+			clone.batchSizeCounts = batchSizeCounts.clone();
+			if (shapes != null) {
+				clone.shapes = shapes.clone();
+			}
+			return clone;
+		} catch (final CloneNotSupportedException e) {
+			// ne peut arriver puisque CounterRequestSqlData implémente Cloneable
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public String toString() {
+		return getClass().getSimpleName() + "[batchesCount=" + getBatchesCount()
+				+ ", shapesCount=" + shapesCount + ']';
+	}
+}
@@ -24,9 +24,10 @@ import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.FilenameFilter;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.io.OutputStream;
+import java.io.PushbackInputStream;
 import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Collections;
@@ -97,15 +98,27 @@ public class CounterStorage {
 
 	/**
 	 * Enregistre le counter.
-	 * @return Taille sérialisée non compressée du counter (estimation pessimiste de l'occupation mémoire)
+	 * @return Taille non compressée du counter dans le fichier
 	 * @throws IOException Exception d'entrée/sortie
 	 */
 	int writeToFile() throws IOException {
+		return writeToFile(false);
+	}
+
+	/**
+	 * Enregistre le counter, y compris s'il est vide si emptyWritten.
+	 * @param emptyWritten true pour enregistrer aussi un counter sans requête ni erreur
+	 * (un rollup d'une période sans données par exemple, pour ne pas le recalculer)
+	 * @return Taille non compressée du counter dans le fichier
+	 * @throws IOException Exception d'entrée/sortie
+	 */
+	int writeToFile(boolean emptyWritten) throws IOException {
 		if (storageDisabled) {
 			return -1;
 		}
 		final File file = getFile();
-		if (counter.getRequestsCount() == 0 && counter.getErrorsCount() == 0 && !file.exists()) {
+		if (!emptyWritten && counter.getRequestsCount() == 0 && counter.getErrorsCount() == 0
+				&& !file.exists()) {
 			// s'il n'y a pas de requête, inutile d'écrire des fichiers de compteurs vides
 			// (par exemple pour le compteur ejb s'il n'y a pas d'ejb)
 			return -1;
@@ -121,12 +134,16 @@ public class CounterStorage {
 		try (FileOutputStream out = new FileOutputStream(file)) {
 			final CounterOutputStream counterOutput = new CounterOutputStream(
 					new GZIPOutputStream(new BufferedOutputStream(out)));
-			try (ObjectOutputStream output = new ObjectOutputStream(counterOutput)) {
-				output.writeObject(counter);
-				// ce close libère les ressources du ObjectOutputStream et du GZIPOutputStream
+			try {
+				// format binaire compact plutôt que ObjectOutputStream,
+				// le fichier garde son extension .ser.gz pour la purge et la fusion des données
+				CounterStorageFormat.write(counter, counterOutput);
+			} finally {
+				// ce close libère les ressources du GZIPOutputStream
+				counterOutput.close();
 			}
-			// retourne la taille sérialisée non compressée,
-			// qui est une estimation pessimiste de l'occupation mémoire
+			// retourne la taille non compressée, bien plus petite que l'occupation mémoire du counter
+			// en format compact (voir Counter.getEstimatedMemorySize pour celle-ci)
 			return counterOutput.dataLength;
 		}
 	}
@@ -150,12 +167,41 @@ public class CounterStorage {
 
 	static Counter readFromFile(File file) throws IOException {
 		try (FileInputStream in = new FileInputStream(file)) {
-			try (ObjectInputStream input = TransportFormat
-					.createObjectInputStream(new GZIPInputStream(new BufferedInputStream(in)))) {
-				// on retourne l'instance du counter lue
-				return (Counter) input.readObject();
-				// ce close libère les ressources du ObjectInputStream et du GZIPInputStream
+			try (PushbackInputStream input = new PushbackInputStream(
+					new GZIPInputStream(new BufferedInputStream(in)),
+					CounterStorageFormat.MAGIC.length)) {
+				final byte[] header = new byte[CounterStorageFormat.MAGIC.length];
+				final int headerLength = readHeader(input, header);
+				input.unread(header, 0, headerLength);
+				if (headerLength == header.length
+						&& CounterStorageFormat.isCounterStorageFormat(header)) {
+					return CounterStorageFormat.read(input);
+				}
+				// ancien fichier en sérialisation java, qui sera réécrit dans le nouveau format
+				// lors du prochain enregistrement
+				return readSerializedCounter(input);
+				// ce close libère les ressources du GZIPInputStream
+			}
+		}
+	}
+
+	private static int readHeader(InputStream input, byte[] header) throws IOException {
+		int length = 0;
+		while (length < header.length) {
+			final int read = input.read(header, length, header.length - length);
+			if (read < 0) {
+				break;
 			}
+			length += read;
+		}
+		return length;
+	}
+
+	private static Counter readSerializedCounter(InputStream input) throws IOException {
+		try {
+			final ObjectInputStream objectInput = TransportFormat.createObjectInputStream(input);
+			// on retourne l'instance du counter lue
+			return (Counter) objectInput.readObject();
 		} catch (final ClassNotFoundException e) {
 			throw new IOException(e.getMessage(), e);
 		}
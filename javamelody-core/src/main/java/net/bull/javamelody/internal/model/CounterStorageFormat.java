@@ -0,0 +1,573 @@
+/*
+ * Copyright 2008-2019 by Emeric Vernat
+ *
+ *     This file is part of Java Melody.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.bull.javamelody.internal.model;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Format binaire compact et versionné des fichiers de {@link Counter},
+ * remplaçant la sérialisation java qui est coûteuse en cpu et en mémoire avec 10000 requêtes.
+ *
+ * Le fichier commence par {@link #MAGIC} et par la version du format, puis contient :
+ * la table des chaînes (noms des requêtes, ids des requêtes filles, stack-traces, erreurs),
+ * l'en-tête du counter, puis les requêtes en colonnes (les noms, puis chaque statistique
+ * pour toutes les requêtes, etc) et enfin les erreurs.
+ * Les chaînes sont des indices dans la table et les nombres sont des varints,
+ * ce qui donne un fichier plus petit qui se compresse mieux en gzip.
+ *
+ * Les anciens fichiers en sérialisation java sont toujours lus (voir {@link #isCounterStorageFormat(byte[])}),
+ * et ils sont réécrits dans ce format lors de l'enregistrement suivant.
+ * @author Emeric Vernat
+ */
+final class CounterStorageFormat {
+	static final byte[] MAGIC = { 'J', 'M', 'C' };
+	// version 2 : statistiques des ResultSet (lignes, temps et octets lus)
+	// version 3 : tailles des batchs et formes des requêtes sql
+	static final int VERSION = 3;
+	private static final int STATISTICS_COUNT = 13;
+	private static final int VERSION_1_STATISTICS_COUNT = 10;
+	private static final int RUM_STATISTICS_COUNT = 4;
+	private static final int BUFFER_SIZE = 8192;
+	// buffer réutilisé pour les écritures successives d'un même thread (le timer du collector en général)
+	// (ThreadLocal sans sous-classe pour ne pas retenir le classloader de la webapp)
+	private static final ThreadLocal<byte[]> WRITE_BUFFER = new ThreadLocal<>();
+
+	private CounterStorageFormat() {
+		super();
+	}
+
+	/**
+	 * Encodeur de varints et de chaînes dans un buffer, vidé dans le flux de sortie lorsqu'il est plein.
+	 */
+	private static final class Encoder {
+		private final OutputStream output;
+		private final byte[] buffer;
+		private int position;
+
+		Encoder(OutputStream output, byte[] buffer) {
+			super();
+			this.output = output;
+			this.buffer = buffer;
+		}
+
+		void writeByte(int b) throws IOException {
+			if (position == buffer.length) {
+				flush();
+			}
+			buffer[position] = (byte) b;
+			position++;
+		}
+
+		void writeBytes(byte[] bytes) throws IOException {
+			if (bytes.length > buffer.length - position) {
+				flush();
+				if (bytes.length > buffer.length) {
+					output.write(bytes);
+					return;
+				}
+			}
+			System.arraycopy(bytes, 0, buffer, position, bytes.length);
+			position += bytes.length;
+		}
+
+		void writeUnsigned(long value) throws IOException {
+			long v = value;
+			while ((v & ~0x7FL) != 0) {
+				writeByte((int) (v & 0x7F | 0x80));
+				v >>>= 7;
+			}
+			writeByte((int) v);
+		}
+
+		void writeSigned(long value) throws IOException {
+			// zigzag : les petites valeurs négatives (-1 par exemple) restent courtes
+			writeUnsigned(value << 1 ^ value >> 63);
+		}
+
+		void writeString(String value) throws IOException {
+			// encodage utf-8 directement dans le buffer, sans tableau intermédiaire
+			// (les surrogates sont encodés séparément, comme en "modified utf-8")
+			final int length = value.length();
+			int utf8Length = length;
+			for (int i = 0; i < length; i++) {
+				final char c = value.charAt(i);
+				if (c >= 0x800) {
+					utf8Length += 2;
+				} else if (c >= 0x80) {
+					utf8Length++;
+				}
+			}
+			writeUnsigned(utf8Length);
+			for (int i = 0; i < length; i++) {
+				final char c = value.charAt(i);
+				if (c < 0x80) {
+					writeByte(c);
+				} else if (c < 0x800) {
+					writeByte(0xC0 | c >> 6);
+					writeByte(0x80 | c & 0x3F);
+				} else {
+					writeByte(0xE0 | c >> 12);
+					writeByte(0x80 | c >> 6 & 0x3F);
+					writeByte(0x80 | c & 0x3F);
+				}
+			}
+		}
+
+		void flush() throws IOException {
+			output.write(buffer, 0, position);
+			position = 0;
+		}
+	}
+
+	/**
+	 * Décodeur en flux des varints et des chaînes.
+	 */
+	private static final class Decoder {
+		private final InputStream input;
+		private final byte[] buffer = new byte[BUFFER_SIZE];
+		private int position;
+		private int limit;
+
+		Decoder(InputStream input) {
+			super();
+			this.input = input;
+		}
+
+		int readByte() throws IOException {
+			if (position == limit) {
+				limit = input.read(buffer, 0, buffer.length);
+				position = 0;
+				if (limit <= 0) {
+					limit = 0;
+					throw new EOFException();
+				}
+			}
+			final int result = buffer[position] & 0xFF;
+			position++;
+			return result;
+		}
+
+		long readUnsigned() throws IOException {
+			long result = 0;
+			for (int shift = 0; shift < 64; shift += 7) {
+				final int b = readByte();
+				result |= (long) (b & 0x7F) << shift;
+				if ((b & 0x80) == 0) {
+					return result;
+				}
+			}
+			throw new IOException("Malformed varint in counter file");
+		}
+
+		long readSigned() throws IOException {
+			final long value = readUnsigned();
+			return value >>> 1 ^ -(value & 1);
+		}
+
+		int readCount() throws IOException {
+			final long value = readUnsigned();
+			if (value > Integer.MAX_VALUE) {
+				throw new IOException("Malformed count in counter file: " + value);
+			}
+			return (int) value;
+		}
+
+		String readString() throws IOException {
+			final int utf8Length = readCount();
+			// la longueur lue peut être fausse (fichier corrompu) : le tableau est agrandi
+			// au fur et à mesure de la lecture au lieu d'être alloué d'avance à cette longueur
+			char[] chars = new char[Math.min(utf8Length, BUFFER_SIZE)];
+			int length = 0;
+			int i = 0;
+			while (i < utf8Length) {
+				if (length == chars.length) {
+					chars = Arrays.copyOf(chars, (int) Math.min(utf8Length, 2L * length));
+				}
+				final int b = readByte();
+				if (b < 0x80) {
+					chars[length] = (char) b;
+					i++;
+				} else if (b < 0xE0) {
+					chars[length] = (char) ((b & 0x1F) << 6 | readByte() & 0x3F);
+					i += 2;
+				} else {
+					chars[length] = (char) ((b & 0x0F) << 12 | (readByte() & 0x3F) << 6
+							| readByte() & 0x3F);
+					i += 3;
+				}
+				length++;
+			}
+			return new String(chars, 0, length);
+		}
+	}
+
+	/**
+	 * Table des chaînes du fichier, pour ne les écrire qu'une fois.
+	 */
+	private static final class StringTable {
+		private final Map<String, Integer> indexes = new LinkedHashMap<>();
+
+		void add(String value) {
+			if (value != null && !indexes.containsKey(value)) {
+				indexes.put(value, indexes.size());
+			}
+		}
+
+		void write(Encoder encoder) throws IOException {
+			encoder.writeUnsigned(indexes.size());
+			for (final String value : indexes.keySet()) {
+				encoder.writeString(value);
+			}
+		}
+
+		void writeIndex(Encoder encoder, String value) throws IOException {
+			encoder.writeUnsigned(indexes.get(value));
+		}
+
+		void writeNullableIndex(Encoder encoder, String value) throws IOException {
+			// 0 pour null
+			if (value == null) {
+				encoder.writeUnsigned(0);
+			} else {
+				encoder.writeUnsigned(indexes.get(value) + 1L);
+			}
+		}
+
+		static String[] read(Decoder decoder) throws IOException {
+			final int count = decoder.readCount();
+			final List<String> result = new ArrayList<>(Math.min(count, Counter.MAX_REQUESTS_COUNT));
+			for (int i = 0; i < count; i++) {
+				result.add(decoder.readString());
+			}
+			return result.toArray(new String[result.size()]);
+		}
+
+		static String readIndex(Decoder decoder, String[] strings) throws IOException {
+			final int index = decoder.readCount();
+			if (index >= strings.length) {
+				throw new IOException("Malformed string index in counter file: " + index);
+			}
+			return strings[index];
+		}
+
+		static String readNullableIndex(Decoder decoder, String[] strings) throws IOException {
+			final int index = decoder.readCount();
+			if (index == 0) {
+				return null;
+			}
+			if (index > strings.length) {
+				throw new IOException("Malformed string index in counter file: " + index);
+			}
+			return strings[index - 1];
+		}
+	}
+
+	static boolean isCounterStorageFormat(byte[] header) {
+		// une sérialisation java commence par 0xACED
+		for (int i = 0; i < MAGIC.length; i++) {
+			if (header[i] != MAGIC[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	static void write(Counter counter, OutputStream output) throws IOException {
+		byte[] buffer = WRITE_BUFFER.get();
+		if (buffer == null) {
+			buffer = new byte[BUFFER_SIZE];
+			WRITE_BUFFER.set(buffer);
+		}
+		final Encoder encoder = new Encoder(output, buffer);
+		// le counter enregistré est un clone qui n'est plus modifié
+		final List<CounterRequest> requests = counter.getRequestsWithoutClone();
+		final List<CounterError> errors;
+		if (counter.isErrorCounter()) {
+			errors = counter.getErrors();
+		} else {
+			errors = new ArrayList<>();
+		}
+		final List<Map<String, Long>> childRequestsList = new ArrayList<>(requests.size());
+		for (final CounterRequest request : requests) {
+			childRequestsList.add(request.getChildRequestsExecutionsByRequestId());
+		}
+
+		final StringTable strings = new StringTable();
+		strings.add(counter.getName());
+		strings.add(counter.getStorageName());
+		strings.add(counter.getIconName());
+		strings.add(counter.getChildCounterName());
+		strings.add(counter.getApplication());
+		for (int i = 0; i < requests.size(); i++) {
+			final CounterRequest request = requests.get(i);
+			strings.add(request.getName());
+			strings.add(request.getStackTrace());
+			for (final String childRequestId : childRequestsList.get(i).keySet()) {
+				strings.add(childRequestId);
+			}
+		}
+		for (final CounterError error : errors) {
+			strings.add(error.getRemoteUser());
+			strings.add(error.getHttpRequest());
+			strings.add(error.getMessage());
+			strings.add(error.getStackTrace());
+		}
+
+		encoder.writeBytes(MAGIC);
+		encoder.writeUnsigned(VERSION);
+		strings.write(encoder);
+
+		strings.writeIndex(encoder, counter.getName());
+		strings.writeIndex(encoder, counter.getStorageName());
+		strings.writeNullableIndex(encoder, counter.getIconName());
+		strings.writeNullableIndex(encoder, counter.getChildCounterName());
+		strings.writeNullableIndex(encoder, counter.getApplication());
+		encoder.writeByte(counter.isDisplayed() ? 1 : 0);
+		encoder.writeSigned(counter.getStartDate().getTime());
+		encoder.writeUnsigned(counter.getMaxRequestsCount());
+
+		writeRequests(encoder, strings, requests, childRequestsList);
+
+		encoder.writeUnsigned(errors.size());
+		for (final CounterError error : errors) {
+			encoder.writeSigned(error.getTime());
+			strings.writeNullableIndex(encoder, error.getRemoteUser());
+			strings.writeNullableIndex(encoder, error.getHttpRequest());
+			strings.writeIndex(encoder, error.getMessage());
+			strings.writeNullableIndex(encoder, error.getStackTrace());
+		}
+		encoder.flush();
+	}
+
+	private static void writeRequests(Encoder encoder, StringTable strings,
+			List<CounterRequest> requests, List<Map<String, Long>> childRequestsList)
+			throws IOException {
+		final int requestsCount = requests.size();
+		encoder.writeUnsigned(requestsCount);
+		for (final CounterRequest request : requests) {
+			strings.writeIndex(encoder, request.getName());
+		}
+		// les statistiques sont lues une seule fois par requête, à la suite dans un tableau,
+		// puis écrites une colonne par statistique pour que les valeurs proches se suivent
+		final long[] rows = new long[requestsCount * STATISTICS_COUNT];
+		final long[] statistics = new long[STATISTICS_COUNT];
+		for (int i = 0; i < requestsCount; i++) {
+			requests.get(i).getStatistics(statistics);
+			System.arraycopy(statistics, 0, rows, i * STATISTICS_COUNT, STATISTICS_COUNT);
+		}
+		for (int j = 0; j < STATISTICS_COUNT; j++) {
+			for (int i = 0; i < requestsCount; i++) {
+				encoder.writeSigned(rows[i * STATISTICS_COUNT + j]);
+			}
+		}
+		for (final CounterRequest request : requests) {
+			strings.writeNullableIndex(encoder, request.getStackTrace());
+		}
+		for (final Map<String, Long> childRequests : childRequestsList) {
+			encoder.writeUnsigned(childRequests.size());
+			for (final Map.Entry<String, Long> entry : childRequests.entrySet()) {
+				strings.writeIndex(encoder, entry.getKey());
+				encoder.writeSigned(entry.getValue());
+			}
+		}
+		final long[] rumStatistics = new long[RUM_STATISTICS_COUNT];
+		for (final CounterRequest request : requests) {
+			final CounterRequestRumData rumData = request.getRumData();
+			if (rumData == null) {
+				encoder.writeByte(0);
+			} else {
+				encoder.writeByte(1);
+				rumData.getStatistics(rumStatistics);
+				for (final long value : rumStatistics) {
+					encoder.writeSigned(value);
+				}
+			}
+		}
+		final long[] sqlStatistics = new long[CounterRequestSqlData.STATISTICS_COUNT];
+		for (final CounterRequest request : requests) {
+			final CounterRequestSqlData sqlData = request.getSqlData();
+			if (sqlData == null) {
+				encoder.writeByte(0);
+			} else {
+				encoder.writeByte(1);
+				sqlData.getStatistics(sqlStatistics);
+				for (final long value : sqlStatistics) {
+					encoder.writeSigned(value);
+				}
+				final int[] shapes = sqlData.getShapes();
+				encoder.writeUnsigned(shapes.length);
+				for (final int shape : shapes) {
+					encoder.writeSigned(shape);
+				}
+			}
+		}
+	}
+
+	static Counter read(InputStream input) throws IOException {
+		final Decoder decoder = new Decoder(input);
+		for (final byte b : MAGIC) {
+			if (decoder.readByte() != b) {
+				throw new IOException("Not a counter file");
+			}
+		}
+		final long version = decoder.readUnsigned();
+		if (version > VERSION) {
+			// fichier écrit par une version plus récente de javamelody
+			throw new IOException("Unsupported counter file version: " + version);
+		}
+		final String[] strings = StringTable.read(decoder);
+
+		final String name = StringTable.readIndex(decoder, strings);
+		final String storageName = StringTable.readIndex(decoder, strings);
+		final String iconName = StringTable.readNullableIndex(decoder, strings);
+		final String childCounterName = StringTable.readNullableIndex(decoder, strings);
+		final String application = StringTable.readNullableIndex(decoder, strings);
+		final Counter counter = new Counter(name, storageName, iconName, childCounterName);
+		if (application != null) {
+			counter.setApplication(application);
+		}
+		counter.setDisplayed(decoder.readByte() != 0);
+		counter.setStartDate(new Date(decoder.readSigned()));
+		final int maxRequestsCount = decoder.readCount();
+		if (maxRequestsCount > 0) {
+			counter.setMaxRequestsCount(maxRequestsCount);
+		}
+
+		final int statisticsCount = version >= 2 ? STATISTICS_COUNT : VERSION_1_STATISTICS_COUNT;
+		for (final CounterRequest request : readRequests(decoder, strings, name,
+				statisticsCount, version >= 3)) {
+			counter.putRequest(request);
+		}
+
+		final int errorsCount = decoder.readCount();
+		if (errorsCount > 0) {
+			final List<CounterError> errors = new ArrayList<>(
+					Math.min(errorsCount, Counter.MAX_ERRORS_COUNT));
+			for (int i = 0; i < errorsCount; i++) {
+				final long time = decoder.readSigned();
+				final String remoteUser = StringTable.readNullableIndex(decoder, strings);
+				final String httpRequest = StringTable.readNullableIndex(decoder, strings);
+				final String message = StringTable.readIndex(decoder, strings);
+				final String stackTrace = StringTable.readNullableIndex(decoder, strings);
+				errors.add(new CounterError(time, remoteUser, httpRequest, message, stackTrace));
+			}
+			if (counter.isErrorCounter()) {
+				counter.addErrors(errors);
+			}
+		}
+		return counter;
+	}
+
+	private static List<CounterRequest> readRequests(Decoder decoder, String[] strings,
+			String counterName, int statisticsCount, boolean withSqlData) throws IOException {
+		final int requestsCount = decoder.readCount();
+		// les noms sont lus avant d'allouer les tableaux de cette taille,
+		// pour qu'un nombre de requêtes faux (fichier corrompu) finisse en EOFException
+		final List<String> names = new ArrayList<>(
+				Math.min(requestsCount, Counter.MAX_REQUESTS_COUNT));
+		for (int i = 0; i < requestsCount; i++) {
+			names.add(StringTable.readIndex(decoder, strings));
+		}
+		// les statistiques absentes des anciennes versions restent à 0
+		final long[][] columns = new long[STATISTICS_COUNT][requestsCount];
+		for (int j = 0; j < statisticsCount; j++) {
+			for (int i = 0; i < requestsCount; i++) {
+				columns[j][i] = decoder.readSigned();
+			}
+		}
+		final String[] stackTraces = new String[requestsCount];
+		for (int i = 0; i < requestsCount; i++) {
+			stackTraces[i] = StringTable.readNullableIndex(decoder, strings);
+		}
+		final List<Map<String, Long>> childRequestsList = new ArrayList<>(requestsCount);
+		for (int i = 0; i < requestsCount; i++) {
+			final int childRequestsCount = decoder.readCount();
+			if (childRequestsCount == 0) {
+				childRequestsList.add(null);
+			} else {
+				final Map<String, Long> childRequests = new LinkedHashMap<>(
+						Math.min(childRequestsCount, Counter.MAX_REQUESTS_COUNT) * 4 / 3 + 1);
+				for (int j = 0; j < childRequestsCount; j++) {
+					final String childRequestId = StringTable.readIndex(decoder, strings);
+					childRequests.put(childRequestId, decoder.readSigned());
+				}
+				childRequestsList.add(childRequests);
+			}
+		}
+		final CounterRequestRumData[] rumDatas = new CounterRequestRumData[requestsCount];
+		final long[] rumStatistics = new long[RUM_STATISTICS_COUNT];
+		for (int i = 0; i < requestsCount; i++) {
+			if (decoder.readByte() != 0) {
+				for (int j = 0; j < RUM_STATISTICS_COUNT; j++) {
+					rumStatistics[j] = decoder.readSigned();
+				}
+				rumDatas[i] = new CounterRequestRumData();
+				rumDatas[i].setStatistics(rumStatistics);
+			}
+		}
+		final CounterRequestSqlData[] sqlDatas = new CounterRequestSqlData[requestsCount];
+		if (withSqlData) {
+			readSqlDatas(decoder, sqlDatas);
+		}
+		final List<CounterRequest> result = new ArrayList<>(requestsCount);
+		final long[] statistics = new long[STATISTICS_COUNT];
+		for (int i = 0; i < requestsCount; i++) {
+			for (int j = 0; j < STATISTICS_COUNT; j++) {
+				statistics[j] = columns[j][i];
+			}
+			// l'id de la requête n'est pas dans le fichier, il est calculé à partir du nom
+			final CounterRequest request = new CounterRequest(names.get(i), counterName);
+			request.setStatistics(statistics, stackTraces[i], childRequestsList.get(i),
+					rumDatas[i], sqlDatas[i]);
+			result.add(request);
+		}
+		return result;
+	}
+
+	private static void readSqlDatas(Decoder decoder, CounterRequestSqlData[] sqlDatas)
+			throws IOException {
+		final long[] sqlStatistics = new long[CounterRequestSqlData.STATISTICS_COUNT];
+		for (int i = 0; i < sqlDatas.length; i++) {
+			if (decoder.readByte() != 0) {
+				for (int j = 0; j < sqlStatistics.length; j++) {
+					sqlStatistics[j] = decoder.readSigned();
+				}
+				final int shapesCount = decoder.readCount();
+				if (shapesCount > CounterRequestSqlData.MAX_SHAPES_COUNT) {
+					throw new IOException("Malformed shapes count in counter file: " + shapesCount);
+				}
+				final int[] shapes = new int[shapesCount];
+				for (int j = 0; j < shapes.length; j++) {
+					shapes[j] = (int) decoder.readSigned();
+				}
+				sqlDatas[i] = new CounterRequestSqlData();
+				sqlDatas[i].setStatistics(sqlStatistics);
+				sqlDatas[i].setShapes(shapes);
+			}
+		}
+	}
+}
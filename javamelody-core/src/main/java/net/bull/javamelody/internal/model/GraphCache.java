@@ -0,0 +1,252 @@
+/*
+ * Copyright 2008-2019 by Emeric Vernat
+ *
+ *     This file is part of Java Melody.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.bull.javamelody.internal.model;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import net.bull.javamelody.Parameter;
+import net.bull.javamelody.internal.common.I18N;
+
+/**
+ * Cache des images des graphiques dans le serveur de collecte (paramètre collector-graph-cache-size-mb).
+ *
+ * Les images sont identifiées par application, graphique, période, dimensions, langue (titres
+ * et légendes traduits) et date de dernière collecte de l'application : elles sont donc invalidées
+ * à chaque collecte et les plus anciennement consultées sont retirées quand la taille totale
+ * dépasse le maximum. Une image absente du cache n'est dessinée qu'une fois même si elle est
+ * demandée par plusieurs requêtes en même temps.
+ * @author Emeric Vernat
+ */
+public final class GraphCache {
+	private static final int DEFAULT_MAX_SIZE_MB = 16;
+
+	private final long maxSize;
+	// date utilisée avant la première collecte, pour que les ETag changent au redémarrage
+	private final long startTime = System.currentTimeMillis();
+	private final Map<String, Long> updateTimesByApplication = new ConcurrentHashMap<>();
+	// LinkedHashMap en ordre d'accès pour retirer les images consultées le moins récemment
+	private final Map<GraphKey, byte[]> graphsByKey = new LinkedHashMap<>(16, 0.75f, true);
+	// images en cours de dessin, partagées par les requêtes concurrentes pour la même image
+	private final ConcurrentMap<GraphKey, FutureTask<byte[]>> renderingsByKey = new ConcurrentHashMap<>();
+	private long size;
+
+	/**
+	 * Clé d'une image dans le cache.
+	 */
+	public static final class GraphKey {
+		private final String application;
+		private final String value;
+
+		GraphKey(String application, String value) {
+			super();
+			this.application = application;
+			this.value = value;
+		}
+
+		String getApplication() {
+			return application;
+		}
+
+		/**
+		 * @return Valeur de l'entête http ETag pour cette image
+		 */
+		public String getETag() {
+			// value contient la date de dernière collecte, donc l'ETag change à chaque collecte
+			return '"' + Integer.toHexString(value.hashCode()) + '"';
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			return obj instanceof GraphKey && value.equals(((GraphKey) obj).value);
+		}
+
+		@Override
+		public int hashCode() {
+			return value.hashCode();
+		}
+
+		@Override
+		public String toString() {
+			return value;
+		}
+	}
+
+	GraphCache(long maxSize) {
+		super();
+		assert maxSize > 0;
+		this.maxSize = maxSize;
+	}
+
+	/**
+	 * @return GraphCache selon le paramètre collector-graph-cache-size-mb (16 Mo par défaut), null si 0
+	 */
+	static GraphCache createIfEnabled() {
+		final String parameter = Parameter.COLLECTOR_GRAPH_CACHE_SIZE_MB.getValue();
+		final long maxSizeMb;
+		if (parameter == null) {
+			maxSizeMb = DEFAULT_MAX_SIZE_MB;
+		} else {
+			maxSizeMb = Long.parseLong(parameter);
+			if (maxSizeMb < 0) {
+				throw new IllegalStateException(
+						"The parameter collector-graph-cache-size-mb should be >= 0");
+			}
+		}
+		if (maxSizeMb == 0) {
+			return null;
+		}
+		return new GraphCache(maxSizeMb * 1024 * 1024);
+	}
+
+	/**
+	 * Retourne la clé d'une image dans la langue courante, qui change à chaque collecte de l'application.
+	 * @param application Code de l'application
+	 * @param graphName Nom du graphique
+	 * @param range Période
+	 * @param width Largeur
+	 * @param height Hauteur
+	 * @param maxHidden Courbe du maximum cachée
+	 * @return GraphKey
+	 */
+	public GraphKey getKey(String application, String graphName, Range range, int width,
+			int height, boolean maxHidden) {
+		Long updateTime = updateTimesByApplication.get(application);
+		if (updateTime == null) {
+			updateTime = startTime;
+		}
+		final String value = application + '\n' + graphName + '\n' + range.getValue() + '\n'
+				+ width + 'x' + height + '\n' + maxHidden + '\n' + I18N.getCurrentLocale() + '\n'
+				+ updateTime;
+		return new GraphKey(application, value);
+	}
+
+	/**
+	 * Retourne une image du cache, ou la dessine et l'ajoute dans le cache si elle n'y est pas.
+	 * Si la même image est déjà en cours de dessin par une autre requête, son résultat est attendu.
+	 * @param key GraphKey
+	 * @param renderer Dessin de l'image png
+	 * @return Image png
+	 * @throws IOException e
+	 */
+	public byte[] get(GraphKey key, Callable<byte[]> renderer) throws IOException {
+		final byte[] cachedImg = get(key);
+		if (cachedImg != null) {
+			return cachedImg;
+		}
+		final FutureTask<byte[]> rendering = new FutureTask<>(renderer);
+		final FutureTask<byte[]> otherRendering = renderingsByKey.putIfAbsent(key, rendering);
+		if (otherRendering != null) {
+			return getRenderedImage(otherRendering);
+		}
+		try {
+			rendering.run();
+			final byte[] img = getRenderedImage(rendering);
+			// ajoutée dans le cache avant de retirer le dessin en cours,
+			// pour qu'une requête arrivant entre temps ne la dessine pas de nouveau
+			put(key, img);
+			return img;
+		} finally {
+			renderingsByKey.remove(key, rendering);
+		}
+	}
+
+	private static byte[] getRenderedImage(FutureTask<byte[]> rendering) throws IOException {
+		try {
+			return rendering.get();
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException(e);
+		} catch (final ExecutionException e) {
+			final Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			} else if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			} else if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new IOException(cause);
+		}
+	}
+
+	/**
+	 * @param key GraphKey
+	 * @return Image png ou null si elle n'est pas dans le cache
+	 */
+	synchronized byte[] get(GraphKey key) {
+		return graphsByKey.get(key);
+	}
+
+	/**
+	 * Ajoute une image dans le cache, en retirant si besoin les images consultées le moins récemment.
+	 * @param key GraphKey
+	 * @param img Image png
+	 */
+	synchronized void put(GraphKey key, byte[] img) {
+		if (img.length > maxSize) {
+			return;
+		}
+		final byte[] previous = graphsByKey.put(key, img);
+		if (previous != null) {
+			size -= previous.length;
+		}
+		size += img.length;
+		final Iterator<byte[]> iterator = graphsByKey.values().iterator();
+		while (size > maxSize && iterator.hasNext()) {
+			size -= iterator.next().length;
+			iterator.remove();
+		}
+	}
+
+	/**
+	 * Invalide les images d'une application, après une collecte.
+	 * @param application Code de l'application
+	 */
+	void invalidate(String application) {
+		updateTimesByApplication.put(application, System.currentTimeMillis());
+		removeGraphs(application);
+	}
+
+	void removeApplication(String application) {
+		updateTimesByApplication.remove(application);
+		removeGraphs(application);
+	}
+
+	private synchronized void removeGraphs(String application) {
+		final Iterator<Map.Entry<GraphKey, byte[]>> iterator = graphsByKey.entrySet().iterator();
+		while (iterator.hasNext()) {
+			final Map.Entry<GraphKey, byte[]> entry = iterator.next();
+			if (application.equals(entry.getKey().getApplication())) {
+				size -= entry.getValue().length;
+				iterator.remove();
+			}
+		}
+	}
+
+	long getMaxSize() {
+		return maxSize;
+	}
+}
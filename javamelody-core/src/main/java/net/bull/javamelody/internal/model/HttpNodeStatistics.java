@@ -0,0 +1,167 @@
+/*
+ * Copyright 2008-2019 by Emeric Vernat
+ *
+ *     This file is part of Java Melody.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.bull.javamelody.internal.model;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Statistiques des appels http par node (host:port), par exemple d'un serveur de collecte vers
+ * les applications monitorées, pour voir si les connexions keep-alive sont réutilisées.
+ *
+ * Ni HttpURLConnection ni java.net.http.HttpClient n'indiquent si une requête a ouvert une
+ * nouvelle connexion, donc une réponse est comptée comme réutilisable lorsqu'elle a été lue
+ * jusqu'à la fin puis fermée sans erreur (la connexion est alors rendue au pool keep-alive du jdk),
+ * et les réponses en HTTP/2 sont comptées à part (multiplexées sur une même connexion).
+ * @author Emeric Vernat
+ */
+public final class HttpNodeStatistics {
+	// borne pour la mémoire, s'il y a des appels vers beaucoup de hosts différents
+	private static final int MAX_NODES = 1000;
+
+	private static final ConcurrentMap<String, HttpNodeStatistics> STATISTICS_BY_NODE = new ConcurrentHashMap<>();
+
+	private final String node;
+	private final AtomicLong requestsCount = new AtomicLong();
+	private final AtomicLong errorsCount = new AtomicLong();
+	private final AtomicLong reusableCount = new AtomicLong();
+	private final AtomicLong http2Count = new AtomicLong();
+	private final AtomicLong durationsSum = new AtomicLong();
+	private final AtomicLong bytesRead = new AtomicLong();
+
+	private HttpNodeStatistics(String node) {
+		super();
+		this.node = node;
+	}
+
+	static HttpNodeStatistics getInstance(URL url) {
+		final String node = RemoteCollector.getHostAndPort(url);
+		HttpNodeStatistics statistics = STATISTICS_BY_NODE.get(node);
+		if (statistics == null) {
+			if (STATISTICS_BY_NODE.size() >= MAX_NODES) {
+				STATISTICS_BY_NODE.clear();
+			}
+			statistics = new HttpNodeStatistics(node);
+			final HttpNodeStatistics previous = STATISTICS_BY_NODE.putIfAbsent(node, statistics);
+			if (previous != null) {
+				statistics = previous;
+			}
+		}
+		return statistics;
+	}
+
+	/**
+	 * Retourne les statistiques des nodes de ces urls, s'il y a déjà eu des appels vers ces nodes.
+	 * @param urls URLs
+	 * @return List
+	 */
+	public static List<HttpNodeStatistics> getStatisticsList(List<URL> urls) {
+		final List<HttpNodeStatistics> result = new ArrayList<>();
+		for (final URL url : urls) {
+			final HttpNodeStatistics statistics = STATISTICS_BY_NODE
+					.get(RemoteCollector.getHostAndPort(url));
+			if (statistics != null && !result.contains(statistics)) {
+				result.add(statistics);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * @return Nom du client http utilisé pour les appels vers les nodes.
+	 */
+	public static String getHttpClientName() {
+		return HttpTransport.getInstance().getName();
+	}
+
+	void addRequest(long duration, boolean error) {
+		requestsCount.incrementAndGet();
+		durationsSum.addAndGet(duration);
+		if (error) {
+			errorsCount.incrementAndGet();
+		}
+	}
+
+	void addResponseClosed(long dataLength, boolean reusable, boolean http2) {
+		bytesRead.addAndGet(dataLength);
+		if (reusable) {
+			reusableCount.incrementAndGet();
+		}
+		if (http2) {
+			http2Count.incrementAndGet();
+		}
+	}
+
+	public String getNode() {
+		return node;
+	}
+
+	public long getRequestsCount() {
+		return requestsCount.get();
+	}
+
+	public long getErrorsCount() {
+		return errorsCount.get();
+	}
+
+	public long getReusableCount() {
+		return reusableCount.get();
+	}
+
+	public long getHttp2Count() {
+		return http2Count.get();
+	}
+
+	public long getBytesRead() {
+		return bytesRead.get();
+	}
+
+	/**
+	 * @return Pourcentage des réponses lues entièrement et rendues au pool keep-alive, -1 si aucune requête.
+	 */
+	public int getReusablePercentage() {
+		final long requests = getRequestsCount();
+		if (requests == 0) {
+			return -1;
+		}
+		return (int) Math.min(100, 100 * getReusableCount() / requests);
+	}
+
+	/**
+	 * @return Temps moyen jusqu'à la réception des entêtes de réponse en millisecondes, -1 si aucune requête.
+	 */
+	public long getMeanDuration() {
+		final long requests = getRequestsCount();
+		if (requests == 0) {
+			return -1;
+		}
+		return durationsSum.get() / requests;
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public String toString() {
+		return getClass().getSimpleName() + "[node=" + getNode() + ", requestsCount="
+				+ getRequestsCount() + ", reusableCount=" + getReusableCount() + ", http2Count="
+				+ getHttp2Count() + ", errorsCount=" + getErrorsCount() + ']';
+	}
+}
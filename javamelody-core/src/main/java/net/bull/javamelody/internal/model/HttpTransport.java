@@ -0,0 +1,331 @@
+/*
+ * Copyright 2008-2019 by Emeric Vernat
+ *
+ *     This file is part of Java Melody.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.bull.javamelody.internal.model;
+
+import java.io.Closeable;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+import net.bull.javamelody.Parameter;
+import net.bull.javamelody.internal.common.InputOutput;
+import net.bull.javamelody.internal.common.LOG;
+import net.bull.javamelody.internal.common.Parameters;
+
+/**
+ * Couche http utilisée par {@link LabradorRetriever}, par exemple pour les appels d'un serveur de collecte
+ * vers les nodes des applications monitorées.
+ *
+ * Par défaut, java.net.http.HttpClient est utilisé s'il est disponible (java 11+, {@link JdkHttpClientTransport}),
+ * avec un pool de connexions keep-alive par node et HTTP/2 en https,
+ * et sinon HttpURLConnection ({@link UrlConnectionTransport}), dont les connexions sont gardées
+ * dans le cache keep-alive du jdk.
+ * Dans les deux cas, une connexion n'est réutilisable que si la réponse est lue jusqu'à la fin puis fermée,
+ * ce que fait {@link Response#close()}.
+ * @author Emeric Vernat
+ */
+abstract class HttpTransport {
+	static final String GET = "GET";
+	static final String POST = "POST";
+
+	/** Timeout des connections serveur en millisecondes par défaut (0 : pas de timeout). */
+	static final int DEFAULT_CONNECT_TIMEOUT = 20000;
+
+	/** Timeout de lecture des connections serveur en millisecondes par défaut (0 : pas de timeout). */
+	static final int DEFAULT_READ_TIMEOUT = 60000;
+
+	// taille maximale lue à la fermeture d'une réponse qui n'a pas été lue jusqu'à la fin,
+	// pour que la connexion soit encore réutilisable
+	private static final int MAX_DRAINED_BYTES = 64 * 1024;
+
+	// taille maximale du contenu d'une réponse en erreur gardé dans le message de l'exception
+	private static final int MAX_ERROR_LENGTH = 1000;
+
+	private static final HttpTransport URL_CONNECTION_TRANSPORT = new UrlConnectionTransport();
+
+	private static HttpTransport jdkHttpClientTransport;
+
+	private static boolean jdkHttpClientUnavailable;
+
+	/**
+	 * Réponse http, dont le flux compte les octets lus.
+	 */
+	abstract static class Response implements Closeable {
+		private HttpNodeStatistics statistics;
+		private ResponseInputStream inputStream;
+
+		private final class ResponseInputStream extends FilterInputStream {
+			private long dataLength;
+			private boolean endOfStream;
+			private boolean closed;
+
+			ResponseInputStream(InputStream in) {
+				super(in);
+			}
+
+			@Override
+			public int read() throws IOException {
+				final int result = super.read();
+				if (result == -1) {
+					endOfStream = true;
+				} else {
+					dataLength++;
+				}
+				return result;
+			}
+
+			@Override
+			public int read(byte[] bytes, int off, int len) throws IOException {
+				final int result = super.read(bytes, off, len);
+				if (result == -1) {
+					endOfStream = true;
+				} else {
+					dataLength += result;
+				}
+				return result;
+			}
+
+			@Override
+			public long skip(long n) throws IOException {
+				final long result = super.skip(n);
+				dataLength += result;
+				return result;
+			}
+
+			@Override
+			public boolean markSupported() {
+				return false;
+			}
+
+			@Override
+			public void close() throws IOException {
+				if (closed) {
+					return;
+				}
+				closed = true;
+				boolean reusable = false;
+				try {
+					reusable = drain();
+				} catch (final IOException e) {
+					// la connexion ne sera pas réutilisée
+					reusable = false;
+				} finally {
+					try {
+						super.close();
+					} finally {
+						closed(dataLength, reusable);
+					}
+				}
+			}
+
+			private boolean drain() throws IOException {
+				if (endOfStream) {
+					return true;
+				}
+				final byte[] buffer = new byte[8192];
+				long drained = 0;
+				while (drained < MAX_DRAINED_BYTES) {
+					final int length = super.read(buffer, 0, buffer.length);
+					if (length == -1) {
+						return true;
+					}
+					drained += length;
+					dataLength += length;
+				}
+				return false;
+			}
+		}
+
+		abstract int getStatus();
+
+		abstract String getHeader(String name);
+
+		abstract boolean isHttp2();
+
+		abstract InputStream openInputStream() throws IOException;
+
+		final String getContentType() {
+			return getHeader("Content-Type");
+		}
+
+		final String getContentEncoding() {
+			return getHeader("Content-Encoding");
+		}
+
+		final InputStream getInputStream() throws IOException {
+			if (inputStream == null) {
+				inputStream = new ResponseInputStream(openInputStream());
+			}
+			return inputStream;
+		}
+
+		final long getDataLength() {
+			if (inputStream == null) {
+				return 0;
+			}
+			return inputStream.dataLength;
+		}
+
+		/**
+		 * Lit la fin de la réponse si elle n'a pas été lue, puis ferme le flux
+		 * pour que la connexion soit rendue au pool keep-alive.
+		 * @throws IOException e
+		 */
+		@Override
+		public final void close() throws IOException {
+			getInputStream().close();
+		}
+
+		void closed(long dataLength, boolean reusable) {
+			if (statistics != null) {
+				statistics.addResponseClosed(dataLength, reusable, isHttp2());
+			}
+		}
+	}
+
+	/**
+	 * Envoie une requête http et retourne la réponse, qui doit être fermée.
+	 * @param url URL
+	 * @param method GET ou POST
+	 * @param headers Entêtes de la requête
+	 * @param payload Contenu de la requête POST ou null
+	 * @return Response
+	 * @throws IOException Exception de communication ou statut http en erreur
+	 */
+	static Response send(URL url, String method, Map<String, String> headers, byte[] payload)
+			throws IOException {
+		final Response response = sendWithAnyStatus(url, method, headers, payload);
+		final int status = response.getStatus();
+		if (status >= 400) {
+			throw createHttpException(url, status, response.getInputStream());
+		}
+		return response;
+	}
+
+	/**
+	 * Envoie une requête http et retourne la réponse, qui doit être fermée,
+	 * même si son statut http est en erreur (le flux de la réponse contient alors l'erreur).
+	 * @param url URL
+	 * @param method GET, POST ou autre
+	 * @param headers Entêtes de la requête
+	 * @param payload Contenu de la requête ou null
+	 * @return Response
+	 * @throws IOException Exception de communication
+	 */
+	static Response sendWithAnyStatus(URL url, String method, Map<String, String> headers,
+			byte[] payload) throws IOException {
+		final boolean http = "http".equals(url.getProtocol())
+				|| "https".equals(url.getProtocol());
+		if (!http) {
+			// par exemple, url "file:" dans les tests unitaires
+			return URL_CONNECTION_TRANSPORT.doSend(url, method, headers, payload,
+					DEFAULT_CONNECT_TIMEOUT, DEFAULT_READ_TIMEOUT);
+		}
+		final int connectTimeout = getTimeout(Parameter.HTTP_CONNECT_TIMEOUT, url,
+				DEFAULT_CONNECT_TIMEOUT);
+		final int readTimeout = getTimeout(Parameter.HTTP_READ_TIMEOUT, url, DEFAULT_READ_TIMEOUT);
+		final HttpNodeStatistics statistics = HttpNodeStatistics.getInstance(url);
+		final long start = System.currentTimeMillis();
+		boolean error = true;
+		try {
+			final Response response = getInstance().doSend(url, method, headers, payload,
+					connectTimeout, readTimeout);
+			response.statistics = statistics;
+			error = response.getStatus() >= 400;
+			return response;
+		} finally {
+			statistics.addRequest(System.currentTimeMillis() - start, error);
+		}
+	}
+
+	/**
+	 * Retourne le timeout en millisecondes défini pour le node de l'url
+	 * (par exemple, paramètre "javamelody.http-read-timeout.host:port"),
+	 * sinon celui défini pour tous les nodes, sinon la valeur par défaut.
+	 * @param parameter Parameter
+	 * @param url URL
+	 * @param defaultValue int
+	 * @return int
+	 */
+	static int getTimeout(Parameter parameter, URL url, int defaultValue) {
+		String value = Parameters.getParameterValueByName(
+				parameter.getCode() + '.' + RemoteCollector.getHostAndPort(url));
+		if (value == null) {
+			value = parameter.getValue();
+		}
+		if (value == null) {
+			return defaultValue;
+		}
+		final int timeout = Integer.parseInt(value);
+		if (timeout < 0) {
+			throw new IllegalStateException(
+					"The parameter " + parameter.getCode() + " should be >= 0");
+		}
+		return timeout;
+	}
+
+	static HttpTransport getInstance() {
+		final String httpClient = Parameter.HTTP_CLIENT.getValue();
+		if (httpClient == null || "jdk".equalsIgnoreCase(httpClient)) {
+			final HttpTransport transport = getJdkHttpClientTransport();
+			if (transport != null) {
+				return transport;
+			}
+		} else if (!"urlconnection".equalsIgnoreCase(httpClient)) {
+			throw new IllegalStateException(
+					"The parameter " + Parameter.HTTP_CLIENT.getCode() + " should be jdk or urlconnection");
+		}
+		return URL_CONNECTION_TRANSPORT;
+	}
+
+	private static synchronized HttpTransport getJdkHttpClientTransport() {
+		if (jdkHttpClientTransport == null && !jdkHttpClientUnavailable) {
+			try {
+				jdkHttpClientTransport = new JdkHttpClientTransport();
+			} catch (final ReflectiveOperationException e) {
+				// java 7 à 10
+				jdkHttpClientUnavailable = true;
+				LOG.debug("java.net.http.HttpClient not available, HttpURLConnection used", e);
+			}
+		}
+		return jdkHttpClientTransport;
+	}
+
+	private static IOException createHttpException(URL url, int status, InputStream errorStream)
+			throws IOException {
+		String error;
+		try {
+			// le flux est lu jusqu'à la fin pour que la connexion soit encore réutilisable
+			error = InputOutput.pumpToString(errorStream, StandardCharsets.UTF_8);
+		} finally {
+			errorStream.close();
+		}
+		if (error.length() > MAX_ERROR_LENGTH) {
+			error = error.substring(0, MAX_ERROR_LENGTH) + "...";
+		}
+		return new IOException("Error connecting to " + url + '(' + status + "): " + error);
+	}
+
+	abstract String getName();
+
+	abstract Response doSend(URL url, String method, Map<String, String> headers,
+			byte[] payload, int connectTimeout, int readTimeout) throws IOException;
+}
@@ -76,6 +76,9 @@ public final class JRobin {
 	private static final int DAY = 24 * HOUR;
 	private static final int DEFAULT_OBSOLETE_GRAPHS_DAYS = 90;
 	private static final int DEFAULT_MAX_RRD_DISK_USAGE_MB = 20;
+	// préfixes des jrobin par DataSource dans le Collector
+	private static final String[] CONNECTION_LATENCIES_NAMES = { "connectionWaitTimes",
+			"connectionHoldTimes", };
 
 	// pool of open RRD files
 	private final RrdDbPool rrdPool = getRrdDbPool();
@@ -132,6 +135,10 @@ public final class JRobin {
 	}
 
 	public static void stop() {
+		// les valeurs en attente sont écrites avant l'arrêt
+		JRobinWriter.stop();
+		RrdSegmentStore.closeAll();
+		RrdNioBackend.syncAllFiles();
 		if (RrdNioBackend.getFileSyncTimer() != null) {
 			RrdNioBackend.getFileSyncTimer().cancel();
 		}
@@ -145,6 +152,7 @@ public final class JRobin {
 	 */
 	public static void initBackendFactory(Timer timer) throws IOException {
 		RrdNioBackend.setFileSyncTimer(timer);
+		JRobinWriter.start();
 
 		try {
 			if (!RrdBackendFactory.getDefaultFactory().getFactoryName()
@@ -170,7 +178,7 @@ public final class JRobin {
 	static JRobin createInstanceIfFileExists(String application, String name, String requestName)
 			throws IOException {
 		final File rrdFile = getRrdFile(application, name);
-		if (rrdFile.exists()) {
+		if (isRrdExisting(rrdFile)) {
 			final int step = Parameters.getResolutionSeconds();
 			try {
 				return new JRobin(application, name, rrdFile, step, requestName);
@@ -193,9 +201,7 @@ public final class JRobin {
 			throw new IOException(
 					"JavaMelody directory can't be created: " + rrdDirectory.getPath());
 		}
-		// cf issue 41: rrdFile could have been created with length 0 if out of disk space
-		// (fix IOException: Read failed, file xxx.rrd not mapped for I/O)
-		if (!rrdFile.exists() || rrdFile.length() == 0) {
+		if (!isRrdExisting(rrdFile)) {
 			// create RRD file since it does not exist (or is empty)
 			final RrdDef rrdDef = new RrdDef(rrdFileName, step);
 			// "startTime" décalé de "step" pour éviter que addValue appelée juste
@@ -228,6 +234,17 @@ public final class JRobin {
 		}
 	}
 
+	private static boolean isRrdExisting(File rrdFile) throws IOException {
+		if (RrdSegmentStore.isEnabled()) {
+			// graphiques dans les segments du stockage consolidé (fichier rrd importé si besoin)
+			return RrdSegmentStore.getInstanceForPath(rrdFile.getPath())
+					.exists(RrdSegmentStore.getSeriesName(rrdFile.getPath()));
+		}
+		// cf issue 41: rrdFile could have been created with length 0 if out of disk space
+		// (fix IOException: Read failed, file xxx.rrd not mapped for I/O)
+		return rrdFile.exists() && rrdFile.length() > 0;
+	}
+
 	private void resetFile() throws IOException {
 		deleteFile();
 		try {
@@ -374,13 +391,28 @@ public final class JRobin {
 	}
 
 	void addValue(double value) throws IOException {
+		addValue(Util.getTime(), value);
+	}
+
+	/**
+	 * Ajoute une valeur avec le timestamp courant, en l'écrivant plus tard dans le fichier RRD
+	 * par les threads de {@link JRobinWriter} (pour les graphiques par requête qui peuvent être
+	 * très nombreux et dont l'écriture ne doit pas retarder la collecte).
+	 * @param value double
+	 * @throws IOException e
+	 */
+	void addValueLater(double value) throws IOException {
+		JRobinWriter.addValue(this, rrdFileName, Util.getTime(), value);
+	}
+
+	void addValue(long timestamp, double value) throws IOException {
 		try {
 			// request RRD database reference from the pool
 			final RrdDb rrdDb = rrdPool.requestRrdDb(rrdFileName);
 			synchronized (rrdDb) {
 				try {
-					// create sample with the current timestamp
-					final Sample sample = rrdDb.createSample();
+					// create sample with the timestamp of the value
+					final Sample sample = rrdDb.createSample(timestamp);
 					// test pour éviter l'erreur suivante au redéploiement par exemple:
 					// org.jrobin.core.RrdException:
 					// Bad sample timestamp x. Last update time was x, at least one second step is required
@@ -401,7 +433,7 @@ public final class JRobin {
 				LOG.debug("A JRobin file was deleted and created again: "
 						+ new File(rrdFileName).getPath());
 				resetFile();
-				addValue(value);
+				addValue(timestamp, value);
 			}
 		} catch (final RrdException e) {
 			if (e.getMessage() != null && e.getMessage().startsWith("Invalid file header")) {
@@ -411,7 +443,7 @@ public final class JRobin {
 				LOG.debug("A JRobin file was found corrupted and was reset: "
 						+ new File(rrdFileName).getPath());
 				resetFile();
-				addValue(value);
+				addValue(timestamp, value);
 			}
 			throw createIOException(e);
 		} catch (final IllegalArgumentException | ArithmeticException e) {
@@ -438,7 +470,7 @@ public final class JRobin {
 			LOG.debug("A JRobin file was found corrupted and was reset: "
 					+ new File(rrdFileName).getPath());
 			resetFile();
-			addValue(value);
+			addValue(timestamp, value);
 			throw createIOException(e);
 		}
 	}
@@ -534,6 +566,16 @@ public final class JRobin {
 	}
 
 	boolean deleteFile() {
+		JRobinWriter.removeValue(rrdFileName);
+		if (RrdSegmentStore.isEnabled()) {
+			try {
+				return RrdSegmentStore.getInstanceForPath(rrdFileName)
+						.delete(RrdSegmentStore.getSeriesName(rrdFileName));
+			} catch (final IOException e) {
+				LOG.info("deletion of a rrd in segments failed: " + rrdFileName, e);
+				return false;
+			}
+		}
 		return new File(rrdFileName).delete();
 	}
 
@@ -555,9 +597,15 @@ public final class JRobin {
 			// c'est un jrobin global issu soit de JavaInformations soit d'un Counter dans le Collector
 			return I18N.getString(getName());
 		}
-		// c'est un jrobin issu d'un CounterRequest dans le Collector
 		final String shortRequestName = requestName.substring(0,
 				Math.min(30, requestName.length()));
+		for (final String connectionLatenciesName : CONNECTION_LATENCIES_NAMES) {
+			if (getName().startsWith(connectionLatenciesName)) {
+				// c'est un jrobin des percentiles des temps des connexions d'une DataSource
+				return I18N.getString(connectionLatenciesName) + " - " + shortRequestName;
+			}
+		}
+		// c'est un jrobin issu d'un CounterRequest dans le Collector
 		// plus nécessaire:  if (getName().startsWith("error")) {
 		// c'est un jrobin issu d'un CounterRequest du Counter "error"
 		// return I18N.getString("Erreurs_par_minute_pour") + ' ' + shortRequestName; }
@@ -570,6 +618,14 @@ public final class JRobin {
 	}
 
 	static long deleteObsoleteJRobinFiles(String application) {
+		if (RrdSegmentStore.isEnabled()) {
+			try {
+				return compactRrdSegments(application);
+			} catch (final IOException e) {
+				LOG.warn("compaction of rrd segments failed", e);
+				return 0;
+			}
+		}
 		final Calendar nowMinusThreeMonthsAndADay = Calendar.getInstance();
 		nowMinusThreeMonthsAndADay.add(Calendar.DAY_OF_YEAR, -getObsoleteGraphsDays());
 		nowMinusThreeMonthsAndADay.add(Calendar.DAY_OF_YEAR, -1);
@@ -629,6 +685,56 @@ public final class JRobin {
 		return diskUsage;
 	}
 
+	// équivalent de la suppression des fichiers rrd obsolètes et au delà de max-rrd-disk-usage-mb,
+	// pour le stockage consolidé : les séries supprimées libèrent leurs slots puis les segments
+	// sont compactés
+	private static long compactRrdSegments(String application) throws IOException {
+		final File directory = Parameters.getStorageDirectory(application);
+		final RrdSegmentStore store = RrdSegmentStore.getInstance(directory);
+		final Calendar nowMinusThreeMonthsAndADay = Calendar.getInstance();
+		nowMinusThreeMonthsAndADay.add(Calendar.DAY_OF_YEAR, -getObsoleteGraphsDays());
+		nowMinusThreeMonthsAndADay.add(Calendar.DAY_OF_YEAR, -1);
+		final long timestamp = Util.getTimestamp(nowMinusThreeMonthsAndADay);
+		final int counterRequestIdLength = new CounterRequest("", "").getId().length();
+		long usedSize = 0;
+		final Map<String, Long> lastUpdateTimesByName = new HashMap<>();
+		final List<String> names = new ArrayList<>();
+		for (final String name : store.getNames()) {
+			final long slotSize = store.getSlotSize(name);
+			// on ne supprime que les séries de requêtes (les autres sont peu nombreuses)
+			if (name.length() + ".rrd".length() > counterRequestIdLength) {
+				final long lastUpdateTime = getLastUpdateTime(new File(directory, name + ".rrd"));
+				if (lastUpdateTime < timestamp && store.delete(name)) {
+					continue;
+				}
+				lastUpdateTimesByName.put(name, lastUpdateTime);
+				names.add(name);
+			}
+			usedSize += slotSize;
+		}
+		final long maxRrdDiskUsage = getMaxRrdDiskUsageMb() * 1024L * 1024L;
+		if (usedSize > maxRrdDiskUsage) {
+			// delete least recently used series until rrd disk usage < 20 MB
+			Collections.sort(names, new Comparator<String>() {
+				@Override
+				public int compare(String o1, String o2) {
+					return lastUpdateTimesByName.get(o1).compareTo(lastUpdateTimesByName.get(o2));
+				}
+			});
+			for (final String name : names) {
+				if (usedSize < maxRrdDiskUsage) {
+					break;
+				}
+				final long slotSize = store.getSlotSize(name);
+				if (store.delete(name)) {
+					usedSize -= slotSize;
+				}
+			}
+		}
+		store.compact();
+		return store.getDiskUsage();
+	}
+
 	private static long getLastUpdateTime(File file) {
 		try {
 			final RrdDbPool rrdPool = getRrdDbPool();
@@ -0,0 +1,333 @@
+/*
+ * Copyright 2008-2019 by Emeric Vernat
+ *
+ *     This file is part of Java Melody.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.bull.javamelody.internal.model;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.bull.javamelody.internal.common.LOG;
+
+/**
+ * Ecriture différée (write-behind) des valeurs dans les fichiers RRD des graphiques par requête.
+ *
+ * Le thread de collecte ajoute les valeurs avec leur timestamp dans une file d'attente
+ * et quelques threads les écrivent par lots dans les fichiers RRD.
+ * Toutes les valeurs en attente d'un fichier sont conservées et écrites dans l'ordre
+ * de leurs timestamps, par un seul thread à la fois pour un même fichier.
+ * Lorsque la file d'attente est pleine, les valeurs en attente du fichier et la nouvelle valeur
+ * sont écrites de manière synchrone par le thread de collecte (backpressure),
+ * ce qui ralentit la collecte au lieu de perdre des valeurs.
+ * Après {@link #stop()}, les valeurs sont écrites de manière synchrone sans recréer de threads,
+ * jusqu'à l'initialisation suivante de JRobin ({@link #start()}).
+ * @author Emeric Vernat
+ */
+public final class JRobinWriter {
+	static final int MAX_PENDING_VALUES = 10000;
+	private static final int NB_THREADS = 2;
+	private static final int BATCH_SIZE = 100;
+
+	private static final Object INSTANCE_LOCK = new Object();
+	private static JRobinWriter instance;
+	private static boolean instanceStopped;
+
+	private static final AtomicLong WRITTEN_VALUES = new AtomicLong();
+	private static final AtomicLong SYNCHRONOUS_VALUES = new AtomicLong();
+
+	// valeurs en attente par nom de fichier RRD, dans l'ordre d'arrivée
+	private final Map<String, List<PendingValue>> pendingValues = new LinkedHashMap<>();
+	// fichiers RRD des lots en cours d'écriture par les threads
+	private final Set<String> writingFileNames = new HashSet<>();
+	private final List<Thread> threads = new ArrayList<>(NB_THREADS);
+	private int pendingValuesCount;
+	private boolean stopped;
+
+	private static final class PendingValue {
+		private final JRobin jrobin;
+		private final long timestamp;
+		private final double value;
+		private final long enqueueTime;
+
+		PendingValue(JRobin jrobin, long timestamp, double value, long enqueueTime) {
+			super();
+			this.jrobin = jrobin;
+			this.timestamp = timestamp;
+			this.value = value;
+			this.enqueueTime = enqueueTime;
+		}
+
+		void write() throws IOException {
+			jrobin.addValue(timestamp, value);
+		}
+	}
+
+	private JRobinWriter() {
+		super();
+		for (int i = 1; i <= NB_THREADS; i++) {
+			final Thread thread = new Thread("javamelody jrobin writer " + i) {
+				@Override
+				public void run() {
+					writePendingValues();
+				}
+			};
+			thread.setDaemon(true);
+			threads.add(thread);
+		}
+		for (final Thread thread : threads) {
+			thread.start();
+		}
+	}
+
+	static void addValue(JRobin jrobin, String rrdFileName, long timestamp, double value)
+			throws IOException {
+		final JRobinWriter writer = getInstance();
+		if (writer == null) {
+			// arrêté : écriture synchrone
+			SYNCHRONOUS_VALUES.incrementAndGet();
+			jrobin.addValue(timestamp, value);
+		} else if (!writer.enqueue(jrobin, rrdFileName, timestamp, value)) {
+			// file d'attente pleine (backpressure) ou arrêt en cours : écriture synchrone,
+			// après les valeurs en attente de ce fichier pour garder l'ordre des timestamps
+			final List<PendingValue> previousValues = writer.takePendingValues(rrdFileName);
+			SYNCHRONOUS_VALUES.addAndGet(previousValues.size() + 1);
+			for (final PendingValue previousValue : previousValues) {
+				previousValue.write();
+			}
+			jrobin.addValue(timestamp, value);
+		}
+	}
+
+	/**
+	 * Retire les valeurs en attente pour ce fichier et attend la fin de leur écriture
+	 * si un thread d'écriture les a déjà prises dans un lot, avant la suppression du fichier.
+	 * @param rrdFileName Nom du fichier RRD
+	 */
+	static void removeValue(String rrdFileName) {
+		final JRobinWriter writer;
+		synchronized (INSTANCE_LOCK) {
+			writer = instance;
+		}
+		if (writer != null) {
+			writer.takePendingValues(rrdFileName);
+		}
+	}
+
+	private static JRobinWriter getInstance() {
+		synchronized (INSTANCE_LOCK) {
+			if (instance == null && !instanceStopped) {
+				instance = new JRobinWriter();
+			}
+			return instance;
+		}
+	}
+
+	/**
+	 * Permet de nouveau l'écriture différée après un arrêt, lors de l'initialisation de JRobin.
+	 */
+	static void start() {
+		synchronized (INSTANCE_LOCK) {
+			instanceStopped = false;
+		}
+	}
+
+	/**
+	 * Arrête les threads d'écriture après avoir écrit les valeurs en attente.
+	 * Les valeurs ajoutées ensuite sont écrites de manière synchrone jusqu'à {@link #start()},
+	 * pour qu'aucun thread ne soit recréé après l'arrêt de la webapp.
+	 */
+	static void stop() {
+		final JRobinWriter writer;
+		synchronized (INSTANCE_LOCK) {
+			instanceStopped = true;
+			writer = instance;
+			instance = null;
+		}
+		if (writer == null) {
+			return;
+		}
+		synchronized (writer.pendingValues) {
+			writer.stopped = true;
+			writer.pendingValues.notifyAll();
+		}
+		for (final Thread thread : writer.threads) {
+			try {
+				thread.join();
+			} catch (final InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			}
+		}
+	}
+
+	private boolean enqueue(JRobin jrobin, String rrdFileName, long timestamp, double value) {
+		synchronized (pendingValues) {
+			if (stopped || pendingValuesCount >= MAX_PENDING_VALUES) {
+				return false;
+			}
+			List<PendingValue> values = pendingValues.get(rrdFileName);
+			if (values == null) {
+				values = new ArrayList<>(1);
+				pendingValues.put(rrdFileName, values);
+			}
+			values.add(new PendingValue(jrobin, timestamp, value, System.currentTimeMillis()));
+			pendingValuesCount++;
+			pendingValues.notifyAll();
+			return true;
+		}
+	}
+
+	/**
+	 * Retire les valeurs en attente pour ce fichier et attend la fin de l'écriture
+	 * du lot en cours pour ce fichier, s'il y en a un.
+	 * @param rrdFileName Nom du fichier RRD
+	 * @return Valeurs en attente retirées, dans l'ordre d'arrivée
+	 */
+	private List<PendingValue> takePendingValues(String rrdFileName) {
+		synchronized (pendingValues) {
+			final List<PendingValue> values = pendingValues.remove(rrdFileName);
+			if (values != null) {
+				pendingValuesCount -= values.size();
+			}
+			while (writingFileNames.contains(rrdFileName)) {
+				try {
+					pendingValues.wait();
+				} catch (final InterruptedException e) {
+					Thread.currentThread().interrupt();
+					break;
+				}
+			}
+			if (values == null) {
+				return Collections.emptyList();
+			}
+			return values;
+		}
+	}
+
+	private void writePendingValues() {
+		final List<List<PendingValue>> batch = new ArrayList<>(BATCH_SIZE);
+		final List<String> batchFileNames = new ArrayList<>(BATCH_SIZE);
+		while (true) {
+			synchronized (pendingValues) {
+				while (true) {
+					final Iterator<Map.Entry<String, List<PendingValue>>> iterator = pendingValues
+							.entrySet().iterator();
+					while (iterator.hasNext() && batch.size() < BATCH_SIZE) {
+						final Map.Entry<String, List<PendingValue>> entry = iterator.next();
+						// un fichier en cours d'écriture par un autre thread est laissé
+						// pour le lot suivant, afin de garder l'ordre de ses valeurs
+						if (writingFileNames.add(entry.getKey())) {
+							batch.add(entry.getValue());
+							batchFileNames.add(entry.getKey());
+							pendingValuesCount -= entry.getValue().size();
+							iterator.remove();
+						}
+					}
+					if (!batch.isEmpty()) {
+						break;
+					}
+					if (stopped && pendingValues.isEmpty()) {
+						// arrêté et toutes les valeurs en attente ont été écrites
+						return;
+					}
+					try {
+						pendingValues.wait();
+					} catch (final InterruptedException e) {
+						return;
+					}
+				}
+			}
+			for (final List<PendingValue> values : batch) {
+				for (final PendingValue pendingValue : values) {
+					try {
+						pendingValue.write();
+						WRITTEN_VALUES.incrementAndGet();
+					} catch (final Throwable t) { // NOPMD
+						// on continue avec les autres valeurs
+						LOG.warn("exception while writing to " + pendingValue.jrobin.getName(), t);
+					}
+				}
+			}
+			synchronized (pendingValues) {
+				writingFileNames.removeAll(batchFileNames);
+				// pour removeValue qui attend la fin de l'écriture d'un fichier
+				// et pour les autres threads qui attendent un fichier de ce lot
+				pendingValues.notifyAll();
+			}
+			batch.clear();
+			batchFileNames.clear();
+		}
+	}
+
+	/**
+	 * @return Nombre de valeurs en attente d'écriture
+	 */
+	public static int getPendingValuesCount() {
+		final JRobinWriter writer;
+		synchronized (INSTANCE_LOCK) {
+			writer = instance;
+		}
+		if (writer == null) {
+			return 0;
+		}
+		synchronized (writer.pendingValues) {
+			return writer.pendingValuesCount;
+		}
+	}
+
+	/**
+	 * @return Retard en millisecondes de la plus ancienne valeur en attente d'écriture
+	 */
+	public static long getLagMillis() {
+		final JRobinWriter writer;
+		synchronized (INSTANCE_LOCK) {
+			writer = instance;
+		}
+		if (writer == null) {
+			return 0;
+		}
+		synchronized (writer.pendingValues) {
+			if (writer.pendingValues.isEmpty()) {
+				return 0;
+			}
+			// la première liste de la map est la plus ancienne et sa première valeur aussi
+			return System.currentTimeMillis()
+					- writer.pendingValues.values().iterator().next().get(0).enqueueTime;
+		}
+	}
+
+	/**
+	 * @return Nombre de valeurs écrites par les threads d'écriture
+	 */
+	public static long getWrittenValuesCount() {
+		return WRITTEN_VALUES.get();
+	}
+
+	/**
+	 * @return Nombre de valeurs écrites de manière synchrone car la file d'attente était pleine
+	 */
+	public static long getSynchronousValuesCount() {
+		return SYNCHRONOUS_VALUES.get();
+	}
+}
@@ -68,6 +68,8 @@ public class JavaInformations implements Serializable { // NOPMD
 	private final int maxConnectionCount;
 	private final int activeConnectionCount;
 	private final long transactionCount;
+	@SuppressWarnings("all")
+	private final List<ConnectionLatencies> connectionLatenciesList;
 	private final long processCpuTimeMillis;
 	private final double systemLoadAverage;
 	private final double systemCpuLoad;
@@ -163,6 +165,7 @@ public class JavaInformations implements Serializable { // NOPMD
 		activeConnectionCount = JdbcWrapper.getActiveConnectionCount();
 		maxConnectionCount = JdbcWrapper.getMaxConnectionCount();
 		transactionCount = JdbcWrapper.getTransactionCount();
+		connectionLatenciesList = JdbcWrapper.getConnectionLatenciesList();
 		systemLoadAverage = buildSystemLoadAverage();
 		systemCpuLoad = buildSystemCpuLoad();
 		processCpuTimeMillis = buildProcessCpuTimeMillis();
@@ -529,6 +532,14 @@ public class JavaInformations implements Serializable { // NOPMD
 		return transactionCount;
 	}
 
+	/**
+	 * @return Histogrammes des temps d'attente et de détention des connexions par DataSource,
+	 * ou null si reçu d'une ancienne version de javamelody
+	 */
+	public List<ConnectionLatencies> getConnectionLatenciesList() {
+		return connectionLatenciesList;
+	}
+
 	public double getUsedConnectionPercentage() {
 		if (maxConnectionCount > 0) {
 			return 100d * usedConnectionCount / maxConnectionCount;
@@ -0,0 +1,408 @@
+/*
+ * Copyright 2008-2019 by Emeric Vernat
+ *
+ *     This file is part of Java Melody.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.bull.javamelody.internal.model;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.ProxySelector;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import net.bull.javamelody.internal.common.LOG;
+
+/**
+ * {@link HttpTransport} avec java.net.http.HttpClient (java 11+), appelé par réflexion
+ * puisque javamelody est compilé en java 7.
+ *
+ * Chaque HttpClient garde un pool de connexions keep-alive par node et multiplexe les requêtes
+ * vers un même node sur une seule connexion en HTTP/2.
+ * HTTP/2 est négocié par ALPN en https. En http, les requêtes restent en HTTP/1.1,
+ * car l'upgrade "h2c" est rarement activé dans les serveurs d'applications.
+ * Comme le timeout de connexion est défini pour un HttpClient et non pour une requête,
+ * il y a un HttpClient par timeout de connexion, soit un seul en général.
+ * Le timeout d'une requête HttpClient ne couvre que l'attente des entêtes de la réponse :
+ * comme avec HttpURLConnection, le timeout de lecture s'applique aussi à chaque lecture du corps,
+ * en fermant le flux si une lecture dure plus longtemps.
+ * @author Emeric Vernat
+ */
+final class JdkHttpClientTransport extends HttpTransport {
+	private static final String HTTP_PACKAGE = "java.net.http.";
+
+	private static ScheduledThreadPoolExecutor readTimeoutExecutor;
+
+	private final ConcurrentMap<Integer, Object> httpClientsByConnectTimeout = new ConcurrentHashMap<>();
+
+	private final Method newClientBuilderMethod;
+	private final Method clientBuilderVersionMethod;
+	private final Method clientBuilderFollowRedirectsMethod;
+	private final Method clientBuilderConnectTimeoutMethod;
+	private final Method clientBuilderProxyMethod;
+	private final Method clientBuilderBuildMethod;
+	private final Method sendMethod;
+	private final Method newRequestBuilderMethod;
+	private final Method requestBuilderVersionMethod;
+	private final Method requestBuilderTimeoutMethod;
+	private final Method requestBuilderHeaderMethod;
+	private final Method requestBuilderMethodMethod;
+	private final Method requestBuilderBuildMethod;
+	private final Method ofByteArrayMethod;
+	private final Method statusCodeMethod;
+	private final Method headersMethod;
+	private final Method bodyMethod;
+	private final Method versionMethod;
+	private final Method firstValueMethod;
+	private final Method orElseMethod;
+	private final Method ofMillisMethod;
+	private final Object http2Version;
+	private final Object http11Version;
+	private final Object normalRedirect;
+	private final Object noBodyPublisher;
+	private final Object inputStreamBodyHandler;
+
+	/**
+	 * Flux fermé si une lecture n'est pas terminée avant le timeout de lecture,
+	 * ce qui débloque la lecture en cours.
+	 */
+	static final class ReadTimeoutInputStream extends FilterInputStream {
+		private final int readTimeout;
+		private volatile boolean timedOut;
+		private final Runnable timeoutTask = new Runnable() {
+			@Override
+			public void run() {
+				timedOut = true;
+				try {
+					in.close();
+				} catch (final IOException e) {
+					LOG.debug(e.toString(), e);
+				}
+			}
+		};
+
+		ReadTimeoutInputStream(InputStream in, int readTimeout) {
+			super(in);
+			assert readTimeout > 0;
+			this.readTimeout = readTimeout;
+		}
+
+		@Override
+		public int read() throws IOException {
+			final ScheduledFuture<?> timeoutFuture = startTimeout();
+			try {
+				return super.read();
+			} catch (final IOException e) {
+				throw timeoutOr(e);
+			} finally {
+				timeoutFuture.cancel(false);
+			}
+		}
+
+		@Override
+		public int read(byte[] bytes, int off, int len) throws IOException {
+			final ScheduledFuture<?> timeoutFuture = startTimeout();
+			try {
+				return super.read(bytes, off, len);
+			} catch (final IOException e) {
+				throw timeoutOr(e);
+			} finally {
+				timeoutFuture.cancel(false);
+			}
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			final ScheduledFuture<?> timeoutFuture = startTimeout();
+			try {
+				return super.skip(n);
+			} catch (final IOException e) {
+				throw timeoutOr(e);
+			} finally {
+				timeoutFuture.cancel(false);
+			}
+		}
+
+		private ScheduledFuture<?> startTimeout() throws IOException {
+			// si le flux a été fermé à la fin d'une lecture qui a pourtant réussi
+			if (timedOut) {
+				throw createTimeoutException(null);
+			}
+			return getReadTimeoutExecutor().schedule(timeoutTask, readTimeout,
+					TimeUnit.MILLISECONDS);
+		}
+
+		private IOException timeoutOr(IOException e) {
+			if (timedOut) {
+				return createTimeoutException(e);
+			}
+			return e;
+		}
+
+		private SocketTimeoutException createTimeoutException(IOException cause) {
+			final SocketTimeoutException result = new SocketTimeoutException(
+					"Read timed out after " + readTimeout + " ms");
+			if (cause != null) {
+				result.initCause(cause);
+			}
+			return result;
+		}
+	}
+
+	private final class JdkHttpClientResponse extends Response {
+		private final Object httpResponse;
+		private final int readTimeout;
+
+		JdkHttpClientResponse(Object httpResponse, int readTimeout) {
+			super();
+			this.httpResponse = httpResponse;
+			this.readTimeout = readTimeout;
+		}
+
+		@Override
+		int getStatus() {
+			return (Integer) invoke(statusCodeMethod, httpResponse);
+		}
+
+		@Override
+		String getHeader(String name) {
+			final Object headers = invoke(headersMethod, httpResponse);
+			return (String) invoke(orElseMethod, invoke(firstValueMethod, headers, name),
+					(Object) null);
+		}
+
+		@Override
+		boolean isHttp2() {
+			return http2Version.equals(invoke(versionMethod, httpResponse));
+		}
+
+		@Override
+		InputStream openInputStream() {
+			final InputStream body = (InputStream) invoke(bodyMethod, httpResponse);
+			if (readTimeout > 0) {
+				return new ReadTimeoutInputStream(body, readTimeout);
+			}
+			return body;
+		}
+	}
+
+	JdkHttpClientTransport() throws ReflectiveOperationException {
+		super();
+		final Class<?> httpClientClass = Class.forName(HTTP_PACKAGE + "HttpClient");
+		final Class<?> clientBuilderClass = Class.forName(HTTP_PACKAGE + "HttpClient$Builder");
+		final Class<?> versionClass = Class.forName(HTTP_PACKAGE + "HttpClient$Version");
+		final Class<?> redirectClass = Class.forName(HTTP_PACKAGE + "HttpClient$Redirect");
+		final Class<?> requestClass = Class.forName(HTTP_PACKAGE + "HttpRequest");
+		final Class<?> requestBuilderClass = Class.forName(HTTP_PACKAGE + "HttpRequest$Builder");
+		final Class<?> bodyPublisherClass = Class
+				.forName(HTTP_PACKAGE + "HttpRequest$BodyPublisher");
+		final Class<?> bodyPublishersClass = Class
+				.forName(HTTP_PACKAGE + "HttpRequest$BodyPublishers");
+		final Class<?> responseClass = Class.forName(HTTP_PACKAGE + "HttpResponse");
+		final Class<?> bodyHandlerClass = Class.forName(HTTP_PACKAGE + "HttpResponse$BodyHandler");
+		final Class<?> bodyHandlersClass = Class
+				.forName(HTTP_PACKAGE + "HttpResponse$BodyHandlers");
+		final Class<?> headersClass = Class.forName(HTTP_PACKAGE + "HttpHeaders");
+		final Class<?> durationClass = Class.forName("java.time.Duration");
+		final Class<?> optionalClass = Class.forName("java.util.Optional");
+
+		newClientBuilderMethod = httpClientClass.getMethod("newBuilder");
+		clientBuilderVersionMethod = clientBuilderClass.getMethod("version", versionClass);
+		clientBuilderFollowRedirectsMethod = clientBuilderClass.getMethod("followRedirects",
+				redirectClass);
+		clientBuilderConnectTimeoutMethod = clientBuilderClass.getMethod("connectTimeout",
+				durationClass);
+		clientBuilderProxyMethod = clientBuilderClass.getMethod("proxy", ProxySelector.class);
+		clientBuilderBuildMethod = clientBuilderClass.getMethod("build");
+		sendMethod = httpClientClass.getMethod("send", requestClass, bodyHandlerClass);
+		newRequestBuilderMethod = requestClass.getMethod("newBuilder", URI.class);
+		requestBuilderVersionMethod = requestBuilderClass.getMethod("version", versionClass);
+		requestBuilderTimeoutMethod = requestBuilderClass.getMethod("timeout", durationClass);
+		requestBuilderHeaderMethod = requestBuilderClass.getMethod("header", String.class,
+				String.class);
+		requestBuilderMethodMethod = requestBuilderClass.getMethod("method", String.class,
+				bodyPublisherClass);
+		requestBuilderBuildMethod = requestBuilderClass.getMethod("build");
+		ofByteArrayMethod = bodyPublishersClass.getMethod("ofByteArray", byte[].class);
+		statusCodeMethod = responseClass.getMethod("statusCode");
+		headersMethod = responseClass.getMethod("headers");
+		bodyMethod = responseClass.getMethod("body");
+		versionMethod = responseClass.getMethod("version");
+		firstValueMethod = headersClass.getMethod("firstValue", String.class);
+		orElseMethod = optionalClass.getMethod("orElse", Object.class);
+		ofMillisMethod = durationClass.getMethod("ofMillis", long.class);
+		http2Version = versionClass.getField("HTTP_2").get(null);
+		http11Version = versionClass.getField("HTTP_1_1").get(null);
+		normalRedirect = redirectClass.getField("NORMAL").get(null);
+		noBodyPublisher = bodyPublishersClass.getMethod("noBody").invoke(null);
+		inputStreamBodyHandler = bodyHandlersClass.getMethod("ofInputStream").invoke(null);
+	}
+
+	@Override
+	String getName() {
+		return "java.net.http.HttpClient";
+	}
+
+	@Override
+	Response doSend(URL url, String method, Map<String, String> headers, byte[] payload,
+			int connectTimeout, int readTimeout) throws IOException {
+		final URI uri;
+		try {
+			uri = url.toURI();
+		} catch (final URISyntaxException e) {
+			// url non conforme à la RFC 2396 (caractères non encodés par exemple),
+			// acceptée par HttpURLConnection
+			return new UrlConnectionTransport().doSend(url, method, headers, payload,
+					connectTimeout, readTimeout);
+		}
+		Object requestBuilder = invoke(newRequestBuilderMethod, null, uri);
+		if (!"https".equals(url.getProtocol())) {
+			requestBuilder = invoke(requestBuilderVersionMethod, requestBuilder, http11Version);
+		}
+		if (readTimeout > 0) {
+			// c'est le timeout jusqu'à la réception des entêtes de la réponse,
+			// les lectures du corps sont limitées par ReadTimeoutInputStream
+			requestBuilder = invoke(requestBuilderTimeoutMethod, requestBuilder,
+					invoke(ofMillisMethod, null, (long) readTimeout));
+		}
+		for (final Map.Entry<String, String> entry : headers.entrySet()) {
+			try {
+				requestBuilder = invoke(requestBuilderHeaderMethod, requestBuilder,
+						entry.getKey(), entry.getValue());
+			} catch (final IllegalArgumentException e) {
+				// entête non autorisé par HttpClient, par exemple "Connection" ou "Host"
+				LOG.debug("http header ignored: " + entry.getKey(), e);
+			}
+		}
+		final Object bodyPublisher;
+		if (payload == null) {
+			bodyPublisher = noBodyPublisher;
+		} else {
+			bodyPublisher = invoke(ofByteArrayMethod, null, (Object) payload);
+		}
+		requestBuilder = invoke(requestBuilderMethodMethod, requestBuilder, method,
+				bodyPublisher);
+		final Object request = invoke(requestBuilderBuildMethod, requestBuilder);
+
+		final Object httpResponse;
+		try {
+			httpResponse = sendMethod.invoke(getHttpClient(connectTimeout), request,
+					inputStreamBodyHandler);
+		} catch (final InvocationTargetException e) {
+			throw createIOException(e.getCause());
+		} catch (final IllegalAccessException e) {
+			throw new IllegalStateException(e);
+		}
+		return new JdkHttpClientResponse(httpResponse, readTimeout);
+	}
+
+	private Object getHttpClient(int connectTimeout) {
+		Object httpClient = httpClientsByConnectTimeout.get(connectTimeout);
+		if (httpClient == null) {
+			Object builder = invoke(newClientBuilderMethod, null);
+			builder = invoke(clientBuilderVersionMethod, builder, http2Version);
+			builder = invoke(clientBuilderFollowRedirectsMethod, builder, normalRedirect);
+			if (connectTimeout > 0) {
+				builder = invoke(clientBuilderConnectTimeoutMethod, builder,
+						invoke(ofMillisMethod, null, (long) connectTimeout));
+			}
+			// comme HttpURLConnection, on utilise les proxys définis par les propriétés systèmes
+			final ProxySelector proxySelector = ProxySelector.getDefault();
+			if (proxySelector != null) {
+				builder = invoke(clientBuilderProxyMethod, builder, proxySelector);
+			}
+			httpClient = invoke(clientBuilderBuildMethod, builder);
+			final Object previous = httpClientsByConnectTimeout.putIfAbsent(connectTimeout,
+					httpClient);
+			if (previous != null) {
+				httpClient = previous;
+			}
+		}
+		return httpClient;
+	}
+
+	private static synchronized ScheduledThreadPoolExecutor getReadTimeoutExecutor() {
+		if (readTimeoutExecutor == null) {
+			final ThreadFactory threadFactory = new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable runnable) {
+					final Thread thread = new Thread(runnable, "javamelody http read timeout");
+					thread.setDaemon(true);
+					return thread;
+				}
+			};
+			final ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1,
+					threadFactory);
+			// les timeouts annulés à la fin de chaque lecture sont retirés de la file
+			executor.setRemoveOnCancelPolicy(true);
+			// le thread se termine quand il n'y a plus de lecture en cours
+			executor.setKeepAliveTime(60, TimeUnit.SECONDS);
+			executor.allowCoreThreadTimeOut(true);
+			readTimeoutExecutor = executor;
+		}
+		return readTimeoutExecutor;
+	}
+
+	private static IOException createIOException(Throwable throwable) {
+		if (throwable instanceof InterruptedException) {
+			Thread.currentThread().interrupt();
+			final InterruptedIOException result = new InterruptedIOException(
+					throwable.getMessage());
+			result.initCause(throwable);
+			return result;
+		} else if (throwable.getClass().getName().startsWith(HTTP_PACKAGE)
+				&& throwable.getClass().getName().endsWith("TimeoutException")) {
+			// HttpTimeoutException ou HttpConnectTimeoutException,
+			// traduits comme avec HttpURLConnection pour que l'appelant ne fasse pas d'autre essai
+			final SocketTimeoutException result = new SocketTimeoutException(
+					throwable.getMessage());
+			result.initCause(throwable);
+			return result;
+		} else if (throwable instanceof IOException) {
+			return (IOException) throwable;
+		} else if (throwable instanceof RuntimeException) {
+			throw (RuntimeException) throwable;
+		} else if (throwable instanceof Error) {
+			throw (Error) throwable;
+		}
+		return new IOException(throwable.getMessage(), throwable);
+	}
+
+	private static Object invoke(Method method, Object object, Object... args) {
+		try {
+			return method.invoke(object, args);
+		} catch (final InvocationTargetException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new IllegalStateException(e.getCause());
+		} catch (final IllegalAccessException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
@@ -22,12 +22,11 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.Serializable;
-import java.net.HttpURLConnection;
 import java.net.URL;
-import java.net.URLConnection;
-import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.zip.GZIPInputStream;
 
@@ -47,80 +46,17 @@ import net.bull.javamelody.internal.common.Parameters;
  * @author Emeric Vernat
  */
 public class LabradorRetriever {
-	/** Timeout des connections serveur en millisecondes (0 : pas de timeout). */
-	private static final int CONNECTION_TIMEOUT = 20000;
-
-	/** Timeout de lecture des connections serveur en millisecondes (0 : pas de timeout). */
-	private static final int READ_TIMEOUT = 60000;
+	// entêtes de la réponse recopiés par proxyTo, pour le cache du navigateur,
+	// les téléchargements (hs_err_pid par exemple) et l'authentification
+	private static final List<String> PROXIED_RESPONSE_HEADERS = Arrays.asList(
+			"Content-Disposition", "Cache-Control", "Expires", "ETag", "Last-Modified",
+			"WWW-Authenticate");
+	// début du message lorsque la réponse à une demande en format binaire est dans un autre format
+	static final String UNEXPECTED_CONTENT_TYPE_MESSAGE = "Unexpected content type for the binary format: ";
 
 	private final URL url;
 	private final Map<String, String> headers;
 
-	// Rq: les configurations suivantes sont celles par défaut, on ne les change pas
-	//	    static { HttpURLConnection.setFollowRedirects(true);
-	//	    URLConnection.setDefaultAllowUserInteraction(true); }
-
-	private static class CounterInputStream extends InputStream {
-		private final InputStream inputStream;
-		private int dataLength;
-
-		CounterInputStream(InputStream inputStream) {
-			super();
-			this.inputStream = inputStream;
-		}
-
-		int getDataLength() {
-			return dataLength;
-		}
-
-		@Override
-		public int read() throws IOException {
-			final int result = inputStream.read();
-			if (result != -1) {
-				dataLength += 1;
-			}
-			return result;
-		}
-
-		@Override
-		public int read(byte[] bytes) throws IOException {
-			final int result = inputStream.read(bytes);
-			if (result != -1) {
-				dataLength += result;
-			}
-			return result;
-		}
-
-		@Override
-		public int read(byte[] bytes, int off, int len) throws IOException {
-			final int result = inputStream.read(bytes, off, len);
-			if (result != -1) {
-				dataLength += result;
-			}
-			return result;
-		}
-
-		@Override
-		public long skip(long n) throws IOException {
-			return inputStream.skip(n);
-		}
-
-		@Override
-		public int available() throws IOException {
-			return inputStream.available();
-		}
-
-		@Override
-		public void close() throws IOException {
-			inputStream.close();
-		}
-
-		@Override
-		public boolean markSupported() {
-			return false; // Assume that mark is NO good for a counterInputStream
-		}
-	}
-
 	public LabradorRetriever(URL url) {
 		this(url, null);
 	}
@@ -138,33 +74,24 @@ public class LabradorRetriever {
 			return this.<T> createMockResultOfCall();
 		}
 		final long start = System.currentTimeMillis();
-		int dataLength = -1;
+		long dataLength = -1;
 		try {
-			final URLConnection connection = openConnection();
 			// pour traductions (si on vient de CollectorServlet.forwardActionAndUpdateData,
 			// cela permet d'avoir les messages dans la bonne langue)
-			connection.setRequestProperty("Accept-Language", I18N.getCurrentLocale().getLanguage());
+			final HttpTransport.Response response = send(HttpTransport.GET,
+					I18N.getCurrentLocale().getLanguage(), null);
 
 			// Rq: on ne gère pas ici les éventuels cookie de session http,
 			// puisque le filtre de monitoring n'est pas censé créer des sessions
-			//		if (cookie != null) { connection.setRequestProperty("Cookie", cookie); }
-
-			connection.connect();
-
-			//		final String setCookie = connection.getHeaderField("Set-Cookie");
-			//		if (setCookie != null) { cookie = setCookie; }
-
-			final CounterInputStream counterInputStream = new CounterInputStream(
-					connection.getInputStream());
 
 			final T result;
 			try {
 				@SuppressWarnings("unchecked")
-				final T tmp = (T) read(connection, counterInputStream);
+				final T tmp = (T) read(response, isBinaryFormatRequested());
 				result = tmp;
 			} finally {
-				counterInputStream.close();
-				dataLength = counterInputStream.getDataLength();
+				response.close();
+				dataLength = response.getDataLength();
 			}
 			LOG.debug("read on " + url + " : " + result);
 
@@ -199,21 +126,59 @@ public class LabradorRetriever {
 		assert httpRequest != null;
 		assert httpResponse != null;
 		final long start = System.currentTimeMillis();
-		int dataLength = -1;
+		long dataLength = -1;
 		try {
-			final URLConnection connection = openConnection();
 			// pour traductions
-			connection.setRequestProperty("Accept-Language",
-					httpRequest.getHeader("Accept-Language"));
-			connection.connect();
-			httpResponse.setContentType(connection.getContentType());
+			final HttpTransport.Response response = send(HttpTransport.GET,
+					httpRequest.getHeader("Accept-Language"), null);
+			httpResponse.setContentType(response.getContentType());
 			// Content-Disposition pour téléchargement hs_err_pid par exemple
-			final String contentDisposition = connection.getHeaderField("Content-Disposition");
+			final String contentDisposition = response.getHeader("Content-Disposition");
 			if (contentDisposition != null) {
 				httpResponse.setHeader("Content-Disposition", contentDisposition);
 			}
 			final OutputStream output = httpResponse.getOutputStream();
-			dataLength = pump(output, connection);
+			dataLength = pump(output, response);
+		} finally {
+			LOG.info("http call done in " + (System.currentTimeMillis() - start) + " ms with "
+					+ dataLength / 1024 + " KB read for " + url);
+		}
+	}
+
+	/**
+	 * Transmet une requête avec sa méthode et son contenu, puis recopie la réponse
+	 * avec son statut http, même en erreur.
+	 * @param method GET, POST ou autre
+	 * @param payload Contenu de la requête ou null
+	 * @param httpRequest HttpServletRequest
+	 * @param httpResponse HttpServletResponse
+	 * @throws IOException Exception de communication
+	 */
+	public void proxyTo(String method, byte[] payload, HttpServletRequest httpRequest,
+			HttpServletResponse httpResponse) throws IOException {
+		if (shouldMock()) {
+			return;
+		}
+		assert method != null;
+		assert httpRequest != null;
+		assert httpResponse != null;
+		final long start = System.currentTimeMillis();
+		long dataLength = -1;
+		try {
+			final HttpTransport.Response response = HttpTransport.sendWithAnyStatus(url, method,
+					createRequestHeaders(httpRequest.getHeader("Accept-Language")), payload);
+			httpResponse.setStatus(response.getStatus());
+			if (response.getContentType() != null) {
+				httpResponse.setContentType(response.getContentType());
+			}
+			for (final String header : PROXIED_RESPONSE_HEADERS) {
+				final String value = response.getHeader(header);
+				if (value != null) {
+					httpResponse.setHeader(header, value);
+				}
+			}
+			final OutputStream output = httpResponse.getOutputStream();
+			dataLength = pump(output, response);
 		} finally {
 			LOG.info("http call done in " + (System.currentTimeMillis() - start) + " ms with "
 					+ dataLength / 1024 + " KB read for " + url);
@@ -226,25 +191,21 @@ public class LabradorRetriever {
 		}
 		assert output != null;
 		final long start = System.currentTimeMillis();
-		int dataLength = -1;
+		long dataLength = -1;
 		try {
-			final URLConnection connection = openConnection();
-			connection.connect();
-
-			dataLength = pump(output, connection);
+			final HttpTransport.Response response = send(HttpTransport.GET, null, null);
+			dataLength = pump(output, response);
 		} finally {
 			LOG.info("http call done in " + (System.currentTimeMillis() - start) + " ms with "
 					+ dataLength / 1024 + " KB read for " + url);
 		}
 	}
 
-	private int pump(OutputStream output, URLConnection connection) throws IOException {
-		final int dataLength;
-		final CounterInputStream counterInputStream = new CounterInputStream(
-				connection.getInputStream());
-		InputStream input = counterInputStream;
+	private static long pump(OutputStream output, HttpTransport.Response response)
+			throws IOException {
+		InputStream input = response.getInputStream();
 		try {
-			if ("gzip".equals(connection.getContentEncoding())) {
+			if ("gzip".equals(response.getContentEncoding())) {
 				input = new GZIPInputStream(input);
 			}
 			InputOutput.pump(input, output);
@@ -252,85 +213,78 @@ public class LabradorRetriever {
 			try {
 				input.close();
 			} finally {
-				close(connection);
-				dataLength = counterInputStream.getDataLength();
+				response.close();
 			}
 		}
-		return dataLength;
+		return response.getDataLength();
 	}
 
 	public void post(ByteArrayOutputStream payload) throws IOException {
-		final HttpURLConnection connection = (HttpURLConnection) openConnection();
-		connection.setRequestMethod("POST");
-		connection.setDoOutput(true);
-
+		final byte[] bytes;
 		if (payload != null) {
-			final OutputStream outputStream = connection.getOutputStream();
-			payload.writeTo(outputStream);
-			outputStream.flush();
-		}
-
-		final int status = connection.getResponseCode();
-		if (status >= HttpURLConnection.HTTP_BAD_REQUEST) {
-			final String error = InputOutput.pumpToString(connection.getErrorStream(),
-					StandardCharsets.UTF_8);
-			final String msg = "Error connecting to " + url + '(' + status + "): " + error;
-			throw new IOException(msg);
+			bytes = payload.toByteArray();
+		} else {
+			bytes = null;
 		}
-		connection.disconnect();
+		// la réponse est lue et fermée pour que la connexion soit réutilisable
+		send(HttpTransport.POST, null, bytes).close();
 	}
 
 	/**
-	 * Ouvre la connection http.
-	 * @return Object
+	 * Envoie la requête http.
+	 * @param method GET ou POST
+	 * @param acceptLanguage Entête Accept-Language ou null
+	 * @param payload Contenu de la requête POST ou null
+	 * @return Response
 	 * @throws IOException   Exception de communication
 	 */
-	private URLConnection openConnection() throws IOException {
-		final URLConnection connection = url.openConnection();
-		connection.setUseCaches(false);
-		if (CONNECTION_TIMEOUT > 0) {
-			connection.setConnectTimeout(CONNECTION_TIMEOUT);
-		}
-		if (READ_TIMEOUT > 0) {
-			connection.setReadTimeout(READ_TIMEOUT);
-		}
+	private HttpTransport.Response send(String method, String acceptLanguage, byte[] payload)
+			throws IOException {
+		return HttpTransport.send(url, method, createRequestHeaders(acceptLanguage), payload);
+	}
+
+	private Map<String, String> createRequestHeaders(String acceptLanguage) {
+		final Map<String, String> requestHeaders = new LinkedHashMap<>();
 		// grâce à cette propriété, l'application retournera un flux compressé si la taille
 		// dépasse x Ko
-		connection.setRequestProperty("Accept-Encoding", "gzip");
+		requestHeaders.put("Accept-Encoding", "gzip");
 		if (headers != null) {
-			for (final Map.Entry<String, String> entry : headers.entrySet()) {
-				connection.setRequestProperty(entry.getKey(), entry.getValue());
-			}
+			requestHeaders.putAll(headers);
+		}
+		if (acceptLanguage != null) {
+			requestHeaders.put("Accept-Language", acceptLanguage);
 		}
 		if (url.getUserInfo() != null) {
 			final String authorization = Base64Coder.encodeString(url.getUserInfo());
-			connection.setRequestProperty("Authorization", "Basic " + authorization);
+			requestHeaders.put("Authorization", "Basic " + authorization);
 		}
-		return connection;
+		return requestHeaders;
 	}
 
 	/**
 	 * Lit l'objet renvoyé dans le flux de réponse.
 	 * @return Object
-	 * @param connection URLConnection
-	 * @param inputStream InputStream à utiliser à la place de connection.getInputStream()
+	 * @param response Réponse http
+	 * @param binaryFormatRequested true si la requête demande le format binaire
 	 * @throws IOException   Exception de communication
 	 * @throws ClassNotFoundException   Une classe transmise par le serveur n'a pas été trouvée
 	 */
-	private static Serializable read(URLConnection connection, InputStream inputStream)
-			throws IOException, ClassNotFoundException {
-		InputStream input = inputStream;
+	private static Serializable read(HttpTransport.Response response,
+			boolean binaryFormatRequested) throws IOException, ClassNotFoundException {
+		InputStream input = response.getInputStream();
 		try {
-			if ("gzip".equals(connection.getContentEncoding())) {
+			if ("gzip".equals(response.getContentEncoding())) {
 				// si la taille du flux dépasse x Ko et que l'application a retourné un flux compressé
 				// alors on le décompresse
 				input = new GZIPInputStream(input);
 			}
-			final String contentType = connection.getContentType();
+			final String contentType = response.getContentType();
 			final TransportFormat transportFormat;
 			if (contentType != null) {
 				if (contentType.startsWith("text/xml")) {
 					transportFormat = TransportFormat.XML;
+				} else if (contentType.startsWith(TransportFormat.BINARY.getMimeType())) {
+					transportFormat = TransportFormat.BINARY;
 				} else if (contentType.startsWith("text/html")) {
 					throw new IllegalStateException(
 							"Unexpected html content type, maybe not authentified");
@@ -340,27 +294,21 @@ public class LabradorRetriever {
 			} else {
 				transportFormat = TransportFormat.SERIALIZED;
 			}
+			if (binaryFormatRequested && transportFormat != TransportFormat.BINARY) {
+				// une application d'une version précédente ne répond pas en format binaire
+				throw new IOException(UNEXPECTED_CONTENT_TYPE_MESSAGE + contentType);
+			}
 			return transportFormat.readSerializableFrom(input);
 		} finally {
-			try {
-				input.close();
-			} finally {
-				close(connection);
-			}
+			// ce close doit être fait en finally
+			// (http://java.sun.com/j2se/1.5.0/docs/guide/net/http-keepalive.html)
+			input.close();
 		}
 	}
 
-	private static void close(URLConnection connection) throws IOException {
-		// ce close doit être fait en finally
-		// (http://java.sun.com/j2se/1.5.0/docs/guide/net/http-keepalive.html)
-		connection.getInputStream().close();
-
-		if (connection instanceof HttpURLConnection) {
-			final InputStream error = ((HttpURLConnection) connection).getErrorStream();
-			if (error != null) {
-				error.close();
-			}
-		}
+	private boolean isBinaryFormatRequested() {
+		return url.toString()
+				.contains(HttpParameter.FORMAT + "=" + TransportFormat.BINARY.getCode());
 	}
 
 	private static boolean shouldMock() {
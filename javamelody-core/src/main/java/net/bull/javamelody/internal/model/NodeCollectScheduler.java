@@ -0,0 +1,249 @@
+/*
+ * Copyright 2008-2019 by Emeric Vernat
+ *
+ *     This file is part of Java Melody.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.bull.javamelody.internal.model;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.bull.javamelody.Parameter;
+
+/**
+ * Exécution concurrente des collectes du serveur de collecte, par application et par noeud d'application :
+ * sur des virtual threads en Java 21+, et sinon sur un pool borné de threads.
+ *
+ * Chaque collecte sur un noeud a un timeout (paramètre collector-node-timeout-seconds, 30 s par défaut),
+ * compté depuis le début de son exécution et non depuis sa soumission, au-delà duquel son résultat
+ * n'est plus attendu, pour qu'un noeud lent ne retarde pas la collecte des autres.
+ * @author Emeric Vernat
+ */
+final class NodeCollectScheduler {
+	/**
+	 * Nombre maximum de threads pour les collectes par noeud, lorsque les virtual threads ne sont pas disponibles.
+	 */
+	static final int MAX_NODE_COLLECT_THREADS = 50;
+
+	private static final int DEFAULT_NODE_TIMEOUT_SECONDS = 30;
+
+	private static ExecutorService nodeExecutorService;
+
+	/**
+	 * Collecte sur un noeud, soumise à l'exécution et dont la durée est mesurée.
+	 * @param <T> Type du résultat
+	 */
+	static final class NodeCollect<T> implements Callable<T> {
+		private final String node;
+		private final Callable<T> callable;
+		// début de l'exécution, -1 tant que la collecte attend un thread
+		private volatile long startTime = -1;
+		private volatile long duration = -1;
+		private Future<T> future;
+
+		NodeCollect(String node, Callable<T> callable) {
+			super();
+			assert node != null;
+			assert callable != null;
+			this.node = node;
+			this.callable = callable;
+		}
+
+		/** {@inheritDoc} */
+		@Override
+		public T call() throws Exception { // NOPMD
+			final long start = System.currentTimeMillis();
+			startTime = start;
+			try {
+				return callable.call();
+			} finally {
+				duration = Math.max(0, System.currentTimeMillis() - start);
+			}
+		}
+
+		String getNode() {
+			return node;
+		}
+
+		/**
+		 * @return Durée d'exécution de la collecte en millisecondes, sans l'attente d'un thread,
+		 * ou durée jusqu'à maintenant si elle n'est pas terminée
+		 */
+		long getDuration() {
+			if (duration < 0) {
+				final long start = startTime;
+				if (start < 0) {
+					return 0;
+				}
+				return Math.max(0, System.currentTimeMillis() - start);
+			}
+			return duration;
+		}
+
+		/**
+		 * Attend le résultat de la collecte jusqu'au timeout compté depuis le début de son exécution.
+		 * @param timeout Timeout en millisecondes, ou -1 pour aucun timeout
+		 * @return Résultat
+		 * @throws IOException Si la collecte a échoué ou n'est pas terminée avant le timeout
+		 */
+		T get(long timeout) throws IOException {
+			assert future != null;
+			try {
+				if (timeout < 0) {
+					return future.get();
+				}
+				while (true) {
+					final long start = startTime;
+					// tant que la collecte attend un thread, le timeout n'a pas commencé
+					final long remaining = start < 0 ? timeout
+							: start + timeout - System.currentTimeMillis();
+					if (remaining <= 0 && start >= 0) {
+						throw new TimeoutException();
+					}
+					try {
+						return future.get(Math.max(1, remaining), TimeUnit.MILLISECONDS);
+					} catch (final TimeoutException e) {
+						// on vérifie de nouveau si la collecte a démarré pendant l'attente
+						continue;
+					}
+				}
+			} catch (final TimeoutException e) {
+				// pas d'interruption, qui n'arrête pas une lecture bloquante sur un socket
+				// hors virtual thread : la collecte se terminera avec le timeout de lecture
+				// de la connexion http, et son résultat sera ignoré
+				future.cancel(false);
+				throw new IOException("Timeout of the collect on " + node + " after "
+						+ getDuration() + " ms", e);
+			} catch (final InterruptedException e) {
+				future.cancel(false);
+				Thread.currentThread().interrupt();
+				throw new IOException(e.getMessage(), e);
+			} catch (final ExecutionException e) {
+				final Throwable cause = e.getCause();
+				if (cause instanceof IOException) {
+					throw (IOException) cause;
+				} else if (cause instanceof RuntimeException) {
+					throw (RuntimeException) cause;
+				} else if (cause instanceof Error) {
+					throw (Error) cause;
+				}
+				throw new IOException(cause.getMessage(), cause);
+			}
+		}
+	}
+
+	private NodeCollectScheduler() {
+		super();
+	}
+
+	/**
+	 * Soumet une collecte sur un noeud.
+	 * @param node Nom du noeud (hôte et port)
+	 * @param callable Collecte
+	 * @param <T> Type du résultat
+	 * @return NodeCollect pour attendre le résultat et connaître la durée
+	 */
+	static <T> NodeCollect<T> submit(String node, Callable<T> callable) {
+		final NodeCollect<T> nodeCollect = new NodeCollect<>(node, callable);
+		nodeCollect.future = getNodeExecutorService().submit(nodeCollect);
+		return nodeCollect;
+	}
+
+	/**
+	 * @return Timeout en millisecondes d'une collecte sur un noeud, depuis le début de son exécution
+	 */
+	static long getNodeCollectTimeout() {
+		final String parameter = Parameter.COLLECTOR_NODE_TIMEOUT_SECONDS.getValue();
+		final int timeoutSeconds;
+		if (parameter == null) {
+			timeoutSeconds = DEFAULT_NODE_TIMEOUT_SECONDS;
+		} else {
+			timeoutSeconds = Integer.parseInt(parameter);
+			if (timeoutSeconds <= 0) {
+				throw new IllegalStateException(
+						"The parameter collector-node-timeout-seconds should be > 0");
+			}
+		}
+		return timeoutSeconds * 1000L;
+	}
+
+	private static synchronized ExecutorService getNodeExecutorService() {
+		if (nodeExecutorService == null) {
+			nodeExecutorService = createExecutorService("javamelody node collect",
+					MAX_NODE_COLLECT_THREADS);
+		}
+		return nodeExecutorService;
+	}
+
+	/**
+	 * Crée un ExecutorService avec un virtual thread par tâche si Java 21+,
+	 * ou sinon avec un pool d'au plus maxThreads threads daemon.
+	 * @param threadName Préfixe du nom des threads
+	 * @param maxThreads Nombre maximum de threads si pas de virtual threads
+	 * @return ExecutorService
+	 */
+	static ExecutorService createExecutorService(final String threadName, int maxThreads) {
+		final ExecutorService virtualThreadExecutorService = createVirtualThreadExecutorService(
+				threadName);
+		if (virtualThreadExecutorService != null) {
+			return virtualThreadExecutorService;
+		}
+		final AtomicInteger threadNumber = new AtomicInteger();
+		final ThreadFactory threadFactory = new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				final Thread thread = new Thread(runnable,
+						threadName + ' ' + threadNumber.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		};
+		final ThreadPoolExecutor executor = new ThreadPoolExecutor(maxThreads, maxThreads, 60L,
+				TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), threadFactory);
+		// les threads inutilisés se terminent entre deux collectes
+		executor.allowCoreThreadTimeOut(true);
+		return executor;
+	}
+
+	private static ExecutorService createVirtualThreadExecutorService(String threadName) {
+		// Thread.ofVirtual().name(threadName + ' ', 1).factory() et Executors.newThreadPerTaskExecutor(factory)
+		// par réflexion, car javamelody est compilé en Java 7
+		try {
+			final Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			final Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+			final Object namedBuilder = builderClass.getMethod("name", String.class, long.class)
+					.invoke(builder, threadName + ' ', 1L);
+			final ThreadFactory threadFactory = (ThreadFactory) builderClass.getMethod("factory")
+					.invoke(namedBuilder);
+			final Method newThreadPerTaskExecutor = Executors.class
+					.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+			return (ExecutorService) newThreadPerTaskExecutor.invoke(null, threadFactory);
+		} catch (final Exception e) { // NOPMD
+			// pas de virtual threads avant Java 21
+			return null;
+		}
+	}
+}
@@ -0,0 +1,283 @@
+/*
+ * Copyright 2008-2019 by Emeric Vernat
+ *
+ *     This file is part of Java Melody.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.bull.javamelody.internal.model;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Statistiques des counters reçues de chaque noeud d'une application par le serveur de collecte,
+ * depuis le démarrage du noeud.
+ *
+ * Les noeuds ne vident plus leurs counters et envoient seulement des deltas ({@link CounterDeltaTracker}),
+ * mais ils envoient de nouveau leurs counters complets lorsque la génération acquittée leur est inconnue.
+ * Ces counters complets contiennent alors ce qui a déjà été reçu de ce noeud : ils remplacent
+ * la contribution précédente du noeud au lieu de s'y ajouter.
+ *
+ * Pour limiter la mémoire, seules les statistiques cumulées de chaque requête sont gardées
+ * (hits, sommes et maximum), et non des clones des counters. Les requêtes filles, les données RUM
+ * et les données sql (batchs et formes) ne sont donc pas déduites : elles sont retirées des requêtes
+ * d'un remplacement, plutôt que d'être comptées une seconde fois.
+ * @author Emeric Vernat
+ */
+class NodeContributions {
+	private final Map<String, NodeContribution> contributionsByNode = new HashMap<>();
+	// date de démarrage des noeuds dont la contribution a été évincée (noeud injoignable)
+	private final Map<String, Date> evictedStartDatesByNode = new HashMap<>();
+
+	/**
+	 * Statistiques reçues d'un counter d'un noeud.
+	 */
+	private static final class CounterContribution {
+		private final Map<String, long[]> statisticsByRequestName = new HashMap<>();
+		private long lastErrorTime = Long.MIN_VALUE;
+
+		void add(Counter counter) {
+			final long[] statistics = new long[CounterRequest.STATISTICS_COUNT];
+			for (final CounterRequest request : counter.getRequestsWithoutClone()) {
+				request.getStatistics(statistics);
+				final long[] requestStatistics = statisticsByRequestName.get(request.getName());
+				if (requestStatistics == null) {
+					statisticsByRequestName.put(request.getName(), statistics.clone());
+				} else {
+					for (int i = 0; i < statistics.length; i++) {
+						if (i == CounterRequest.MAXIMUM_STATISTIC) {
+							requestStatistics[i] = Math.max(requestStatistics[i], statistics[i]);
+						} else {
+							requestStatistics[i] += statistics[i];
+						}
+					}
+				}
+			}
+			if (counter.isErrorCounter()) {
+				for (final CounterError error : counter.getErrors()) {
+					lastErrorTime = Math.max(lastErrorTime, error.getTime());
+				}
+			}
+		}
+
+		long getEstimatedMemorySize() {
+			// HashMap.Node, tableau de statistiques et nom de la requête
+			long result = 64;
+			for (final String requestName : statisticsByRequestName.keySet()) {
+				result += 48 + 16 + 8 * CounterRequest.STATISTICS_COUNT
+						+ CounterRequest.getEstimatedMemorySize(requestName);
+			}
+			return result;
+		}
+	}
+
+	/**
+	 * Statistiques reçues d'un noeud depuis son démarrage.
+	 */
+	private static final class NodeContribution {
+		private final Date startDate;
+		// false si les premiers counters reçus n'étaient que des deltas (après une éviction
+		// ou un redémarrage du serveur de collecte), et alors les statistiques sont incomplètes
+		private final boolean complete;
+		private final Map<String, CounterContribution> countersByName = new HashMap<>();
+
+		NodeContribution(Date startDate, boolean complete) {
+			super();
+			this.startDate = startDate;
+			this.complete = complete;
+		}
+
+		boolean isSameNodeStart(Date nodeStartDate) {
+			// sans date de démarrage reçue, on considère que c'est le même démarrage
+			return nodeStartDate == null || nodeStartDate.equals(startDate);
+		}
+
+		CounterContribution getCounter(String counterName) {
+			return countersByName.get(counterName);
+		}
+
+		void add(Counter counter) {
+			CounterContribution contributionCounter = countersByName.get(counter.getName());
+			if (contributionCounter == null) {
+				contributionCounter = new CounterContribution();
+				countersByName.put(counter.getName(), contributionCounter);
+			}
+			contributionCounter.add(counter);
+		}
+
+		long getEstimatedMemorySize() {
+			long result = 64;
+			for (final CounterContribution contributionCounter : countersByName.values()) {
+				result += contributionCounter.getEstimatedMemorySize();
+			}
+			return result;
+		}
+	}
+
+	/**
+	 * Enregistre les counters reçus d'un noeud et retourne ceux à ajouter aux données de l'application.
+	 * @param nodeKey Clé du noeud
+	 * @param nodeStartDate Date de démarrage du noeud ou null si inconnue
+	 * @param counters Counters reçus du noeud, en delta ou complets
+	 * @param fullSnapshot true si les counters reçus sont complets depuis le démarrage du noeud
+	 * @return Counters à ajouter : les counters reçus, ou pour des counters complets
+	 * seulement ce qui n'avait pas encore été reçu de ce noeud
+	 */
+	synchronized List<Counter> add(String nodeKey, Date nodeStartDate, List<Counter> counters,
+			boolean fullSnapshot) {
+		NodeContribution contribution = contributionsByNode.get(nodeKey);
+		final boolean knownNodeStart;
+		if (contribution != null) {
+			knownNodeStart = contribution.isSameNodeStart(nodeStartDate);
+		} else {
+			// noeud de nouveau joignable après une éviction, dont les données ont déjà été reçues
+			knownNodeStart = isEvictedNodeStart(nodeKey, nodeStartDate);
+		}
+		evictedStartDatesByNode.remove(nodeKey);
+		final List<Counter> result;
+		if (!knownNodeStart || !fullSnapshot) {
+			// nouveau noeud ou noeud redémarré, dont les counters sont repartis de zéro, ou deltas
+			result = counters;
+		} else if (contribution == null || !contribution.complete) {
+			// sans les statistiques complètes déjà reçues, ce qui est nouveau dans ces counters
+			// complets ne peut pas être distingué : ils servent seulement de nouvelle base
+			result = createEmptyCounters(counters);
+		} else {
+			result = new ArrayList<>(counters.size());
+			for (final Counter counter : counters) {
+				final CounterContribution contributionCounter = contribution
+						.getCounter(counter.getName());
+				if (contributionCounter == null) {
+					result.add(counter);
+				} else {
+					result.add(createReplacement(counter, contributionCounter));
+				}
+			}
+		}
+		if (contribution == null || !knownNodeStart || fullSnapshot) {
+			// des counters complets remplacent la base précédente
+			contribution = new NodeContribution(nodeStartDate, fullSnapshot);
+			contributionsByNode.put(nodeKey, contribution);
+		}
+		for (final Counter counter : counters) {
+			contribution.add(counter);
+		}
+		return result;
+	}
+
+	private boolean isEvictedNodeStart(String nodeKey, Date nodeStartDate) {
+		if (!evictedStartDatesByNode.containsKey(nodeKey)) {
+			return false;
+		}
+		final Date evictedStartDate = evictedStartDatesByNode.get(nodeKey);
+		return nodeStartDate == null || nodeStartDate.equals(evictedStartDate);
+	}
+
+	/**
+	 * Oublie les statistiques d'un noeud injoignable, en gardant sa date de démarrage
+	 * pour ne pas ajouter une seconde fois ses counters complets s'il redevient joignable.
+	 * @param nodeKey Clé du noeud
+	 */
+	synchronized void evict(String nodeKey) {
+		final NodeContribution contribution = contributionsByNode.remove(nodeKey);
+		if (contribution != null) {
+			evictedStartDatesByNode.put(nodeKey, contribution.startDate);
+		}
+	}
+
+	synchronized void remove(String nodeKey) {
+		contributionsByNode.remove(nodeKey);
+		evictedStartDatesByNode.remove(nodeKey);
+	}
+
+	/**
+	 * Oublie les noeuds retirés de l'application.
+	 * @param nodeKeys Clés des noeuds de l'application
+	 */
+	synchronized void retainNodes(Collection<String> nodeKeys) {
+		final Set<String> retainedNodeKeys = new HashSet<>(nodeKeys);
+		contributionsByNode.keySet().retainAll(retainedNodeKeys);
+		evictedStartDatesByNode.keySet().retainAll(retainedNodeKeys);
+	}
+
+	/**
+	 * @return Estimation de l'occupation mémoire des statistiques gardées, en octets
+	 */
+	synchronized long getEstimatedMemorySize() {
+		long result = 0;
+		for (final NodeContribution contribution : contributionsByNode.values()) {
+			result += contribution.getEstimatedMemorySize();
+		}
+		return result;
+	}
+
+	private static List<Counter> createEmptyCounters(List<Counter> counters) {
+		final List<Counter> result = new ArrayList<>(counters.size());
+		for (final Counter counter : counters) {
+			result.add(counter.createDelta(new ArrayList<CounterRequest>(),
+					new ArrayList<CounterError>()));
+		}
+		return result;
+	}
+
+	private static Counter createReplacement(Counter counter,
+			CounterContribution contributionCounter) {
+		final List<CounterRequest> requests = new ArrayList<>();
+		final long[] statistics = new long[CounterRequest.STATISTICS_COUNT];
+		for (final CounterRequest request : counter.getRequestsWithoutClone()) {
+			final long[] contributionStatistics = contributionCounter.statisticsByRequestName
+					.get(request.getName());
+			if (contributionStatistics == null) {
+				// requête pas encore reçue de ce noeud
+				requests.add(request);
+			} else if (request.getHits() >= contributionStatistics[0]) {
+				// requêtes filles, données RUM et sql non déduites, donc non ajoutées de nouveau
+				final CounterRequest replacementRequest = new CounterRequest(request.getName(),
+						counter.getName());
+				request.getStatistics(statistics);
+				replacementRequest.setStatistics(statistics, request.getStackTrace(), null, null,
+						null);
+				final CounterRequest contributionRequest = new CounterRequest(request.getName(),
+						counter.getName());
+				contributionRequest.setStatistics(contributionStatistics, null, null, null, null);
+				replacementRequest.removeHits(contributionRequest);
+				if (replacementRequest.getHits() > 0
+						|| replacementRequest.hasStatisticsWithoutHits()) {
+					requests.add(replacementRequest);
+				}
+			}
+			// sinon, la requête a été vidée dans le noeud (purge des données par exemple)
+			// et les hits déjà reçus sont gardés
+		}
+		final List<CounterError> errors;
+		if (counter.isErrorCounter()) {
+			// les erreurs sont triées par date, seules celles après la dernière déjà reçue sont ajoutées
+			errors = new ArrayList<>();
+			for (final CounterError error : counter.getErrors()) {
+				if (error.getTime() > contributionCounter.lastErrorTime) {
+					errors.add(error);
+				}
+			}
+		} else {
+			errors = null;
+		}
+		return counter.createDelta(requests, errors);
+	}
+}
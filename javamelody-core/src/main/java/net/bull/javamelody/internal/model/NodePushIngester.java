@@ -0,0 +1,234 @@
+/*
+ * Copyright 2008-2019 by Emeric Vernat
+ *
+ *     This file is part of Java Melody.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.bull.javamelody.internal.model;
+
+import java.io.Serializable;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Réception dans le serveur de collecte des données envoyées par les noeuds en mode push.
+ *
+ * Les données reçues sont mises dans une file bornée par application, puis ajoutées par lots
+ * dans les threads de collecte : en parallèle pour des applications différentes,
+ * et une seule tâche à la fois pour une même application.
+ * Les files sont aussi bornées ensemble par la taille des données reçues en attente.
+ * Si la file d'une application est pleine, l'envoi est refusé et le noeud le renverra plus tard.
+ * @author Emeric Vernat
+ */
+class NodePushIngester {
+	/**
+	 * Nombre maximum d'envois en attente par application.
+	 */
+	static final int MAX_QUEUED_NODE_PUSHES = 1000;
+
+	/**
+	 * Taille maximum en octets des données reçues en attente, pour toutes les applications.
+	 */
+	static final long MAX_QUEUED_BYTES = 64L * 1024 * 1024;
+
+	/**
+	 * Nombre maximum d'envois ajoutés en un lot.
+	 */
+	static final int MAX_BATCH_SIZE = 100;
+
+	private final Executor executor;
+	private final NodePushHandler handler;
+	private final ConcurrentMap<String, ApplicationQueue> queuesByApplication = new ConcurrentHashMap<>();
+	private final AtomicLong queuedBytes = new AtomicLong();
+
+	/**
+	 * Données envoyées par un noeud en mode push.
+	 */
+	static class NodePush {
+		private final URL nodeUrl;
+		private final String pushId;
+		private final List<Serializable> serialized;
+		private final long size;
+		private final long time = System.currentTimeMillis();
+
+		NodePush(URL nodeUrl, String pushId, List<Serializable> serialized, long size) {
+			super();
+			assert nodeUrl != null;
+			assert pushId != null;
+			assert serialized != null;
+			assert size >= 0;
+			this.nodeUrl = nodeUrl;
+			this.pushId = pushId;
+			this.serialized = serialized;
+			this.size = size;
+		}
+
+		URL getNodeUrl() {
+			return nodeUrl;
+		}
+
+		String getPushId() {
+			return pushId;
+		}
+
+		List<Serializable> getSerialized() {
+			return serialized;
+		}
+
+		long getSize() {
+			return size;
+		}
+
+		long getTime() {
+			return time;
+		}
+	}
+
+	/**
+	 * Ajout d'un lot d'envois pour une application.
+	 */
+	interface NodePushHandler {
+		void ingest(String application, List<NodePush> nodePushes);
+	}
+
+	private static class ApplicationQueue {
+		private final BlockingQueue<NodePush> queue = new ArrayBlockingQueue<>(
+				MAX_QUEUED_NODE_PUSHES);
+		private final AtomicBoolean drainScheduled = new AtomicBoolean();
+
+		ApplicationQueue() {
+			super();
+		}
+	}
+
+	NodePushIngester(Executor executor, NodePushHandler handler) {
+		super();
+		assert executor != null;
+		assert handler != null;
+		this.executor = executor;
+		this.handler = handler;
+	}
+
+	/**
+	 * Indique si des données envoyées par un noeud peuvent être mises en file,
+	 * pour refuser l'envoi avant de lire et de décoder les données.
+	 * @param application Nom de l'application
+	 * @return false si la file de l'application ou la taille des données en attente est pleine
+	 */
+	boolean hasCapacity(String application) {
+		if (queuedBytes.get() >= MAX_QUEUED_BYTES) {
+			return false;
+		}
+		final ApplicationQueue applicationQueue = queuesByApplication.get(application);
+		return applicationQueue == null || applicationQueue.queue.remainingCapacity() > 0;
+	}
+
+	/**
+	 * Met en file les données envoyées par un noeud.
+	 * @param application Nom de l'application
+	 * @param nodePush NodePush
+	 * @return false si la file de l'application ou la taille des données en attente est pleine
+	 */
+	boolean offer(String application, NodePush nodePush) {
+		final long bytes = queuedBytes.addAndGet(nodePush.getSize());
+		// un envoi plus grand que le maximum est accepté s'il n'y a rien d'autre en attente
+		if (bytes > MAX_QUEUED_BYTES && bytes != nodePush.getSize()) {
+			queuedBytes.addAndGet(-nodePush.getSize());
+			return false;
+		}
+		ApplicationQueue applicationQueue = queuesByApplication.get(application);
+		if (applicationQueue == null) {
+			applicationQueue = new ApplicationQueue();
+			final ApplicationQueue previous = queuesByApplication.putIfAbsent(application,
+					applicationQueue);
+			if (previous != null) {
+				applicationQueue = previous;
+			}
+		}
+		if (!applicationQueue.queue.offer(nodePush)) {
+			queuedBytes.addAndGet(-nodePush.getSize());
+			return false;
+		}
+		scheduleDrain(application, applicationQueue);
+		return true;
+	}
+
+	private void scheduleDrain(final String application, final ApplicationQueue applicationQueue) {
+		if (applicationQueue.drainScheduled.compareAndSet(false, true)) {
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					drain(application, applicationQueue);
+				}
+			});
+		}
+	}
+
+	private void drain(String application, ApplicationQueue applicationQueue) {
+		try {
+			final List<NodePush> batch = new ArrayList<>();
+			while (applicationQueue.queue.drainTo(batch, MAX_BATCH_SIZE) > 0) {
+				try {
+					handler.ingest(application, batch);
+				} finally {
+					queuedBytes.addAndGet(-getSize(batch));
+				}
+				batch.clear();
+			}
+		} finally {
+			applicationQueue.drainScheduled.set(false);
+		}
+		// un envoi a pu être mis en file entre la fin de la boucle et la fin de cette tâche
+		if (!applicationQueue.queue.isEmpty()) {
+			scheduleDrain(application, applicationQueue);
+		}
+	}
+
+	private static long getSize(List<NodePush> nodePushes) {
+		long result = 0;
+		for (final NodePush nodePush : nodePushes) {
+			result += nodePush.getSize();
+		}
+		return result;
+	}
+
+	int getQueueSize(String application) {
+		final ApplicationQueue applicationQueue = queuesByApplication.get(application);
+		if (applicationQueue == null) {
+			return 0;
+		}
+		return applicationQueue.queue.size();
+	}
+
+	long getQueuedBytes() {
+		return queuedBytes.get();
+	}
+
+	void removeApplication(String application) {
+		final ApplicationQueue applicationQueue = queuesByApplication.remove(application);
+		if (applicationQueue != null) {
+			final List<NodePush> removed = new ArrayList<>();
+			applicationQueue.queue.drainTo(removed);
+			queuedBytes.addAndGet(-getSize(removed));
+		}
+	}
+}
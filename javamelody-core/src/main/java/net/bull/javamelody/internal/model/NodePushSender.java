@@ -0,0 +1,206 @@
+/*
+ * Copyright 2008-2019 by Emeric Vernat
+ *
+ *     This file is part of Java Melody.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.bull.javamelody.internal.model;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.Serializable;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.UUID;
+import java.util.zip.GZIPOutputStream;
+
+import javax.servlet.ServletContext;
+
+import net.bull.javamelody.Parameter;
+import net.bull.javamelody.internal.common.LOG;
+import net.bull.javamelody.internal.common.Parameters;
+
+/**
+ * Envoi périodique par une application monitorée de ses données au serveur de collecte (mode push),
+ * pour les noeuds que le serveur de collecte ne peut pas appeler (NAT, load balancer, autoscaling).
+ *
+ * A chaque période, les counters en delta depuis la dernière génération reçue par le serveur de collecte
+ * sont envoyés au format binaire compressé, avec le {@link CollectGeneration} et les informations java,
+ * dans un POST http sur une connexion gardée ouverte entre deux envois (keep-alive).
+ * Il y a au plus un envoi en attente : s'il a échoué, il est renvoyé avant de calculer un nouveau delta
+ * et le serveur de collecte ignore une génération déjà reçue.
+ * @author Emeric Vernat
+ */
+public class NodePushSender {
+	static final String PUSH_NODE_ACTION = "pushNode";
+	static final String UNREGISTER_PUSH_NODE_ACTION = "unregisterPushNode";
+
+	private final Collector collector;
+	private final ServletContext servletContext;
+	private final URL pushUrl;
+	private final URL unregisterUrl;
+	// identifiant de cette instance de l'application auprès du serveur de collecte
+	private final String pushId = UUID.randomUUID().toString();
+	private final Timer timer;
+	private long acknowledgedGeneration;
+	private byte[] pendingPayload;
+	private long pendingGeneration;
+
+	/**
+	 * Constructeur.
+	 * @param collector Collector de l'application
+	 * @param servletContext ServletContext de la webapp (null hors webapp)
+	 * @param collectorPushUrl URL du serveur de collecte
+	 * @param nodeUrl URL de ce noeud
+	 * @throws IOException e
+	 */
+	NodePushSender(Collector collector, ServletContext servletContext, String collectorPushUrl,
+			String nodeUrl) throws IOException {
+		super();
+		assert collector != null;
+		assert collectorPushUrl != null;
+		assert nodeUrl != null;
+		this.collector = collector;
+		this.servletContext = servletContext;
+		String serverUrl = collectorPushUrl;
+		while (serverUrl.endsWith("/")) {
+			serverUrl = serverUrl.substring(0, serverUrl.length() - 1);
+		}
+		final String query = "?appName=" + URLEncoder.encode(collector.getApplication(), "UTF-8")
+				// "UTF-8" as said in javadoc
+				+ "&appUrls=" + URLEncoder.encode(nodeUrl, "UTF-8") + "&pushId=" + pushId
+				+ "&action=";
+		this.pushUrl = new URL(serverUrl + '/' + query + PUSH_NODE_ACTION);
+		this.unregisterUrl = new URL(serverUrl + '/' + query + UNREGISTER_PUSH_NODE_ACTION);
+		this.timer = new Timer("javamelody push " + collector.getApplication(), true);
+	}
+
+	/**
+	 * Démarre l'envoi périodique, si le paramètre collector-push-url est défini.
+	 * @param collector Collector de l'application
+	 * @param servletContext ServletContext de la webapp
+	 * @return NodePushSender ou null si le mode push n'est pas utilisé
+	 * @throws IOException e
+	 */
+	public static NodePushSender start(Collector collector, ServletContext servletContext)
+			throws IOException {
+		final String collectorPushUrl = Parameter.COLLECTOR_PUSH_URL.getValue();
+		if (collectorPushUrl == null) {
+			return null;
+		}
+		String nodeUrl = Parameter.COLLECTOR_PUSH_NODE_URL.getValue();
+		if (nodeUrl == null) {
+			// pas de requête http à l'initialisation pour connaître le port,
+			// et il suffit que l'url identifie le noeud car le serveur de collecte ne l'appelle pas
+			nodeUrl = "http://" + Parameters.getHostName()
+					+ Parameters.getContextPath(servletContext);
+		}
+		final NodePushSender nodePushSender = new NodePushSender(collector, servletContext,
+				collectorPushUrl, nodeUrl);
+		final int periodMillis = Parameters.getResolutionSeconds() * 1000;
+		nodePushSender.timer.schedule(new TimerTask() {
+			/** {@inheritDoc} */
+			@Override
+			public void run() {
+				// il ne doit pas y avoir d'erreur dans cette task
+				nodePushSender.pushWithoutErrors();
+			}
+		}, periodMillis, periodMillis);
+		LOG.debug("push of data to the collector server scheduled every "
+				+ Parameters.getResolutionSeconds() + "s on " + collectorPushUrl);
+		return nodePushSender;
+	}
+
+	void pushWithoutErrors() {
+		try {
+			push();
+		} catch (final Throwable t) { // NOPMD
+			// le serveur de collecte est peut-être arrêté ou surchargé (503),
+			// les données seront renvoyées au prochain envoi
+			LOG.info("push of data to the collector server failed: " + t);
+		}
+	}
+
+	synchronized void push() throws IOException {
+		if (pendingPayload == null) {
+			// comme pour la collecte en mode pull, les counters en delta et les informations java
+			final List<Serializable> serialized = new ArrayList<>(
+					collector.getDeltaCounters(pushId, acknowledgedGeneration));
+			for (final Serializable serializable : serialized) {
+				if (serializable instanceof CollectGeneration) {
+					pendingGeneration = ((CollectGeneration) serializable).getGeneration();
+				}
+			}
+			serialized.add(new JavaInformations(servletContext, true));
+			pendingPayload = createPayload(serialized);
+		}
+		// si l'envoi échoue, pendingPayload sera renvoyé tel quel au prochain envoi,
+		// sans calculer un nouveau delta depuis la génération acquittée
+		post(pushUrl, pendingPayload);
+		acknowledgedGeneration = pendingGeneration;
+		pendingPayload = null;
+	}
+
+	private static byte[] createPayload(List<Serializable> serialized) throws IOException {
+		final ByteArrayOutputStream output = new ByteArrayOutputStream();
+		try (GZIPOutputStream gzipOutput = new GZIPOutputStream(output)) {
+			TransportFormat.BINARY.writeSerializableTo((Serializable) serialized, gzipOutput);
+		}
+		return output.toByteArray();
+	}
+
+	private static void post(URL url, byte[] payload) throws IOException {
+		final Map<String, String> headers = new LinkedHashMap<>();
+		// le contenu n'est pas un formulaire et ne doit pas être lu comme tel par le serveur de collecte
+		headers.put("Content-Type", TransportFormat.BINARY.getMimeType());
+		if (payload != null) {
+			headers.put("Content-Encoding", "gzip");
+		}
+		final ByteArrayOutputStream output;
+		if (payload != null) {
+			output = new ByteArrayOutputStream(payload.length);
+			output.write(payload);
+		} else {
+			output = null;
+		}
+		new LabradorRetriever(url, headers).post(output);
+	}
+
+	/**
+	 * Arrête l'envoi périodique et retire ce noeud du serveur de collecte.
+	 */
+	public void stop() {
+		timer.cancel();
+		try {
+			post(unregisterUrl, null);
+			LOG.info("application node removed from the collect server");
+		} catch (final IOException e) {
+			LOG.info("unable to remove the application node from the collect server: " + e);
+		}
+	}
+
+	String getPushId() {
+		return pushId;
+	}
+
+	long getAcknowledgedGeneration() {
+		return acknowledgedGeneration;
+	}
+}
@@ -19,22 +19,110 @@ package net.bull.javamelody.internal.model;
 
 import java.io.IOException;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
+import java.util.Collections;
 import java.util.Date;
+import java.util.List;
 import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import net.bull.javamelody.internal.common.LOG;
 
 /**
  * Factory pour les compteurs par jour, par semaine, par mois et par année.
+ *
+ * Les statistiques des semaines, des mois et des années entiers et terminés sont agrégées
+ * une fois pour toutes dans des fichiers (rollups), lors du changement de jour dans le collector,
+ * ou à défaut à leur première utilisation.
+ * Ainsi une période de n jours est agrégée à partir de quelques fichiers seulement,
+ * et non à partir des fichiers de chacun des jours.
+ * Les semaines commencent toujours le lundi, quelle que soit la locale du serveur,
+ * pour que des serveurs de locales différentes partagent les mêmes fichiers de rollups.
  * @author Emeric Vernat
  */
 class PeriodCounterFactory {
 	// Note d'implémentation : Calendar.getInstance() crée à chaque appel une nouvelle instance
 	// de Calendar à la date et à l'heure courante (cette date-heure peut être modifiée)
 
+	// nombre maximum de threads pour lire et agréger en parallèle les fichiers d'une période custom
+	private static final int MAX_MERGE_THREADS = 4;
+
 	private final Counter currentDayCounter;
 
+	/**
+	 * Agrégats pré-calculés des périodes entières et terminées.
+	 */
+	private enum Rollup {
+		WEEK("'w'yyyyMMdd", Calendar.WEEK_OF_YEAR),
+		// même nom de fichier que les compteurs par mois des versions précédentes
+		MONTH("yyyyMM", Calendar.MONTH),
+		YEAR("'y'yyyy", Calendar.YEAR);
+
+		private final String dateFormatPattern;
+		private final int calendarField;
+
+		Rollup(String dateFormatPattern, int calendarField) {
+			this.dateFormatPattern = dateFormatPattern;
+			this.calendarField = calendarField;
+		}
+
+		String getDateFormatPattern() {
+			return dateFormatPattern;
+		}
+
+		Calendar getStartOfPeriod(Calendar day) {
+			final Calendar result = (Calendar) day.clone();
+			switch (this) {
+			case WEEK:
+				while (result.get(Calendar.DAY_OF_WEEK) != Calendar.MONDAY) {
+					result.add(Calendar.DAY_OF_YEAR, -1);
+				}
+				break;
+			case MONTH:
+				result.set(Calendar.DAY_OF_MONTH, 1);
+				break;
+			case YEAR:
+				result.set(Calendar.DAY_OF_YEAR, 1);
+				break;
+			default:
+				throw new IllegalStateException(toString());
+			}
+			return result;
+		}
+
+		Calendar getEndOfPeriod(Calendar startDay) {
+			final Calendar result = (Calendar) startDay.clone();
+			result.add(calendarField, 1);
+			result.add(Calendar.DAY_OF_YEAR, -1);
+			return result;
+		}
+
+		boolean isStartOfPeriod(Calendar day) {
+			return getStartOfPeriod(day).getTimeInMillis() == day.getTimeInMillis();
+		}
+	}
+
+	/**
+	 * Fichier d'un jour ou d'un rollup à agréger.
+	 */
+	private static final class PeriodFile {
+		// null pour un jour
+		private final Rollup rollup;
+		private final Calendar startDay;
+
+		PeriodFile(Rollup rollup, Calendar startDay) {
+			super();
+			this.rollup = rollup;
+			this.startDay = startDay;
+		}
+	}
+
 	PeriodCounterFactory(Counter currentDayCounter) {
 		super();
 		assert currentDayCounter != null;
@@ -42,13 +130,17 @@ class PeriodCounterFactory {
 	}
 
 	Counter buildNewDayCounter() throws IOException {
-		final Calendar start = Calendar.getInstance();
-		start.setTime(currentDayCounter.getStartDate());
-		if (start.get(Calendar.MONTH) != Calendar.getInstance().get(Calendar.MONTH)) {
-			// le mois a changé, on crée un compteur vide qui sera enregistré dans un nouveau fichier;
-			// ce compteur agrégé pour le mois est utilisé pour de meilleurs performances sur le compteur de l'année
-			// on calcule le monthCounter et on l'enregistre (optimisation pour getYearCounter)
-			getMonthCounterAtDate(currentDayCounter.getStartDate());
+		// le jour a changé, on calcule et on enregistre les semaines, mois et années
+		// qui se sont terminés avec ce jour (ou depuis, si le serveur a été arrêté),
+		// du plus petit au plus grand afin que chacun soit agrégé à partir des précédents
+		// (optimisation pour les compteurs de la semaine, du mois, de l'année et des périodes custom)
+		final Calendar day = getDay(currentDayCounter.getStartDate());
+		final Calendar today = getDay(new Date());
+		for (final Rollup rollup : Rollup.values()) {
+			final Calendar startDay = rollup.getStartOfPeriod(day);
+			if (rollup.getEndOfPeriod(startDay).before(today)) {
+				getRollupCounter(rollup, startDay);
+			}
 		}
 
 		return createDayCounterAtDate(new Date());
@@ -68,10 +160,18 @@ class PeriodCounterFactory {
 	}
 
 	// compteur custom
-	Counter getCustomCounter(Range range) {
+	Counter getCustomCounter(Range range) throws IOException {
 		assert range.getPeriod() == null;
 		final Counter customCounter = createPeriodCounter("yyyy-MM-dd", range.getStartDate());
-		addRequestsAndErrorsForRange(customCounter, range);
+		// issue 122: attention endDate contient un jour jusqu'à 23h59m59s selon Range.parse
+		final Calendar lastDay = getDay(range.getEndDate());
+		final Calendar firstDay = (Calendar) lastDay.clone();
+		firstDay.add(Calendar.DAY_OF_YEAR, -Math.max(range.getDurationDays(), 1) + 1);
+		// les fichiers d'une période custom peuvent être nombreux (jours non agrégés
+		// et rollups pas encore calculés), donc ils sont lus et agrégés en parallèle
+		addRequestsAndErrors(customCounter,
+				getPeriodFiles(firstDay, lastDay, Arrays.asList(Rollup.values())), true);
+		customCounter.setStartDate(firstDay.getTime());
 		return customCounter;
 	}
 
@@ -81,94 +181,171 @@ class PeriodCounterFactory {
 	}
 
 	// compteur des 7 derniers jours
-	Counter getWeekCounter() {
+	Counter getWeekCounter() throws IOException {
 		final Counter weekCounter = createPeriodCounter("yyyyWW", currentDayCounter.getStartDate());
-		addRequestsAndErrorsForRange(weekCounter, Period.SEMAINE.getRange());
+		addRequestsAndErrorsForLastDays(weekCounter, Period.SEMAINE.getDurationDays());
 		return weekCounter;
 	}
 
 	// compteur des 31 derniers jours,
 	// ici c'est un mois flottant (ie une durée), et pas un mois entier
-	Counter getMonthCounter() {
-		final Counter monthCounter = createMonthCounterAtDate(currentDayCounter.getStartDate());
-		addRequestsAndErrorsForRange(monthCounter, Period.MOIS.getRange());
+	Counter getMonthCounter() throws IOException {
+		final Counter monthCounter = createPeriodCounter(Rollup.MONTH.getDateFormatPattern(),
+				currentDayCounter.getStartDate());
+		addRequestsAndErrorsForLastDays(monthCounter, Period.MOIS.getDurationDays());
 		return monthCounter;
 	}
 
-	private void addRequestsAndErrorsForRange(Counter counter, Range range) {
-		final Calendar dayCalendar = Calendar.getInstance();
-		if (range.getPeriod() == null) {
-			counter.addRequestsAndErrors(getDayCounterAtDate(range.getEndDate()));
-			dayCalendar.setTime(range.getEndDate());
-			// issue 122: attention endDate contient un jour jusqu'à 23h59m59s selon Range.parse
-			dayCalendar.set(Calendar.HOUR_OF_DAY, 0);
-			dayCalendar.set(Calendar.MINUTE, 0);
-			dayCalendar.set(Calendar.SECOND, 0);
-		} else {
-			counter.addRequestsAndErrors(currentDayCounter);
-			dayCalendar.setTime(currentDayCounter.getStartDate());
+	// compteur des 366 derniers jours
+	Counter getYearCounter() throws IOException {
+		final Counter yearCounter = createPeriodCounter("yyyy", currentDayCounter.getStartDate());
+		addRequestsAndErrorsForLastDays(yearCounter, Period.ANNEE.getDurationDays());
+		return yearCounter;
+	}
+
+	private void addRequestsAndErrorsForLastDays(Counter counter, int durationDays)
+			throws IOException {
+		final Calendar startDate = Calendar.getInstance();
+		startDate.setTime(currentDayCounter.getStartDate());
+		startDate.add(Calendar.DAY_OF_YEAR, -durationDays + 1);
+		final Calendar lastDay = getDay(currentDayCounter.getStartDate());
+		addRequestsAndErrors(counter, getPeriodFiles(getDay(startDate.getTime()), lastDay,
+				Arrays.asList(Rollup.values())), false);
+		counter.setStartDate(startDate.getTime());
+	}
+
+	// liste des fichiers à agréger pour les jours de firstDay à lastDay inclus :
+	// les plus grands rollups possibles pour les périodes entières et terminées incluses,
+	// et les jours pour le reste
+	private List<PeriodFile> getPeriodFiles(Calendar firstDay, Calendar lastDay,
+			List<Rollup> rollups) {
+		final Calendar today = getDay(new Date());
+		final List<Rollup> rollupsFromLargest = new ArrayList<>(rollups);
+		Collections.reverse(rollupsFromLargest);
+		final List<PeriodFile> result = new ArrayList<>();
+		final Calendar day = (Calendar) firstDay.clone();
+		while (!day.after(lastDay)) {
+			Calendar lastDayOfFile = day;
+			Rollup fileRollup = null;
+			for (final Rollup rollup : rollupsFromLargest) {
+				if (rollup.isStartOfPeriod(day)) {
+					final Calendar endOfPeriod = rollup.getEndOfPeriod(day);
+					if (!endOfPeriod.after(lastDay) && endOfPeriod.before(today)) {
+						lastDayOfFile = endOfPeriod;
+						fileRollup = rollup;
+						break;
+					}
+				}
+			}
+			result.add(new PeriodFile(fileRollup, (Calendar) day.clone()));
+			day.setTimeInMillis(lastDayOfFile.getTimeInMillis());
+			day.add(Calendar.DAY_OF_YEAR, 1);
+		}
+		return result;
+	}
+
+	private Counter readPeriodFile(PeriodFile periodFile) throws IOException {
+		if (periodFile.rollup != null) {
+			return getRollupCounter(periodFile.rollup, periodFile.startDay);
 		}
-		final int durationDays = range.getDurationDays();
-		for (int i = 1; i < durationDays; i++) {
-			// TODO optimisation avec getMonthCounterAtDate comme getYearCounter() ?
-			dayCalendar.add(Calendar.DAY_OF_YEAR, -1);
-			counter.addRequestsAndErrors(getDayCounterAtDate(dayCalendar.getTime()));
+		if (periodFile.startDay.getTimeInMillis() == getDay(currentDayCounter.getStartDate())
+				.getTimeInMillis()) {
+			return currentDayCounter;
 		}
-		counter.setStartDate(dayCalendar.getTime());
+		return getDayCounterAtDate(periodFile.startDay.getTime());
 	}
 
-	// compteur des 366 derniers jours
-	Counter getYearCounter() throws IOException {
-		final Counter yearCounter = createPeriodCounter("yyyy", currentDayCounter.getStartDate());
-		yearCounter.addRequestsAndErrors(currentDayCounter);
-		final Calendar dayCalendar = Calendar.getInstance();
-		final int currentMonth = dayCalendar.get(Calendar.MONTH);
-		dayCalendar.setTime(currentDayCounter.getStartDate());
-		dayCalendar.add(Calendar.DAY_OF_YEAR, -Period.ANNEE.getDurationDays() + 1);
-		yearCounter.setStartDate(dayCalendar.getTime());
-		for (int i = 1; i < Period.ANNEE.getDurationDays(); i++) {
-			if (dayCalendar.get(Calendar.DAY_OF_MONTH) == 1
-					&& dayCalendar.get(Calendar.MONTH) != currentMonth) {
-				// optimisation : on récupère les statistiques précédemment calculées pour ce mois entier
-				// au lieu de parcourir à chaque fois les statistiques de chaque jour du mois
-				yearCounter.addRequestsAndErrors(getMonthCounterAtDate(dayCalendar.getTime()));
-				final int nbDaysInMonth = dayCalendar.getActualMaximum(Calendar.DAY_OF_MONTH);
-				// nbDaysInMonth - 1 puisque l'itération va ajouter 1 à i et à dayCalendar
-				dayCalendar.add(Calendar.DAY_OF_YEAR, nbDaysInMonth - 1);
-				i += nbDaysInMonth - 1;
-			} else {
-				yearCounter.addRequestsAndErrors(getDayCounterAtDate(dayCalendar.getTime()));
+	private void addRequestsAndErrors(final Counter counter, List<PeriodFile> periodFiles,
+			boolean parallel) throws IOException {
+		final int nbThreads = Math.min(
+				Math.min(MAX_MERGE_THREADS, Runtime.getRuntime().availableProcessors()),
+				periodFiles.size() / 2);
+		if (!parallel || nbThreads <= 1) {
+			for (final PeriodFile periodFile : periodFiles) {
+				counter.addRequestsAndErrors(readPeriodFile(periodFile));
 			}
-			dayCalendar.add(Calendar.DAY_OF_YEAR, 1);
+			return;
+		}
+		// chaque thread agrège une partie des fichiers dans un compteur intermédiaire,
+		// puis les compteurs intermédiaires sont agrégés dans le compteur final
+		final ExecutorService executorService = Executors.newFixedThreadPool(nbThreads);
+		try {
+			final List<Future<Counter>> futures = new ArrayList<>(nbThreads);
+			final int partSize = (periodFiles.size() + nbThreads - 1) / nbThreads;
+			for (int i = 0; i < periodFiles.size(); i += partSize) {
+				final List<PeriodFile> part = periodFiles.subList(i,
+						Math.min(i + partSize, periodFiles.size()));
+				futures.add(executorService.submit(new Callable<Counter>() {
+					@Override
+					public Counter call() throws IOException {
+						final Counter partCounter = createPeriodCounter("yyyy-MM-dd",
+								counter.getStartDate());
+						for (final PeriodFile periodFile : part) {
+							partCounter.addRequestsAndErrors(readPeriodFile(periodFile));
+						}
+						return partCounter;
+					}
+				}));
+			}
+			for (final Future<Counter> future : futures) {
+				counter.addRequestsAndErrors(future.get());
+			}
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException(e);
+		} catch (final ExecutionException e) {
+			final Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			} else if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			} else if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new IllegalStateException(cause);
+		} finally {
+			executorService.shutdownNow();
 		}
-		return yearCounter;
 	}
 
-	private Counter getMonthCounterAtDate(Date day) throws IOException {
-		final Counter monthCounter = createMonthCounterAtDate(day);
+	private Counter getRollupCounter(Rollup rollup, Calendar startDay) throws IOException {
+		final Counter rollupCounter = createPeriodCounter(rollup.getDateFormatPattern(),
+				startDay.getTime());
 		try {
-			final Counter readCounter = new CounterStorage(monthCounter).readFromFile();
+			final Counter readCounter = new CounterStorage(rollupCounter).readFromFile();
 			if (readCounter != null) {
-				// monthCounter déjà calculé et enregistré
+				// rollup déjà calculé et enregistré
 				return readCounter;
 			}
 		} catch (final IOException e) {
 			// lecture échouée, tant pis
 			// (on n'interrompt pas tout un rapport juste pour un des fichiers illisible)
-			LOG.info("read of a counter file failed: " + monthCounter.getName(), e);
+			LOG.info("read of a counter file failed: " + rollupCounter.getName(), e);
 		}
-		// monthCounter n'est pas encore calculé (il est calculé à la fin de chaque mois,
-		// mais le serveur a pu aussi être arrêté ce jour là),
-		// alors on le calcule et on l'enregistre (optimisation pour getYearCounter)
-		final Calendar dayCalendar = Calendar.getInstance();
-		dayCalendar.setTime(day);
-		final int nbDaysInMonth = dayCalendar.getActualMaximum(Calendar.DAY_OF_MONTH);
-		for (int i = 1; i <= nbDaysInMonth; i++) {
-			dayCalendar.set(Calendar.DAY_OF_MONTH, i);
-			monthCounter.addRequestsAndErrors(getDayCounterAtDate(dayCalendar.getTime()));
+		// le rollup n'est pas encore calculé (il est calculé au changement de jour
+		// à la fin de la période, mais le serveur a pu aussi être arrêté ce jour là),
+		// alors on le calcule à partir des rollups plus petits et des jours, et on l'enregistre
+		final List<Rollup> smallerRollups = Arrays.asList(Rollup.values()).subList(0,
+				rollup.ordinal());
+		for (final PeriodFile periodFile : getPeriodFiles(startDay,
+				rollup.getEndOfPeriod(startDay), smallerRollups)) {
+			rollupCounter.addRequestsAndErrors(readPeriodFile(periodFile));
 		}
-		monthCounter.writeToFile();
-		return monthCounter;
+		rollupCounter.setStartDate(startDay.getTime());
+		// le rollup est enregistré même s'il est vide, sinon il serait recalculé à chaque affichage
+		// à partir de tous les fichiers des jours de la période
+		new CounterStorage(rollupCounter).writeToFile(true);
+		return rollupCounter;
+	}
+
+	private static Calendar getDay(Date date) {
+		final Calendar day = Calendar.getInstance();
+		day.setTime(date);
+		day.set(Calendar.HOUR_OF_DAY, 0);
+		day.set(Calendar.MINUTE, 0);
+		day.set(Calendar.SECOND, 0);
+		day.set(Calendar.MILLISECOND, 0);
+		return day;
 	}
 
 	Counter createDayCounterAtDate(Date day) {
@@ -177,12 +354,6 @@ class PeriodCounterFactory {
 		return createPeriodCounter("yyyyMMdd", day);
 	}
 
-	private Counter createMonthCounterAtDate(Date day) {
-		// le nom du compteur par mois est celui du compteur initial
-		// auquel on ajoute le mois en suffixe pour que son enregistrement soit unique
-		return createPeriodCounter("yyyyMM", day);
-	}
-
 	private Counter createPeriodCounter(String dateFormatPattern, Date date) {
 		final String storageName = currentDayCounter.getName() + '_'
 				+ new SimpleDateFormat(dateFormatPattern, Locale.getDefault()).format(date);
@@ -192,6 +363,7 @@ class PeriodCounterFactory {
 		result.setApplication(currentDayCounter.getApplication());
 		result.setDisplayed(currentDayCounter.isDisplayed());
 		result.setRequestTransformPattern(currentDayCounter.getRequestTransformPattern());
+		result.setSqlNormalized(currentDayCounter.isSqlNormalized());
 		result.setMaxRequestsCount(currentDayCounter.getMaxRequestsCount());
 		return result;
 	}
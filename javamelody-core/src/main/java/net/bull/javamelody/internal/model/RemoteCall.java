@@ -18,9 +18,12 @@
 package net.bull.javamelody.internal.model; // NOPMD
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.Serializable;
+import java.net.ConnectException;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.net.UnknownHostException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Date;
@@ -28,10 +31,13 @@ import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import net.bull.javamelody.internal.common.HttpParameter;
 import net.bull.javamelody.internal.common.HttpPart;
 import net.bull.javamelody.internal.common.I18N;
+import net.bull.javamelody.internal.common.LOG;
 import net.bull.javamelody.internal.model.SamplingProfiler.SampledMethod;
 
 /**
@@ -39,6 +45,17 @@ import net.bull.javamelody.internal.model.SamplingProfiler.SampledMethod;
  * @author Emeric Vernat
  */
 class RemoteCall {
+	private static final String BINARY_FORMAT_PARAMETER = HttpParameter.FORMAT + "="
+			+ TransportFormat.BINARY.getCode();
+	// message d'erreur d'une version précédente qui ne connaît pas le format binaire
+	// ("No enum constant net.bull.javamelody.TransportFormat.BINARY")
+	private static final String UNKNOWN_BINARY_FORMAT_MESSAGE = "TransportFormat.BINARY";
+	// délai avant de réessayer le format binaire, pour un noeud qui aurait été mis à jour
+	private static final long BINARY_FORMAT_RETRY_DELAY_MILLIS = 60L * 60 * 1000;
+	// noeuds d'une version précédente pour lesquels le format binaire est remplacé par la sérialisation java,
+	// avec l'instant à partir duquel le format binaire sera réessayé
+	private static final ConcurrentMap<String, Long> BINARY_FORMAT_UNSUPPORTED_NODES = new ConcurrentHashMap<>();
+
 	private final URL url;
 	private String cookies;
 
@@ -300,6 +317,47 @@ class RemoteCall {
 	}
 
 	private <T> T collectForUrl(URL myUrl) throws IOException {
+		if (!myUrl.toString().contains(BINARY_FORMAT_PARAMETER)) {
+			return call(myUrl);
+		}
+		final String node = getHostAndPort(myUrl) + myUrl.getPath();
+		final URL serializedFormatUrl = new URL(myUrl.toString().replace(BINARY_FORMAT_PARAMETER,
+				HttpParameter.FORMAT + "=" + TransportFormat.SERIALIZED.getCode()));
+		final Long binaryFormatRetryTime = BINARY_FORMAT_UNSUPPORTED_NODES.get(node);
+		if (binaryFormatRetryTime != null) {
+			if (binaryFormatRetryTime > System.currentTimeMillis()) {
+				return call(serializedFormatUrl);
+			}
+			BINARY_FORMAT_UNSUPPORTED_NODES.remove(node, binaryFormatRetryTime);
+		}
+		try {
+			return call(myUrl);
+		} catch (final InterruptedIOException | ConnectException | UnknownHostException e) {
+			// noeud indisponible, inutile d'essayer un autre format
+			throw e;
+		} catch (final IOException e) {
+			// une application monitorée d'une version précédente ne connaît pas le format binaire
+			// et répond en erreur http : on réessaye en sérialisation java
+			final T result = call(serializedFormatUrl);
+			// le noeud n'est mémorisé que si la réponse montre que le format binaire est inconnu,
+			// et non pour une autre erreur de ce noeud qui peut être passagère
+			if (isBinaryFormatUnsupported(e)) {
+				BINARY_FORMAT_UNSUPPORTED_NODES.put(node,
+						System.currentTimeMillis() + BINARY_FORMAT_RETRY_DELAY_MILLIS);
+				LOG.info("binary transport format not supported by " + node
+						+ ", serialized format used instead");
+			}
+			return result;
+		}
+	}
+
+	static boolean isBinaryFormatUnsupported(IOException e) {
+		final String message = e.getMessage();
+		return message != null && (message.contains(UNKNOWN_BINARY_FORMAT_MESSAGE)
+				|| message.startsWith(LabradorRetriever.UNEXPECTED_CONTENT_TYPE_MESSAGE));
+	}
+
+	private <T> T call(URL myUrl) throws IOException {
 		final LabradorRetriever labradorRetriever;
 		if (cookies != null) {
 			final Map<String, String> headers = Collections.singletonMap("Cookie", cookies);
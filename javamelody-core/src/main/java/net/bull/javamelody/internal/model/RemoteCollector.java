@@ -17,19 +17,34 @@
  */
 package net.bull.javamelody.internal.model;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.Serializable;
 import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Callable;
 
 import net.bull.javamelody.SessionListener;
+import net.bull.javamelody.internal.common.HttpParameter;
+import net.bull.javamelody.internal.common.InputOutput;
+import net.bull.javamelody.internal.common.LOG;
 import net.bull.javamelody.internal.common.Parameters;
+import net.bull.javamelody.internal.model.NodeCollectScheduler.NodeCollect;
+import net.bull.javamelody.internal.model.NodePushIngester.NodePush;
 import net.bull.javamelody.internal.model.SamplingProfiler.SampledMethod;
 
 /**
@@ -38,6 +53,13 @@ import net.bull.javamelody.internal.model.SamplingProfiler.SampledMethod;
  * @author Emeric Vernat
  */
 public class RemoteCollector {
+	// un noeud en mode push n'est pas appelé s'il a envoyé ses données depuis moins de 3 périodes,
+	// et il est retiré de l'application s'il n'a rien envoyé depuis 10 périodes (arrêté sans se retirer)
+	private static final int PUSHED_NODE_FRESH_PERIODS = 3;
+	private static final int PUSHED_NODE_STALE_PERIODS = 10;
+	private static final String COLLECTOR_ID_FILE_NAME = "collector.id";
+	private static final String GENERATIONS_FILE_NAME = "generations.properties";
+
 	private final String application;
 	private List<URL> urls;
 	private Collector collector;
@@ -49,6 +71,33 @@ public class RemoteCollector {
 	private final boolean aggregationApplication;
 	private String cookies;
 	private boolean aggregationDisabled;
+	private Map<String, Long> nodeCollectDurations = Collections.emptyMap();
+	// générations acquittées par noeud pour ne recevoir que les deltas des counters
+	private final Map<String, Long> acknowledgedGenerationsByNode = new HashMap<>();
+	// noeuds envoyant eux-mêmes leurs données (mode push), par noeud
+	private final Map<String, PushedNode> pushedNodesByNode = new HashMap<>();
+	private final NodeContributions nodeContributions = new NodeContributions();
+	private boolean acknowledgedGenerationsLoaded;
+	private final List<Counter> pushedNewCounters = new ArrayList<>();
+	private int nodePushesCount;
+	private String collectorId;
+
+	/**
+	 * Etat d'un noeud en mode push.
+	 */
+	private static class PushedNode {
+		private final URL nodeUrl;
+		private final String pushId;
+		private long lastGeneration;
+		private JavaInformations javaInformations;
+		private long lastPushTime;
+
+		PushedNode(URL nodeUrl, String pushId) {
+			super();
+			this.nodeUrl = nodeUrl;
+			this.pushId = pushId;
+		}
+	}
 
 	/**
 	 * Constructeur.
@@ -67,7 +116,7 @@ public class RemoteCollector {
 	}
 
 	String collectData() throws IOException {
-		return collectDataWithUrls(getURLs());
+		return collectDataWithUrls(getURLs(), NodeCollectScheduler.getNodeCollectTimeout());
 	}
 
 	public String collectDataIncludingCurrentRequests() throws IOException {
@@ -75,41 +124,77 @@ public class RemoteCollector {
 		for (final URL url : getURLs()) {
 			urlsWithCurrentRequests.add(new URL(url + "&part=defaultWithCurrentRequests"));
 		}
-		return collectDataWithUrls(urlsWithCurrentRequests);
+		return collectDataWithUrls(urlsWithCurrentRequests, -1);
 	}
 
-	private String collectDataWithUrls(List<URL> urlsForCollect) throws IOException {
+	private String collectDataWithUrls(List<URL> urlsForCollect, long nodeTimeout)
+			throws IOException {
 		final List<JavaInformations> javaInfosList = new ArrayList<>();
 		final Map<JavaInformations, List<CounterRequestContext>> counterRequestContextsByJavaInformations = new HashMap<>();
 		final StringBuilder sb = new StringBuilder();
 		IOException exception = null;
 		if (!aggregationApplication) {
-			for (final URL url : urlsForCollect) {
+			final List<URL> pulledUrls;
+			final List<Long> sentGenerations;
+			final List<NodeCollect<List<Serializable>>> nodeCollects;
+			// le verrou n'est gardé que pour lire et mettre à jour les générations acquittées
+			// et les counters, et non pendant les appels aux noeuds qui peuvent être longs
+			// (action sans timeout comme un heap dump par exemple)
+			synchronized (acknowledgedGenerationsByNode) {
+				// les noeuds en mode push qui ont envoyé leurs données récemment ne sont pas appelés
+				loadAcknowledgedGenerationsIfNeeded();
+				retainNodeContributions();
+				pulledUrls = getPulledUrls(urlsForCollect, javaInfosList);
+				if (aggregatedApplication) {
+					newCounters.addAll(pushedNewCounters);
+				}
+				pushedNewCounters.clear();
+				sentGenerations = new ArrayList<>(pulledUrls.size());
+				for (final URL url : pulledUrls) {
+					sentGenerations.add(getAcknowledgedGeneration(getNodeKey(url)));
+				}
+				nodeCollects = submitNodeCollects(pulledUrls);
+			}
+			// les appels aux noeuds sont faits en parallèle, mais leurs résultats sont ajoutés
+			// dans l'ordre des urls et dans ce thread, car le collector n'est pas thread-safe
+			final Map<String, Long> durationsByNode = new LinkedHashMap<>();
+			for (int i = 0; i < nodeCollects.size(); i++) {
+				final NodeCollect<List<Serializable>> nodeCollect = nodeCollects.get(i);
+				final String nodeKey = getNodeKey(pulledUrls.get(i));
 				try {
-					final List<Counter> counters = new ArrayList<>();
-					final List<Serializable> serialized = createRemoteCall(url).collectData();
-					dispatchSerializables(serialized, counters, javaInfosList,
-							counterRequestContextsByJavaInformations, sb);
-					addRequestsAndErrors(counters);
-					if (aggregatedApplication) {
-						newCounters.addAll(counters);
+					// si un noeud ne répond pas avant son timeout, on garde les résultats des autres
+					final List<Serializable> serialized = nodeCollect.get(nodeTimeout);
+					synchronized (acknowledgedGenerationsByNode) {
+						addNodeCollect(nodeKey, sentGenerations.get(i), serialized, javaInfosList,
+								counterRequestContextsByJavaInformations, sb);
 					}
 				} catch (final IOException e) {
 					exception = e;
+					synchronized (acknowledgedGenerationsByNode) {
+						// les statistiques déjà reçues de ce noeud injoignable ne sont plus gardées
+						nodeContributions.evict(nodeKey);
+					}
 					// if a node of the application is no longer reachable, collect data for the others
 					continue;
+				} finally {
+					durationsByNode.put(nodeCollect.getNode(), nodeCollect.getDuration());
 				}
 			}
+			this.nodeCollectDurations = durationsByNode;
 		} else {
 			assert remoteCollectors != null;
 			for (final RemoteCollector remoteCollector : remoteCollectors) {
 				javaInfosList.addAll(remoteCollector.getJavaInformationsList());
 				counterRequestContextsByJavaInformations
 						.putAll(remoteCollector.getCurrentRequests());
-				final List<Counter> counters = remoteCollector.getNewCounters();
+				// seulement les deltas de la période, sans modifier la liste de l'application agrégée
+				// qui peut être lue en même temps par une autre agrégation
+				List<Counter> counters = remoteCollector.getNewCounters();
 				if (counters.isEmpty()) {
 					// lors de la première collecte, il faut récupérer les counters et pas seulement les deltas
-					counters.addAll(remoteCollector.getCollector().getCounters());
+					// (relus s'ils ont été déchargés sur disque)
+					remoteCollector.getCollector().reloadIfSpilled();
+					counters = remoteCollector.getCollector().getCounters();
 					remoteCollector.aggregatedApplication = true;
 				}
 				addRequestsAndErrors(counters);
@@ -133,10 +218,297 @@ public class RemoteCollector {
 		return messageForReport;
 	}
 
-	private void dispatchSerializables(List<Serializable> serialized, List<Counter> counters,
+	private void addNodeCollect(String nodeKey, long sentGeneration, List<Serializable> serialized,
 			List<JavaInformations> javaInfosList,
 			Map<JavaInformations, List<CounterRequestContext>> counterRequestContextsByJavaInformations,
+			StringBuilder sb) throws IOException {
+		final List<Counter> receivedCounters = new ArrayList<>();
+		final int javaInfosCount = javaInfosList.size();
+		final CollectGeneration collectGeneration = dispatchSerializables(serialized,
+				receivedCounters, javaInfosList, counterRequestContextsByJavaInformations, sb);
+		if (collectGeneration != null
+				&& getAcknowledgedGeneration(nodeKey) != sentGeneration) {
+			// une collecte concurrente (action et collecte périodique par exemple) a déjà ajouté
+			// un delta de ce noeud depuis la même génération : ces counters seraient comptés
+			// deux fois, donc ils ne sont pas ajoutés ni acquittés et la collecte suivante
+			// enverra le delta depuis la génération acquittée par l'autre collecte
+			return;
+		}
+		final List<Counter> counters = addNodeContribution(nodeKey,
+				javaInfosList.subList(javaInfosCount, javaInfosList.size()), receivedCounters,
+				collectGeneration);
+		addRequestsAndErrors(counters);
+		if (aggregatedApplication) {
+			newCounters.addAll(counters);
+		}
+		if (collectGeneration != null) {
+			// les counters reçus sont ajoutés, on acquittera cette génération
+			acknowledgedGenerationsByNode.put(nodeKey, collectGeneration.getGeneration());
+		}
+	}
+
+	private long getAcknowledgedGeneration(String nodeKey) {
+		final Long acknowledgedGeneration = acknowledgedGenerationsByNode.get(nodeKey);
+		return acknowledgedGeneration != null ? acknowledgedGeneration : 0;
+	}
+
+	private List<URL> getPulledUrls(List<URL> urlsForCollect,
+			List<JavaInformations> javaInfosList) {
+		if (pushedNodesByNode.isEmpty()) {
+			return urlsForCollect;
+		}
+		final long freshPushTime = System.currentTimeMillis()
+				- PUSHED_NODE_FRESH_PERIODS * Parameters.getResolutionSeconds() * 1000L;
+		final List<URL> pulledUrls = new ArrayList<>(urlsForCollect.size());
+		for (final URL url : urlsForCollect) {
+			final PushedNode pushedNode = pushedNodesByNode.get(getNodeKey(url));
+			if (pushedNode != null && pushedNode.lastPushTime >= freshPushTime
+					&& pushedNode.javaInformations != null) {
+				// les counters ont déjà été ajoutés à la réception
+				javaInfosList.add(pushedNode.javaInformations);
+			} else {
+				pulledUrls.add(url);
+			}
+		}
+		return pulledUrls;
+	}
+
+	/**
+	 * Ajoute les données envoyées par des noeuds en mode push.
+	 * @param nodePushes Lot de données reçues
+	 */
+	void addNodePushes(List<NodePush> nodePushes) {
+		// même verrou que la collecte, pour que les counters ne soient pas modifiés en parallèle
+		synchronized (acknowledgedGenerationsByNode) {
+			for (final NodePush nodePush : nodePushes) {
+				addNodePush(nodePush);
+			}
+		}
+	}
+
+	private void addNodePush(NodePush nodePush) {
+		final String nodeKey = getNodeKey(nodePush.getNodeUrl());
+		PushedNode pushedNode = pushedNodesByNode.get(nodeKey);
+		if (pushedNode == null || !pushedNode.pushId.equals(nodePush.getPushId())) {
+			// nouveau noeud ou noeud redémarré
+			pushedNode = new PushedNode(nodePush.getNodeUrl(), nodePush.getPushId());
+			pushedNodesByNode.put(nodeKey, pushedNode);
+		}
+		final List<Counter> receivedCounters = new ArrayList<>();
+		final List<JavaInformations> javaInfosList = new ArrayList<>();
+		final CollectGeneration collectGeneration = dispatchSerializables(
+				nodePush.getSerialized(), receivedCounters, javaInfosList,
+				new HashMap<JavaInformations, List<CounterRequestContext>>(), new StringBuilder());
+		if (collectGeneration != null
+				&& collectGeneration.getGeneration() <= pushedNode.lastGeneration) {
+			// génération déjà reçue, renvoyée par le noeud car il n'a pas eu la réponse
+			return;
+		}
+		final List<Counter> counters = addNodeContribution(nodeKey, javaInfosList,
+				receivedCounters, collectGeneration);
+		addRequestsAndErrors(counters);
+		if (aggregatedApplication) {
+			pushedNewCounters.addAll(counters);
+		}
+		if (collectGeneration != null) {
+			pushedNode.lastGeneration = collectGeneration.getGeneration();
+		}
+		if (!javaInfosList.isEmpty()) {
+			pushedNode.javaInformations = javaInfosList.get(javaInfosList.size() - 1);
+		}
+		pushedNode.lastPushTime = nodePush.getTime();
+		nodePushesCount++;
+	}
+
+	/**
+	 * Retire les noeuds en mode push qui n'ont rien envoyé depuis longtemps.
+	 * @return URLs des noeuds retirés
+	 */
+	List<URL> removeStalePushedNodes() {
+		synchronized (acknowledgedGenerationsByNode) {
+			if (pushedNodesByNode.isEmpty()) {
+				return Collections.emptyList();
+			}
+			final long stalePushTime = System.currentTimeMillis()
+					- PUSHED_NODE_STALE_PERIODS * Parameters.getResolutionSeconds() * 1000L;
+			final List<URL> staleNodeUrls = new ArrayList<>();
+			final Iterator<PushedNode> it = pushedNodesByNode.values().iterator();
+			while (it.hasNext()) {
+				final PushedNode pushedNode = it.next();
+				if (pushedNode.lastPushTime < stalePushTime) {
+					staleNodeUrls.add(pushedNode.nodeUrl);
+					nodeContributions.remove(getNodeKey(pushedNode.nodeUrl));
+					it.remove();
+				}
+			}
+			return staleNodeUrls;
+		}
+	}
+
+	void removePushedNode(URL nodeUrl) {
+		synchronized (acknowledgedGenerationsByNode) {
+			pushedNodesByNode.remove(getNodeKey(nodeUrl));
+			nodeContributions.remove(getNodeKey(nodeUrl));
+		}
+	}
+
+	boolean isPushedByNodes() {
+		synchronized (acknowledgedGenerationsByNode) {
+			return !pushedNodesByNode.isEmpty();
+		}
+	}
+
+	/**
+	 * @return Nombre de données reçues des noeuds en mode push depuis l'appel précédent
+	 */
+	int getAndResetNodePushesCount() {
+		synchronized (acknowledgedGenerationsByNode) {
+			final int result = nodePushesCount;
+			nodePushesCount = 0;
+			return result;
+		}
+	}
+
+	private List<NodeCollect<List<Serializable>>> submitNodeCollects(List<URL> urlsForCollect)
+			throws IOException {
+		final List<NodeCollect<List<Serializable>>> nodeCollects = new ArrayList<>(
+				urlsForCollect.size());
+		for (final URL url : urlsForCollect) {
+			final RemoteCall remoteCall = createRemoteCall(getUrlWithGeneration(url));
+			nodeCollects.add(NodeCollectScheduler.submit(getHostAndPort(url),
+					new Callable<List<Serializable>>() {
+						@Override
+						public List<Serializable> call() throws IOException {
+							return remoteCall.collectData();
+						}
+					}));
+		}
+		return nodeCollects;
+	}
+
+	private URL getUrlWithGeneration(URL url) throws IOException {
+		// les applications monitorées d'une version précédente ignorent ces paramètres
+		// et vident leurs counters après chaque collecte comme avant
+		final long generation = getAcknowledgedGeneration(getNodeKey(url));
+		return new URL(url.toString() + '&' + HttpParameter.COLLECTOR_ID + '='
+				+ getCollectorId() + '&' + HttpParameter.GENERATION + '=' + generation);
+	}
+
+	private static String getNodeKey(URL url) {
+		// les urls des actions ont d'autres paramètres, mais c'est le même noeud
+		return getHostAndPort(url) + url.getPath();
+	}
+
+	private List<Counter> addNodeContribution(String nodeKey,
+			List<JavaInformations> nodeJavaInfosList, List<Counter> receivedCounters,
+			CollectGeneration collectGeneration) {
+		if (collectGeneration == null) {
+			// application monitorée d'une version précédente, qui vide ses counters après chaque collecte
+			return receivedCounters;
+		}
+		final Date nodeStartDate = nodeJavaInfosList.isEmpty() ? null
+				: nodeJavaInfosList.get(nodeJavaInfosList.size() - 1).getStartDate();
+		// si les counters reçus sont complets, ils remplacent ce qui a déjà été reçu de ce noeud
+		return nodeContributions.add(nodeKey, nodeStartDate, receivedCounters,
+				collectGeneration.isFullSnapshot());
+	}
+
+	private void retainNodeContributions() {
+		// les statistiques des noeuds retirés de l'application ne sont plus gardées
+		final List<String> nodeKeys = new ArrayList<>();
+		for (final URL url : getURLs()) {
+			nodeKeys.add(getNodeKey(url));
+		}
+		nodeKeys.addAll(pushedNodesByNode.keySet());
+		nodeContributions.retainNodes(nodeKeys);
+	}
+
+	/**
+	 * @return Estimation de l'occupation mémoire des statistiques gardées par noeud,
+	 * qui ne sont pas déchargées sur disque avec le collector
+	 */
+	long getNodeContributionsEstimatedMemorySize() {
+		return nodeContributions.getEstimatedMemorySize();
+	}
+
+	private String getCollectorId() throws IOException {
+		if (collectorId == null) {
+			// identifiant stable après redémarrage de ce serveur de collecte et partagé par ses instances
+			// (répartition des applications), dans le répertoire de stockage de l'application,
+			// pour que les applications monitorées envoient encore seulement les deltas
+			final File file = new File(Parameters.getStorageDirectory(application),
+					COLLECTOR_ID_FILE_NAME);
+			if (file.exists()) {
+				try (final InputStream input = new FileInputStream(file)) {
+					collectorId = InputOutput.pumpToString(input, StandardCharsets.UTF_8).trim();
+				}
+			}
+			if (collectorId == null || collectorId.isEmpty()) {
+				collectorId = Long.toHexString(new SecureRandom().nextLong());
+				if (!file.getParentFile().exists() && !file.getParentFile().mkdirs()) {
+					throw new IOException(file.getParentFile() + " can't be created");
+				}
+				try (final OutputStream output = new FileOutputStream(file)) {
+					output.write(collectorId.getBytes(StandardCharsets.UTF_8));
+				}
+			}
+		}
+		return collectorId;
+	}
+
+	private void loadAcknowledgedGenerationsIfNeeded() {
+		if (acknowledgedGenerationsLoaded) {
+			return;
+		}
+		acknowledgedGenerationsLoaded = true;
+		final File file = new File(Parameters.getStorageDirectory(application),
+				GENERATIONS_FILE_NAME);
+		if (!file.exists()) {
+			return;
+		}
+		final Properties properties = new Properties();
+		try (final InputStream input = new FileInputStream(file)) {
+			properties.load(input);
+			for (final String nodeKey : properties.stringPropertyNames()) {
+				acknowledgedGenerationsByNode.put(nodeKey,
+						Long.valueOf(properties.getProperty(nodeKey)));
+			}
+		} catch (final IOException | NumberFormatException e) {
+			// sans générations acquittées, les noeuds enverront leurs counters complets
+			LOG.warn("exception while reading " + file, e);
+		}
+	}
+
+	/**
+	 * Enregistre les générations acquittées par noeud, après l'enregistrement des counters,
+	 * pour que les noeuds envoient encore seulement les deltas après un redémarrage
+	 * de ce serveur de collecte ou le déplacement de l'application vers une autre instance.
+	 */
+	void saveAcknowledgedGenerations() {
+		final Properties properties = new Properties();
+		synchronized (acknowledgedGenerationsByNode) {
+			if (acknowledgedGenerationsByNode.isEmpty()) {
+				return;
+			}
+			for (final Map.Entry<String, Long> entry : acknowledgedGenerationsByNode.entrySet()) {
+				properties.setProperty(entry.getKey(), String.valueOf(entry.getValue()));
+			}
+		}
+		final File file = new File(Parameters.getStorageDirectory(application),
+				GENERATIONS_FILE_NAME);
+		try (final OutputStream output = new FileOutputStream(file)) {
+			properties.store(output, application);
+		} catch (final IOException e) {
+			// les noeuds enverront leurs counters complets après un redémarrage, sans doublons
+			LOG.warn("exception while writing " + file, e);
+		}
+	}
+
+	private CollectGeneration dispatchSerializables(List<Serializable> serialized,
+			List<Counter> counters, List<JavaInformations> javaInfosList,
+			Map<JavaInformations, List<CounterRequestContext>> counterRequestContextsByJavaInformations,
 			StringBuilder sb) {
+		CollectGeneration collectGeneration = null;
 		JavaInformations latestJavaInformations = null;
 		final List<CounterRequestContext> counterRequestContextsList = new ArrayList<>();
 		for (final Serializable serializable : serialized) {
@@ -153,12 +525,15 @@ public class RemoteCollector {
 			} else if (serializable instanceof CounterRequestContext) {
 				final CounterRequestContext counterRequestContext = (CounterRequestContext) serializable;
 				counterRequestContextsList.add(counterRequestContext);
+			} else if (serializable instanceof CollectGeneration) {
+				collectGeneration = (CollectGeneration) serializable;
 			}
 		}
 		if (!counterRequestContextsList.isEmpty()) {
 			counterRequestContextsByJavaInformations.put(latestJavaInformations,
 					counterRequestContextsList);
 		}
+		return collectGeneration;
 	}
 
 	private boolean isAggregatedApplication() throws IOException {
@@ -184,7 +559,8 @@ public class RemoteCollector {
 					threadId, jobId, cacheId);
 			actionUrls.add(actionUrl);
 		}
-		return collectDataWithUrls(actionUrls);
+		// pas de timeout pour les actions, qui peuvent être longues (heap dump par exemple)
+		return collectDataWithUrls(actionUrls, -1);
 	}
 
 	public List<SessionInformations> collectSessionInformations(String sessionId)
@@ -358,11 +734,14 @@ public class RemoteCollector {
 			}
 			this.collector = new Collector(application, clonedCounters);
 		} else {
-			for (final Counter newCounter : counters) {
-				final Counter counter = collector.getCounterByName(newCounter.getName());
-				// counter.isDisplayed() peut changer pour spring, ejb ou services selon l'utilisation
-				counter.setDisplayed(newCounter.isDisplayed());
-				counter.addRequestsAndErrors(newCounter);
+			// synchronisé avec le déchargement et le rechargement des counters
+			synchronized (collector) {
+				for (final Counter newCounter : counters) {
+					final Counter counter = collector.getCounterByName(newCounter.getName());
+					// counter.isDisplayed() peut changer pour spring, ejb ou services selon l'utilisation
+					counter.setDisplayed(newCounter.isDisplayed());
+					counter.addRequestsAndErrors(newCounter);
+				}
 			}
 		}
 	}
@@ -404,6 +783,10 @@ public class RemoteCollector {
 		return javaInformationsList;
 	}
 
+	Map<String, Long> getNodeCollectDurations() {
+		return nodeCollectDurations;
+	}
+
 	public Map<JavaInformations, List<CounterRequestContext>> getCurrentRequests() {
 		return currentRequests;
 	}
@@ -0,0 +1,128 @@
+/*
+ * Copyright 2008-2019 by Emeric Vernat
+ *
+ *     This file is part of Java Melody.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.bull.javamelody.internal.model;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.regex.Pattern;
+
+/**
+ * Transformation des noms de requêtes d'un counter avant agrégation dans les statistiques,
+ * par une expression régulière et/ou par normalisation des requêtes sql ({@link SqlNormalizer}).
+ *
+ * Le résultat de la transformation est gardé dans un cache borné et concurrent par nom de requête,
+ * car l'expression régulière serait sinon évaluée à chaque hit.
+ * Lorsque le cache est plein, la moitié des noms sont évincés (au hasard de l'ordre de la map).
+ * Les noms trouvés dans le cache sont comptés dans des cellules par thread
+ * (comme dans {@link CounterRequestAccumulator}), pour ne pas ajouter de contention à chaque hit.
+ * @author Emeric Vernat
+ */
+final class RequestNameTransformer {
+	static final int MAX_CACHE_SIZE = 10000;
+	// les noms de requêtes plus longs ne sont pas gardés en cache pour borner la mémoire utilisée
+	static final int MAX_CACHED_NAME_LENGTH = 2000;
+	private static final String TRANSFORM_REPLACEMENT = "\\" + Counter.TRANSFORM_REPLACEMENT_CHAR;
+
+	private final Pattern pattern;
+	private final boolean sqlNormalized;
+	private final ConcurrentMap<String, String> cache = new ConcurrentHashMap<>();
+	private final AtomicLongArray cacheHits = new AtomicLongArray(
+			CounterRequestAccumulator.CELLS_LENGTH);
+	private final AtomicLong cacheMisses = new AtomicLong();
+	private final AtomicLong cacheEvictions = new AtomicLong();
+
+	RequestNameTransformer(Pattern pattern, boolean sqlNormalized) {
+		super();
+		assert pattern != null || sqlNormalized;
+		this.pattern = pattern;
+		this.sqlNormalized = sqlNormalized;
+	}
+
+	Pattern getPattern() {
+		return pattern;
+	}
+
+	boolean isSqlNormalized() {
+		return sqlNormalized;
+	}
+
+	String transform(String requestName) {
+		if (requestName.length() > MAX_CACHED_NAME_LENGTH) {
+			cacheMisses.incrementAndGet();
+			return transformWithoutCache(requestName);
+		}
+		final String cachedName = cache.get(requestName);
+		if (cachedName != null) {
+			cacheHits.getAndIncrement(CounterRequestAccumulator.getCellOffset());
+			return cachedName;
+		}
+		cacheMisses.incrementAndGet();
+		final String result = transformWithoutCache(requestName);
+		if (cache.size() >= MAX_CACHE_SIZE) {
+			evict();
+		}
+		cache.put(requestName, result);
+		return result;
+	}
+
+	private void evict() {
+		// plusieurs threads peuvent évincer en même temps, ce n'est pas grave
+		int count = 0;
+		final Iterator<String> iterator = cache.keySet().iterator();
+		while (iterator.hasNext() && count < MAX_CACHE_SIZE / 2) {
+			iterator.next();
+			iterator.remove();
+			count++;
+		}
+		cacheEvictions.addAndGet(count);
+	}
+
+	private String transformWithoutCache(String requestName) {
+		String result = requestName;
+		if (sqlNormalized) {
+			result = SqlNormalizer.normalize(result);
+		}
+		if (pattern != null) {
+			// ce pattern optionnel permet de transformer la description de la requête
+			// pour supprimer des parties variables (identifiant d'objet par exemple)
+			// et pour permettre l'agrégation sur cette requête
+			result = pattern.matcher(result).replaceAll(TRANSFORM_REPLACEMENT);
+		}
+		return result;
+	}
+
+	long getCacheHits() {
+		long result = 0;
+		for (int offset = CounterRequestAccumulator.CELL_SIZE; offset < cacheHits
+				.length(); offset += CounterRequestAccumulator.CELL_SIZE) {
+			result += cacheHits.get(offset);
+		}
+		return result;
+	}
+
+	long getCacheMisses() {
+		return cacheMisses.get();
+	}
+
+	long getCacheEvictions() {
+		return cacheEvictions.get();
+	}
+}
@@ -31,54 +31,103 @@ import java.lang.reflect.Method;
 import java.nio.ByteBuffer;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import org.jrobin.core.RrdFileBackend;
 
+import net.bull.javamelody.Parameter;
+import net.bull.javamelody.internal.common.LOG;
 import sun.nio.ch.DirectBuffer; // NOPMD
 
 /**
  * JRobin backend which is used to store RRD data to ordinary disk files
  * by using fast java.nio.* package. This is the default backend engine since JRobin 1.4.0.
+ *
+ * Reads and writes use absolute positions on a duplicate of the mapped buffer,
+ * so that concurrent readers (graphs, dumps, last values) and the writer (collect)
+ * do not block each other: only the remapping and the unmapping of the file are exclusive.
+ *
+ * The synchronization of the files to the disk depends on the rrd-sync-strategy parameter
+ * and uses a single task for all the files (see {@link SyncStrategy}).
  */
 public class RrdNioBackend extends RrdFileBackend {
 	private static final Object THE_UNSAFE = getTheUnsafe();
 	private static final Method JAVA9_INVOKE_CLEANER = getJava9InvokeCleaner();
+	private static final Set<RrdNioBackend> OPEN_BACKENDS = Collections
+			.newSetFromMap(new ConcurrentHashMap<RrdNioBackend, Boolean>());
+	private static final Set<String> DIRTY_PATHS = Collections
+			.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
 	private static Timer fileSyncTimer;
+	private static TimerTask fileSyncTask;
 
+	// lecture et écriture partagées, remapping et unmapping exclusifs
+	private final ReadWriteLock mappingLock = new ReentrantReadWriteLock();
 	private MappedByteBuffer byteBuffer;
-	private final TimerTask syncTask = new TimerTask() {
-		@Override
-		public void run() {
-			sync();
+	private volatile boolean dirty;
+	private final SyncStrategy syncStrategy;
+
+	/**
+	 * Strategies to force the rrd files to the disk.
+	 */
+	enum SyncStrategy {
+		/**
+		 * Each rrd file is forced to the disk when it is closed, if it was written (default).
+		 */
+		CLOSE,
+		/**
+		 * The open rrd files are forced to the disk periodically,
+		 * the closed files are left to the operating system.
+		 */
+		PERIODIC,
+		/**
+		 * The rrd files written since the previous sync are forced to the disk together, periodically.
+		 */
+		BATCHED;
+
+		static SyncStrategy getCurrent() {
+			final String value = Parameter.RRD_SYNC_STRATEGY.getValue();
+			if (value == null) {
+				return CLOSE;
+			}
+			try {
+				return valueOf(value.trim().toUpperCase(Locale.ENGLISH));
+			} catch (final IllegalArgumentException e) {
+				throw new IllegalStateException(
+						"The parameter rrd-sync-strategy should be close, periodic or batched",
+						e);
+			}
 		}
-	};
+	}
 
 	/**
 	 * Creates RrdFileBackend object for the given file path, backed by java.nio.* classes.
 	 *
 	 * @param path	   Path to a file
 	 * @param readOnly   True, if file should be open in a read-only mode. False otherwise
-	 * @param syncPeriod See {@link RrdNioBackendFactory#setSyncPeriod(int)} for explanation
 	 * @throws IOException Thrown in case of I/O error
 	 */
-	protected RrdNioBackend(String path, boolean readOnly, int syncPeriod) throws IOException {
+	protected RrdNioBackend(String path, boolean readOnly) throws IOException {
 		super(path, readOnly);
 		try {
+			syncStrategy = SyncStrategy.getCurrent();
 			mapFile();
-			if (!readOnly) {
-				fileSyncTimer.schedule(syncTask, syncPeriod * 1000L, syncPeriod * 1000L);
-			}
-		} catch (final IOException ioe) {
-			super.close(); // NOPMD
-			throw ioe;
-		} catch (final IllegalStateException e) {
-			// issue #592 (IllegalStateException: Timer already cancelled)
-			unmapFile();
+		} catch (final IOException | IllegalStateException e) {
 			super.close(); // NOPMD
 			throw e;
 		}
+		OPEN_BACKENDS.add(this);
 	}
 
 	/**
@@ -89,11 +138,74 @@ public class RrdNioBackend extends RrdFileBackend {
 	}
 
 	/**
-	 * Sets the timer.
+	 * Sets the timer and schedules in it the task to synchronize files.
 	 * @param timer timer to synchronize files.
 	 */
-	public static void setFileSyncTimer(Timer timer) {
+	public static synchronized void setFileSyncTimer(Timer timer) {
+		if (fileSyncTask != null) {
+			fileSyncTask.cancel();
+		}
 		fileSyncTimer = timer;
+		fileSyncTask = new TimerTask() {
+			@Override
+			public void run() {
+				try {
+					syncFiles(SyncStrategy.getCurrent());
+				} catch (final Throwable t) { // NOPMD
+					// une exception ne doit pas arrêter le timer partagé
+					LOG.warn("exception while synchronizing rrd files", t);
+				}
+			}
+		};
+		final long syncPeriod = RrdNioBackendFactory.getSyncPeriod() * 1000L;
+		try {
+			timer.schedule(fileSyncTask, syncPeriod, syncPeriod);
+		} catch (final IllegalStateException e) {
+			// issue #592 (IllegalStateException: Timer already cancelled)
+			LOG.debug("rrd file sync task not scheduled", e);
+		}
+	}
+
+	/**
+	 * Forces to the disk the rrd files which are not yet, whatever the strategy.
+	 */
+	static void syncAllFiles() {
+		syncFiles(SyncStrategy.PERIODIC);
+		syncFiles(SyncStrategy.BATCHED);
+	}
+
+	static void syncFiles(SyncStrategy syncStrategy) {
+		switch (syncStrategy) {
+		case CLOSE:
+			break;
+		case PERIODIC:
+			for (final RrdNioBackend backend : OPEN_BACKENDS) {
+				backend.sync();
+			}
+			break;
+		case BATCHED:
+			final List<String> paths = new ArrayList<>(DIRTY_PATHS);
+			for (final String path : paths) {
+				DIRTY_PATHS.remove(path);
+				forceFile(path);
+			}
+			break;
+		default:
+			throw new IllegalArgumentException(String.valueOf(syncStrategy));
+		}
+	}
+
+	private static void forceFile(String path) {
+		// ouverture sans création : un fichier supprimé depuis son écriture ne doit pas être recréé
+		try (FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.WRITE)) {
+			// fsync des pages écrites par le mapping, même si le fichier n'est plus mappé
+			channel.force(false);
+		} catch (final NoSuchFileException e) {
+			// fichier supprimé entre-temps, rien à forcer
+			return;
+		} catch (final IOException e) {
+			LOG.debug("sync of a rrd file failed: " + path, e);
+		}
 	}
 
 	private void mapFile() throws IOException {
@@ -156,10 +268,15 @@ public class RrdNioBackend extends RrdFileBackend {
 	 * @throws IOException Thrown in case of I/O error.
 	 */
 	@Override
-	protected synchronized void setLength(long newLength) throws IOException {
-		unmapFile();
-		super.setLength(newLength);
-		mapFile();
+	protected void setLength(long newLength) throws IOException {
+		mappingLock.writeLock().lock();
+		try {
+			unmapFile();
+			super.setLength(newLength);
+			mapFile();
+		} finally {
+			mappingLock.writeLock().unlock();
+		}
 	}
 
 	/**
@@ -169,12 +286,24 @@ public class RrdNioBackend extends RrdFileBackend {
 	 * @param b	  Bytes to be written.
 	 */
 	@Override
-	protected synchronized void write(long offset, byte[] b) throws IOException {
-		if (byteBuffer != null) {
-			byteBuffer.position((int) offset);
-			byteBuffer.put(b);
-		} else {
-			throw new IOException("Write failed, file " + getPath() + " not mapped for I/O");
+	protected void write(long offset, byte[] b) throws IOException {
+		mappingLock.readLock().lock();
+		try {
+			if (byteBuffer != null) {
+				// la position du buffer partagé n'est jamais modifiée, seulement celle d'une vue
+				final ByteBuffer view = byteBuffer.duplicate();
+				view.position((int) offset);
+				view.put(b);
+				dirty = true;
+				if (syncStrategy == SyncStrategy.BATCHED) {
+					// marqué dès l'écriture, pour que les fichiers restant ouverts soient aussi forcés
+					DIRTY_PATHS.add(getPath());
+				}
+			} else {
+				throw new IOException("Write failed, file " + getPath() + " not mapped for I/O");
+			}
+		} finally {
+			mappingLock.readLock().unlock();
 		}
 	}
 
@@ -185,12 +314,18 @@ public class RrdNioBackend extends RrdFileBackend {
 	 * @param b	  Buffer which receives bytes read from the file.
 	 */
 	@Override
-	protected synchronized void read(long offset, byte[] b) throws IOException {
-		if (byteBuffer != null) {
-			byteBuffer.position((int) offset);
-			byteBuffer.get(b);
-		} else {
-			throw new IOException("Read failed, file " + getPath() + " not mapped for I/O");
+	protected void read(long offset, byte[] b) throws IOException {
+		mappingLock.readLock().lock();
+		try {
+			if (byteBuffer != null) {
+				final ByteBuffer view = byteBuffer.duplicate();
+				view.position((int) offset);
+				view.get(b);
+			} else {
+				throw new IOException("Read failed, file " + getPath() + " not mapped for I/O");
+			}
+		} finally {
+			mappingLock.readLock().unlock();
 		}
 	}
 
@@ -200,16 +335,20 @@ public class RrdNioBackend extends RrdFileBackend {
 	 * @throws IOException Thrown in case of I/O error
 	 */
 	@Override
-	public synchronized void close() throws IOException {
-		// cancel synchronization
+	public void close() throws IOException {
+		OPEN_BACKENDS.remove(this);
+		mappingLock.writeLock().lock();
 		try {
-			if (syncTask != null) {
-				syncTask.cancel();
+			if (dirty && syncStrategy == SyncStrategy.CLOSE) {
+				sync();
 			}
-			sync();
 			unmapFile();
 		} finally {
-			super.close();
+			try {
+				super.close();
+			} finally {
+				mappingLock.writeLock().unlock();
+			}
 		}
 	}
 
@@ -217,9 +356,15 @@ public class RrdNioBackend extends RrdFileBackend {
 	 * This method forces all data cached in memory but not yet stored in the file,
 	 * to be stored in it.
 	 */
-	protected synchronized void sync() {
-		if (byteBuffer != null) {
-			byteBuffer.force();
+	protected void sync() {
+		mappingLock.readLock().lock();
+		try {
+			if (byteBuffer != null && dirty) {
+				dirty = false;
+				byteBuffer.force();
+			}
+		} finally {
+			mappingLock.readLock().unlock();
 		}
 	}
 }
@@ -42,7 +42,7 @@ public class RrdNioBackendFactory extends RrdFileBackendFactory {
 
 	/**
 	 * Period in seconds between consecutive synchronizations when
-	 * sync-mode is set to SYNC_BACKGROUND. By default in-memory cache will be
+	 * rrd-sync-strategy is periodic or batched. By default in-memory cache will be
 	 * transferred to the disc every 300 seconds (5 minutes). Default value can be
 	 * changed via {@link #setSyncPeriod(int)} method.
 	 */
@@ -81,7 +81,29 @@ public class RrdNioBackendFactory extends RrdFileBackendFactory {
 	 */
 	@Override
 	protected RrdBackend open(String path, boolean readOnly) throws IOException {
-		return new RrdNioBackend(path, readOnly, syncPeriod);
+		if (RrdSegmentStore.isEnabled()) {
+			return new RrdSegmentBackend(path);
+		}
+		return new RrdNioBackend(path, readOnly);
+	}
+
+	/**
+	 * Determines if the storage with the given path already exists.
+	 *
+	 * @param path Storage path
+	 * @return True, if such RRD exists, false otherwise.
+	 */
+	@Override
+	protected boolean exists(String path) {
+		if (RrdSegmentStore.isEnabled()) {
+			try {
+				return RrdSegmentStore.getInstanceForPath(path)
+						.exists(RrdSegmentStore.getSeriesName(path));
+			} catch (final IOException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+		return super.exists(path);
 	}
 
 	/**
@@ -0,0 +1,70 @@
+/*
+ * Copyright 2008-2019 by Emeric Vernat
+ *
+ *     This file is part of Java Melody.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.bull.javamelody.internal.model;
+
+import java.io.IOException;
+
+import org.jrobin.core.RrdBackend;
+
+/**
+ * JRobin backend which stores RRD data in a slot of the {@link RrdSegmentStore} of the directory,
+ * instead of a file per RRD.
+ * @author Emeric Vernat
+ */
+class RrdSegmentBackend extends RrdBackend {
+	private final String seriesName;
+	private RrdSegmentStore store;
+
+	/**
+	 * Creates RrdSegmentBackend object for the given file path.
+	 * @param path Path of the RRD, as if it was a file
+	 */
+	RrdSegmentBackend(String path) {
+		super(path);
+		this.seriesName = RrdSegmentStore.getSeriesName(path);
+	}
+
+	// le stockage est recherché à chaque fois car il peut avoir été fermé par JRobin.stop()
+	// alors que le RrdDb est encore dans le pool
+	private synchronized RrdSegmentStore getStore() throws IOException {
+		if (store == null || store.isClosed()) {
+			store = RrdSegmentStore.getInstanceForPath(getPath());
+		}
+		return store;
+	}
+
+	@Override
+	protected void write(long offset, byte[] b) throws IOException {
+		getStore().write(seriesName, offset, b);
+	}
+
+	@Override
+	protected void read(long offset, byte[] b) throws IOException {
+		getStore().read(seriesName, offset, b);
+	}
+
+	@Override
+	public long getLength() throws IOException {
+		return getStore().getLength(seriesName);
+	}
+
+	@Override
+	protected void setLength(long length) throws IOException {
+		getStore().setLength(seriesName, length);
+	}
+}
@@ -0,0 +1,573 @@
+/*
+ * Copyright 2008-2019 by Emeric Vernat
+ *
+ *     This file is part of Java Melody.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.bull.javamelody.internal.model;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import net.bull.javamelody.Parameter;
+import net.bull.javamelody.internal.common.LOG;
+
+/**
+ * Stockage consolidé des graphiques JRobin d'une application, utilisé à la place d'un fichier .rrd
+ * par graphique si le paramètre consolidated-rrd-storage est true.
+ *
+ * Les données RRD de chaque série sont gardées telles quelles dans un slot de taille fixe
+ * d'un fichier segment (graphs-n.rrds) : les archives round-robin d'une série sont donc contiguës.
+ * Chaque segment contient des slots de même taille (les séries d'une application ont la même
+ * définition), jusqu'à 64 Mo par segment.
+ * L'index des séries par nom est reconstruit à l'ouverture en lisant l'en-tête de chaque slot,
+ * qui contient le nom de la série.
+ * Les fichiers .rrd existants sont importés à leur première utilisation.
+ *
+ * Les lectures et écritures sont positionnelles (FileChannel) et peuvent se faire en parallèle,
+ * la compaction et l'allocation des slots sont exclusives.
+ * Une seule tâche de synchronisation sur disque est planifiée par stockage.
+ * @author Emeric Vernat
+ */
+final class RrdSegmentStore {
+	private static final String SEGMENT_FILE_PREFIX = "graphs-";
+	private static final String SEGMENT_FILE_SUFFIX = ".rrds";
+	private static final byte[] MAGIC = { 'J', 'M', 'R', 'R', 'D', 'S' };
+	private static final int VERSION = 1;
+	// en-tête d'un segment : magic, version et taille des données rrd de chaque slot
+	private static final int SEGMENT_HEADER_SIZE = 16;
+	// en-tête d'un slot : état (libre ou utilisé), longueur du nom et nom de la série
+	private static final int SLOT_HEADER_SIZE = 256;
+	private static final int MAX_NAME_LENGTH = SLOT_HEADER_SIZE - 3;
+	private static final byte FREE = 0;
+	private static final byte USED = 1;
+	private static final long MAX_SEGMENT_SIZE = 64L * 1024 * 1024;
+
+	private static final ConcurrentMap<File, RrdSegmentStore> STORES = new ConcurrentHashMap<>();
+
+	private final File directory;
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+	private final List<Segment> segments = new ArrayList<>();
+	private final Map<String, Slot> slotsByName = new HashMap<>();
+	private final TimerTask syncTask;
+	private volatile boolean closed;
+
+	private static final class Segment {
+		private final File file;
+		private final RandomAccessFile randomAccessFile;
+		private final FileChannel channel;
+		private final int rrdLength;
+		private final int slotSize;
+		private final int maxSlotCount;
+		private final BitSet usedSlots = new BitSet();
+		// nombre de slots dans le fichier, utilisés ou libres
+		private int slotCount;
+
+		Segment(File file, RandomAccessFile randomAccessFile, int rrdLength) {
+			super();
+			this.file = file;
+			this.randomAccessFile = randomAccessFile;
+			this.channel = randomAccessFile.getChannel();
+			this.rrdLength = rrdLength;
+			this.slotSize = SLOT_HEADER_SIZE + rrdLength;
+			this.maxSlotCount = (int) Math.max(1, MAX_SEGMENT_SIZE / slotSize);
+		}
+
+		long getSlotPosition(int slotIndex) {
+			return SEGMENT_HEADER_SIZE + (long) slotIndex * slotSize;
+		}
+
+		int getFreeSlotIndex() {
+			final int index = usedSlots.nextClearBit(0);
+			if (index < maxSlotCount) {
+				return index;
+			}
+			return -1;
+		}
+	}
+
+	private static final class Slot {
+		private Segment segment;
+		private int index;
+
+		Slot(Segment segment, int index) {
+			super();
+			this.segment = segment;
+			this.index = index;
+		}
+
+		long getDataPosition() {
+			return segment.getSlotPosition(index) + SLOT_HEADER_SIZE;
+		}
+	}
+
+	private RrdSegmentStore(File directory) throws IOException {
+		super();
+		this.directory = directory;
+		final File[] files = directory.listFiles(new FilenameFilter() {
+			@Override
+			public boolean accept(File dir, String fileName) {
+				return fileName.startsWith(SEGMENT_FILE_PREFIX)
+						&& fileName.endsWith(SEGMENT_FILE_SUFFIX);
+			}
+		});
+		if (files != null) {
+			Arrays.sort(files);
+			for (final File file : files) {
+				openSegment(file);
+			}
+		}
+		final Timer fileSyncTimer = RrdNioBackend.getFileSyncTimer();
+		if (fileSyncTimer == null) {
+			syncTask = null;
+		} else {
+			syncTask = new TimerTask() {
+				@Override
+				public void run() {
+					sync();
+				}
+			};
+			final long syncPeriod = RrdNioBackendFactory.getSyncPeriod() * 1000L;
+			fileSyncTimer.schedule(syncTask, syncPeriod, syncPeriod);
+		}
+	}
+
+	static boolean isEnabled() {
+		return Parameter.CONSOLIDATED_RRD_STORAGE.getValueAsBoolean();
+	}
+
+	static RrdSegmentStore getInstance(File directory) throws IOException {
+		final File canonicalDirectory = directory.getCanonicalFile();
+		RrdSegmentStore store = STORES.get(canonicalDirectory);
+		if (store == null) {
+			synchronized (STORES) {
+				store = STORES.get(canonicalDirectory);
+				if (store == null) {
+					if (!canonicalDirectory.mkdirs() && !canonicalDirectory.exists()) {
+						throw new IOException("JavaMelody directory can't be created: "
+								+ canonicalDirectory.getPath());
+					}
+					store = new RrdSegmentStore(canonicalDirectory);
+					STORES.put(canonicalDirectory, store);
+				}
+			}
+		}
+		return store;
+	}
+
+	static RrdSegmentStore getInstanceForPath(String path) throws IOException {
+		return getInstance(new File(path).getParentFile());
+	}
+
+	static String getSeriesName(String path) {
+		final String fileName = new File(path).getName();
+		if (fileName.endsWith(".rrd")) {
+			return fileName.substring(0, fileName.length() - ".rrd".length());
+		}
+		return fileName;
+	}
+
+	/**
+	 * Ferme les stockages ouverts, après avoir synchronisé les données sur disque.
+	 */
+	static void closeAll() {
+		synchronized (STORES) {
+			for (final RrdSegmentStore store : STORES.values()) {
+				try {
+					store.close();
+				} catch (final IOException e) {
+					LOG.warn("closing rrd segments failed in " + store.directory, e);
+				}
+			}
+			STORES.clear();
+		}
+	}
+
+	private void openSegment(File file) throws IOException {
+		final RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+		boolean ok = false;
+		try {
+			final ByteBuffer header = ByteBuffer.allocate(SEGMENT_HEADER_SIZE);
+			readFully(randomAccessFile.getChannel(), header, 0);
+			header.flip();
+			final byte[] magic = new byte[MAGIC.length];
+			header.get(magic);
+			final int version = header.getInt();
+			final int rrdLength = header.getInt();
+			if (!Arrays.equals(MAGIC, magic) || version != VERSION || rrdLength <= 0) {
+				// fichier segment illisible, on ne le supprime pas mais on l'ignore
+				LOG.info("invalid rrd segment ignored: " + file.getPath());
+				return;
+			}
+			final Segment segment = new Segment(file, randomAccessFile, rrdLength);
+			segment.slotCount = (int) ((randomAccessFile.length() - SEGMENT_HEADER_SIZE)
+					/ segment.slotSize);
+			final ByteBuffer slotHeader = ByteBuffer.allocate(SLOT_HEADER_SIZE);
+			for (int i = 0; i < segment.slotCount; i++) {
+				slotHeader.clear();
+				readFully(segment.channel, slotHeader, segment.getSlotPosition(i));
+				slotHeader.flip();
+				if (slotHeader.get() == USED) {
+					final byte[] nameBytes = new byte[slotHeader.getShort()];
+					slotHeader.get(nameBytes);
+					final String name = new String(nameBytes, StandardCharsets.UTF_8);
+					if (!slotsByName.containsKey(name)) {
+						slotsByName.put(name, new Slot(segment, i));
+						segment.usedSlots.set(i);
+					}
+				}
+			}
+			segments.add(segment);
+			ok = true;
+		} finally {
+			if (!ok) {
+				randomAccessFile.close();
+			}
+		}
+	}
+
+	boolean exists(String name) throws IOException {
+		lock.readLock().lock();
+		try {
+			if (slotsByName.containsKey(name)) {
+				return true;
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+		return importRrdFile(name);
+	}
+
+	// import d'un fichier .rrd existant d'une version précédente ou d'avant l'activation du stockage
+	private boolean importRrdFile(String name) throws IOException {
+		final File rrdFile = new File(directory, name + ".rrd");
+		if (!rrdFile.exists() || rrdFile.length() == 0 || rrdFile.length() > Integer.MAX_VALUE) {
+			return false;
+		}
+		lock.writeLock().lock();
+		try {
+			if (slotsByName.containsKey(name)) {
+				return true;
+			}
+			final ByteBuffer data = ByteBuffer.allocate((int) rrdFile.length());
+			try (RandomAccessFile randomAccessFile = new RandomAccessFile(rrdFile, "r")) {
+				readFully(randomAccessFile.getChannel(), data, 0);
+			}
+			data.flip();
+			final Slot slot = allocateSlot(name, data.remaining());
+			writeFully(slot.segment.channel, data, slot.getDataPosition());
+		} finally {
+			lock.writeLock().unlock();
+		}
+		if (!rrdFile.delete()) {
+			LOG.info("rrd file imported but not deleted: " + rrdFile.getPath());
+		}
+		return true;
+	}
+
+	long getLength(String name) {
+		lock.readLock().lock();
+		try {
+			final Slot slot = slotsByName.get(name);
+			if (slot == null) {
+				return 0;
+			}
+			return slot.segment.rrdLength;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	void setLength(String name, long length) throws IOException {
+		if (name.getBytes(StandardCharsets.UTF_8).length > MAX_NAME_LENGTH
+				|| length > Integer.MAX_VALUE - SLOT_HEADER_SIZE) {
+			throw new IOException("rrd can't be stored in segments: " + name);
+		}
+		lock.writeLock().lock();
+		try {
+			final Slot slot = slotsByName.get(name);
+			if (slot != null) {
+				if (slot.segment.rrdLength == length) {
+					return;
+				}
+				freeSlot(name, slot);
+			}
+			final Slot newSlot = allocateSlot(name, (int) length);
+			// données initialisées à 0 comme pour un nouveau fichier
+			writeFully(newSlot.segment.channel, ByteBuffer.allocate((int) length),
+					newSlot.getDataPosition());
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	void read(String name, long offset, byte[] b) throws IOException {
+		lock.readLock().lock();
+		try {
+			final Slot slot = getSlot(name);
+			readFully(slot.segment.channel, ByteBuffer.wrap(b), slot.getDataPosition() + offset);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	void write(String name, long offset, byte[] b) throws IOException {
+		lock.readLock().lock();
+		try {
+			final Slot slot = getSlot(name);
+			writeFully(slot.segment.channel, ByteBuffer.wrap(b), slot.getDataPosition() + offset);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	boolean delete(String name) throws IOException {
+		lock.writeLock().lock();
+		try {
+			final Slot slot = slotsByName.get(name);
+			if (slot == null) {
+				return false;
+			}
+			freeSlot(name, slot);
+			return true;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	List<String> getNames() {
+		lock.readLock().lock();
+		try {
+			return new ArrayList<>(slotsByName.keySet());
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	long getSlotSize(String name) {
+		lock.readLock().lock();
+		try {
+			final Slot slot = slotsByName.get(name);
+			if (slot == null) {
+				return 0;
+			}
+			return slot.segment.slotSize;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	long getDiskUsage() {
+		lock.readLock().lock();
+		try {
+			long diskUsage = 0;
+			for (final Segment segment : segments) {
+				diskUsage += segment.file.length();
+			}
+			return diskUsage;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Compaction : les slots utilisés en fin de segment sont déplacés dans les slots libres
+	 * et les segments sont tronqués (ou supprimés s'ils sont vides).
+	 * @throws IOException e
+	 */
+	void compact() throws IOException {
+		lock.writeLock().lock();
+		try {
+			final Map<Segment, Map<Integer, String>> namesBySlotBySegment = new HashMap<>();
+			for (final Map.Entry<String, Slot> entry : slotsByName.entrySet()) {
+				final Slot slot = entry.getValue();
+				Map<Integer, String> namesBySlot = namesBySlotBySegment.get(slot.segment);
+				if (namesBySlot == null) {
+					namesBySlot = new HashMap<>();
+					namesBySlotBySegment.put(slot.segment, namesBySlot);
+				}
+				namesBySlot.put(slot.index, entry.getKey());
+			}
+			for (final Segment segment : new ArrayList<>(segments)) {
+				final Map<Integer, String> namesBySlot = namesBySlotBySegment.get(segment);
+				if (namesBySlot == null) {
+					deleteSegment(segment);
+					continue;
+				}
+				final ByteBuffer buffer = ByteBuffer.allocate(segment.slotSize);
+				int freeIndex = segment.usedSlots.nextClearBit(0);
+				int lastUsedIndex = segment.usedSlots.length() - 1;
+				while (freeIndex < lastUsedIndex) {
+					buffer.clear();
+					readFully(segment.channel, buffer, segment.getSlotPosition(lastUsedIndex));
+					buffer.flip();
+					writeFully(segment.channel, buffer, segment.getSlotPosition(freeIndex));
+					final String name = namesBySlot.get(lastUsedIndex);
+					slotsByName.get(name).index = freeIndex;
+					segment.usedSlots.set(freeIndex);
+					segment.usedSlots.clear(lastUsedIndex);
+					freeIndex = segment.usedSlots.nextClearBit(freeIndex);
+					lastUsedIndex = segment.usedSlots.length() - 1;
+				}
+				segment.slotCount = segment.usedSlots.length();
+				segment.channel.truncate(segment.getSlotPosition(segment.slotCount));
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	void sync() {
+		lock.readLock().lock();
+		try {
+			for (final Segment segment : segments) {
+				segment.channel.force(false);
+			}
+		} catch (final IOException e) {
+			LOG.info("sync of rrd segments failed in " + directory, e);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	boolean isClosed() {
+		return closed;
+	}
+
+	private void close() throws IOException {
+		closed = true;
+		if (syncTask != null) {
+			syncTask.cancel();
+		}
+		lock.writeLock().lock();
+		try {
+			for (final Segment segment : segments) {
+				segment.channel.force(false);
+				segment.randomAccessFile.close();
+			}
+			segments.clear();
+			slotsByName.clear();
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	private Slot getSlot(String name) throws FileNotFoundException {
+		final Slot slot = slotsByName.get(name);
+		if (slot == null) {
+			// même message que RrdDb pour un fichier supprimé, cf JRobin.addValue
+			throw new FileNotFoundException(
+					"Could not open " + new File(directory, name + ".rrd") + " [non existent]");
+		}
+		return slot;
+	}
+
+	private Slot allocateSlot(String name, int rrdLength) throws IOException {
+		Segment segment = null;
+		int index = -1;
+		for (final Segment candidate : segments) {
+			if (candidate.rrdLength == rrdLength) {
+				index = candidate.getFreeSlotIndex();
+				if (index >= 0) {
+					segment = candidate;
+					break;
+				}
+			}
+		}
+		if (segment == null) {
+			segment = createSegment(rrdLength);
+			index = 0;
+		}
+		final byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+		final ByteBuffer slotHeader = ByteBuffer.allocate(SLOT_HEADER_SIZE);
+		slotHeader.put(USED).putShort((short) nameBytes.length).put(nameBytes);
+		slotHeader.clear();
+		writeFully(segment.channel, slotHeader, segment.getSlotPosition(index));
+		segment.usedSlots.set(index);
+		segment.slotCount = Math.max(segment.slotCount, index + 1);
+		final Slot slot = new Slot(segment, index);
+		slotsByName.put(name, slot);
+		return slot;
+	}
+
+	private void freeSlot(String name, Slot slot) throws IOException {
+		writeFully(slot.segment.channel, ByteBuffer.wrap(new byte[] { FREE }),
+				slot.segment.getSlotPosition(slot.index));
+		slot.segment.usedSlots.clear(slot.index);
+		slotsByName.remove(name);
+	}
+
+	private Segment createSegment(int rrdLength) throws IOException {
+		int number = 0;
+		File file;
+		do {
+			file = new File(directory, SEGMENT_FILE_PREFIX + number + SEGMENT_FILE_SUFFIX);
+			number++;
+		} while (file.exists());
+		final RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+		final Segment segment = new Segment(file, randomAccessFile, rrdLength);
+		final ByteBuffer header = ByteBuffer.allocate(SEGMENT_HEADER_SIZE);
+		header.put(MAGIC).putInt(VERSION).putInt(rrdLength);
+		header.clear();
+		writeFully(segment.channel, header, 0);
+		segments.add(segment);
+		return segment;
+	}
+
+	private void deleteSegment(Segment segment) throws IOException {
+		segments.remove(segment);
+		segment.randomAccessFile.close();
+		if (!segment.file.delete()) {
+			LOG.info("rrd segment not deleted: " + segment.file.getPath());
+		}
+	}
+
+	private static void readFully(FileChannel channel, ByteBuffer buffer, long position)
+			throws IOException {
+		long currentPosition = position;
+		while (buffer.hasRemaining()) {
+			final int read = channel.read(buffer, currentPosition);
+			if (read < 0) {
+				throw new IOException("unexpected end of rrd segment");
+			}
+			currentPosition += read;
+		}
+	}
+
+	private static void writeFully(FileChannel channel, ByteBuffer buffer, long position)
+			throws IOException {
+		long currentPosition = position;
+		while (buffer.hasRemaining()) {
+			currentPosition += channel.write(buffer, currentPosition);
+		}
+	}
+}
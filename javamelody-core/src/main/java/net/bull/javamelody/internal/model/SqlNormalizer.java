@@ -0,0 +1,158 @@
+/*
+ * Copyright 2008-2019 by Emeric Vernat
+ *
+ *     This file is part of Java Melody.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.bull.javamelody.internal.model;
+
+/**
+ * Normalisation d'une requête sql pour l'agrégation dans les statistiques, sans expression régulière
+ * et en un seul parcours de la requête : les littéraux (chaînes et nombres) sont remplacés par ?
+ * et les listes de valeurs d'une clause "in" sont réduites à (?).
+ *
+ * Par exemple, "select * from person where id in (1, 2, 3) and name = 'test'"
+ * devient "select * from person where id in (?) and name = ?".
+ * Les identifiants, y compris entre guillemets, et les commentaires sont conservés.
+ * @author Emeric Vernat
+ */
+final class SqlNormalizer {
+	private static final char PLACEHOLDER = '?';
+
+	private SqlNormalizer() {
+		super();
+	}
+
+	static String normalize(String sql) {
+		final int length = sql.length();
+		final StringBuilder sb = new StringBuilder(length);
+		// position dans sb de la parenthèse ouvrante de la liste "in" en cours,
+		// ou -1 si la parenthèse courante ne contient pas seulement des littéraux
+		int inListStart = -1;
+		int i = 0;
+		while (i < length) {
+			final char c = sql.charAt(i);
+			final int end;
+			if (c == '\'') {
+				end = skipQuoted(sql, i, c);
+				sb.append(PLACEHOLDER);
+			} else if (isDigit(c)
+					|| c == '-' && inListStart >= 0 && i + 1 < length && isDigit(sql.charAt(i + 1))) {
+				end = skipNumber(sql, i + 1);
+				sb.append(PLACEHOLDER);
+			} else if (c == '?' || c == ',' || Character.isWhitespace(c)) {
+				end = i + 1;
+				sb.append(c);
+			} else if (c == '(') {
+				end = i + 1;
+				inListStart = endsWithInKeyword(sb) ? sb.length() : -1;
+				sb.append(c);
+			} else if (c == ')') {
+				end = i + 1;
+				if (inListStart >= 0) {
+					sb.setLength(inListStart);
+					sb.append('(').append(PLACEHOLDER);
+					inListStart = -1;
+				}
+				sb.append(c);
+			} else {
+				if (c == '"' || c == '`') {
+					end = skipQuoted(sql, i, c);
+				} else if (c == '-' && sql.startsWith("--", i)) {
+					end = skipLineComment(sql, i);
+				} else if (c == '/' && sql.startsWith("/*", i)) {
+					end = skipBlockComment(sql, i);
+				} else if (isIdentifierPart(c)) {
+					// les chiffres dans un identifiant (table1 par exemple) ne sont pas des littéraux
+					end = skipIdentifier(sql, i);
+				} else {
+					end = i + 1;
+				}
+				sb.append(sql, i, end);
+				inListStart = -1;
+			}
+			i = end;
+		}
+		return sb.toString();
+	}
+
+	private static boolean endsWithInKeyword(StringBuilder sb) {
+		int i = sb.length() - 1;
+		while (i >= 0 && Character.isWhitespace(sb.charAt(i))) {
+			i--;
+		}
+		return i >= 1 && Character.toLowerCase(sb.charAt(i)) == 'n'
+				&& Character.toLowerCase(sb.charAt(i - 1)) == 'i'
+				&& (i == 1 || !isIdentifierPart(sb.charAt(i - 2)));
+	}
+
+	private static int skipQuoted(String sql, int start, char quote) {
+		int i = start + 1;
+		while (i < sql.length()) {
+			if (sql.charAt(i) == quote) {
+				if (i + 1 < sql.length() && sql.charAt(i + 1) == quote) {
+					// quote échappée en la doublant
+					i += 2;
+					continue;
+				}
+				return i + 1;
+			}
+			i++;
+		}
+		return i;
+	}
+
+	private static int skipNumber(String sql, int start) {
+		// chiffres, décimales, exposant (1.5e-3) ou hexadécimal (0xFF)
+		int i = start;
+		while (i < sql.length()) {
+			final char c = sql.charAt(i);
+			if (isIdentifierPart(c) || c == '.') {
+				i++;
+			} else if ((c == '-' || c == '+')
+					&& (sql.charAt(i - 1) == 'e' || sql.charAt(i - 1) == 'E')) {
+				i++;
+			} else {
+				break;
+			}
+		}
+		return i;
+	}
+
+	private static int skipIdentifier(String sql, int start) {
+		int i = start + 1;
+		while (i < sql.length() && isIdentifierPart(sql.charAt(i))) {
+			i++;
+		}
+		return i;
+	}
+
+	private static int skipLineComment(String sql, int start) {
+		final int end = sql.indexOf('\n', start);
+		return end == -1 ? sql.length() : end;
+	}
+
+	private static int skipBlockComment(String sql, int start) {
+		final int end = sql.indexOf("*/", start + 2);
+		return end == -1 ? sql.length() : end + 2;
+	}
+
+	private static boolean isDigit(char c) {
+		return c >= '0' && c <= '9';
+	}
+
+	private static boolean isIdentifierPart(char c) {
+		return Character.isLetterOrDigit(c) || c == '_' || c == '$';
+	}
+}
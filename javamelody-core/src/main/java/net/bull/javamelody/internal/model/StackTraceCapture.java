@@ -0,0 +1,314 @@
+/*
+ * Copyright 2008-2019 by Emeric Vernat
+ *
+ *     This file is part of Java Melody.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.bull.javamelody.internal.model;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import net.bull.javamelody.Parameter;
+
+/**
+ * Capture économique des stack-traces d'ouverture des connexions jdbc.
+ *
+ * A partir de Java 9, les frames sont lues par StackWalker en nombre limité
+ * et les {@link StackTraceElement} (avec numéros de lignes, ce qui est le plus coûteux)
+ * ne sont créés que lorsque la stack-trace est affichée.
+ * Les stack-traces identiques sont dédoublonnées dans une table des points d'appel,
+ * si bien qu'une stack-trace n'est créée qu'une fois par point d'appel.
+ * En Java 7 et 8, un Throwable est créé : son backtrace natif n'est converti
+ * en {@link StackTraceElement} que lors de l'affichage.
+ *
+ * Selon le paramètre connections-stack-traces-sampling, seule une connexion sur N
+ * a sa stack-trace capturée.
+ * @author Emeric Vernat
+ */
+final class StackTraceCapture {
+	// frames de cette classe ou de ses classes internes, ignorées au début des stack-traces
+	private static final String OWN_CLASS = StackTraceCapture.class.getName();
+	private static final int MAX_STACK_DEPTH = 64;
+	private static final int MAX_CALL_SITES = 1000;
+	private static final int SAMPLING = getSamplingParameter();
+
+	private static final ConcurrentMap<CallSiteKey, CapturedStack> CALL_SITES = new ConcurrentHashMap<>();
+
+	// StackWalker et StackFrame par MethodHandle, car javamelody est compilé en Java 7 ;
+	// null avant Java 9
+	private static final StackWalkerFrames STACK_WALKER_FRAMES = createStackWalkerFramesIfPossible();
+
+	/**
+	 * Stack-trace capturée, dont les éléments sont créés au premier appel de getStackTrace().
+	 */
+	static final class CapturedStack {
+		// frames de StackWalker et nombre de frames de cette classe à ignorer au début
+		private Object[] frames;
+		private final int skippedFrames;
+		// ou Throwable en Java 7 et 8
+		private Throwable throwable;
+		private volatile StackTraceElement[] stackTrace;
+
+		CapturedStack(Object[] frames, int skippedFrames) {
+			super();
+			this.frames = frames;
+			this.skippedFrames = skippedFrames;
+		}
+
+		CapturedStack(Throwable throwable) {
+			super();
+			this.throwable = throwable;
+			this.skippedFrames = 0;
+		}
+
+		StackTraceElement[] getStackTrace() {
+			StackTraceElement[] result = stackTrace;
+			if (result == null) {
+				synchronized (this) {
+					result = stackTrace;
+					if (result == null) {
+						if (frames != null) {
+							result = STACK_WALKER_FRAMES.toStackTrace(frames, skippedFrames);
+						} else {
+							result = toStackTrace(throwable);
+						}
+						stackTrace = result;
+						// les frames ne sont plus utiles
+						frames = null;
+						throwable = null;
+					}
+				}
+			}
+			return result;
+		}
+
+		private static StackTraceElement[] toStackTrace(Throwable throwable) {
+			final StackTraceElement[] elements = throwable.getStackTrace();
+			int skipped = 0;
+			while (skipped < elements.length
+					&& elements[skipped].getClassName().startsWith(OWN_CLASS)) {
+				skipped++;
+			}
+			return Arrays.copyOfRange(elements, skipped,
+					Math.min(elements.length, skipped + MAX_STACK_DEPTH));
+		}
+	}
+
+	/**
+	 * Clé d'un point d'appel : classes, méthodes et index de bytecode des frames.
+	 */
+	private static final class CallSiteKey {
+		private final String[] classNames;
+		private final String[] methodNames;
+		private final int[] byteCodeIndexes;
+		private final int hashCode;
+
+		CallSiteKey(String[] classNames, String[] methodNames, int[] byteCodeIndexes) {
+			super();
+			this.classNames = classNames;
+			this.methodNames = methodNames;
+			this.byteCodeIndexes = byteCodeIndexes;
+			this.hashCode = 31 * (31 * Arrays.hashCode(classNames) + Arrays.hashCode(methodNames))
+					+ Arrays.hashCode(byteCodeIndexes);
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj) {
+				return true;
+			}
+			if (!(obj instanceof CallSiteKey)) {
+				return false;
+			}
+			final CallSiteKey other = (CallSiteKey) obj;
+			return hashCode == other.hashCode
+					&& Arrays.equals(byteCodeIndexes, other.byteCodeIndexes)
+					&& Arrays.equals(methodNames, other.methodNames)
+					&& Arrays.equals(classNames, other.classNames);
+		}
+
+		@Override
+		public int hashCode() {
+			return hashCode;
+		}
+	}
+
+	/**
+	 * Lecture des frames par StackWalker (Java 9+).
+	 * Cette classe n'est chargée que si StackWalker existe.
+	 */
+	private static final class StackWalkerFrames
+			implements Function<Stream<Object>, List<Object>> {
+		private final MethodHandle walk;
+		private final MethodHandle getClassName;
+		private final MethodHandle getMethodName;
+		private final MethodHandle getByteCodeIndex;
+		private final MethodHandle toStackTraceElement;
+
+		private StackWalkerFrames() throws ReflectiveOperationException {
+			super();
+			final Class<?> stackWalkerClass = Class.forName("java.lang.StackWalker");
+			final Class<?> stackFrameClass = Class.forName("java.lang.StackWalker$StackFrame");
+			// lookup de cette classe et non publicLookup, car StackWalker.walk est "caller-sensitive"
+			final MethodHandles.Lookup lookup = MethodHandles.lookup();
+			final Object stackWalker = stackWalkerClass.getMethod("getInstance").invoke(null);
+			this.walk = lookup
+					.findVirtual(stackWalkerClass, "walk",
+							MethodType.methodType(Object.class, Function.class))
+					.bindTo(stackWalker);
+			this.getClassName = findFrameMethod(lookup, stackFrameClass, "getClassName",
+					String.class);
+			this.getMethodName = findFrameMethod(lookup, stackFrameClass, "getMethodName",
+					String.class);
+			this.getByteCodeIndex = findFrameMethod(lookup, stackFrameClass, "getByteCodeIndex",
+					int.class);
+			this.toStackTraceElement = findFrameMethod(lookup, stackFrameClass,
+					"toStackTraceElement", StackTraceElement.class);
+		}
+
+		private static MethodHandle findFrameMethod(MethodHandles.Lookup lookup,
+				Class<?> stackFrameClass, String name, Class<?> returnType)
+				throws ReflectiveOperationException {
+			return lookup.findVirtual(stackFrameClass, name, MethodType.methodType(returnType))
+					.asType(MethodType.methodType(returnType, Object.class));
+		}
+
+		@Override
+		public List<Object> apply(Stream<Object> stream) {
+			return stream.limit(MAX_STACK_DEPTH).collect(Collectors.toList());
+		}
+
+		CapturedStack capture() {
+			try {
+				final Object frameList = (Object) walk.invokeExact((Function<?, ?>) this);
+				final Object[] frames = ((List<?>) frameList).toArray();
+				int skippedFrames = 0;
+				while (skippedFrames < frames.length
+						&& ((String) getClassName.invokeExact(frames[skippedFrames]))
+								.startsWith(OWN_CLASS)) {
+					skippedFrames++;
+				}
+				final int length = frames.length - skippedFrames;
+				final String[] classNames = new String[length];
+				final String[] methodNames = new String[length];
+				final int[] byteCodeIndexes = new int[length];
+				for (int i = 0; i < length; i++) {
+					final Object frame = frames[skippedFrames + i];
+					classNames[i] = (String) getClassName.invokeExact(frame);
+					methodNames[i] = (String) getMethodName.invokeExact(frame);
+					byteCodeIndexes[i] = (int) getByteCodeIndex.invokeExact(frame);
+				}
+				return intern(new CallSiteKey(classNames, methodNames, byteCodeIndexes), frames,
+						skippedFrames);
+			} catch (final Throwable t) { // NOPMD
+				throw new IllegalStateException(t);
+			}
+		}
+
+		StackTraceElement[] toStackTrace(Object[] frames, int skippedFrames) {
+			final StackTraceElement[] result = new StackTraceElement[frames.length
+					- skippedFrames];
+			try {
+				for (int i = 0; i < result.length; i++) {
+					result[i] = (StackTraceElement) toStackTraceElement
+							.invokeExact(frames[skippedFrames + i]);
+				}
+			} catch (final Throwable t) { // NOPMD
+				throw new IllegalStateException(t);
+			}
+			return result;
+		}
+	}
+
+	private StackTraceCapture() {
+		super();
+	}
+
+	private static StackWalkerFrames createStackWalkerFramesIfPossible() {
+		try {
+			Class.forName("java.lang.StackWalker");
+		} catch (final ClassNotFoundException e) {
+			// pas de StackWalker avant Java 9 :
+			// la classe StackWalkerFrames (qui utilise l'API Java 8) n'est alors pas chargée
+			return null;
+		}
+		try {
+			return new StackWalkerFrames();
+		} catch (final ReflectiveOperationException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static int getSamplingParameter() {
+		final String parameter = Parameter.CONNECTIONS_STACK_TRACES_SAMPLING.getValue();
+		if (parameter == null) {
+			return 1;
+		}
+		final int result = Integer.parseInt(parameter);
+		if (result < 1) {
+			throw new IllegalStateException(
+					"The parameter connections-stack-traces-sampling should be >= 1");
+		}
+		return result;
+	}
+
+	/**
+	 * @return Stack-trace capturée pour le thread courant,
+	 * ou null si cet appel n'est pas retenu par l'échantillonnage
+	 */
+	static CapturedStack captureIfSampled() {
+		if (SAMPLING > 1 && ThreadLocalRandom.current().nextInt(SAMPLING) != 0) {
+			return null;
+		}
+		return capture();
+	}
+
+	static CapturedStack capture() {
+		if (STACK_WALKER_FRAMES != null) {
+			return STACK_WALKER_FRAMES.capture();
+		}
+		return new CapturedStack(new Throwable());
+	}
+
+	private static CapturedStack intern(CallSiteKey key, Object[] frames, int skippedFrames) {
+		final CapturedStack capturedStack = CALL_SITES.get(key);
+		if (capturedStack != null) {
+			return capturedStack;
+		}
+		final CapturedStack newCapturedStack = new CapturedStack(frames, skippedFrames);
+		if (CALL_SITES.size() >= MAX_CALL_SITES) {
+			// table pleine : la stack-trace n'est pas dédoublonnée
+			return newCapturedStack;
+		}
+		final CapturedStack previous = CALL_SITES.putIfAbsent(key, newCapturedStack);
+		if (previous != null) {
+			return previous;
+		}
+		return newCapturedStack;
+	}
+
+	static int getCallSitesCount() {
+		return CALL_SITES.size();
+	}
+}
@@ -0,0 +1,296 @@
+/*
+ * Copyright 2008-2019 by Emeric Vernat
+ *
+ *     This file is part of Java Melody.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.bull.javamelody.internal.model;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import net.bull.javamelody.internal.common.InputOutput;
+
+/**
+ * Format binaire de {@link TransportFormat#BINARY} entre une application monitorée et un serveur de collecte.
+ *
+ * Le flux commence par {@link #MAGIC} et par la version du format, puis contient une suite d'enregistrements
+ * préfixés par leur type et leur longueur, et se termine par un enregistrement de fin.
+ * Seuls les counters ont un encodage binaire, celui des fichiers ({@link CounterStorageFormat}) :
+ * ce sont eux qui font la taille des réponses avec des milliers de requêtes.
+ * Les autres objets (JavaInformations, CounterRequestContext, ThreadInformations, ...)
+ * sont peu nombreux par réponse et restent en sérialisation java, chacun dans son enregistrement.
+ * Chaque enregistrement est écrit dès qu'il est encodé et il est lu en flux,
+ * sans lire la réponse entière avant de la décoder, mais le résultat est une liste complète,
+ * fusionnée ensuite par le serveur de collecte comme pour les autres formats.
+ * @author Emeric Vernat
+ */
+final class TransportBinaryFormat {
+	static final byte[] MAGIC = { 'J', 'M', 'T' };
+	static final int VERSION = 1;
+
+	// le contenu est une liste d'enregistrements ou un seul enregistrement
+	private static final int LIST = 0;
+	private static final int SINGLE = 1;
+
+	// types des enregistrements
+	private static final int END = 0;
+	private static final int NULL = 1;
+	private static final int STRING = 2;
+	private static final int COUNTER = 3;
+	private static final int COLLECT_GENERATION = 4;
+	private static final int JAVA_SERIALIZED = 5;
+
+	// longueur maximum en octets d'un enregistrement de type String
+	// (valeur d'un attribut jmx ou dernière valeur d'un graphique par exemple)
+	static final int MAX_STRING_LENGTH = 1024 * 1024;
+
+	/**
+	 * Buffer d'un enregistrement, réutilisé pour tous les enregistrements d'un flux.
+	 */
+	private static final class RecordBuffer extends ByteArrayOutputStream {
+		RecordBuffer() {
+			super(8192);
+		}
+
+		void writeRecordTo(int type, OutputStream output) throws IOException {
+			output.write(type);
+			writeUnsigned(output, count);
+			output.write(buf, 0, count);
+			reset();
+		}
+	}
+
+	/**
+	 * Flux limité à la longueur d'un enregistrement, pour lire l'enregistrement sans allouer
+	 * d'avance un buffer de la longueur lue dans le flux (qui peut être fausse ou énorme).
+	 */
+	private static final class RecordInputStream extends FilterInputStream {
+		private long remaining;
+
+		RecordInputStream(InputStream input, long length) {
+			super(input);
+			this.remaining = length;
+		}
+
+		@Override
+		public int read() throws IOException {
+			if (remaining <= 0) {
+				return -1;
+			}
+			final int result = readByte(in);
+			remaining--;
+			return result;
+		}
+
+		@Override
+		public int read(byte[] bytes, int off, int len) throws IOException {
+			if (remaining <= 0) {
+				return -1;
+			}
+			final int result = in.read(bytes, off, (int) Math.min(len, remaining));
+			if (result == -1) {
+				// fin du flux avant la fin de l'enregistrement
+				throw new EOFException();
+			}
+			remaining -= result;
+			return result;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			final long result = in.skip(Math.min(n, remaining));
+			remaining -= result;
+			return result;
+		}
+
+		@Override
+		public int available() throws IOException {
+			return (int) Math.min(in.available(), remaining);
+		}
+
+		@Override
+		public boolean markSupported() {
+			return false;
+		}
+
+		@Override
+		public void close() throws IOException {
+			// le flux sous-jacent contient les enregistrements suivants, il n'est pas fermé
+			// mais la fin de cet enregistrement est lue s'il n'a pas été lu entièrement
+			final byte[] buffer = new byte[1024];
+			while (read(buffer, 0, buffer.length) != -1) {
+				continue;
+			}
+		}
+	}
+
+	private TransportBinaryFormat() {
+		super();
+	}
+
+	static void write(Serializable serializable, OutputStream output) throws IOException {
+		output.write(MAGIC);
+		writeUnsigned(output, VERSION);
+		final RecordBuffer recordBuffer = new RecordBuffer();
+		if (serializable instanceof List && isListOfSerializables((List<?>) serializable)) {
+			output.write(LIST);
+			for (final Object element : (List<?>) serializable) {
+				writeRecord((Serializable) element, recordBuffer, output);
+			}
+		} else {
+			output.write(SINGLE);
+			writeRecord(serializable, recordBuffer, output);
+		}
+		output.write(END);
+		output.flush();
+	}
+
+	private static boolean isListOfSerializables(List<?> list) {
+		for (final Object element : list) {
+			if (element != null && !(element instanceof Serializable)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static void writeRecord(Serializable serializable, RecordBuffer recordBuffer,
+			OutputStream output) throws IOException {
+		final int type;
+		if (serializable == null) {
+			type = NULL;
+		} else if (serializable instanceof String) {
+			type = STRING;
+			recordBuffer.write(((String) serializable).getBytes(StandardCharsets.UTF_8));
+		} else if (serializable instanceof Counter) {
+			type = COUNTER;
+			// le counter à envoyer est un clone qui n'est plus modifié
+			CounterStorageFormat.write((Counter) serializable, recordBuffer);
+		} else if (serializable instanceof CollectGeneration) {
+			type = COLLECT_GENERATION;
+			final CollectGeneration collectGeneration = (CollectGeneration) serializable;
+			writeUnsigned(recordBuffer, collectGeneration.getGeneration());
+			recordBuffer.write(collectGeneration.isFullSnapshot() ? 1 : 0);
+		} else {
+			type = JAVA_SERIALIZED;
+			try (ObjectOutputStream out = new ObjectOutputStream(recordBuffer)) {
+				out.writeObject(serializable);
+			}
+		}
+		recordBuffer.writeRecordTo(type, output);
+	}
+
+	static Serializable read(InputStream input) throws IOException, ClassNotFoundException {
+		for (final byte b : MAGIC) {
+			if (readByte(input) != b) {
+				throw new IOException("Not a javamelody binary transport");
+			}
+		}
+		final long version = readUnsigned(input);
+		if (version > VERSION) {
+			// flux écrit par une version plus récente de javamelody
+			throw new IOException("Unsupported binary transport version: " + version);
+		}
+		final int kind = readByte(input);
+		final List<Serializable> records = new ArrayList<>();
+		int type = readByte(input);
+		while (type != END) {
+			records.add(readRecord(type, input));
+			type = readByte(input);
+		}
+		if (kind == SINGLE) {
+			if (records.size() != 1) {
+				throw new IOException("One record expected instead of " + records.size());
+			}
+			return records.get(0);
+		}
+		return (Serializable) records;
+	}
+
+	private static Serializable readRecord(int type, InputStream input)
+			throws IOException, ClassNotFoundException {
+		final long length = readUnsigned(input);
+		if (length < 0) {
+			throw new IOException("Invalid record length: " + length);
+		}
+		// l'enregistrement est lu en flux : la mémoire allouée dépend des données effectivement reçues
+		// et non de la longueur annoncée, qui peut venir de n'importe quel client en mode push
+		try (InputStream recordInput = new RecordInputStream(input, length)) {
+			switch (type) {
+			case NULL:
+				return null;
+			case STRING:
+				if (length > MAX_STRING_LENGTH) {
+					throw new IOException("Too large string record: " + length);
+				}
+				final ByteArrayOutputStream output = new ByteArrayOutputStream();
+				InputOutput.pump(recordInput, output);
+				return new String(output.toByteArray(), StandardCharsets.UTF_8);
+			case COUNTER:
+				return CounterStorageFormat.read(recordInput);
+			case COLLECT_GENERATION:
+				final long generation = readUnsigned(recordInput);
+				final boolean fullSnapshot = readByte(recordInput) != 0;
+				return new CollectGeneration(generation, fullSnapshot);
+			case JAVA_SERIALIZED:
+				// fermé avec recordInput
+				final ObjectInputStream in = TransportFormat.createObjectInputStream(recordInput);
+				return (Serializable) in.readObject();
+			default:
+				throw new IOException("Unknown record type: " + type);
+			}
+		}
+	}
+
+	private static void writeUnsigned(OutputStream output, long value) throws IOException {
+		long v = value;
+		while ((v & ~0x7FL) != 0) {
+			output.write((int) (v & 0x7F | 0x80));
+			v >>>= 7;
+		}
+		output.write((int) v);
+	}
+
+	private static long readUnsigned(InputStream input) throws IOException {
+		long result = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			final int b = readByte(input);
+			result |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return result;
+			}
+		}
+		throw new IOException("Malformed varint");
+	}
+
+	private static int readByte(InputStream input) throws IOException {
+		final int b = input.read();
+		if (b == -1) {
+			throw new EOFException();
+		}
+		return b;
+	}
+
+}
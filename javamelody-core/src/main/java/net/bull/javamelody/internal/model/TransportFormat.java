@@ -73,7 +73,13 @@ public enum TransportFormat {
 	 * GSON (écriture et lecture en JSON avec <a href='https://github.com/google/gson'>Google Gson</a>).
 	 * Note : il serait possible aussi de le faire avec <a href='https://github.com/FasterXML/jackson'>Jackson</a>
 	 */
-	GSON("application/json");
+	GSON("application/json"),
+
+	/**
+	 * Format binaire compact lu en flux, les counters n'étant pas en sérialisation java
+	 * (voir {@link TransportBinaryFormat}).
+	 */
+	BINARY("application/x-javamelody-binary");
 
 	private static final String NULL_VALUE = "null";
 
@@ -317,6 +323,9 @@ public enum TransportFormat {
 		case GSON:
 			GsonIO.writeToGson(nonNullSerializable, bufferedOutput);
 			break;
+		case BINARY:
+			TransportBinaryFormat.write(nonNullSerializable, bufferedOutput);
+			break;
 		default:
 			throw new IllegalStateException(toString());
 		}
@@ -341,6 +350,9 @@ public enum TransportFormat {
 			throw new UnsupportedOperationException();
 		case GSON:
 			throw new UnsupportedOperationException();
+		case BINARY:
+			result = TransportBinaryFormat.read(bufferedInput);
+			break;
 		default:
 			throw new IllegalStateException(toString());
 		}
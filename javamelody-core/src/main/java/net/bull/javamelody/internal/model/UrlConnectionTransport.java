@@ -0,0 +1,130 @@
+/*
+ * Copyright 2008-2019 by Emeric Vernat
+ *
+ *     This file is part of Java Melody.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.bull.javamelody.internal.model;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.Map;
+
+/**
+ * {@link HttpTransport} avec HttpURLConnection.
+ *
+ * Les connexions sont gardées par le jdk dans son cache keep-alive (5 par host par défaut,
+ * voir la propriété système http.maxConnections), si la réponse est lue jusqu'à la fin et fermée
+ * et si la connexion n'est pas fermée par disconnect().
+ * @author Emeric Vernat
+ */
+final class UrlConnectionTransport extends HttpTransport {
+	// Rq: les configurations suivantes sont celles par défaut, on ne les change pas
+	//	    static { HttpURLConnection.setFollowRedirects(true);
+	//	    URLConnection.setDefaultAllowUserInteraction(true); }
+
+	private static final class UrlConnectionResponse extends Response {
+		private final URLConnection connection;
+
+		UrlConnectionResponse(URLConnection connection) {
+			super();
+			this.connection = connection;
+		}
+
+		@Override
+		int getStatus() {
+			if (connection instanceof HttpURLConnection) {
+				try {
+					return ((HttpURLConnection) connection).getResponseCode();
+				} catch (final IOException e) {
+					// la réponse a déjà été reçue dans doSend
+					throw new IllegalStateException(e);
+				}
+			}
+			// url "file:" par exemple
+			return HttpURLConnection.HTTP_OK;
+		}
+
+		@Override
+		String getHeader(String name) {
+			return connection.getHeaderField(name);
+		}
+
+		@Override
+		boolean isHttp2() {
+			return false;
+		}
+
+		@Override
+		InputStream openInputStream() throws IOException {
+			if (getStatus() >= HttpURLConnection.HTTP_BAD_REQUEST) {
+				final InputStream errorStream = ((HttpURLConnection) connection)
+						.getErrorStream();
+				if (errorStream == null) {
+					return new ByteArrayInputStream(new byte[0]);
+				}
+				return errorStream;
+			}
+			return connection.getInputStream();
+		}
+	}
+
+	UrlConnectionTransport() {
+		super();
+	}
+
+	@Override
+	String getName() {
+		return "HttpURLConnection";
+	}
+
+	@Override
+	Response doSend(URL url, String method, Map<String, String> headers, byte[] payload,
+			int connectTimeout, int readTimeout) throws IOException {
+		final URLConnection connection = url.openConnection();
+		connection.setUseCaches(false);
+		if (connectTimeout > 0) {
+			connection.setConnectTimeout(connectTimeout);
+		}
+		if (readTimeout > 0) {
+			connection.setReadTimeout(readTimeout);
+		}
+		for (final Map.Entry<String, String> entry : headers.entrySet()) {
+			connection.setRequestProperty(entry.getKey(), entry.getValue());
+		}
+		if (!(connection instanceof HttpURLConnection)) {
+			connection.connect();
+			return new UrlConnectionResponse(connection);
+		}
+		final HttpURLConnection httpConnection = (HttpURLConnection) connection;
+		if (!GET.equals(method)) {
+			httpConnection.setRequestMethod(method);
+			httpConnection.setDoOutput(true);
+			if (payload != null) {
+				httpConnection.setFixedLengthStreamingMode(payload.length);
+				try (OutputStream output = httpConnection.getOutputStream()) {
+					output.write(payload);
+				}
+			}
+		}
+		// le statut est lu ici pour que la requête soit envoyée
+		httpConnection.getResponseCode();
+		return new UrlConnectionResponse(httpConnection);
+	}
+}
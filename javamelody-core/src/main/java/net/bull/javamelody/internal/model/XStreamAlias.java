@@ -42,6 +42,7 @@ final class XStreamAlias {
 		result.put("threadInformations", ThreadInformations.class);
 		result.put("heapHisto", HeapHistogram.class);
 		result.put("connectionInformations", ConnectionInformations.class);
+		result.put("connectionLatencies", ConnectionLatencies.class);
 		result.put("classInfo", HeapHistogram.ClassInfo.class);
 		result.put("sessionInformations", SessionInformations.class);
 		result.put("sessionAttribute", SessionInformations.SessionAttribute.class);
@@ -0,0 +1,312 @@
+/*
+ * Copyright 2008-2019 by Emeric Vernat
+ *
+ *     This file is part of Java Melody.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.bull.javamelody.internal.web;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+import net.bull.javamelody.Parameter;
+import net.bull.javamelody.internal.common.LOG;
+import net.bull.javamelody.internal.common.Parameters;
+
+/**
+ * Écriture non bloquante d'un rapport (paramètre async-report-output-enabled).
+ *
+ * Le rapport est d'abord rendu dans des buffers réutilisés entre les requêtes,
+ * puis il est envoyé avec AsyncContext et WriteListener (servlet 3.1) :
+ * ainsi un client lent n'occupe pas un thread du serveur pendant toute la transmission.
+ * @author Emeric Vernat
+ */
+final class AsyncReportOutput {
+	private static final int CHUNK_SIZE = 32 * 1024;
+	// 64 buffers de 32 Ko, soit 2 Mo au plus conservés entre les requêtes
+	private static final BlockingQueue<byte[]> CHUNK_POOL = new ArrayBlockingQueue<>(64);
+	private static final long ASYNC_TIMEOUT_MILLIS = 10 * 60 * 1000;
+
+	private final HttpServletRequest httpRequest;
+	private final HttpServletResponse httpResponse;
+	private final BufferedResponse bufferedResponse;
+	private boolean started;
+
+	/**
+	 * Réponse http dont le contenu est conservé dans les buffers.
+	 */
+	private static class BufferedResponse extends HttpServletResponseWrapper {
+		private final List<byte[]> chunks = new ArrayList<>();
+		private int lastChunkLength = CHUNK_SIZE;
+		private final ServletOutputStream outputStream = new ServletOutputStream() {
+			@Override
+			public void write(int b) {
+				BufferedResponse.this.write(new byte[] { (byte) b }, 0, 1);
+			}
+
+			@Override
+			public void write(byte[] bytes, int off, int len) {
+				BufferedResponse.this.write(bytes, off, len);
+			}
+
+			@Override
+			public boolean isReady() {
+				return true;
+			}
+
+			@Override
+			public void setWriteListener(WriteListener writeListener) {
+				// nothing to do
+			}
+		};
+		private boolean outputStreamUsed;
+		private PrintWriter writer;
+
+		BufferedResponse(HttpServletResponse response) {
+			super(response);
+		}
+
+		@Override
+		public ServletOutputStream getOutputStream() {
+			if (writer != null) {
+				throw new IllegalStateException("getWriter() has already been called");
+			}
+			outputStreamUsed = true;
+			return outputStream;
+		}
+
+		@Override
+		public PrintWriter getWriter() throws UnsupportedEncodingException {
+			if (writer == null) {
+				if (outputStreamUsed) {
+					throw new IllegalStateException("getOutputStream() has already been called");
+				}
+				writer = new PrintWriter(
+						new OutputStreamWriter(outputStream, getCharacterEncoding()));
+			}
+			return writer;
+		}
+
+		@Override
+		public void flushBuffer() {
+			// la réponse réelle ne doit pas être écrite avant l'écriture non bloquante
+			if (writer != null) {
+				writer.flush();
+			}
+		}
+
+		@Override
+		public boolean isCommitted() {
+			return false;
+		}
+
+		@Override
+		public void resetBuffer() {
+			releaseChunks();
+		}
+
+		@Override
+		public void reset() {
+			super.reset();
+			releaseChunks();
+		}
+
+		void write(byte[] bytes, int off, int len) {
+			int offset = off;
+			int remaining = len;
+			while (remaining > 0) {
+				if (lastChunkLength == CHUNK_SIZE) {
+					chunks.add(acquireChunk());
+					lastChunkLength = 0;
+				}
+				final int length = Math.min(remaining, CHUNK_SIZE - lastChunkLength);
+				System.arraycopy(bytes, offset, chunks.get(chunks.size() - 1), lastChunkLength,
+						length);
+				lastChunkLength += length;
+				offset += length;
+				remaining -= length;
+			}
+		}
+
+		List<byte[]> getChunks() {
+			flushBuffer();
+			return chunks;
+		}
+
+		int getChunkLength(int index) {
+			return index == chunks.size() - 1 ? lastChunkLength : CHUNK_SIZE;
+		}
+
+		long getLength() {
+			if (chunks.isEmpty()) {
+				return 0;
+			}
+			return (long) (chunks.size() - 1) * CHUNK_SIZE + lastChunkLength;
+		}
+
+		void releaseChunks() {
+			for (final byte[] chunk : chunks) {
+				// si le pool est plein, le buffer est laissé au GC
+				CHUNK_POOL.offer(chunk);
+			}
+			chunks.clear();
+			lastChunkLength = CHUNK_SIZE;
+		}
+	}
+
+	/**
+	 * Envoie les buffers quand la réponse est prête, sans bloquer de thread.
+	 */
+	private static class ChunksWriteListener implements WriteListener {
+		private final AsyncContext asyncContext;
+		private final ServletOutputStream output;
+		private final BufferedResponse bufferedResponse;
+		private int chunkIndex;
+
+		ChunksWriteListener(AsyncContext asyncContext, ServletOutputStream output,
+				BufferedResponse bufferedResponse) {
+			super();
+			this.asyncContext = asyncContext;
+			this.output = output;
+			this.bufferedResponse = bufferedResponse;
+		}
+
+		@Override
+		public void onWritePossible() throws IOException {
+			final List<byte[]> chunks = bufferedResponse.getChunks();
+			while (output.isReady()) {
+				if (chunkIndex == chunks.size()) {
+					// isReady() est vrai, donc les buffers écrits ne sont plus utilisés par le serveur
+					bufferedResponse.releaseChunks();
+					asyncContext.complete();
+					return;
+				}
+				output.write(chunks.get(chunkIndex), 0, bufferedResponse.getChunkLength(chunkIndex));
+				chunkIndex++;
+			}
+		}
+
+		@Override
+		public void onError(Throwable t) {
+			// client déconnecté par exemple ;
+			// les buffers ne sont pas remis dans le pool car le serveur peut encore les référencer
+			LOG.debug("async report output failed: " + t);
+			asyncContext.complete();
+		}
+	}
+
+	private AsyncReportOutput(HttpServletRequest httpRequest, HttpServletResponse httpResponse) {
+		super();
+		this.httpRequest = httpRequest;
+		this.httpResponse = httpResponse;
+		this.bufferedResponse = new BufferedResponse(httpResponse);
+	}
+
+	/**
+	 * @param httpRequest HttpServletRequest
+	 * @param httpResponse HttpServletResponse
+	 * @return AsyncReportOutput si le paramètre async-report-output-enabled est true
+	 * et si le serveur et les filtres le permettent, null sinon
+	 */
+	static AsyncReportOutput createIfPossible(HttpServletRequest httpRequest,
+			HttpServletResponse httpResponse) {
+		// le rendu n'est pas rendu asynchrone une 2ème fois si la réponse est déjà dans les buffers,
+		// ni si la réponse est compressée par un wrapper qui doit être terminé après le rendu
+		if (!isEnabled() || httpResponse instanceof BufferedResponse
+				|| httpResponse instanceof CompressionServletResponseWrapper
+				|| !isServletApi31() || !httpRequest.isAsyncSupported()
+				|| httpRequest.isAsyncStarted()) {
+			return null;
+		}
+		return new AsyncReportOutput(httpRequest, httpResponse);
+	}
+
+	/**
+	 * @param httpRequest HttpServletRequest
+	 * @return true si l'écriture non bloquante de la réponse a commencé
+	 */
+	static boolean isStarted(HttpServletRequest httpRequest) {
+		return isEnabled() && isServletApi31() && httpRequest.isAsyncStarted();
+	}
+
+	private static boolean isEnabled() {
+		return Parameter.ASYNC_REPORT_OUTPUT_ENABLED.getValueAsBoolean();
+	}
+
+	private static boolean isServletApi31() {
+		final ServletContext servletContext = Parameters.getServletContext();
+		return servletContext != null && (servletContext.getMajorVersion() > 3
+				|| servletContext.getMajorVersion() == 3 && servletContext.getMinorVersion() >= 1);
+	}
+
+	/**
+	 * @return Réponse http dans laquelle le rapport doit être rendu
+	 */
+	HttpServletResponse getResponse() {
+		return bufferedResponse;
+	}
+
+	/**
+	 * Démarre l'écriture non bloquante du rapport rendu dans les buffers.
+	 * @throws IOException e
+	 */
+	void start() throws IOException {
+		if (httpResponse.isCommitted()) {
+			// par exemple après sendError, il n'y a rien à écrire
+			bufferedResponse.releaseChunks();
+			started = true;
+			return;
+		}
+		final long length = bufferedResponse.getLength();
+		if (length <= Integer.MAX_VALUE) {
+			httpResponse.setContentLength((int) length);
+		}
+		final AsyncContext asyncContext = httpRequest.startAsync();
+		asyncContext.setTimeout(ASYNC_TIMEOUT_MILLIS);
+		final ServletOutputStream output = httpResponse.getOutputStream();
+		output.setWriteListener(new ChunksWriteListener(asyncContext, output, bufferedResponse));
+		started = true;
+	}
+
+	/**
+	 * Remet les buffers dans le pool si l'écriture n'a pas démarré, par exemple après une exception.
+	 */
+	void releaseIfNotStarted() {
+		if (!started) {
+			bufferedResponse.releaseChunks();
+		}
+	}
+
+	private static byte[] acquireChunk() {
+		final byte[] chunk = CHUNK_POOL.poll();
+		if (chunk != null) {
+			return chunk;
+		}
+		return new byte[CHUNK_SIZE];
+	}
+}
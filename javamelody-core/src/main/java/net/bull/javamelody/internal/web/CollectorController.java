@@ -17,22 +17,29 @@
  */
 package net.bull.javamelody.internal.web; // NOPMD
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.Serializable;
-import java.io.UnsupportedEncodingException;
 import java.net.URL;
 import java.net.URLDecoder;
 import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
 
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
 import javax.servlet.ServletException;
 import javax.servlet.http.Cookie;
 import javax.servlet.http.HttpServletRequest;
@@ -42,11 +49,14 @@ import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import net.bull.javamelody.Parameter;
+import net.bull.javamelody.SessionListener;
 import net.bull.javamelody.internal.common.HttpParameter;
 import net.bull.javamelody.internal.common.HttpPart;
 import net.bull.javamelody.internal.common.I18N;
+import net.bull.javamelody.internal.common.InputOutput;
 import net.bull.javamelody.internal.common.Parameters;
 import net.bull.javamelody.internal.model.Action;
+import net.bull.javamelody.internal.model.Base64Coder;
 import net.bull.javamelody.internal.model.Collector;
 import net.bull.javamelody.internal.model.CollectorServer;
 import net.bull.javamelody.internal.model.Counter;
@@ -72,6 +82,26 @@ public class CollectorController { // NOPMD
 
 	private static final String COOKIE_NAME = "javamelody.application";
 
+	private static final String SHARD_HEADER = "X-JavaMelody-Shard";
+
+	private static final String SHARD_CSRF_TOKEN_HEADER = "X-JavaMelody-Csrf-Token";
+
+	private static final String SHARD_TIME_HEADER = "X-JavaMelody-Shard-Time";
+
+	private static final String SHARD_SIGNATURE_HEADER = "X-JavaMelody-Shard-Signature";
+
+	// durée de validité en ms d'une requête signée par une autre instance du serveur de collecte
+	private static final long SHARD_SIGNATURE_VALIDITY = 5 * 60 * 1000L;
+
+	private static final String SHARD_SIGNATURE_ALGORITHM = "HmacSHA256";
+
+	// entêtes de la requête transmis à l'instance qui collecte l'application,
+	// pour l'authentification (paramètre authorized-users) et le cache du navigateur
+	private static final List<String> PROXIED_REQUEST_HEADERS = Arrays.asList("Authorization",
+			"If-None-Match", "If-Modified-Since");
+
+	private static final String FORM_CONTENT_TYPE = "application/x-www-form-urlencoded";
+
 	private static final boolean CSRF_PROTECTION_ENABLED = Parameter.CSRF_PROTECTION_ENABLED
 			.getValueAsBoolean();
 
@@ -119,7 +149,9 @@ public class CollectorController { // NOPMD
 		try {
 			final String actionParameter = HttpParameter.ACTION.getParameterFrom(req);
 			if (actionParameter != null) {
-				if (CSRF_PROTECTION_ENABLED) {
+				// si la requête signée vient d'une autre instance du serveur de collecte,
+				// le token a déjà été vérifié par cette instance
+				if (CSRF_PROTECTION_ENABLED && !isAuthenticatedShardRequest(req)) {
 					MonitoringController.checkCsrfToken(req);
 				}
 				final String messageForReport;
@@ -169,6 +201,189 @@ public class CollectorController { // NOPMD
 		}
 	}
 
+	/**
+	 * Transmet la requête à l'instance du serveur de collecte qui collecte l'application
+	 * (paramètre collector-shard-url), avec sa méthode, son contenu et ses entêtes d'authentification,
+	 * et recopie sa réponse avec son statut http.
+	 * @param req HttpServletRequest
+	 * @param resp HttpServletResponse
+	 * @param application Code de l'application
+	 * @param shardUrl URL de l'instance qui collecte l'application
+	 * @throws IOException e
+	 */
+	public void doShardProxy(HttpServletRequest req, HttpServletResponse resp,
+			String application, URL shardUrl) throws IOException {
+		final Map<String, String> headers = new LinkedHashMap<>();
+		headers.put(SHARD_HEADER, Parameter.COLLECTOR_SHARD_URL.getValue());
+		if (CSRF_PROTECTION_ENABLED) {
+			if (HttpParameter.ACTION.getParameterFrom(req) != null) {
+				// le token est vérifié avec la session de cette instance
+				MonitoringController.checkCsrfToken(req);
+			}
+			// et il est transmis pour que les liens des actions dans la page soient valides ici
+			headers.put(SHARD_CSRF_TOKEN_HEADER, getOrCreateCsrfToken(req));
+		}
+		final StringBuilder query = new StringBuilder();
+		if (req.getQueryString() != null) {
+			query.append(req.getQueryString());
+		}
+		// paramètres reçus par l'autre instance, pour la signature
+		final Map<String, String[]> parameters = new TreeMap<>(req.getParameterMap());
+		if (req.getParameter("application") == null) {
+			// l'application peut venir du cookie de cette instance
+			appendParameter(query, "application", URLEncoder.encode(application, "UTF-8"));
+			parameters.put("application", new String[] { application });
+		}
+		if (HttpParameter.PERIOD.getParameterFrom(req) == null) {
+			// la période peut aussi venir d'un cookie
+			final String period = httpCookieManager.getRange(req, resp).getValue();
+			appendParameter(query, HttpParameter.PERIOD.getName(),
+					URLEncoder.encode(period, "UTF-8"));
+			parameters.put(HttpParameter.PERIOD.getName(), new String[] { period });
+		}
+		for (final String header : PROXIED_REQUEST_HEADERS) {
+			if (req.getHeader(header) != null) {
+				headers.put(header, req.getHeader(header));
+			}
+		}
+		final String method = req.getMethod();
+		final byte[] payload;
+		final URL proxyUrl;
+		if ("GET".equals(method)) {
+			payload = null;
+			proxyUrl = new URL(shardUrl.toString() + '?' + query);
+		} else if (req.getContentType() != null
+				&& req.getContentType().startsWith(FORM_CONTENT_TYPE)) {
+			// le contenu a déjà été lu avec les paramètres : tous les paramètres,
+			// y compris ceux de la query string, sont transmis dans le contenu
+			payload = encodeParameters(parameters).getBytes(StandardCharsets.UTF_8);
+			headers.put("Content-Type", FORM_CONTENT_TYPE + "; charset=UTF-8");
+			proxyUrl = shardUrl;
+		} else {
+			final ByteArrayOutputStream output = new ByteArrayOutputStream();
+			InputOutput.pump(req.getInputStream(), output);
+			payload = output.toByteArray();
+			if (req.getContentType() != null) {
+				headers.put("Content-Type", req.getContentType());
+			}
+			proxyUrl = new URL(shardUrl.toString() + '?' + query);
+		}
+		final String secret = Parameter.COLLECTOR_SHARD_SECRET.getValue();
+		if (secret != null) {
+			final String time = String.valueOf(System.currentTimeMillis());
+			headers.put(SHARD_TIME_HEADER, time);
+			headers.put(SHARD_SIGNATURE_HEADER, createShardSignature(secret, time, method,
+					parameters, headers.get(SHARD_CSRF_TOKEN_HEADER)));
+		}
+		new LabradorRetriever(proxyUrl, headers).proxyTo(method, payload, req, resp);
+	}
+
+	private static String encodeParameters(Map<String, String[]> parameters)
+			throws IOException {
+		final StringBuilder sb = new StringBuilder();
+		for (final Map.Entry<String, String[]> entry : parameters.entrySet()) {
+			for (final String value : entry.getValue()) {
+				appendParameter(sb, URLEncoder.encode(entry.getKey(), "UTF-8"),
+						URLEncoder.encode(value, "UTF-8"));
+			}
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Indique si la requête a été transmise et signée par une autre instance du serveur de collecte,
+	 * avec le secret partagé (paramètre collector-shard-secret).
+	 * @param req HttpServletRequest
+	 * @return boolean
+	 */
+	private static boolean isAuthenticatedShardRequest(HttpServletRequest req) {
+		final String secret = Parameter.COLLECTOR_SHARD_SECRET.getValue();
+		final String time = req.getHeader(SHARD_TIME_HEADER);
+		final String signature = req.getHeader(SHARD_SIGNATURE_HEADER);
+		if (secret == null || req.getHeader(SHARD_HEADER) == null || time == null
+				|| signature == null) {
+			return false;
+		}
+		try {
+			final long age = System.currentTimeMillis() - Long.parseLong(time);
+			if (Math.abs(age) > SHARD_SIGNATURE_VALIDITY) {
+				return false;
+			}
+		} catch (final NumberFormatException e) {
+			return false;
+		}
+		final Map<String, String[]> parameters = new TreeMap<>(req.getParameterMap());
+		final String expectedSignature = createShardSignature(secret, time, req.getMethod(),
+				parameters, req.getHeader(SHARD_CSRF_TOKEN_HEADER));
+		// comparaison en temps constant
+		return MessageDigest.isEqual(expectedSignature.getBytes(StandardCharsets.UTF_8),
+				signature.getBytes(StandardCharsets.UTF_8));
+	}
+
+	private static String createShardSignature(String secret, String time, String method,
+			Map<String, String[]> sortedParameters, String csrfToken) {
+		// la signature porte sur les paramètres et non sur la query string,
+		// car l'encodage des paramètres peut changer entre les deux instances
+		final StringBuilder sb = new StringBuilder();
+		sb.append(time).append('\n').append(method).append('\n');
+		for (final Map.Entry<String, String[]> entry : sortedParameters.entrySet()) {
+			for (final String value : entry.getValue()) {
+				sb.append(entry.getKey()).append('=').append(value).append('\n');
+			}
+		}
+		if (csrfToken != null) {
+			sb.append(csrfToken);
+		}
+		try {
+			final Mac mac = Mac.getInstance(SHARD_SIGNATURE_ALGORITHM);
+			mac.init(new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8),
+					SHARD_SIGNATURE_ALGORITHM));
+			final byte[] signature = mac.doFinal(sb.toString().getBytes(StandardCharsets.UTF_8));
+			return new String(Base64Coder.encode(signature));
+		} catch (final GeneralSecurityException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static void appendParameter(StringBuilder query, String name, String value) {
+		if (query.length() > 0) {
+			query.append('&');
+		}
+		query.append(name).append('=').append(value);
+	}
+
+	private static String getOrCreateCsrfToken(HttpServletRequest req) {
+		SessionListener.bindSession(req.getSession());
+		try {
+			// crée le token dans la session s'il n'existe pas encore
+			HtmlAbstractReport.getCsrfTokenUrlPart();
+			return (String) req.getSession()
+					.getAttribute(SessionListener.CSRF_TOKEN_SESSION_NAME);
+		} finally {
+			SessionListener.unbindSession();
+		}
+	}
+
+	/**
+	 * Indique si la requête a été transmise par une autre instance du serveur de collecte,
+	 * pour ne pas la transmettre de nouveau. Le token CSRF transmis n'est utilisé
+	 * que si la requête est signée avec le secret partagé.
+	 * @param req HttpServletRequest
+	 * @return boolean
+	 */
+	public static boolean isShardProxiedRequest(HttpServletRequest req) {
+		if (req.getHeader(SHARD_HEADER) == null) {
+			return false;
+		}
+		final String csrfToken = req.getHeader(SHARD_CSRF_TOKEN_HEADER);
+		if (CSRF_PROTECTION_ENABLED && csrfToken != null && isAuthenticatedShardRequest(req)) {
+			// les liens des actions générés ici utiliseront le token de l'instance qui a transmis,
+			// sans créer de session ici car les cookies ne sont pas transmis
+			req.setAttribute(MonitoringController.CSRF_TOKEN_REQUEST_ATTRIBUTE, csrfToken);
+		}
+		return true;
+	}
+
 	private void doReport(HttpServletRequest req, HttpServletResponse resp, String application)
 			throws IOException, ServletException {
 		final Collector collector = getCollectorByApplication(application);
@@ -591,7 +806,7 @@ public class CollectorController { // NOPMD
 	}
 
 	public String getApplication(HttpServletRequest req, HttpServletResponse resp)
-			throws UnsupportedEncodingException {
+			throws IOException {
 		// on utilise un cookie client pour stocker l'application
 		// car la page html est faite pour une seule application sans passer son nom en paramètre des requêtes
 		// et pour ne pas perdre l'application choisie entre les reconnexions
@@ -601,7 +816,7 @@ public class CollectorController { // NOPMD
 			final Cookie cookie = httpCookieManager.getCookieByName(req, COOKIE_NAME);
 			if (cookie != null) {
 				application = URLDecoder.decode(cookie.getValue(), "UTF-8");
-				if (!collectorServer.isApplicationDataAvailable(application)) {
+				if (!isApplicationAvailable(application)) {
 					cookie.setMaxAge(-1);
 					resp.addCookie(cookie);
 					application = null;
@@ -611,7 +826,7 @@ public class CollectorController { // NOPMD
 				// pas de cookie, on prend la première application si elle existe
 				application = collectorServer.getFirstApplication();
 			}
-		} else if (collectorServer.isApplicationDataAvailable(application)) {
+		} else if (isApplicationAvailable(application)) {
 			// un paramètre application est présent dans la requête: l'utilisateur a choisi une application,
 			// donc on fixe le cookie.
 			// En Tomcat, le cookie doit être conforme à la RFC 6265 (pas d'espace, ...)
@@ -622,6 +837,12 @@ public class CollectorController { // NOPMD
 		return application;
 	}
 
+	private boolean isApplicationAvailable(String application) throws IOException {
+		// l'application peut être collectée par une autre instance du serveur de collecte
+		return collectorServer.isApplicationDataAvailable(application)
+				|| collectorServer.getOtherShardUrl(application) != null;
+	}
+
 	private Collector getCollectorByApplication(String application) {
 		return collectorServer.getCollectorByApplication(application);
 	}
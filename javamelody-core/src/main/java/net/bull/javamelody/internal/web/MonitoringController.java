@@ -27,6 +27,7 @@ import java.io.Serializable;
 import java.net.URLDecoder;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.Callable;
 
 import javax.servlet.ServletContext;
 import javax.servlet.ServletException;
@@ -45,6 +46,8 @@ import net.bull.javamelody.internal.common.Parameters;
 import net.bull.javamelody.internal.model.Action;
 import net.bull.javamelody.internal.model.Collector;
 import net.bull.javamelody.internal.model.CollectorServer;
+import net.bull.javamelody.internal.model.GraphCache;
+import net.bull.javamelody.internal.model.GraphCache.GraphKey;
 import net.bull.javamelody.internal.model.HsErrPid;
 import net.bull.javamelody.internal.model.JRobin;
 import net.bull.javamelody.internal.model.JavaInformations;
@@ -52,6 +55,7 @@ import net.bull.javamelody.internal.model.MBeans;
 import net.bull.javamelody.internal.model.MavenArtifact;
 import net.bull.javamelody.internal.model.Range;
 import net.bull.javamelody.internal.model.TransportFormat;
+import net.bull.javamelody.internal.web.html.HtmlAbstractReport;
 
 /**
  * Contrôleur au sens MVC de l'ihm de monitoring.
@@ -82,6 +86,11 @@ public class MonitoringController {
 			.getValueAsBoolean();
 	private static final boolean CSRF_PROTECTION_ENABLED = Parameter.CSRF_PROTECTION_ENABLED
 			.getValueAsBoolean();
+	/**
+	 * Attribut de la requête http contenant le token csrf transmis par une autre instance
+	 * du serveur de collecte, utilisé à la place de celui d'une session http.
+	 */
+	public static final String CSRF_TOKEN_REQUEST_ATTRIBUTE = "javamelody.shardCsrfToken";
 
 	private final HttpCookieManager httpCookieManager = new HttpCookieManager();
 	private final Collector collector;
@@ -162,7 +171,9 @@ public class MonitoringController {
 
 		doReport(httpRequest, httpResponse, Collections.singletonList(javaInformations));
 
-		httpResponse.flushBuffer();
+		if (!AsyncReportOutput.isStarted(httpRequest)) {
+			httpResponse.flushBuffer();
+		}
 	}
 
 	public void doReport(HttpServletRequest httpRequest, HttpServletResponse httpResponse,
@@ -186,6 +197,9 @@ public class MonitoringController {
 			I18N.bindLocale(httpRequest.getLocale());
 			// session http s'il y en a une
 			SessionListener.bindSession(httpRequest.getSession(false));
+			// ou token csrf transmis par l'instance du serveur de collecte qui a reçu la requête
+			HtmlAbstractReport.bindCsrfToken(
+					(String) httpRequest.getAttribute(CSRF_TOKEN_REQUEST_ATTRIBUTE));
 
 			final String part = HttpParameter.PART.getParameterFrom(httpRequest);
 			final String graph = HttpParameter.GRAPH.getParameterFrom(httpRequest);
@@ -213,6 +227,7 @@ public class MonitoringController {
 		} finally {
 			I18N.unbindLocale();
 			SessionListener.unbindSession();
+			HtmlAbstractReport.unbindCsrfToken();
 		}
 	}
 
@@ -268,7 +283,21 @@ public class MonitoringController {
 
 	private void doCompressedHtml(HttpServletRequest httpRequest, HttpServletResponse httpResponse,
 			List<JavaInformations> javaInformationsList) throws IOException {
-		if (CSRF_PROTECTION_ENABLED && SessionListener.getCurrentSession() == null) {
+		final AsyncReportOutput asyncReportOutput = AsyncReportOutput
+				.createIfPossible(httpRequest, httpResponse);
+		if (asyncReportOutput != null) {
+			// rendu dans les buffers, puis écriture non bloquante
+			try {
+				doCompressedHtml(httpRequest, asyncReportOutput.getResponse(),
+						javaInformationsList);
+				asyncReportOutput.start();
+			} finally {
+				asyncReportOutput.releaseIfNotStarted();
+			}
+			return;
+		}
+		if (CSRF_PROTECTION_ENABLED && SessionListener.getCurrentSession() == null
+				&& HtmlAbstractReport.getBoundCsrfToken() == null) {
 			SessionListener.bindSession(httpRequest.getSession());
 		}
 		final HtmlController htmlController = new HtmlController(collector, collectorServer,
@@ -323,6 +352,19 @@ public class MonitoringController {
 
 	public void doCompressedSerializable(HttpServletRequest httpRequest,
 			HttpServletResponse httpResponse, Serializable serializable) throws IOException {
+		final AsyncReportOutput asyncReportOutput = AsyncReportOutput
+				.createIfPossible(httpRequest, httpResponse);
+		if (asyncReportOutput != null) {
+			// rendu dans les buffers, puis écriture non bloquante
+			try {
+				doCompressedSerializable(httpRequest, asyncReportOutput.getResponse(),
+						serializable);
+				asyncReportOutput.start();
+			} finally {
+				asyncReportOutput.releaseIfNotStarted();
+			}
+			return;
+		}
 		// note: normalement la compression est supportée ici car s'il s'agit du serveur de collecte,
 		// LabradorRetriever appelle connection.setRequestProperty("Accept-Encoding", "gzip");
 		final SerializableController serializableController = new SerializableController(collector);
@@ -379,7 +421,7 @@ public class MonitoringController {
 	}
 
 	private void doGraph(HttpServletRequest httpRequest, HttpServletResponse httpResponse,
-			Range range, String graphName) throws IOException {
+			final Range range, String graphName) throws IOException {
 		final JRobin jrobin = collector.getJRobin(graphName);
 		if (jrobin != null) {
 			final String format = HttpParameter.FORMAT.getParameterFrom(httpRequest);
@@ -410,7 +452,32 @@ public class MonitoringController {
 						Integer.parseInt(HttpParameter.HEIGHT.getParameterFrom(httpRequest)), 1600);
 				final String max = HttpParameter.MAX.getParameterFrom(httpRequest);
 				final boolean maxHidden = max != null && !Boolean.parseBoolean(max);
-				final byte[] img = jrobin.graph(range, width, height, maxHidden);
+				final byte[] img;
+				final GraphCache graphCache = collectorServer != null
+						? collectorServer.getGraphCache()
+						: null;
+				if (graphCache != null) {
+					// dans le serveur de collecte, les images ne changent qu'à chaque collecte
+					final GraphKey graphKey = graphCache.getKey(collector.getApplication(),
+							graphName, range, width, height, maxHidden);
+					final String eTag = graphKey.getETag();
+					httpResponse.setHeader("ETag", eTag);
+					final String ifNoneMatch = httpRequest.getHeader("If-None-Match");
+					if (ifNoneMatch != null && ifNoneMatch.contains(eTag)) {
+						httpResponse.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+						return;
+					}
+					// si la même image est demandée par plusieurs requêtes en même temps,
+					// elle n'est dessinée qu'une fois
+					img = graphCache.get(graphKey, new Callable<byte[]>() {
+						@Override
+						public byte[] call() throws IOException {
+							return jrobin.graph(range, width, height, maxHidden);
+						}
+					});
+				} else {
+					img = jrobin.graph(range, width, height, maxHidden);
+				}
 				// png comme indiqué dans la classe jrobin
 				httpResponse.setContentType("image/png");
 				httpResponse.setContentLength(img.length);
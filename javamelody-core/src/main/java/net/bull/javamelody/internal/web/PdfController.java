@@ -75,6 +75,18 @@ class PdfController {
 
 	void doPdf(HttpServletRequest httpRequest, HttpServletResponse httpResponse,
 			List<JavaInformations> javaInformationsList) throws IOException {
+		final AsyncReportOutput asyncReportOutput = AsyncReportOutput
+				.createIfPossible(httpRequest, httpResponse);
+		if (asyncReportOutput != null) {
+			// rendu dans les buffers, puis écriture non bloquante
+			try {
+				doPdf(httpRequest, asyncReportOutput.getResponse(), javaInformationsList);
+				asyncReportOutput.start();
+			} finally {
+				asyncReportOutput.releaseIfNotStarted();
+			}
+			return;
+		}
 		addPdfContentTypeAndDisposition(httpRequest, httpResponse);
 		try {
 			final String part = HttpParameter.PART.getParameterFrom(httpRequest);
@@ -31,10 +31,12 @@ import java.util.regex.Pattern;
 import net.bull.javamelody.internal.common.Parameters;
 import net.bull.javamelody.internal.model.CacheInformations;
 import net.bull.javamelody.internal.model.Collector;
+import net.bull.javamelody.internal.model.ConnectionLatencies;
 import net.bull.javamelody.internal.model.Counter;
 import net.bull.javamelody.internal.model.CounterRequest;
 import net.bull.javamelody.internal.model.JCacheInformations;
 import net.bull.javamelody.internal.model.JRobin;
+import net.bull.javamelody.internal.model.JRobinWriter;
 import net.bull.javamelody.internal.model.JavaInformations;
 import net.bull.javamelody.internal.model.MemoryInformations;
 import net.bull.javamelody.internal.model.TomcatInformations;
@@ -72,6 +74,8 @@ import net.bull.javamelody.internal.model.TomcatInformations;
  *  javamelody_connections_max_count
  *  javamelody_connections_active_count
  *  javamelody_connections_used_pct
+ *  javamelody_connections_wait_millis{datasource_name="__name__"} (histogram)
+ *  javamelody_connections_hold_millis{datasource_name="__name__"} (histogram)
  *  javamelody_system_load_avg
  *  javamelody_system_cpu_load_pct
  *  javamelody_system_unix_file_descriptors_open_count
@@ -159,7 +163,7 @@ class PrometheusController {
 	private static final String UNDERSCORE = "_";
 
 	private enum MetricType {
-		GAUGE("gauge"), COUNTER("counter");
+		GAUGE("gauge"), COUNTER("counter"), HISTOGRAM("histogram");
 
 		private final String code;
 
@@ -219,6 +223,12 @@ class PrometheusController {
 		// jvm & system
 		reportOnJavaInformations();
 
+		// getConnection & connections hold times
+		if (javaInformations.getConnectionLatenciesList() != null
+				&& !javaInformations.getConnectionLatenciesList().isEmpty()) {
+			reportOnConnectionLatencies();
+		}
+
 		// tomcat
 		if (javaInformations.getTomcatInformationsList() != null) {
 			reportOnTomcatInformations();
@@ -234,6 +244,8 @@ class PrometheusController {
 
 		reportOnCollector();
 
+		reportOnJRobinWriter();
+
 		if (includeLastValue) {
 			reportOnLastValues();
 		}
@@ -376,6 +388,46 @@ class PrometheusController {
 		}
 	}
 
+	/**
+	 * Reports the getConnection wait times and the connections hold times of the datasources
+	 * as Prometheus histograms, from which percentiles can be computed with histogram_quantile.
+	 */
+	private void reportOnConnectionLatencies() {
+		final List<ConnectionLatencies> connectionLatenciesList = javaInformations
+				.getConnectionLatenciesList();
+		printHeader(MetricType.HISTOGRAM, "connections_wait_millis",
+				"getConnection wait time of datasource");
+		for (final ConnectionLatencies connectionLatencies : connectionLatenciesList) {
+			printHistogram("connections_wait_millis", connectionLatencies.getDataSourceName(),
+					connectionLatencies.getWaitTimeCounts(),
+					connectionLatencies.getWaitTimesSum());
+		}
+		printHeader(MetricType.HISTOGRAM, "connections_hold_millis",
+				"connections hold time from getConnection to close");
+		for (final ConnectionLatencies connectionLatencies : connectionLatenciesList) {
+			printHistogram("connections_hold_millis", connectionLatencies.getDataSourceName(),
+					connectionLatencies.getHoldTimeCounts(),
+					connectionLatencies.getHoldTimesSum());
+		}
+	}
+
+	// prints the cumulative buckets, the sum and the count of an histogram
+	private void printHistogram(String name, String dataSourceName, long[] counts, long sum) {
+		final String dataSourceField = "datasource_name=\"" + sanitizeName(dataSourceName) + '"';
+		final long[] bucketBounds = ConnectionLatencies.getBucketBounds();
+		long cumulativeCount = 0;
+		for (int i = 0; i < bucketBounds.length; i++) {
+			cumulativeCount += counts[i];
+			printLongWithFields(name + "_bucket",
+					'{' + dataSourceField + ",le=\"" + bucketBounds[i] + "\"}", cumulativeCount);
+		}
+		cumulativeCount += counts[bucketBounds.length];
+		printLongWithFields(name + "_bucket", '{' + dataSourceField + ",le=\"+Inf\"}",
+				cumulativeCount);
+		printLongWithFields(name + "_sum", '{' + dataSourceField + '}', sum);
+		printLongWithFields(name + "_count", '{' + dataSourceField + '}', cumulativeCount);
+	}
+
 	/**
 	 * Reports on hits, errors, and duration sum for all counters in the collector.
 	 *
@@ -410,9 +462,34 @@ class PrometheusController {
 				printLong(MetricType.COUNTER, sanitizedName + "_duration_millis",
 						"javamelody counter", duration);
 			}
+			final long transformCacheMisses = counter.getTransformCacheMisses();
+			if (transformCacheMisses > 0) {
+				// cache of the request names transformed by *-transform-pattern or normalized-counters
+				printLong(MetricType.COUNTER, sanitizedName + "_transform_cache_hits_count",
+						"javamelody counter", counter.getTransformCacheHits());
+				printLong(MetricType.COUNTER, sanitizedName + "_transform_cache_misses_count",
+						"javamelody counter", transformCacheMisses);
+				printLong(MetricType.COUNTER, sanitizedName + "_transform_cache_evictions_count",
+						"javamelody counter", counter.getTransformCacheEvictions());
+			}
 		}
 	}
 
+	/**
+	 * Reports on the write-behind queue of the per-request graphs.
+	 */
+	private void reportOnJRobinWriter() {
+		printLong(MetricType.GAUGE, "jrobin_write_queue_count", "jrobin values waiting to be written",
+				JRobinWriter.getPendingValuesCount());
+		printLong(MetricType.GAUGE, "jrobin_write_lag_millis",
+				"age of the oldest jrobin value waiting to be written", JRobinWriter.getLagMillis());
+		printLong(MetricType.COUNTER, "jrobin_written_count", "jrobin values written",
+				JRobinWriter.getWrittenValuesCount());
+		printLong(MetricType.COUNTER, "jrobin_synchronous_write_count",
+				"jrobin values written synchronously because the queue was full",
+				JRobinWriter.getSynchronousValuesCount());
+	}
+
 	/**
 	 * Includes the traditional 'graph' fields from the 'lastValue' API.
 	 *
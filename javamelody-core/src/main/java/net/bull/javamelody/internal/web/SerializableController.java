@@ -119,7 +119,9 @@ public class SerializableController {
 			return MBeans.getConvertedAttributes(jmxValue);
 		}
 
-		return createDefaultSerializable(javaInformationsList, range, messageForReport);
+		return createDefaultOrDeltaSerializable(javaInformationsList, range, messageForReport,
+				HttpParameter.COLLECTOR_ID.getParameterFrom(httpRequest),
+				HttpParameter.GENERATION.getParameterFrom(httpRequest));
 	}
 
 	@RequestPart(HttpPart.THREADS)
@@ -151,10 +153,12 @@ public class SerializableController {
 	Serializable createDefaultWithCurrentRequestsSerializable(
 			@RequestAttribute(JAVA_INFORMATIONS_LIST_KEY) List<JavaInformations> javaInformationsList,
 			@RequestAttribute(MESSAGE_FOR_REPORT_KEY) String messageForReport,
-			@RequestAttribute(RANGE_KEY) Range range) throws IOException {
+			@RequestAttribute(RANGE_KEY) Range range,
+			@RequestParameter(HttpParameter.COLLECTOR_ID) String collectorId,
+			@RequestParameter(HttpParameter.GENERATION) String generation) throws IOException {
 		final List<Serializable> result = new ArrayList<>(
-				(List<Serializable>) createDefaultSerializable(javaInformationsList, range,
-						messageForReport));
+				(List<Serializable>) createDefaultOrDeltaSerializable(javaInformationsList, range,
+						messageForReport, collectorId, generation));
 		result.addAll(getCurrentRequests());
 		return (Serializable) result;
 	}
@@ -373,6 +377,27 @@ public class SerializableController {
 		return (Serializable) serialized;
 	}
 
+	private Serializable createDefaultOrDeltaSerializable(
+			List<JavaInformations> javaInformationsList, Range range, String messageForReport,
+			String collectorId, String generation) throws IOException {
+		if (generation == null || range.getPeriod() != Period.TOUT) {
+			return createDefaultSerializable(javaInformationsList, range, messageForReport);
+		}
+		// un serveur de collecte demande seulement les deltas depuis la génération qu'il acquitte
+		if (collectorId == null) {
+			throw new IllegalArgumentException(
+					"The parameter " + HttpParameter.COLLECTOR_ID + " is required");
+		}
+		final long acknowledgedGeneration = Long.parseLong(generation);
+		final List<Serializable> serialized = new ArrayList<>(
+				collector.getDeltaCounters(collectorId, acknowledgedGeneration));
+		serialized.addAll(javaInformationsList);
+		if (messageForReport != null) {
+			serialized.add(messageForReport);
+		}
+		return (Serializable) serialized;
+	}
+
 	public Range getRangeForSerializable(HttpServletRequest httpRequest) {
 		final Range range;
 		final String period = HttpParameter.PERIOD.getParameterFrom(httpRequest);
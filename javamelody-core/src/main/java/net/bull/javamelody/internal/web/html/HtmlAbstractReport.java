@@ -37,6 +37,8 @@ import net.bull.javamelody.internal.model.Base64Coder;
 public abstract class HtmlAbstractReport {
 	private static final boolean CSRF_PROTECTION_ENABLED = Parameter.CSRF_PROTECTION_ENABLED
 			.getValueAsBoolean();
+	// token csrf d'une requête transmise par une autre instance du serveur de collecte, sans session ici
+	private static final ThreadLocal<String> CSRF_TOKEN_CONTEXT = new ThreadLocal<>();
 	private final Writer writer;
 
 	class HtmlTable {
@@ -181,8 +183,35 @@ public abstract class HtmlAbstractReport {
 		return I18N.htmlEncode(text, false, false);
 	}
 
+	/**
+	 * Définit pour le thread courant le token csrf à utiliser dans les liens des actions
+	 * à la place de celui de la session http.
+	 * @param csrfToken String
+	 */
+	public static void bindCsrfToken(String csrfToken) {
+		CSRF_TOKEN_CONTEXT.set(csrfToken);
+	}
+
+	/**
+	 * @return Token csrf défini pour le thread courant ou null
+	 */
+	public static String getBoundCsrfToken() {
+		return CSRF_TOKEN_CONTEXT.get();
+	}
+
+	/**
+	 * Enlève le token csrf défini pour le thread courant.
+	 */
+	public static void unbindCsrfToken() {
+		CSRF_TOKEN_CONTEXT.remove();
+	}
+
 	public static String getCsrfTokenUrlPart() {
 		if (CSRF_PROTECTION_ENABLED) {
+			final String boundCsrfToken = CSRF_TOKEN_CONTEXT.get();
+			if (boundCsrfToken != null) {
+				return "&amp;" + HttpParameter.TOKEN + '=' + boundCsrfToken;
+			}
 			final HttpSession currentSession = SessionListener.getCurrentSession();
 			if (currentSession != null) {
 				String csrfToken = (String) currentSession
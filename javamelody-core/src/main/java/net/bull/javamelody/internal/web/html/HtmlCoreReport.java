@@ -21,6 +21,7 @@ import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.io.Writer;
+import java.net.URL;
 import java.net.URLEncoder;
 import java.util.ArrayList;
 import java.util.Collection;
@@ -43,6 +44,7 @@ import net.bull.javamelody.internal.model.CollectorServer;
 import net.bull.javamelody.internal.model.Counter;
 import net.bull.javamelody.internal.model.CounterRequestContext;
 import net.bull.javamelody.internal.model.HsErrPid;
+import net.bull.javamelody.internal.model.HttpNodeStatistics;
 import net.bull.javamelody.internal.model.JCacheInformations;
 import net.bull.javamelody.internal.model.JRobin;
 import net.bull.javamelody.internal.model.JavaInformations;
@@ -130,6 +132,9 @@ class HtmlCoreReport extends HtmlAbstractReport {
 		}
 
 		new HtmlJavaInformationsReport(javaInformationsList, getWriter()).toHtml();
+		if (collectorServer != null) {
+			writeHttpNodeStatistics();
+		}
 
 		writeln("<h3 class='chapterTitle'><img src='?resource=threads.png' alt='#Threads#'/>");
 		writeAnchor("threads", I18N.getString("Threads"));
@@ -781,6 +786,30 @@ class HtmlCoreReport extends HtmlAbstractReport {
 		writeln("<br/></div>");
 	}
 
+	private void writeHttpNodeStatistics() throws IOException {
+		final String application = collector.getApplication();
+		final Map<String, List<URL>> urlsByApplication = Parameters
+				.getCollectorUrlsByApplications();
+		final List<String> aggregatedApplications = Parameters
+				.getApplicationsByAggregationApplication().get(application);
+		final List<URL> urls = new ArrayList<>();
+		if (aggregatedApplications != null) {
+			for (final String aggregatedApplication : aggregatedApplications) {
+				if (urlsByApplication.get(aggregatedApplication) != null) {
+					urls.addAll(urlsByApplication.get(aggregatedApplication));
+				}
+			}
+		} else if (urlsByApplication.get(application) != null) {
+			urls.addAll(urlsByApplication.get(application));
+		}
+		final List<HttpNodeStatistics> httpNodeStatisticsList = HttpNodeStatistics
+				.getStatisticsList(urls);
+		if (!httpNodeStatisticsList.isEmpty()) {
+			writeln("<br/>");
+			new HtmlHttpNodeStatisticsReport(httpNodeStatisticsList, getWriter()).toHtml();
+		}
+	}
+
 	private void writeApplicationsLinks() throws IOException {
 		assert collectorServer != null;
 		writeln("<div align='center'>");
@@ -926,6 +955,15 @@ class HtmlCoreReport extends HtmlAbstractReport {
 		writeln("#temps_affichage#: " + displayDuration + " #ms#<br/>");
 		writeln("#Estimation_overhead_memoire#: < "
 				+ (collector.getEstimatedMemorySize() / 1024 / 1024 + 1) + " #Mo#");
+		if (collectorServer != null && collectorServer.isMemoryBudgetEnabled()) {
+			writeln("<br/>");
+			writeDirectly(getFormattedString("collector_memory_budget",
+					collectorServer.getResidentApplications().size(),
+					Parameters.getCollectorUrlsByApplications().size()
+							+ Parameters.getApplicationsByAggregationApplication().size(),
+					collectorServer.getMemoryBudget() / 1024 / 1024,
+					collectorServer.getSpillCount(), collectorServer.getReloadCount()));
+		}
 		writeln("<br/>#Usage_disque#: " + (collector.getDiskUsage() / 1024 / 1024 + 1) + " #Mo#");
 		if (Parameters.isSystemActionsEnabled()) {
 			writeln("&nbsp;&nbsp;&nbsp;<a href='?action=purge_obsolete_files"
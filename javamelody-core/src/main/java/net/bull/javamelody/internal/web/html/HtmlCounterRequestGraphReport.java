@@ -34,6 +34,7 @@ import net.bull.javamelody.internal.model.CollectorServer;
 import net.bull.javamelody.internal.model.Counter;
 import net.bull.javamelody.internal.model.CounterRequest;
 import net.bull.javamelody.internal.model.CounterRequestRumData;
+import net.bull.javamelody.internal.model.CounterRequestSqlData;
 import net.bull.javamelody.internal.model.DatabaseInformations;
 import net.bull.javamelody.internal.model.Range;
 
@@ -48,6 +49,7 @@ class HtmlCounterRequestGraphReport extends HtmlAbstractReport {
 	private final DecimalFormat systemErrorFormat = I18N.createPercentFormat();
 	private final DecimalFormat nbExecutionsFormat = I18N.createPercentFormat();
 	private final DecimalFormat integerFormat = I18N.createIntegerFormat();
+	private final DecimalFormat fetchDurationFormat = I18N.createPercentFormat();
 	private List<Counter> counters;
 	private Map<String, CounterRequest> requestsById;
 
@@ -116,6 +118,12 @@ class HtmlCounterRequestGraphReport extends HtmlAbstractReport {
 				writeRequestRumData(request);
 			}
 			writeRequest(request);
+			if (request.hasFetchedRows()) {
+				writeRequestResultSetFetches(request);
+			}
+			if (request.getSqlData() != null) {
+				writeRequestSqlData(request.getSqlData());
+			}
 
 			if (JdbcWrapper.SINGLETON.getSqlCounter().isRequestIdFromThisCounter(graphName)
 					&& !request.getName().toLowerCase(Locale.ENGLISH).startsWith("alter ")) {
@@ -365,6 +373,60 @@ class HtmlCounterRequestGraphReport extends HtmlAbstractReport {
 		}
 	}
 
+	private void writeRequestResultSetFetches(CounterRequest request) throws IOException {
+		final HtmlTable table = new HtmlTable();
+		table.beginTable(getString("ResultSet_fetches"));
+		writeln("<th class='sorttable_numeric'>#Lignes_lues_moyennes#</th>");
+		writeln("<th class='sorttable_numeric'>#Temps_lecture_moyen#</th>");
+		writeln("<th class='sorttable_numeric'>#Ko_lus_moyens#</th>");
+		table.nextRow();
+		final String nextColumn = "</td><td align='right'>";
+		writeln("<td align='right'>");
+		writeln(integerFormat.format(request.getFetchedRowsMean()));
+		writeln(nextColumn);
+		writeln(fetchDurationFormat.format(request.getFetchDurationsMean()));
+		writeln(nextColumn);
+		writeln(integerFormat.format(request.getFetchedBytesMean() / 1024));
+		writeln("</td>");
+		table.endTable();
+		writeln("<br/>");
+	}
+
+	private void writeRequestSqlData(CounterRequestSqlData sqlData) throws IOException {
+		if (sqlData.getBatchesCount() > 0) {
+			final HtmlTable table = new HtmlTable();
+			table.beginTable(getString("Tailles_batchs"));
+			final long[] batchSizeCounts = sqlData.getBatchSizeCounts();
+			for (int i = 0; i < batchSizeCounts.length; i++) {
+				writeln("<th class='sorttable_numeric'>"
+						+ getFormattedString("batchs_de_taille",
+								CounterRequestSqlData.getBatchSizeRange(i))
+						+ "</th>");
+			}
+			writeln("<th class='sorttable_numeric'>#Lignes_par_batch_moyennes#</th>");
+			writeln("<th class='sorttable_numeric'>#Lignes_par_seconde#</th>");
+			table.nextRow();
+			final String nextColumn = "</td><td align='right'>";
+			write("<td align='right'>");
+			for (final long batchSizeCount : batchSizeCounts) {
+				writeln(integerFormat.format(batchSizeCount));
+				writeln(nextColumn);
+			}
+			writeln(integerFormat.format(sqlData.getBatchedRowsMean()));
+			writeln(nextColumn);
+			writeln(integerFormat.format(sqlData.getBatchedRowsPerSecond()));
+			writeln("</td>");
+			table.endTable();
+			writeln("<br/>");
+		}
+		if (sqlData.getShapesCount() > 0) {
+			final String shapesCount = integerFormat.format(sqlData.getShapesCount())
+					+ (sqlData.isShapesCountLimitReached() ? "+" : "");
+			writeln(getFormattedString("formes_sql_distinctes", shapesCount));
+			writeln("<br/><br/>");
+		}
+	}
+
 	private boolean doesRequestDisplayUsages(CounterRequest request) {
 		final Counter parentCounter = getCounterByRequestId(request);
 		return parentCounter != null && !parentCounter.isErrorCounter()
@@ -0,0 +1,81 @@
+/*
+ * Copyright 2008-2019 by Emeric Vernat
+ *
+ *     This file is part of Java Melody.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.bull.javamelody.internal.web.html;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.text.DecimalFormat;
+import java.util.List;
+
+import net.bull.javamelody.internal.common.I18N;
+import net.bull.javamelody.internal.model.HttpNodeStatistics;
+
+/**
+ * Partie du rapport html du serveur de collecte pour les connexions http vers les nodes d'une application.
+ * @author Emeric Vernat
+ */
+class HtmlHttpNodeStatisticsReport extends HtmlAbstractReport {
+	private final List<HttpNodeStatistics> httpNodeStatisticsList;
+	private final DecimalFormat integerFormat = I18N.createIntegerFormat();
+
+	HtmlHttpNodeStatisticsReport(List<HttpNodeStatistics> httpNodeStatisticsList,
+			Writer writer) {
+		super(writer);
+		assert httpNodeStatisticsList != null;
+		this.httpNodeStatisticsList = httpNodeStatisticsList;
+	}
+
+	@Override
+	void toHtml() throws IOException {
+		writeDirectly("<b>" + htmlEncodeButNotSpace(getFormattedString("http_connections_nodes",
+				HttpNodeStatistics.getHttpClientName())) + "</b>");
+		final HtmlTable table = new HtmlTable();
+		table.beginTable(getString("http_connections_nodes"));
+		write("<th>#Host#</th><th class='sorttable_numeric'>#Hits#</th>");
+		write("<th class='sorttable_numeric'>#http_reusable#</th>");
+		write("<th class='sorttable_numeric'>#http2_responses#</th>");
+		write("<th class='sorttable_numeric'>#http_errors#</th>");
+		write("<th class='sorttable_numeric'>#Temps_moyen#</th>");
+		write("<th class='sorttable_numeric'>#Kilo-Octets#</th>");
+		for (final HttpNodeStatistics httpNodeStatistics : httpNodeStatisticsList) {
+			table.nextRow();
+			writeHttpNodeStatistics(httpNodeStatistics);
+		}
+		table.endTable();
+	}
+
+	private void writeHttpNodeStatistics(HttpNodeStatistics httpNodeStatistics)
+			throws IOException {
+		write("<td>");
+		writeDirectly(htmlEncodeButNotSpace(httpNodeStatistics.getNode()));
+		final String nextColumnAlignRight = "</td> <td align='right'>";
+		write(nextColumnAlignRight);
+		write(integerFormat.format(httpNodeStatistics.getRequestsCount()));
+		write(nextColumnAlignRight);
+		write(integerFormat.format(httpNodeStatistics.getReusablePercentage()));
+		write(nextColumnAlignRight);
+		write(integerFormat.format(httpNodeStatistics.getHttp2Count()));
+		write(nextColumnAlignRight);
+		write(integerFormat.format(httpNodeStatistics.getErrorsCount()));
+		write(nextColumnAlignRight);
+		write(integerFormat.format(httpNodeStatistics.getMeanDuration()));
+		write(nextColumnAlignRight);
+		write(integerFormat.format(httpNodeStatistics.getBytesRead() / 1024));
+		write("</td>");
+	}
+}
@@ -21,9 +21,11 @@ import static org.easymock.EasyMock.createNiceMock;
 import static org.easymock.EasyMock.expect;
 import static org.easymock.EasyMock.replay;
 import static org.easymock.EasyMock.verify;
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
 import java.io.PrintWriter;
@@ -31,11 +33,15 @@ import java.lang.reflect.Field;
 import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.sql.CallableStatement;
 import java.sql.Connection;
 import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.SQLFeatureNotSupportedException;
 import java.sql.Statement;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
@@ -53,6 +59,8 @@ import org.junit.Before;
 import org.junit.Test;
 
 import net.bull.javamelody.internal.model.ConnectionInformations;
+import net.bull.javamelody.internal.model.ConnectionLatencies;
+import net.bull.javamelody.internal.model.CounterRequest;
 
 /**
  * Test unitaire de la classe JdbcWrapper.
@@ -229,6 +237,47 @@ public class TestJdbcWrapper {
 		jdbcWrapper.createDataSourceProxy(dataSource2);
 	}
 
+	/** Test.
+	 * @throws SQLException e */
+	@Test
+	public void testConnectionLatencies() throws SQLException {
+		final ServletContext servletContext = createNiceMock(ServletContext.class);
+		expect(servletContext.getServerInfo()).andReturn("Tomcat").anyTimes();
+		replay(servletContext);
+		try {
+			for (final String wrapper : new String[] { "proxy", "delegating" }) {
+				Utils.setProperty(Parameter.JDBC_WRAPPER, wrapper);
+				jdbcWrapper.initServletContext(servletContext);
+				// dataSource sans pool dont les propriétés ne sont pas lues par JdbcWrapperHelper
+				final org.h2.jdbcx.JdbcDataSource h2DataSource = new org.h2.jdbcx.JdbcDataSource();
+				h2DataSource.setURL(H2_DATABASE_URL);
+				final String dataSourceName = "jdbc/latencies-" + wrapper;
+				final DataSource dataSource = jdbcWrapper.createDataSourceProxy(dataSourceName,
+						h2DataSource);
+				final Connection connection = dataSource.getConnection();
+				connection.close();
+				// close une deuxième fois ne compte pas
+				connection.close();
+				dataSource.getConnection().close();
+				ConnectionLatencies connectionLatencies = null;
+				for (final ConnectionLatencies latencies : JdbcWrapper
+						.getConnectionLatenciesList()) {
+					if (dataSourceName.equals(latencies.getDataSourceName())) {
+						connectionLatencies = latencies;
+					}
+				}
+				assertNotNull("connectionLatencies " + wrapper, connectionLatencies);
+				assertEquals("waitTimes " + wrapper, 2,
+						ConnectionLatencies.getCount(connectionLatencies.getWaitTimeCounts()));
+				assertEquals("holdTimes " + wrapper, 2,
+						ConnectionLatencies.getCount(connectionLatencies.getHoldTimeCounts()));
+			}
+		} finally {
+			Utils.setProperty(Parameter.JDBC_WRAPPER, "proxy");
+			jdbcWrapper.initServletContext(servletContext);
+		}
+	}
+
 	private static void cleanUp() throws NoSuchFieldException, IllegalAccessException {
 		final Field tomcatField = JdbcWrapperHelper.class
 				.getDeclaredField("TOMCAT_BASIC_DATASOURCES_PROPERTIES");
@@ -417,6 +466,181 @@ public class TestJdbcWrapper {
 		}
 	}
 
+	/** Test.
+	 * @throws SQLException e */
+	@Test
+	public void testDelegatingWrappers() throws SQLException {
+		Utils.setProperty(Parameter.JDBC_WRAPPER, "delegating");
+		final ServletContext servletContext = createNiceMock(ServletContext.class);
+		expect(servletContext.getServerInfo()).andReturn("Tomcat").anyTimes();
+		replay(servletContext);
+		jdbcWrapper.initServletContext(servletContext);
+		try {
+			DriverManager.registerDriver(driver);
+			// nécessite la dépendance vers la base de données H2
+			Connection connection = DriverManager.getConnection(H2_DATABASE_URL);
+			final int usedConnectionCount = JdbcWrapper.getUsedConnectionCount();
+			try {
+				connection = jdbcWrapper.createConnectionProxy(connection);
+				assertTrue("delegating", connection instanceof JdbcDelegatingConnection);
+				assertTrue("isProxyAlready", JdbcWrapper.isProxyAlready(connection));
+				assertSame("createConnectionProxy", connection,
+						jdbcWrapper.createConnectionProxy(connection));
+				assertEquals("usedConnectionCount", usedConnectionCount + 1,
+						JdbcWrapper.getUsedConnectionCount());
+				assertTrue(EQUALS, connection.equals(connection));
+				try (Statement statement = connection.createStatement()) {
+					assertSame("getConnection", connection, statement.getConnection());
+					statement.executeQuery("select 1").close();
+					statement.execute("CREATE TABLE IF NOT EXISTS test (name VARCHAR(50) NOT NULL)");
+					statement.addBatch("insert into test (name) values ('test')");
+					statement.executeBatch();
+					try {
+						statement.execute("invalid sql");
+					} catch (final SQLException e) {
+						assertNotNull("ok", e);
+					}
+				}
+				try (PreparedStatement statement = connection.prepareStatement("select 5")) {
+					statement.executeQuery().close();
+				}
+				try (CallableStatement statement = connection.prepareCall("select 6")) {
+					statement.execute();
+				}
+				final List<String> requestNames = new ArrayList<>();
+				for (final CounterRequest request : jdbcWrapper.getSqlCounter().getRequests()) {
+					requestNames.add(request.getName());
+				}
+				assertTrue("select 1", requestNames.contains("select 1"));
+				assertTrue("batch", requestNames
+						.contains("/* BATCH */ insert into test (name) values ('test')"));
+				assertTrue("select 5", requestNames.contains("select 5"));
+				assertTrue("select 6", requestNames.contains("select 6"));
+			} finally {
+				connection.close();
+				// un second close ne doit pas décompter une seconde fois
+				connection.close();
+			}
+			assertEquals("usedConnectionCount", usedConnectionCount,
+					JdbcWrapper.getUsedConnectionCount());
+		} finally {
+			Utils.setProperty(Parameter.JDBC_WRAPPER, "proxy");
+			jdbcWrapper.initServletContext(servletContext);
+		}
+	}
+
+	/** Test.
+	 * @throws SQLException e */
+	@Test
+	public void testResultSetMetrics() throws SQLException {
+		Utils.setProperty(Parameter.JDBC_RESULT_SET_METRICS_ENABLED, "true");
+		final ServletContext servletContext = createNiceMock(ServletContext.class);
+		expect(servletContext.getServerInfo()).andReturn("Tomcat").anyTimes();
+		replay(servletContext);
+		try {
+			for (final String wrapper : new String[] { "proxy", "delegating" }) {
+				Utils.setProperty(Parameter.JDBC_WRAPPER, wrapper);
+				jdbcWrapper.initServletContext(servletContext);
+				jdbcWrapper.getSqlCounter().clear();
+				DriverManager.registerDriver(driver);
+				// nécessite la dépendance vers la base de données H2
+				final Connection connection = jdbcWrapper
+						.createConnectionProxy(DriverManager.getConnection(H2_DATABASE_URL));
+				try {
+					final String sql = "select 'abc' from system_range(1, 10)";
+					try (Statement statement = connection.createStatement()) {
+						try (ResultSet resultSet = statement.executeQuery(sql)) {
+							assertSame("getStatement", statement, resultSet.getStatement());
+							while (resultSet.next()) {
+								assertEquals("getString", "abc", resultSet.getString(1));
+							}
+						}
+						// ResultSet non fermé, mais fermé par le statement
+						statement.execute(sql);
+						final ResultSet resultSet = statement.getResultSet();
+						assertTrue("next", resultSet.next());
+						resultSet.getString(1);
+					}
+					final CounterRequest request = jdbcWrapper.getSqlCounter()
+							.getCounterRequestByName(sql, false);
+					assertEquals("hits " + wrapper, 2, request.getHits());
+					assertTrue("hasFetchedRows " + wrapper, request.hasFetchedRows());
+					assertEquals("fetchedRowsMean " + wrapper, (10 + 1) / 2,
+							request.getFetchedRowsMean());
+					assertEquals("fetchedBytesMean " + wrapper, (10 + 1) * 3 / 2,
+							request.getFetchedBytesMean());
+					assertTrue("fetchDurationsMean " + wrapper,
+							request.getFetchDurationsMean() >= 0);
+				} finally {
+					connection.close();
+				}
+			}
+		} finally {
+			Utils.setProperty(Parameter.JDBC_RESULT_SET_METRICS_ENABLED, "false");
+			Utils.setProperty(Parameter.JDBC_WRAPPER, "proxy");
+			jdbcWrapper.initServletContext(servletContext);
+		}
+	}
+
+	/** Test.
+	 * @throws SQLException e */
+	@Test
+	public void testBatchSizesAndSqlShapes() throws SQLException {
+		Utils.setProperty(Parameter.JDBC_SQL_SHAPES_ENABLED, "true");
+		final ServletContext servletContext = createNiceMock(ServletContext.class);
+		expect(servletContext.getServerInfo()).andReturn("Tomcat").anyTimes();
+		replay(servletContext);
+		try {
+			for (final String wrapper : new String[] { "proxy", "delegating" }) {
+				Utils.setProperty(Parameter.JDBC_WRAPPER, wrapper);
+				jdbcWrapper.initServletContext(servletContext);
+				jdbcWrapper.getSqlCounter().clear();
+				DriverManager.registerDriver(driver);
+				// nécessite la dépendance vers la base de données H2
+				final Connection connection = jdbcWrapper
+						.createConnectionProxy(DriverManager.getConnection(H2_DATABASE_URL));
+				try {
+					try (Statement statement = connection.createStatement()) {
+						statement.execute(
+								"CREATE TABLE IF NOT EXISTS test (name VARCHAR(50) NOT NULL)");
+						statement.execute("select * from test where name in ('a')");
+						statement.execute("select * from test where name in ('a', 'b')");
+					}
+					final String sql = "insert into test (name) values (?)";
+					try (PreparedStatement statement = connection.prepareStatement(sql)) {
+						for (int i = 0; i < 3; i++) {
+							statement.setString(1, "test");
+							statement.addBatch();
+						}
+						statement.executeBatch();
+						statement.addBatch();
+						statement.clearBatch();
+						for (int i = 0; i < 20; i++) {
+							statement.setString(1, "test");
+							statement.addBatch();
+						}
+						statement.executeBatch();
+					}
+					final CounterRequest batchRequest = jdbcWrapper.getSqlCounter()
+							.getCounterRequestByName("/* BATCH */ " + sql, false);
+					assertArrayEquals("batchSizeCounts " + wrapper,
+							new long[] { 0, 1, 1, 0, 0, 0 },
+							batchRequest.getSqlData().getBatchSizeCounts());
+					assertEquals("batchedRowsMean " + wrapper, (3 + 20) / 2,
+							batchRequest.getSqlData().getBatchedRowsMean());
+					assertEquals("shapesCount " + wrapper, 1,
+							batchRequest.getSqlData().getShapesCount());
+				} finally {
+					connection.close();
+				}
+			}
+		} finally {
+			Utils.setProperty(Parameter.JDBC_SQL_SHAPES_ENABLED, "false");
+			Utils.setProperty(Parameter.JDBC_WRAPPER, "proxy");
+			jdbcWrapper.initServletContext(servletContext);
+		}
+	}
+
 	/** Test. */
 	@Test
 	public void testGetSqlCounter() {
@@ -1146,6 +1146,10 @@ public class TestMonitoringFilter {// NOPMD
 		final Map<String, String> parameters = new HashMap<>();
 		parameters.put("format", "prometheus");
 		monitoring0(parameters, true);
+		// histogrammes des temps d'attente et de détention des connexions
+		JdbcWrapper.getConnectionLatencies("jdbc/test").addWaitTime(3);
+		JdbcWrapper.getConnectionLatencies("jdbc/test").addHoldTime(20);
+		monitoring0(parameters, true);
 		parameters.put("includeLastValue", "true");
 		monitoring0(parameters, true);
 	}
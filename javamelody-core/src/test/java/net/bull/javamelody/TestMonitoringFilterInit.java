@@ -109,6 +109,8 @@ public class TestMonitoringFilterInit {
 				.andReturn("http,sql").anyTimes();
 		expect(config.getInitParameter(Parameter.HTTP_TRANSFORM_PATTERN.getCode()))
 				.andReturn("[0-9]").anyTimes();
+		expect(config.getInitParameter(Parameter.STRIPED_COUNTERS.getCode()))
+				.andReturn("http, sql").anyTimes();
 		init();
 		setUp();
 		expect(config.getInitParameter(Parameter.URL_EXCLUDE_PATTERN.getCode()))
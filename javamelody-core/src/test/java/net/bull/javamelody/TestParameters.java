@@ -28,10 +28,16 @@ import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.Locale;
+import java.util.Properties;
 
 import javax.servlet.FilterConfig;
 import javax.servlet.ServletContext;
@@ -209,6 +215,35 @@ public class TestParameters {
 		}
 	}
 
+	/** Test.
+	 * @throws IOException e */
+	@Test
+	public void testAddCollectorApplicationAddedByOtherInstance() throws IOException {
+		final String application = "testapp";
+		final String otherApplication = "testapp2";
+		Parameters.addCollectorApplication(application,
+				Parameters.parseUrls("http://localhost:8090/test"));
+		try {
+			// une autre instance du serveur de collecte ajoute une application dans le même fichier
+			final File file = Parameters.getCollectorApplicationsFile();
+			final Properties properties = new Properties();
+			try (InputStream input = new FileInputStream(file)) {
+				properties.load(input);
+			}
+			properties.put(otherApplication, "http://localhost:8090/test2");
+			try (OutputStream output = new FileOutputStream(file)) {
+				properties.store(output, null);
+			}
+			Parameters.removeCollectorApplication(application);
+			// la modification de l'autre instance n'est pas perdue
+			assertTrue("otherApplication",
+					Parameters.getCollectorUrlsByApplications().containsKey(otherApplication));
+		} finally {
+			Parameters.removeCollectorApplication(application);
+			Parameters.removeCollectorApplication(otherApplication);
+		}
+	}
+
 	/** Test.
 	 * @throws MalformedURLException e */
 	@Test
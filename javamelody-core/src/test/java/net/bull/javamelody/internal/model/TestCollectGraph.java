@@ -0,0 +1,128 @@
+/*
+ * Copyright 2008-2019 by Emeric Vernat
+ *
+ *     This file is part of Java Melody.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.bull.javamelody.internal.model;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import net.bull.javamelody.Utils;
+
+/**
+ * Test unitaire de la classe CollectGraph.
+ * @author Emeric Vernat
+ */
+public class TestCollectGraph {
+	private final List<String> collectedApplications = Collections
+			.synchronizedList(new ArrayList<String>());
+	private final CollectGraph.CollectTask collectTask = new CollectGraph.CollectTask() {
+		@Override
+		public void collect(String application) {
+			collectedApplications.add(application);
+		}
+	};
+
+	/** Initialisation. */
+	@Before
+	public void setUp() {
+		Utils.initialize();
+	}
+
+	/** Test.
+	 * @throws InterruptedException e */
+	@Test
+	public void testAggregations() throws InterruptedException {
+		final Map<String, List<String>> applicationsByAggregationApplication = new LinkedHashMap<>();
+		// l'agrégation d'agrégations est déclarée en premier
+		applicationsByAggregationApplication.put("all", Arrays.asList("aggregation1", "aggregation2"));
+		applicationsByAggregationApplication.put("aggregation1", Arrays.asList("app1", "app2"));
+		applicationsByAggregationApplication.put("aggregation2",
+				Arrays.asList("app3", "unknown"));
+		final ExecutorService executorService = Executors.newFixedThreadPool(4);
+		try {
+			final CollectGraph collectGraph = new CollectGraph(executorService,
+					Arrays.asList("app1", "app2", "app3"), applicationsByAggregationApplication,
+					collectTask);
+			assertTrue("cyclicApplications", collectGraph.getCyclicApplications().isEmpty());
+			collectGraph.start();
+			collectGraph.await();
+		} finally {
+			executorService.shutdown();
+		}
+		assertEquals("collectedApplications", 6, collectedApplications.size());
+		final List<String> order = new ArrayList<>(collectedApplications);
+		assertTrue("aggregation1", order.indexOf("aggregation1") > order.indexOf("app1"));
+		assertTrue("aggregation1", order.indexOf("aggregation1") > order.indexOf("app2"));
+		assertTrue("aggregation2", order.indexOf("aggregation2") > order.indexOf("app3"));
+		assertEquals("all", "all", order.get(order.size() - 1));
+	}
+
+	/** Test.
+	 * @throws InterruptedException e */
+	@Test
+	public void testCycle() throws InterruptedException {
+		final Map<String, List<String>> applicationsByAggregationApplication = new LinkedHashMap<>();
+		applicationsByAggregationApplication.put("aggregation1",
+				Arrays.asList("app1", "aggregation2"));
+		applicationsByAggregationApplication.put("aggregation2", Arrays.asList("aggregation1"));
+		applicationsByAggregationApplication.put("aggregation3", Arrays.asList("app1"));
+		final ExecutorService executorService = Executors.newFixedThreadPool(2);
+		try {
+			final CollectGraph collectGraph = new CollectGraph(executorService,
+					Collections.singletonList("app1"), applicationsByAggregationApplication,
+					collectTask);
+			assertEquals("cyclicApplications", Arrays.asList("aggregation1", "aggregation2"),
+					new ArrayList<>(collectGraph.getCyclicApplications()));
+			collectGraph.start();
+			collectGraph.await();
+		} finally {
+			executorService.shutdown();
+		}
+		// les agrégations hors du cycle sont collectées
+		assertEquals("collectedApplications", Arrays.asList("app1", "aggregation3"),
+				collectedApplications);
+	}
+
+	/** Test.
+	 * @throws InterruptedException e */
+	@Test
+	public void testWithoutAggregation() throws InterruptedException {
+		final ExecutorService executorService = Executors.newFixedThreadPool(2);
+		try {
+			final CollectGraph collectGraph = new CollectGraph(executorService,
+					Arrays.asList("app1", "app2"), Collections.<String, List<String>> emptyMap(),
+					collectTask);
+			collectGraph.start();
+			collectGraph.await();
+		} finally {
+			executorService.shutdown();
+		}
+		assertEquals("collectedApplications", 2, collectedApplications.size());
+	}
+}
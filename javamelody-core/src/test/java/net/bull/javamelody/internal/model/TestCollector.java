@@ -17,19 +17,26 @@
  */
 package net.bull.javamelody.internal.model;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.Serializable;
+import java.lang.reflect.Field;
 import java.net.URL;
 import java.sql.Connection;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Calendar;
 import java.util.Collections;
 import java.util.Date;
 import java.util.List;
@@ -236,6 +243,55 @@ public class TestCollector {
 		assertNull("getJRobin null", collector.getJRobin("n'importe quoi"));
 	}
 
+	/** Test.
+	 * @throws Exception e */
+	@Test
+	public void testCollectConnectionLatencies() throws Exception {
+		final Collector collector = createCollectorWithOneCounter();
+		final ConnectionLatencies connectionLatencies1 = new ConnectionLatencies("jdbc/ds1");
+		final ConnectionLatencies connectionLatencies2 = new ConnectionLatencies("jdbc/ds2");
+		final JavaInformations javaInformations = createJavaInformations(
+				Arrays.asList(connectionLatencies1, connectionLatencies2));
+		collector.collectWithoutErrors(Collections.singletonList(javaInformations));
+		connectionLatencies1.addWaitTime(3);
+		connectionLatencies1.addHoldTime(20);
+		collector.collectWithoutErrors(Collections.singletonList(javaInformations));
+		// un graphique par DataSource
+		for (final String dataSourceName : Arrays.asList("jdbc/ds1", "jdbc/ds2")) {
+			final String suffix = Integer.toHexString(dataSourceName.hashCode());
+			final JRobin waitTimes = collector.getJRobin("connectionWaitTimes" + suffix);
+			assertNotNull("connectionWaitTimes", waitTimes);
+			assertTrue("label", waitTimes.getLabel().endsWith(dataSourceName));
+			assertNotNull("connectionHoldTimes",
+					collector.getJRobin("connectionHoldTimes" + suffix));
+		}
+	}
+
+	/** Test. */
+	@Test
+	public void testGetPeriodHistogram() {
+		final long[] previousHistogram = { 1, 2, 3 };
+		assertArrayEquals("period", new long[] { 1, 0, 2 },
+				Collector.getPeriodHistogram(new long[] { 2, 2, 5 }, previousHistogram, false));
+		// noeud remis à zéro (redémarré ou injoignable puis revenu) : nouvelle base
+		assertArrayEquals("reset", new long[] { 0, 1, 1 },
+				Collector.getPeriodHistogram(new long[] { 0, 1, 1 }, previousHistogram, false));
+		// noeud vu pour la première fois
+		assertNull("first collect",
+				Collector.getPeriodHistogram(new long[] { 2, 2, 5 }, null, false));
+		assertArrayEquals("started during period", new long[] { 2, 2, 5 },
+				Collector.getPeriodHistogram(new long[] { 2, 2, 5 }, null, true));
+	}
+
+	private static JavaInformations createJavaInformations(
+			List<ConnectionLatencies> connectionLatenciesList) throws Exception {
+		final JavaInformations javaInformations = new JavaInformations(null, false);
+		final Field field = JavaInformations.class.getDeclaredField("connectionLatenciesList");
+		field.setAccessible(true);
+		field.set(javaInformations, connectionLatenciesList);
+		return javaInformations;
+	}
+
 	/** Test.
 	 * @throws JMException e */
 	@Test
@@ -270,6 +326,82 @@ public class TestCollector {
 		}
 	}
 
+	/** Test.
+	 * @throws IOException e */
+	@Test
+	public void testSpillAndReload() throws IOException {
+		final String application = "test spill";
+		final Collector collector = new Collector(application,
+				Collections.singletonList(new Counter(Counter.HTTP_COUNTER_NAME, null)));
+		final Counter counter = collector.getCounterByName(Counter.HTTP_COUNTER_NAME);
+		// des données peuvent avoir été enregistrées par un test précédent
+		final long initialHits = getHits(counter);
+		counter.addRequest("spill 1", 100, 50, 50, false, 1000);
+		counter.addRequest("spill 1", 100, 50, 50, false, 1000);
+		collector.collectWithoutErrors(Collections.<JavaInformations> emptyList());
+		final long initialDayHits = getHits(
+				collector.getRangeCounter(Period.JOUR.getRange(), Counter.HTTP_COUNTER_NAME));
+
+		collector.spill();
+		assertTrue("isSpilled", collector.isSpilled());
+		assertEquals("requestsCount", 0, counter.getRequestsCount());
+		// les hits reçus après le déchargement sont conservés en mémoire
+		counter.addRequest("spill 1", 100, 50, 50, false, 1000);
+		collector.collectWithoutErrors(Collections.<JavaInformations> emptyList());
+		assertEquals("hits", 1, getHits(counter));
+
+		assertTrue("reloadIfSpilled", collector.reloadIfSpilled());
+		assertFalse("reloadIfSpilled", collector.reloadIfSpilled());
+		assertFalse("isSpilled", collector.isSpilled());
+		assertEquals("hits", initialHits + 3, getHits(counter));
+		assertEquals("day hits", initialDayHits + 1, getHits(
+				collector.getRangeCounter(Period.JOUR.getRange(), Counter.HTTP_COUNTER_NAME)));
+
+		// l'arrêt d'un collector déchargé ne perd pas les données
+		collector.spill();
+		counter.addRequest("spill 1", 100, 50, 50, false, 1000);
+		collector.stop();
+		final Counter counter2 = new Counter(Counter.HTTP_COUNTER_NAME, null);
+		final Collector collector2 = new Collector(application,
+				Collections.singletonList(counter2));
+		assertEquals("hits", initialHits + 4, getHits(counter2));
+		collector2.stop();
+	}
+
+	/** Test.
+	 * @throws IOException e */
+	@Test
+	public void testSpillAndDayChange() throws IOException {
+		final Collector collector = new Collector("test spill day change",
+				Collections.singletonList(new Counter(Counter.HTTP_COUNTER_NAME, null)));
+		final Counter counter = collector.getCounterByName(Counter.HTTP_COUNTER_NAME);
+		counter.addRequest("spill 1", 100, 50, 50, false, 1000);
+		collector.collectWithoutErrors(Collections.<JavaInformations> emptyList());
+		collector.spill();
+		counter.addRequest("spill 1", 100, 50, 50, false, 1000);
+		// changement de jour pendant le déchargement
+		final Counter dayCounter = collector.getRangeCounter(Period.JOUR.getRange(),
+				Counter.HTTP_COUNTER_NAME);
+		final Calendar yesterday = Calendar.getInstance();
+		yesterday.add(Calendar.DAY_OF_YEAR, -1);
+		dayCounter.setStartDate(yesterday.getTime());
+		collector.collectWithoutErrors(Collections.<JavaInformations> emptyList());
+		// les données sont relues pour clore le compteur du jour précédent avec ses hits
+		assertFalse("isSpilled", collector.isSpilled());
+		assertTrue("day hits", getHits(dayCounter) >= 1);
+		assertEquals("new day hits", 0, getHits(
+				collector.getRangeCounter(Period.JOUR.getRange(), Counter.HTTP_COUNTER_NAME)));
+		collector.stop();
+	}
+
+	private static long getHits(Counter counter) {
+		long hits = 0;
+		for (final CounterRequest request : counter.getRequests()) {
+			hits += request.getHits();
+		}
+		return hits;
+	}
+
 	/** Test. */
 	@Test
 	public void testRemoveRequest() {
@@ -501,6 +633,62 @@ public class TestCollector {
 		}
 	}
 
+	/** Test.
+	 * @throws IOException e
+	 * @throws InterruptedException e */
+	@Test
+	public void testCollectorServerNodePush() throws IOException, InterruptedException {
+		Utils.setProperty(Parameters.PARAMETER_SYSTEM_PREFIX + "mockLabradorRetriever", "true");
+		final String application = "testpush";
+		Parameters.removeCollectorApplication(application);
+		final CollectorServer collectorServer = new CollectorServer();
+		try {
+			final URL nodeUrl = Parameters.parseUrls("http://localhost:8091/testpush").get(0);
+			final Counter counter = new Counter(Counter.HTTP_COUNTER_NAME, null);
+			counter.addRequest("test", 100, 50, 50, false, 1000);
+			final ByteArrayOutputStream output = new ByteArrayOutputStream();
+			TransportFormat.BINARY.writeSerializableTo((Serializable) Arrays.<Serializable> asList(
+					counter, new CollectGeneration(1, true), new JavaInformations(null, false)),
+					output);
+			try {
+				collectorServer.addNodePush(application, nodeUrl, "pushId",
+						new ByteArrayInputStream(output.toByteArray()));
+				fail("unknown application");
+			} catch (final IllegalArgumentException e) {
+				assertNotNull("unknown application", e);
+			}
+			Utils.setProperty(Parameter.COLLECTOR_PUSH_ADD_APPLICATIONS, "true");
+			assertTrue("addNodePush", collectorServer.addNodePush(application, nodeUrl, "pushId",
+					new ByteArrayInputStream(output.toByteArray())));
+			// les données sont ajoutées dans un thread de collecte
+			for (int i = 0; i < 100 && !collectorServer.isApplicationDataAvailable(application); i++) {
+				Thread.sleep(100);
+			}
+			assertTrue("isApplicationDataAvailable",
+					collectorServer.isApplicationDataAvailable(application));
+			assertEquals("urls", Collections.singletonList(nodeUrl),
+					Parameters.getCollectorUrlsByApplications().get(application));
+			assertFalse("requests", collectorServer.getCollectorByApplication(application)
+					.getCounterByName(Counter.HTTP_COUNTER_NAME).getRequests().isEmpty());
+			assertEquals("queue", 0, collectorServer.getNodePushQueueSize(application));
+
+			try {
+				collectorServer.addNodePush(application, nodeUrl, "pushId",
+						new ByteArrayInputStream(new byte[0]));
+				fail("no data");
+			} catch (final IOException e) {
+				assertNotNull("e", e);
+			}
+
+			collectorServer.removePushedNode(application, nodeUrl);
+			assertFalse("isApplicationDataAvailable",
+					collectorServer.isApplicationDataAvailable(application));
+		} finally {
+			collectorServer.stop();
+			Parameters.removeCollectorApplication(application);
+		}
+	}
+
 	/** Test.
 	 * @throws IOException e */
 	@Test
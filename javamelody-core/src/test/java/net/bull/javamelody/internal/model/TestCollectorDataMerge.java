@@ -0,0 +1,118 @@
+/*
+ * Copyright 2008-2019 by Emeric Vernat
+ *
+ *     This file is part of Java Melody.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.bull.javamelody.internal.model;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import net.bull.javamelody.Utils;
+
+/**
+ * Test unitaire de la classe CollectorDataMerge.
+ * @author Emeric Vernat
+ */
+public class TestCollectorDataMerge {
+	private static final String COUNTER_FILE_NAME = "http_day.ser.gz";
+
+	@Rule
+	public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+	/** Check. */
+	@Before
+	public void setUp() {
+		Utils.initialize();
+	}
+
+	/** Test.
+	 * @throws IOException e */
+	@Test
+	public void testMergeDirectories() throws IOException {
+		final List<File> sourceDirectories = createSourceDirectories();
+		final File targetDirectory = temporaryFolder.newFolder("target");
+		final int filesCount = createCollectorDataMerge(sourceDirectories, targetDirectory,
+				false).mergeDirectories();
+		assertEquals("filesCount", 1, filesCount);
+		final Counter counter = CounterStorage
+				.readFromFile(new File(targetDirectory, COUNTER_FILE_NAME));
+		assertEquals("hits", 3, counter.getRequests().get(0).getHits());
+		assertFalse("resume file",
+				new File(targetDirectory, CollectorDataMerge.RESUME_FILE_NAME).exists());
+	}
+
+	/** Test.
+	 * @throws IOException e */
+	@Test
+	public void testResume() throws IOException {
+		final List<File> sourceDirectories = createSourceDirectories();
+		final File targetDirectory = temporaryFolder.newFolder("target");
+		// le fichier a déjà été fusionné lors d'une précédente exécution interrompue,
+		// et la dernière ligne incomplète est ignorée
+		try (OutputStream output = new FileOutputStream(
+				new File(targetDirectory, CollectorDataMerge.RESUME_FILE_NAME))) {
+			output.write((COUNTER_FILE_NAME + "\nhttp_w").getBytes(StandardCharsets.UTF_8));
+		}
+		createCollectorDataMerge(sourceDirectories, targetDirectory, true).mergeDirectories();
+		assertFalse("not merged again", new File(targetDirectory, COUNTER_FILE_NAME).exists());
+		assertFalse("resume file",
+				new File(targetDirectory, CollectorDataMerge.RESUME_FILE_NAME).exists());
+
+		createCollectorDataMerge(sourceDirectories, targetDirectory, true).mergeDirectories();
+		final Counter counter = CounterStorage
+				.readFromFile(new File(targetDirectory, COUNTER_FILE_NAME));
+		assertEquals("hits", 3, counter.getRequests().get(0).getHits());
+	}
+
+	private List<File> createSourceDirectories() throws IOException {
+		final File directory1 = temporaryFolder.newFolder("node1");
+		final File directory2 = temporaryFolder.newFolder("node2");
+		writeCounter(new File(directory1, COUNTER_FILE_NAME), 1);
+		writeCounter(new File(directory2, COUNTER_FILE_NAME), 2);
+		return Arrays.asList(directory1, directory2);
+	}
+
+	private static void writeCounter(File file, int hits) throws IOException {
+		final Counter counter = new Counter(Counter.HTTP_COUNTER_NAME, null);
+		for (int i = 0; i < hits; i++) {
+			counter.addRequest("test", 10, 0, 0, false, 1000);
+		}
+		CounterStorage.writeToFile(counter, file);
+	}
+
+	private static CollectorDataMerge createCollectorDataMerge(List<File> sourceDirectories,
+			File targetDirectory, boolean resumable) {
+		return new CollectorDataMerge(sourceDirectories, targetDirectory, resumable) {
+			@Override
+			protected void log(String msg) {
+				// rien
+			}
+		};
+	}
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright 2008-2019 by Emeric Vernat
+ *
+ *     This file is part of Java Melody.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.bull.javamelody.internal.model;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import net.bull.javamelody.Parameter;
+import net.bull.javamelody.Utils;
+import net.bull.javamelody.internal.common.Parameters;
+
+/**
+ * Test unitaire de la classe CollectorShards.
+ * @author Emeric Vernat
+ */
+public class TestCollectorShards {
+	private static final String SHARD1 = "http://collector1:8080/";
+	private static final String SHARD2 = "http://collector2:8080/";
+
+	private File shardsDirectory;
+
+	/** Initialisation.
+	 * @throws IOException e */
+	@Before
+	public void setUp() throws IOException {
+		Utils.initialize();
+		shardsDirectory = File.createTempFile("javamelody", "shards");
+		assertTrue("delete", shardsDirectory.delete());
+	}
+
+	/** Finalisation. */
+	@After
+	public void tearDown() {
+		final File[] files = shardsDirectory.listFiles();
+		if (files != null) {
+			for (final File file : files) {
+				file.delete();
+			}
+		}
+		shardsDirectory.delete();
+	}
+
+	/** Test. */
+	@Test
+	public void testSingleShard() {
+		final CollectorShards collectorShards = new CollectorShards(SHARD1, shardsDirectory);
+		assertEquals("shardUrls", Arrays.asList(SHARD1), collectorShards.getShardUrls());
+		for (int i = 0; i < 100; i++) {
+			assertTrue("isLocal", collectorShards.isLocal("app" + i));
+		}
+	}
+
+	/** Test.
+	 * @throws IOException e */
+	@Test
+	public void testRefresh() throws IOException {
+		final CollectorShards collectorShards1 = new CollectorShards(SHARD1, shardsDirectory);
+		final CollectorShards collectorShards2 = new CollectorShards(SHARD2, shardsDirectory);
+		collectorShards1.refresh();
+		collectorShards2.refresh();
+		collectorShards1.refresh();
+		assertEquals("shardUrls", Arrays.asList(SHARD1, SHARD2), collectorShards1.getShardUrls());
+		assertEquals("shardUrls", Arrays.asList(SHARD1, SHARD2), collectorShards2.getShardUrls());
+
+		// les deux instances sont d'accord sur la répartition et chacune a des applications
+		final Map<String, Integer> countByShard = new HashMap<>();
+		for (int i = 0; i < 1000; i++) {
+			final String application = "app" + i;
+			final String shardUrl = collectorShards1.getShardUrl(application);
+			assertEquals("shardUrl", shardUrl, collectorShards2.getShardUrl(application));
+			assertTrue("isLocal",
+					collectorShards1.isLocal(application) ^ collectorShards2.isLocal(application));
+			final Integer count = countByShard.get(shardUrl);
+			countByShard.put(shardUrl, count == null ? 1 : count + 1);
+		}
+		assertTrue("shard1", countByShard.get(SHARD1) > 300);
+		assertTrue("shard2", countByShard.get(SHARD2) > 300);
+	}
+
+	/** Test.
+	 * @throws IOException e */
+	@Test
+	public void testStaleShard() throws IOException {
+		final CollectorShards collectorShards1 = new CollectorShards(SHARD1, shardsDirectory);
+		collectorShards1.refresh();
+		final File staleShardFile = new File(shardsDirectory, "stale.shard");
+		try (OutputStream output = new FileOutputStream(staleShardFile)) {
+			output.write(SHARD2.getBytes(StandardCharsets.UTF_8));
+		}
+		collectorShards1.refresh();
+		assertEquals("shardUrls", Arrays.asList(SHARD1, SHARD2), collectorShards1.getShardUrls());
+
+		// une instance qui n'a pas réécrit son fichier depuis plusieurs périodes est considérée arrêtée
+		assertTrue("setLastModified", staleShardFile.setLastModified(
+				System.currentTimeMillis() - 10 * Parameters.getResolutionSeconds() * 1000L));
+		collectorShards1.refresh();
+		assertEquals("shardUrls", Arrays.asList(SHARD1), collectorShards1.getShardUrls());
+	}
+
+	/** Test.
+	 * @throws IOException e */
+	@Test
+	public void testRingStability() throws IOException {
+		final CollectorShards collectorShards = new CollectorShards(SHARD1, shardsDirectory);
+		collectorShards.refresh();
+		final File shard2File = new File(shardsDirectory, "shard2.shard");
+		try (OutputStream output = new FileOutputStream(shard2File)) {
+			output.write(SHARD2.getBytes(StandardCharsets.UTF_8));
+		}
+		collectorShards.refresh();
+		final Map<String, String> shardUrlByApplication = new HashMap<>();
+		for (int i = 0; i < 1000; i++) {
+			shardUrlByApplication.put("app" + i, collectorShards.getShardUrl("app" + i));
+		}
+		// quand l'instance 2 s'arrête, seules ses applications changent d'instance
+		assertTrue("delete", shard2File.delete());
+		collectorShards.refresh();
+		for (final Map.Entry<String, String> entry : shardUrlByApplication.entrySet()) {
+			if (SHARD1.equals(entry.getValue())) {
+				assertEquals("shardUrl", SHARD1, collectorShards.getShardUrl(entry.getKey()));
+			}
+		}
+		assertEquals("hash", CollectorShards.hash("app"), CollectorShards.hash("app"));
+		assertFalse("hash", CollectorShards.hash("app1") == CollectorShards.hash("app2"));
+	}
+
+	/** Test.
+	 * @throws IOException e */
+	@Test
+	public void testHandOver() throws IOException {
+		final CollectorShards collectorShards1 = new CollectorShards(SHARD1, shardsDirectory);
+		// seule instance active
+		assertTrue("single shard", collectorShards1.isHandedOver("app"));
+		final CollectorShards collectorShards2 = new CollectorShards(SHARD2, shardsDirectory);
+		collectorShards1.refresh();
+		collectorShards2.refresh();
+		collectorShards1.refresh();
+		// la nouvelle instance attend que l'instance précédente ait relâché l'application
+		assertFalse("not released", collectorShards2.isHandedOver("app"));
+		collectorShards1.release(Collections.singletonList("app"));
+		assertTrue("released", collectorShards2.isHandedOver("app"));
+		assertFalse("other application", collectorShards2.isHandedOver("app2"));
+	}
+
+	/** Test.
+	 * @throws IOException e */
+	@Test
+	public void testCreateIfEnabled() throws IOException {
+		assertNull("createIfEnabled", CollectorShards.createIfEnabled());
+		Utils.setProperty(Parameter.COLLECTOR_SHARD_URL, SHARD1);
+		final CollectorShards collectorShards = CollectorShards.createIfEnabled();
+		assertNotNull("createIfEnabled", collectorShards);
+		assertEquals("localShardUrl", SHARD1, collectorShards.getLocalShardUrl());
+	}
+}
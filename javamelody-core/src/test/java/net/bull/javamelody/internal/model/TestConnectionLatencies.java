@@ -0,0 +1,94 @@
+/*
+ * Copyright 2008-2019 by Emeric Vernat
+ *
+ *     This file is part of Java Melody.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.bull.javamelody.internal.model;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import org.junit.Test;
+
+/**
+ * Test unitaire de la classe ConnectionLatencies.
+ * @author Emeric Vernat
+ */
+public class TestConnectionLatencies {
+	/** Test. */
+	@Test
+	public void testGetBucketIndex() {
+		final long[] bucketBounds = ConnectionLatencies.getBucketBounds();
+		assertEquals("0 ms", 0, ConnectionLatencies.getBucketIndex(0));
+		assertEquals("1 ms", 0, ConnectionLatencies.getBucketIndex(1));
+		assertEquals("3 ms", 2, ConnectionLatencies.getBucketIndex(3));
+		assertEquals("last bound", bucketBounds.length - 1,
+				ConnectionLatencies.getBucketIndex(bucketBounds[bucketBounds.length - 1]));
+		assertEquals("overflow", bucketBounds.length,
+				ConnectionLatencies.getBucketIndex(Long.MAX_VALUE));
+	}
+
+	/** Test. */
+	@Test
+	public void testPercentile() {
+		final ConnectionLatencies connectionLatencies = new ConnectionLatencies("test");
+		assertEquals("empty", -1,
+				ConnectionLatencies.getPercentile(connectionLatencies.getWaitTimeCounts(), 0, 95));
+		for (int i = 0; i < 95; i++) {
+			connectionLatencies.addWaitTime(0);
+		}
+		for (int i = 0; i < 5; i++) {
+			connectionLatencies.addWaitTime(400);
+		}
+		final long[] waitTimeCounts = connectionLatencies.getWaitTimeCounts();
+		assertEquals("count", 100, ConnectionLatencies.getCount(waitTimeCounts));
+		assertEquals("sum", 2000, connectionLatencies.getWaitTimesSum());
+		assertEquals("p50", 1, ConnectionLatencies.getPercentile(waitTimeCounts, 0, 50));
+		assertEquals("p95", 1, ConnectionLatencies.getPercentile(waitTimeCounts, 0, 95));
+		assertEquals("p99", 500, ConnectionLatencies.getPercentile(waitTimeCounts, 0, 99));
+		assertEquals("overflowSum", 0, connectionLatencies.getWaitTimesOverflowSum());
+
+		// au-delà de la dernière borne, c'est la moyenne des durées de ce dernier intervalle
+		connectionLatencies.addHoldTime(40000);
+		connectionLatencies.addHoldTime(80000);
+		assertEquals("overflowSum", 120000, connectionLatencies.getHoldTimesOverflowSum());
+		assertEquals("overflow", 60000,
+				ConnectionLatencies.getPercentile(connectionLatencies.getHoldTimeCounts(),
+						connectionLatencies.getHoldTimesOverflowSum(), 100));
+		// sans la somme (noeud d'une version précédente), c'est au moins la dernière borne
+		final long[] bucketBounds = ConnectionLatencies.getBucketBounds();
+		assertEquals("overflow without sum", bucketBounds[bucketBounds.length - 1],
+				ConnectionLatencies.getPercentile(connectionLatencies.getHoldTimeCounts(), 0,
+						100));
+	}
+
+	/** Test. */
+	@Test
+	public void testCopy() {
+		final ConnectionLatencies connectionLatencies = new ConnectionLatencies("test");
+		connectionLatencies.addWaitTime(10);
+		connectionLatencies.addHoldTime(100);
+		final ConnectionLatencies copy = connectionLatencies.copy();
+		connectionLatencies.addWaitTime(10);
+		assertEquals("dataSourceName", "test", copy.getDataSourceName());
+		assertEquals("waitTimesSum", 10, copy.getWaitTimesSum());
+		assertEquals("holdTimesSum", 100, copy.getHoldTimesSum());
+		assertEquals("holdTimesOverflowSum", 0, copy.getHoldTimesOverflowSum());
+		assertArrayEquals("holdTimeCounts", connectionLatencies.getHoldTimeCounts(),
+				copy.getHoldTimeCounts());
+		assertNotNull("toString", copy.toString());
+	}
+}
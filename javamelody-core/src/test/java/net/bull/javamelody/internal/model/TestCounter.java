@@ -374,6 +374,58 @@ public class TestCounter {
 		assertEquals("request", counterRequest.toString(), requests.get(0).toString());
 	}
 
+	/** Test.
+	 * @throws InterruptedException e */
+	@Test
+	public void testStriped() throws InterruptedException {
+		final Counter stripedCounter = new Counter("http", null);
+		assertFalse("striped", stripedCounter.isStriped());
+		stripedCounter.setStriped(true);
+		assertTrue("striped", stripedCounter.isStriped());
+		final String requestName = "striped request";
+		final int hitsPerThread = Counter.STRIPED_HITS_THRESHOLD;
+		final List<Thread> threads = new ArrayList<>();
+		for (int i = 0; i < 4; i++) {
+			final boolean systemError = i == 0;
+			threads.add(new Thread() {
+				@Override
+				public void run() {
+					for (int j = 0; j < hitsPerThread; j++) {
+						stripedCounter.addRequest(requestName, 10, 2, 3, systemError, 100);
+					}
+				}
+			});
+		}
+		for (final Thread thread : threads) {
+			thread.start();
+		}
+		for (final Thread thread : threads) {
+			thread.join();
+		}
+		stripedCounter.addRequest(requestName, 1000, 2, 3, false, 100);
+		final long hits = 4L * hitsPerThread + 1;
+		final CounterRequest request = stripedCounter.getRequests().get(0);
+		assertEquals("hits", hits, request.getHits());
+		assertEquals("durationsSum", 10L * (hits - 1) + 1000, request.getDurationsSum());
+		assertEquals("maximum", 1000, request.getMaximum());
+		assertEquals("cpuTimeMean", 2, request.getCpuTimeMean());
+		assertEquals("allocatedKBytesMean", 3, request.getAllocatedKBytesMean());
+		assertEquals("responseSizeMean", 100, request.getResponseSizeMean());
+		assertEquals("systemErrors", hitsPerThread, request.getSystemErrors());
+		assertEquals("clone", request.toString(), request.clone().toString());
+		assertEquals("clone", request.toString(),
+				stripedCounter.clone().getRequests().get(0).toString());
+		// les statistiques lues sur la requête elle-même incluent aussi l'accumulateur
+		final CounterRequest liveRequest = stripedCounter.getRequestsWithoutClone().get(0);
+		assertNotNull("accumulator", liveRequest.getAccumulator());
+		assertEquals("hits", hits, liveRequest.getHits());
+		assertEquals("durationsSum", request.getDurationsSum(), liveRequest.getDurationsSum());
+		assertEquals("mean", request.getMean(), liveRequest.getMean());
+		assertEquals("maximum", 1000, liveRequest.getMaximum());
+		assertEquals("cpuTimeMean", 2, liveRequest.getCpuTimeMean());
+		assertEquals("systemErrors", hitsPerThread, liveRequest.getSystemErrors());
+	}
+
 	/** Test. */
 	@Test
 	public void testGetRequestsCount() {
@@ -399,6 +451,54 @@ public class TestCounter {
 		assertSame("request transform pattern", value, counter.getRequestTransformPattern());
 	}
 
+	/** Test. */
+	@Test
+	public void testRequestId() {
+		// l'id ne doit pas changer entre les versions, car il est dans les noms des fichiers rrd
+		final String id = "sql3232003928f9fe86a9cb634f450d5a53a4025819";
+		assertEquals("id", id, new CounterRequest("select 1", "sql").getId());
+		assertSame("cached id", new CounterRequest("select 1", "sql").getId(),
+				new CounterRequest("select 1", "sql").getId());
+		assertEquals("computed id", id, CounterRequest.computeId("select 1", "sql"));
+		final StringBuilder longName = new StringBuilder();
+		for (int i = 0; i < 3000; i++) {
+			longName.append('a');
+		}
+		assertEquals("id of long name", "sql00dc3a91d5ec3983f907020d265e10bb036a1ba2",
+				new CounterRequest(longName.toString(), "sql").getId());
+	}
+
+	/** Test. */
+	@Test
+	public void testSqlNormalized() {
+		assertFalse("sql normalized", counter.isSqlNormalized());
+		counter.setRequestTransformPattern(Pattern.compile("[0-9]+"));
+		counter.setSqlNormalized(true);
+		assertTrue("sql normalized", counter.isSqlNormalized());
+		assertNotNull("request transform pattern", counter.getRequestTransformPattern());
+		for (int i = 0; i < 10; i++) {
+			counter.addRequest("select * from table1 where id in (" + i + ", 2) and name = 'a'",
+					0, 0, 0, false, 1000);
+		}
+		counter.addRequest("select * from table1 where id in (0, 2) and name = 'a'", 0, 0, 0,
+				false, 1000);
+		assertEquals("requests", 1, counter.getRequestsCount());
+		assertEquals("request name", "select * from table$ where id in (?) and name = ?",
+				counter.getRequests().get(0).getName());
+		assertEquals("hits", 11, counter.getRequests().get(0).getHits());
+		// le 11ème nom est trouvé dans le cache
+		assertEquals("transform cache misses", 10, counter.getTransformCacheMisses());
+		assertEquals("transform cache hits", 1, counter.getTransformCacheHits());
+		assertEquals("transform cache evictions", 0, counter.getTransformCacheEvictions());
+		assertEquals("transform cache misses of clone", 10,
+				counter.clone().getTransformCacheMisses());
+		counter.setSqlNormalized(false);
+		assertFalse("sql normalized", counter.isSqlNormalized());
+		counter.setRequestTransformPattern(null);
+		assertEquals("transform cache misses", 0, counter.getTransformCacheMisses());
+		assertEquals("transform cache hits", 0, counter.getTransformCacheHits());
+	}
+
 	/** Test. */
 	@Test
 	public void testStartDate() {
@@ -489,6 +589,13 @@ public class TestCounter {
 		final String before = counter.toString();
 		counter.writeToFile();
 		assertEquals("counter", before, counter.toString());
+		// estimation de l'occupation dans le heap et non taille du fichier en format compact
+		final CounterRequest request = counter.getRequests().get(0);
+		assertTrue("estimatedMemorySize",
+				counter.getEstimatedMemorySize() >= 2 * request.getName().length()
+						+ 2 * request.getId().length());
+		assertTrue("errors estimatedMemorySize",
+				errorCounter.getEstimatedMemorySize() > 2 * "erreur".length());
 	}
 
 	/** Test. */
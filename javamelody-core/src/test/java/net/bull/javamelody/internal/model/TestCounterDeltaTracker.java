@@ -0,0 +1,250 @@
+/*
+ * Copyright 2008-2019 by Emeric Vernat
+ *
+ *     This file is part of Java Melody.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.bull.javamelody.internal.model;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import net.bull.javamelody.Utils;
+
+/**
+ * Test unitaire de la classe CounterDeltaTracker.
+ * @author Emeric Vernat
+ */
+public class TestCounterDeltaTracker {
+	private static final String COLLECTOR_ID = "collector";
+
+	private Counter sqlCounter;
+	private Counter errorCounter;
+	private CounterDeltaTracker tracker;
+
+	/** Check. */
+	@Before
+	public void setUp() {
+		Utils.initialize();
+		sqlCounter = new Counter(Counter.SQL_COUNTER_NAME, null);
+		errorCounter = new Counter(Counter.ERROR_COUNTER_NAME, null);
+		tracker = new CounterDeltaTracker();
+	}
+
+	/** Test. */
+	@Test
+	public void testFullSnapshotThenDelta() {
+		assertFalse("isUsed", tracker.isUsed());
+		sqlCounter.addRequest("select a", 10, 0, 0, false, -1);
+		sqlCounter.addRequest("select b", 20, 0, 0, false, -1);
+		List<Serializable> result = getDelta(0);
+		assertTrue("isUsed", tracker.isUsed());
+		CollectGeneration generation = getCollectGeneration(result);
+		assertTrue("full snapshot", generation.isFullSnapshot());
+		assertEquals("requests", 2, getSqlCounter(result).getRequestsCount());
+
+		// rien n'a changé : aucune requête envoyée
+		result = getDelta(generation.getGeneration());
+		generation = getCollectGeneration(result);
+		assertFalse("delta", generation.isFullSnapshot());
+		assertEquals("requests", 0, getSqlCounter(result).getRequestsCount());
+
+		// seulement la requête modifiée, avec seulement les nouveaux hits
+		sqlCounter.addRequest("select a", 30, 0, 0, false, -1);
+		sqlCounter.addRequest("select a", 50, 0, 0, false, -1);
+		result = getDelta(generation.getGeneration());
+		generation = getCollectGeneration(result);
+		final List<CounterRequest> requests = getSqlCounter(result).getRequests();
+		assertEquals("requests", 1, requests.size());
+		assertEquals("request", "select a", requests.get(0).getName());
+		assertEquals("hits", 2, requests.get(0).getHits());
+		assertEquals("durationsSum", 80, requests.get(0).getDurationsSum());
+		// les counters de l'application ne sont pas vidés
+		assertEquals("counter hits", 3, sqlCounter.getCounterRequestByName("select a", false)
+				.getHits());
+	}
+
+	/** Test. */
+	@Test
+	public void testEstimatedMemorySize() {
+		assertEquals("no snapshot", 0, tracker.getEstimatedMemorySize());
+		sqlCounter.addRequest("select a", 10, 0, 0, false, -1);
+		final long firstGeneration = getCollectGeneration(getDelta(0)).getGeneration();
+		final long oneSnapshot = tracker.getEstimatedMemorySize();
+		assertTrue("one snapshot", oneSnapshot > 0);
+		getDelta(firstGeneration);
+		// la génération précédente est gardée avec la dernière
+		assertEquals("two snapshots", 2 * oneSnapshot, tracker.getEstimatedMemorySize());
+		getDelta(firstGeneration);
+		assertEquals("still two snapshots", 2 * oneSnapshot, tracker.getEstimatedMemorySize());
+	}
+
+	/** Test. */
+	@Test
+	public void testLostResponse() {
+		sqlCounter.addRequest("select a", 10, 0, 0, false, -1);
+		final long firstGeneration = getCollectGeneration(getDelta(0)).getGeneration();
+		sqlCounter.addRequest("select a", 10, 0, 0, false, -1);
+		// réponse perdue par le serveur de collecte, qui acquitte encore la première génération
+		getDelta(firstGeneration);
+		sqlCounter.addRequest("select a", 10, 0, 0, false, -1);
+		final List<Serializable> result = getDelta(firstGeneration);
+		assertEquals("hits since acknowledged generation", 2,
+				getSqlCounter(result).getRequests().get(0).getHits());
+	}
+
+	/** Test. */
+	@Test
+	public void testSeveralLostResponses() {
+		sqlCounter.addRequest("select a", 10, 0, 0, false, -1);
+		final long firstGeneration = getCollectGeneration(getDelta(0)).getGeneration();
+		// deux réponses perdues : la première génération n'est plus gardée
+		getDelta(firstGeneration);
+		getDelta(firstGeneration);
+		sqlCounter.addRequest("select a", 10, 0, 0, false, -1);
+		final List<Serializable> result = getDelta(firstGeneration);
+		assertTrue("full snapshot", getCollectGeneration(result).isFullSnapshot());
+		assertEquals("all hits", 2, getSqlCounter(result).getRequests().get(0).getHits());
+	}
+
+	/** Test. */
+	@Test
+	public void testOtherCollectorServer() {
+		sqlCounter.addRequest("select a", 10, 0, 0, false, -1);
+		getDelta(0);
+		final List<Serializable> result = tracker.getDelta(getCounters(), "other collector", 0);
+		assertTrue("full snapshot for another collector server",
+				getCollectGeneration(result).isFullSnapshot());
+		assertEquals("requests", 1, getSqlCounter(result).getRequestsCount());
+	}
+
+	/** Test. */
+	@Test
+	public void testClearedCounter() {
+		sqlCounter.addRequest("select a", 10, 0, 0, false, -1);
+		sqlCounter.addRequest("select a", 10, 0, 0, false, -1);
+		final long generation = getCollectGeneration(getDelta(0)).getGeneration();
+		sqlCounter.clear();
+		sqlCounter.addRequest("select a", 10, 0, 0, false, -1);
+		final List<Serializable> result = getDelta(generation);
+		assertEquals("hits after clear", 1, getSqlCounter(result).getRequests().get(0).getHits());
+	}
+
+	/** Test. */
+	@Test
+	public void testRumOnlyChange() {
+		final Counter httpCounter = new Counter(Counter.HTTP_COUNTER_NAME, null);
+		httpCounter.addRequest("/test", 100, 0, 0, false, 1000);
+		final List<Counter> counters = Collections.singletonList(httpCounter);
+		List<Serializable> result = tracker.getDelta(counters, COLLECTOR_ID, 0);
+		final Counter serverCounter = new Counter(Counter.HTTP_COUNTER_NAME, null);
+		serverCounter.addRequestsAndErrors((Counter) result.get(0));
+		long generation = getCollectGeneration(result).getGeneration();
+
+		// données RUM reçues après le hit de la requête http, sans nouveau hit
+		httpCounter.addRumHit("/test", 10, 20, 30);
+		result = tracker.getDelta(counters, COLLECTOR_ID, generation);
+		generation = getCollectGeneration(result).getGeneration();
+		final List<CounterRequest> requests = ((Counter) result.get(0)).getRequests();
+		assertEquals("requests", 1, requests.size());
+		assertEquals("hits", 0, requests.get(0).getHits());
+		assertEquals("rum hits", 1, requests.get(0).getRumData().getHits());
+		serverCounter.addRequestsAndErrors((Counter) result.get(0));
+		final CounterRequest serverRequest = serverCounter.getCounterRequestByName("/test", false);
+		assertEquals("server hits", 1, serverRequest.getHits());
+		assertEquals("server rum hits", 1, serverRequest.getRumData().getHits());
+
+		// rien n'a changé depuis
+		result = tracker.getDelta(counters, COLLECTOR_ID, generation);
+		assertEquals("no change", 0, ((Counter) result.get(0)).getRequestsCount());
+	}
+
+	/** Test. */
+	@Test
+	public void testResultSetOnlyChange() {
+		sqlCounter.addRequest("select a", 10, 0, 0, false, -1);
+		final long generation = getCollectGeneration(getDelta(0)).getGeneration();
+		// lectures du ResultSet enregistrées à sa fermeture, après le hit de la requête
+		sqlCounter.addResultSetFetches("select a", 100, 2000, 4000);
+		final List<Serializable> result = getDelta(generation);
+		final List<CounterRequest> requests = getSqlCounter(result).getRequests();
+		assertEquals("requests", 1, requests.size());
+		assertEquals("hits", 0, requests.get(0).getHits());
+		assertTrue("hasStatisticsWithoutHits", requests.get(0).hasStatisticsWithoutHits());
+	}
+
+	/** Test. */
+	@Test
+	public void testRequestRemovedThenAddedAgain() {
+		for (int i = 0; i < 3; i++) {
+			sqlCounter.addRequest("select a", 10, 0, 0, false, -1);
+		}
+		final long generation = getCollectGeneration(getDelta(0)).getGeneration();
+		// requête supprimée (removeRequestsIfOverflow par exemple) puis recréée avec plus de hits
+		sqlCounter.removeRequest("select a");
+		for (int i = 0; i < 5; i++) {
+			sqlCounter.addRequest("select a", 10, 0, 0, false, -1);
+		}
+		final List<CounterRequest> requests = getSqlCounter(getDelta(generation)).getRequests();
+		assertEquals("requests", 1, requests.size());
+		assertEquals("hits of the new request", 5, requests.get(0).getHits());
+	}
+
+	/** Test. */
+	@Test
+	public void testNewErrors() {
+		errorCounter.addErrors(Collections.singletonList(new CounterError("error 1", null)));
+		List<Serializable> result = getDelta(0);
+		long generation = getCollectGeneration(result).getGeneration();
+		assertEquals("errors", 1, getErrorCounter(result).getErrorsCount());
+		result = getDelta(generation);
+		generation = getCollectGeneration(result).getGeneration();
+		assertEquals("no new errors", 0, getErrorCounter(result).getErrorsCount());
+		errorCounter.addErrors(Arrays.asList(new CounterError("error 2", null),
+				new CounterError("error 3", null)));
+		result = getDelta(generation);
+		final List<CounterError> errors = getErrorCounter(result).getErrors();
+		assertEquals("new errors", 2, errors.size());
+		assertEquals("new error", "error 2", errors.get(0).getMessage());
+	}
+
+	private List<Serializable> getDelta(long acknowledgedGeneration) {
+		return tracker.getDelta(getCounters(), COLLECTOR_ID, acknowledgedGeneration);
+	}
+
+	private List<Counter> getCounters() {
+		return Arrays.asList(sqlCounter, errorCounter);
+	}
+
+	private static CollectGeneration getCollectGeneration(List<Serializable> result) {
+		return (CollectGeneration) result.get(result.size() - 1);
+	}
+
+	private static Counter getSqlCounter(List<Serializable> result) {
+		return (Counter) result.get(0);
+	}
+
+	private static Counter getErrorCounter(List<Serializable> result) {
+		return (Counter) result.get(1);
+	}
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright 2008-2019 by Emeric Vernat
+ *
+ *     This file is part of Java Melody.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.bull.javamelody.internal.model;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Test for CounterRequestSqlData.
+ * @author Emeric Vernat
+ */
+public class TestCounterRequestSqlData {
+	/**
+	 * Test.
+	 */
+	@Test
+	public void testBatches() {
+		final CounterRequestSqlData sqlData = new CounterRequestSqlData();
+		assertNotNull("toString", sqlData.toString());
+		assertEquals("getBatchesCount", 0, sqlData.getBatchesCount());
+		assertEquals("getBatchedRowsMean", -1, sqlData.getBatchedRowsMean());
+		assertEquals("getBatchedRowsPerSecond", -1, sqlData.getBatchedRowsPerSecond());
+
+		sqlData.addBatch(1, 0);
+		sqlData.addBatch(10, 10);
+		sqlData.addBatch(11, 10);
+		sqlData.addBatch(50000, 980);
+		assertArrayEquals("getBatchSizeCounts", new long[] { 1, 1, 1, 0, 0, 1 },
+				sqlData.getBatchSizeCounts());
+		assertEquals("getBatchesCount", 4, sqlData.getBatchesCount());
+		assertEquals("getBatchedRowsMean", 50022 / 4, sqlData.getBatchedRowsMean());
+		assertEquals("getBatchedRowsPerSecond", 50022, sqlData.getBatchedRowsPerSecond());
+		for (int i = 0; i < CounterRequestSqlData.BATCH_SIZE_RANGES_COUNT; i++) {
+			assertNotNull("getBatchSizeRange", CounterRequestSqlData.getBatchSizeRange(i));
+		}
+
+		final CounterRequestSqlData clone = sqlData.clone();
+		clone.addBatch(100, 10);
+		assertEquals("clone", 4, sqlData.getBatchesCount());
+		sqlData.addHits(clone);
+		assertEquals("addHits", 9, sqlData.getBatchesCount());
+		sqlData.removeHits(clone);
+		assertEquals("removeHits", 4, sqlData.getBatchesCount());
+
+		final long[] statistics = new long[CounterRequestSqlData.STATISTICS_COUNT];
+		sqlData.getStatistics(statistics);
+		final CounterRequestSqlData sqlData2 = new CounterRequestSqlData();
+		sqlData2.setStatistics(statistics);
+		assertArrayEquals("setStatistics", sqlData.getBatchSizeCounts(),
+				sqlData2.getBatchSizeCounts());
+		assertEquals("setStatistics", sqlData.getBatchedRowsPerSecond(),
+				sqlData2.getBatchedRowsPerSecond());
+	}
+
+	/**
+	 * Test.
+	 */
+	@Test
+	public void testShapes() {
+		final CounterRequestSqlData sqlData = new CounterRequestSqlData();
+		assertEquals("getShapesCount", 0, sqlData.getShapesCount());
+		sqlData.addShape("select * from test where id in (?)".hashCode());
+		sqlData.addShape("select * from test where id in (?, ?)".hashCode());
+		sqlData.addShape("select * from test where id in (?)".hashCode());
+		assertEquals("getShapesCount", 2, sqlData.getShapesCount());
+		assertFalse("isShapesCountLimitReached", sqlData.isShapesCountLimitReached());
+
+		final CounterRequestSqlData clone = sqlData.clone();
+		clone.addShape(3);
+		assertEquals("clone", 2, sqlData.getShapesCount());
+		sqlData.addHits(clone);
+		assertEquals("addHits", 3, sqlData.getShapesCount());
+		// les formes ne sont pas enlevées
+		sqlData.removeHits(clone);
+		assertEquals("removeHits", 3, sqlData.getShapesCount());
+
+		final CounterRequestSqlData sqlData2 = new CounterRequestSqlData();
+		sqlData2.setShapes(sqlData.getShapes());
+		assertArrayEquals("setShapes", sqlData.getShapes(), sqlData2.getShapes());
+
+		for (int i = 0; i < 2 * CounterRequestSqlData.MAX_SHAPES_COUNT; i++) {
+			sqlData.addShape(-i);
+		}
+		assertEquals("getShapesCount", CounterRequestSqlData.MAX_SHAPES_COUNT,
+				sqlData.getShapesCount());
+		assertTrue("isShapesCountLimitReached", sqlData.isShapesCountLimitReached());
+	}
+}
@@ -17,11 +17,21 @@
  */
 package net.bull.javamelody.internal.model;
 
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.fail;
 
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.util.Arrays;
 import java.util.Calendar;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
 
 import org.junit.Before;
 import org.junit.Test;
@@ -72,6 +82,118 @@ public class TestCounterStorage {
 		CounterStorage.deleteObsoleteCounterFiles(counter.getApplication());
 	}
 
+	/** Test.
+	 * @throws IOException e */
+	@Test
+	public void testWriteAndReadCounter() throws IOException {
+		final Counter sqlCounter = new Counter(Counter.SQL_COUNTER_NAME, "db.png");
+		final Counter counter = new Counter(Counter.HTTP_COUNTER_NAME, "dbweb.png", sqlCounter);
+		counter.setApplication("test counter");
+		counter.setMaxRequestsCount(500);
+		counter.bindContext("test 1", "complete test 1", null, -1, -1);
+		sqlCounter.addRequest("sql 1", 10, -1, -1, false, -1);
+		counter.addRequest("test 1", 100, 50, 50, false, 1000);
+		counter.unbindContext();
+		counter.addRequest("test 2", 0, -1, -1, true, -1);
+		counter.addRumHit("test 1", 100, 200, 300);
+		counter.addResultSetFetches("test 1", 20, 1500, 2048);
+		counter.addBatchExecution("test 1", 100, 10);
+		counter.addRequestShape("test 1");
+		final File file = File.createTempFile("test", ".ser.gz");
+		try {
+			CounterStorage.writeToFile(counter, file);
+			final Counter readCounter = CounterStorage.readFromFile(file);
+			checkCounter(counter, readCounter);
+
+			final Counter errorCounter = new Counter(Counter.ERROR_COUNTER_NAME, null);
+			errorCounter.addRequestForSystemError("error", 1, 1, 1, "stack-trace\n\u00e9");
+			CounterStorage.writeToFile(errorCounter, file);
+			final Counter readErrorCounter = CounterStorage.readFromFile(file);
+			checkCounter(errorCounter, readErrorCounter);
+			assertEquals("errors", errorCounter.getErrors().get(0).getTime(),
+					readErrorCounter.getErrors().get(0).getTime());
+		} finally {
+			if (!file.delete()) {
+				file.deleteOnExit();
+			}
+		}
+	}
+
+	/** Test.
+	 * @throws IOException e */
+	@Test
+	public void testReadSerializedCounter() throws IOException {
+		// fichier écrit par une version précédente, avec ObjectOutputStream
+		final Counter counter = new Counter(Counter.SQL_COUNTER_NAME, "db.png");
+		counter.addRequest("sql 1", 10, -1, -1, false, -1);
+		final File file = File.createTempFile("test", ".ser.gz");
+		try {
+			try (ObjectOutputStream output = new ObjectOutputStream(
+					new GZIPOutputStream(new FileOutputStream(file)))) {
+				output.writeObject(counter);
+			}
+			checkCounter(counter, CounterStorage.readFromFile(file));
+		} finally {
+			if (!file.delete()) {
+				file.deleteOnExit();
+			}
+		}
+	}
+
+	/** Test.
+	 * @throws IOException e */
+	@Test
+	public void testReadCorruptedCounter() throws IOException {
+		// nombre de chaînes puis longueur de chaîne de 2 Go, sans allocation de cette taille
+		final byte[] hugeLength = { (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 7 };
+		for (final byte[] corrupted : Arrays.asList(
+				new byte[] { 'J', 'M', 'C', 3, hugeLength[0], hugeLength[1], hugeLength[2],
+						hugeLength[3], hugeLength[4] },
+				new byte[] { 'J', 'M', 'C', 3, 1, hugeLength[0], hugeLength[1], hugeLength[2],
+						hugeLength[3], hugeLength[4], 'a' })) {
+			try {
+				CounterStorageFormat.read(new ByteArrayInputStream(corrupted));
+				fail("corrupted file");
+			} catch (final EOFException e) {
+				assertNotNull("corrupted file", e);
+			}
+		}
+	}
+
+	private static void checkCounter(Counter counter, Counter readCounter) {
+		assertEquals("name", counter.getName(), readCounter.getName());
+		assertEquals("storageName", counter.getStorageName(), readCounter.getStorageName());
+		assertEquals("iconName", counter.getIconName(), readCounter.getIconName());
+		assertEquals("childCounterName", counter.getChildCounterName(),
+				readCounter.getChildCounterName());
+		assertEquals("application", counter.getApplication(), readCounter.getApplication());
+		assertEquals("startDate", counter.getStartDate(), readCounter.getStartDate());
+		assertEquals("maxRequestsCount", counter.getMaxRequestsCount(),
+				readCounter.getMaxRequestsCount());
+		assertEquals("errorsCount", counter.getErrorsCount(), readCounter.getErrorsCount());
+		final List<CounterRequest> requests = counter.getOrderedRequests();
+		final List<CounterRequest> readRequests = readCounter.getOrderedRequests();
+		assertEquals("requests", requests.size(), readRequests.size());
+		final long[] statistics = new long[13];
+		final long[] readStatistics = new long[13];
+		for (int i = 0; i < requests.size(); i++) {
+			final CounterRequest request = requests.get(i);
+			final CounterRequest readRequest = readRequests.get(i);
+			assertEquals("name", request.getName(), readRequest.getName());
+			assertEquals("id", request.getId(), readRequest.getId());
+			request.getStatistics(statistics);
+			readRequest.getStatistics(readStatistics);
+			assertArrayEquals("statistics", statistics, readStatistics);
+			assertEquals("stackTrace", request.getStackTrace(), readRequest.getStackTrace());
+			assertEquals("childRequests", request.getChildRequestsExecutionsByRequestId(),
+					readRequest.getChildRequestsExecutionsByRequestId());
+			assertEquals("rumData", request.getRumData() != null,
+					readRequest.getRumData() != null);
+			assertEquals("sqlData", String.valueOf(request.getSqlData()),
+					String.valueOf(readRequest.getSqlData()));
+		}
+	}
+
 	private void checkSetup(final File storageDir, final File obsoleteFile,
 			final File notObsoleteFile) throws IOException {
 		if (!storageDir.exists() && !storageDir.mkdirs()) {
@@ -0,0 +1,194 @@
+/*
+ * Copyright 2008-2019 by Emeric Vernat
+ *
+ *     This file is part of Java Melody.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.bull.javamelody.internal.model;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.IOException;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import net.bull.javamelody.Parameter;
+import net.bull.javamelody.Utils;
+import net.bull.javamelody.internal.common.I18N;
+import net.bull.javamelody.internal.model.GraphCache.GraphKey;
+
+/**
+ * Test unitaire de la classe GraphCache.
+ * @author Emeric Vernat
+ */
+public class TestGraphCache {
+	private static final String APPLICATION = "test";
+
+	/** Check. */
+	@Before
+	public void setUp() {
+		Utils.initialize();
+	}
+
+	/** Test. */
+	@Test
+	public void testCreateIfEnabled() {
+		assertNotNull("default", GraphCache.createIfEnabled());
+		Utils.setProperty(Parameter.COLLECTOR_GRAPH_CACHE_SIZE_MB, "0");
+		assertNull("disabled", GraphCache.createIfEnabled());
+		Utils.setProperty(Parameter.COLLECTOR_GRAPH_CACHE_SIZE_MB, "2");
+		assertEquals("maxSize", 2 * 1024 * 1024, GraphCache.createIfEnabled().getMaxSize());
+	}
+
+	/** Test.
+	 * @throws IOException e */
+	@Test
+	public void testGetAndPut() throws IOException {
+		final GraphCache graphCache = new GraphCache(1000);
+		final GraphKey key = createKey(graphCache, "cpu");
+		assertNull("empty", graphCache.get(key));
+		final byte[] img = new byte[100];
+		final AtomicInteger renderings = new AtomicInteger();
+		assertArrayEquals("rendered", img, graphCache.get(key, createRenderer(img, renderings)));
+		assertArrayEquals("cached", img,
+				graphCache.get(createKey(graphCache, "cpu"), createRenderer(img, renderings)));
+		assertEquals("renderings", 1, renderings.get());
+		assertNull("other graph", graphCache.get(createKey(graphCache, "gc")));
+		assertEquals("eTag", key.getETag(), createKey(graphCache, "cpu").getETag());
+		assertFalse("eTag", key.getETag().equals(createKey(graphCache, "gc").getETag()));
+	}
+
+	/** Test. */
+	@Test
+	public void testLocale() {
+		final GraphCache graphCache = new GraphCache(1000);
+		try {
+			I18N.bindLocale(Locale.FRENCH);
+			final GraphKey frenchKey = createKey(graphCache, "cpu");
+			graphCache.put(frenchKey, new byte[100]);
+			I18N.bindLocale(Locale.ENGLISH);
+			final GraphKey englishKey = createKey(graphCache, "cpu");
+			// titres et légendes traduits : une image par langue
+			assertNull("other locale", graphCache.get(englishKey));
+			assertFalse("eTag", frenchKey.getETag().equals(englishKey.getETag()));
+		} finally {
+			I18N.unbindLocale();
+		}
+	}
+
+	/** Test.
+	 * @throws Exception e */
+	@Test
+	public void testConcurrentRenderings() throws Exception {
+		final GraphCache graphCache = new GraphCache(1000);
+		final GraphKey key = createKey(graphCache, "cpu");
+		final CountDownLatch renderingStarted = new CountDownLatch(1);
+		final CountDownLatch renderingAllowed = new CountDownLatch(1);
+		final AtomicInteger renderings = new AtomicInteger();
+		final byte[] img = new byte[100];
+		final Callable<byte[]> renderer = new Callable<byte[]>() {
+			@Override
+			public byte[] call() throws InterruptedException {
+				renderings.incrementAndGet();
+				renderingStarted.countDown();
+				renderingAllowed.await();
+				return img;
+			}
+		};
+		final ExecutorService executorService = Executors.newFixedThreadPool(2);
+		try {
+			final Callable<byte[]> request = new Callable<byte[]>() {
+				@Override
+				public byte[] call() throws IOException {
+					return graphCache.get(key, renderer);
+				}
+			};
+			final Future<byte[]> first = executorService.submit(request);
+			renderingStarted.await();
+			final Future<byte[]> second = executorService.submit(request);
+			// la deuxième requête attend le dessin en cours de la première
+			Thread.sleep(100);
+			renderingAllowed.countDown();
+			assertArrayEquals("first", img, first.get());
+			assertArrayEquals("second", img, second.get());
+			assertEquals("renderings", 1, renderings.get());
+		} finally {
+			executorService.shutdown();
+		}
+	}
+
+	/** Test. */
+	@Test
+	public void testEviction() {
+		final GraphCache graphCache = new GraphCache(250);
+		graphCache.put(createKey(graphCache, "cpu"), new byte[100]);
+		graphCache.put(createKey(graphCache, "gc"), new byte[100]);
+		// cpu est consulté plus récemment que gc
+		assertNotNull("cpu", graphCache.get(createKey(graphCache, "cpu")));
+		graphCache.put(createKey(graphCache, "usedMemory"), new byte[100]);
+		assertNull("gc", graphCache.get(createKey(graphCache, "gc")));
+		assertNotNull("cpu", graphCache.get(createKey(graphCache, "cpu")));
+		assertNotNull("usedMemory", graphCache.get(createKey(graphCache, "usedMemory")));
+		graphCache.put(createKey(graphCache, "httpHitsRate"), new byte[1000]);
+		assertNull("too large", graphCache.get(createKey(graphCache, "httpHitsRate")));
+		assertNotNull("cpu", graphCache.get(createKey(graphCache, "cpu")));
+	}
+
+	/** Test.
+	 * @throws InterruptedException e */
+	@Test
+	public void testInvalidate() throws InterruptedException {
+		final GraphCache graphCache = new GraphCache(1000);
+		final GraphKey key = createKey(graphCache, "cpu");
+		graphCache.put(key, new byte[100]);
+		final GraphKey otherKey = graphCache.getKey("other", "cpu", Period.JOUR.getRange(), 200,
+				50, false);
+		graphCache.put(otherKey, new byte[100]);
+		Thread.sleep(2);
+		graphCache.invalidate(APPLICATION);
+		final GraphKey newKey = createKey(graphCache, "cpu");
+		assertNull("invalidated", graphCache.get(newKey));
+		assertFalse("eTag", key.getETag().equals(newKey.getETag()));
+		assertNotNull("other", graphCache.get(otherKey));
+		graphCache.removeApplication("other");
+		assertNull("removed", graphCache.get(otherKey));
+	}
+
+	private static Callable<byte[]> createRenderer(final byte[] img,
+			final AtomicInteger renderings) {
+		return new Callable<byte[]>() {
+			@Override
+			public byte[] call() {
+				renderings.incrementAndGet();
+				return img;
+			}
+		};
+	}
+
+	private static GraphKey createKey(GraphCache graphCache, String graphName) {
+		return graphCache.getKey(APPLICATION, graphName, Period.JOUR.getRange(), 200, 50, false);
+	}
+}
@@ -0,0 +1,247 @@
+/*
+ * Copyright 2008-2019 by Emeric Vernat
+ *
+ *     This file is part of Java Melody.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.bull.javamelody.internal.model;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import net.bull.javamelody.Parameter;
+import net.bull.javamelody.Utils;
+import net.bull.javamelody.internal.common.InputOutput;
+import net.bull.javamelody.internal.common.Parameters;
+
+/**
+ * Test unitaire des classes HttpTransport et HttpNodeStatistics.
+ * @author Emeric Vernat
+ */
+public class TestHttpTransport {
+	private HttpServer httpServer;
+	private URL url;
+	private final AtomicInteger postedBytes = new AtomicInteger();
+
+	/** Initialisation.
+	 * @throws IOException e */
+	@Before
+	public void setUp() throws IOException {
+		Utils.initialize();
+		Utils.setProperty(Parameters.PARAMETER_SYSTEM_PREFIX + "mockLabradorRetriever", "false");
+		httpServer = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+		httpServer.createContext("/", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				try (InputStream input = exchange.getRequestBody()) {
+					postedBytes.addAndGet(InputOutput.pumpToString(input, StandardCharsets.UTF_8)
+							.length());
+				}
+				final byte[] body;
+				final int status;
+				if (exchange.getRequestURI().getPath().contains("error")) {
+					body = "error message".getBytes(StandardCharsets.UTF_8);
+					status = 500;
+				} else {
+					final ByteArrayOutputStream output = new ByteArrayOutputStream();
+					TransportFormat.SERIALIZED.writeSerializableTo(
+							new Counter(Counter.HTTP_COUNTER_NAME, null), output);
+					body = output.toByteArray();
+					status = 200;
+				}
+				exchange.sendResponseHeaders(status, body.length);
+				try (OutputStream output = exchange.getResponseBody()) {
+					output.write(body);
+				}
+			}
+		});
+		httpServer.start();
+		url = new URL("http://localhost:" + httpServer.getAddress().getPort() + "/monitoring");
+	}
+
+	/** Finalisation. */
+	@After
+	public void tearDown() {
+		httpServer.stop(0);
+	}
+
+	/** Test.
+	 * @throws IOException e */
+	@Test
+	public void testCallWithUrlConnection() throws IOException {
+		Utils.setProperty(Parameter.HTTP_CLIENT, "urlconnection");
+		assertEquals("name", "HttpURLConnection", HttpNodeStatistics.getHttpClientName());
+		checkCalls();
+	}
+
+	/** Test.
+	 * @throws IOException e */
+	@Test
+	public void testCallWithDefaultHttpClient() throws IOException {
+		// java.net.http.HttpClient si java 11+, HttpURLConnection sinon
+		assertNotNull("name", HttpNodeStatistics.getHttpClientName());
+		checkCalls();
+	}
+
+	private void checkCalls() throws IOException {
+		for (int i = 0; i < 3; i++) {
+			final Counter counter = new LabradorRetriever(url).call();
+			assertEquals("counter", Counter.HTTP_COUNTER_NAME, counter.getName());
+		}
+		new LabradorRetriever(url).post(null);
+		final ByteArrayOutputStream payload = new ByteArrayOutputStream();
+		payload.write("test".getBytes(StandardCharsets.UTF_8));
+		new LabradorRetriever(url).post(payload);
+		assertEquals("posted", 4, postedBytes.get());
+
+		final List<HttpNodeStatistics> statisticsList = HttpNodeStatistics
+				.getStatisticsList(Collections.singletonList(url));
+		assertEquals("statistics", 1, statisticsList.size());
+		final HttpNodeStatistics statistics = statisticsList.get(0);
+		assertEquals("node", RemoteCollector.getHostAndPort(url), statistics.getNode());
+		assertEquals("requests", 5, statistics.getRequestsCount());
+		assertEquals("reusable", 5, statistics.getReusableCount());
+		assertEquals("reusable percentage", 100, statistics.getReusablePercentage());
+		assertEquals("errors", 0, statistics.getErrorsCount());
+		assertEquals("http2", 0, statistics.getHttp2Count());
+		assertTrue("bytes", statistics.getBytesRead() > 0);
+		assertTrue("mean duration", statistics.getMeanDuration() >= 0);
+		assertNotNull("toString", statistics.toString());
+	}
+
+	/** Test.
+	 * @throws IOException e */
+	@Test
+	public void testErrorStatus() throws IOException {
+		Utils.setProperty(Parameter.HTTP_CLIENT, "urlconnection");
+		final URL errorUrl = new URL(url, "/error");
+		try {
+			new LabradorRetriever(errorUrl).call();
+			fail("error status");
+		} catch (final IOException e) {
+			assertTrue("message", e.getMessage().contains("(500): error message"));
+		}
+		final HttpNodeStatistics statistics = HttpNodeStatistics
+				.getStatisticsList(Collections.singletonList(errorUrl)).get(0);
+		assertEquals("requests", 1, statistics.getRequestsCount());
+		assertEquals("errors", 1, statistics.getErrorsCount());
+		// le message d'erreur est lu jusqu'à la fin, la connexion est réutilisable
+		assertEquals("reusable", 1, statistics.getReusableCount());
+
+		// pour le proxy entre instances du serveur de collecte, la réponse en erreur est gardée
+		try (final HttpTransport.Response response = HttpTransport.sendWithAnyStatus(errorUrl,
+				HttpTransport.POST, Collections.<String, String> emptyMap(),
+				"test".getBytes(StandardCharsets.UTF_8))) {
+			assertEquals("status", 500, response.getStatus());
+			assertEquals("body", "error message", InputOutput
+					.pumpToString(response.getInputStream(), StandardCharsets.UTF_8));
+		}
+		assertEquals("posted", 4, postedBytes.get());
+	}
+
+	/** Test.
+	 * @throws IOException e */
+	@Test
+	public void testReadTimeoutInputStream() throws IOException {
+		// un noeud qui envoie le début du corps de la réponse puis ne répond plus,
+		// la lecture n'étant débloquée que par la fermeture du flux
+		final CountDownLatch closed = new CountDownLatch(1);
+		final InputStream input = new InputStream() {
+			private boolean firstByteRead;
+
+			@Override
+			public int read() throws IOException {
+				if (!firstByteRead) {
+					firstByteRead = true;
+					return 1;
+				}
+				try {
+					closed.await();
+				} catch (final InterruptedException e) {
+					throw new IOException(e);
+				}
+				throw new IOException("closed");
+			}
+
+			@Override
+			public void close() {
+				closed.countDown();
+			}
+		};
+		try (final InputStream body = new JdkHttpClientTransport.ReadTimeoutInputStream(input,
+				100)) {
+			assertEquals("first byte", 1, body.read());
+			try {
+				body.read();
+				fail("read timeout");
+			} catch (final SocketTimeoutException e) {
+				assertNotNull("cause", e.getCause());
+			}
+			try {
+				body.read(new byte[10], 0, 10);
+				fail("read timeout");
+			} catch (final SocketTimeoutException e) {
+				assertNotNull("message", e.getMessage());
+			}
+		}
+	}
+
+	/** Test. */
+	@Test
+	public void testGetTimeout() {
+		assertEquals("default", 1000,
+				HttpTransport.getTimeout(Parameter.HTTP_READ_TIMEOUT, url, 1000));
+		Utils.setProperty(Parameter.HTTP_READ_TIMEOUT, "2000");
+		assertEquals("all nodes", 2000,
+				HttpTransport.getTimeout(Parameter.HTTP_READ_TIMEOUT, url, 1000));
+		Utils.setProperty(Parameters.PARAMETER_SYSTEM_PREFIX
+				+ Parameter.HTTP_READ_TIMEOUT.getCode() + '.' + RemoteCollector.getHostAndPort(url),
+				"3000");
+		assertEquals("node", 3000,
+				HttpTransport.getTimeout(Parameter.HTTP_READ_TIMEOUT, url, 1000));
+		Utils.setProperty(Parameter.HTTP_READ_TIMEOUT, "-1");
+		assertEquals("node", 3000,
+				HttpTransport.getTimeout(Parameter.HTTP_READ_TIMEOUT, url, 1000));
+	}
+
+	/** Test. */
+	@Test(expected = IllegalStateException.class)
+	public void testUnknownHttpClient() {
+		Utils.setProperty(Parameter.HTTP_CLIENT, "unknown");
+		HttpTransport.getInstance();
+	}
+}
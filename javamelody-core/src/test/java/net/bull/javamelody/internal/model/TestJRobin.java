@@ -18,7 +18,11 @@
 package net.bull.javamelody.internal.model;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import java.io.File;
 import java.io.FileOutputStream;
@@ -76,6 +80,141 @@ public class TestJRobin {
 		jrobin.toString();
 	}
 
+	/** Test.
+	 * @throws IOException e */
+	@Test
+	public void testAddValueLater() throws IOException {
+		final JRobin jrobin = JRobin.createInstance(TEST_APPLICATION, "writer", "request");
+		try {
+			final long writtenValuesCount = JRobinWriter.getWrittenValuesCount();
+			jrobin.addValueLater(5);
+			// stop écrit les valeurs en attente
+			JRobinWriter.stop();
+			assertEquals("getPendingValuesCount", 0, JRobinWriter.getPendingValuesCount());
+			assertEquals("getLagMillis", 0, JRobinWriter.getLagMillis());
+			assertEquals("getWrittenValuesCount", writtenValuesCount + 1,
+					JRobinWriter.getWrittenValuesCount());
+			assertEquals("getLastValue", 5, jrobin.getLastValue(), 0.01);
+
+			// après l'arrêt, écriture synchrone sans recréer de threads
+			final long synchronousValuesCount = JRobinWriter.getSynchronousValuesCount();
+			jrobin.addValueLater(6);
+			assertEquals("getSynchronousValuesCount", synchronousValuesCount + 1,
+					JRobinWriter.getSynchronousValuesCount());
+			assertEquals("getPendingValuesCount", 0, JRobinWriter.getPendingValuesCount());
+		} finally {
+			jrobin.deleteFile();
+		}
+	}
+
+	/** Test.
+	 * @throws IOException e */
+	@Test
+	public void testAddValuesLaterToSameFile() throws IOException {
+		final JRobin jrobin = JRobin.createInstance(TEST_APPLICATION, "writer", "request");
+		try {
+			final long writtenValuesCount = JRobinWriter.getWrittenValuesCount();
+			final long timestamp = System.currentTimeMillis() / 1000;
+			// plusieurs valeurs en attente pour un même fichier : aucune n'est perdue
+			for (int i = 1; i <= 3; i++) {
+				JRobinWriter.addValue(jrobin, "writer", timestamp + i * 60, i);
+			}
+			JRobinWriter.stop();
+			assertEquals("getWrittenValuesCount", writtenValuesCount + 3,
+					JRobinWriter.getWrittenValuesCount());
+		} finally {
+			jrobin.deleteFile();
+		}
+	}
+
+	/** Test.
+	 * @throws IOException e */
+	@Test
+	public void testConsolidatedStorage() throws IOException {
+		final String application = "test-segments";
+		final File dir = Parameters.getStorageDirectory(application);
+		final File rrdFile = new File(dir, "imported.rrd");
+		// un fichier rrd existant avant l'activation du stockage consolidé
+		final JRobin importedJRobin = JRobin.createInstance(application, "imported", null);
+		importedJRobin.addValue(1);
+		assertTrue("rrd file", rrdFile.exists());
+
+		Utils.setProperty(Parameter.CONSOLIDATED_RRD_STORAGE, "true");
+		try {
+			assertEquals("imported", 1, importedJRobin.getLastValue(), 0.01);
+			assertFalse("rrd file imported", rrdFile.exists());
+			final Range range = Period.JOUR.getRange();
+			for (int i = 0; i < 3; i++) {
+				final JRobin jrobin = JRobin.createInstance(application,
+						"requestId0123456789012345678901234567890123456789" + i, "request");
+				jrobin.addValue(i);
+				assertEquals("getLastValue", i, jrobin.getLastValue(), 0.01);
+				jrobin.graph(range, 80, 80);
+				if (i < 2) {
+					assertTrue("deleteFile", jrobin.deleteFile());
+				}
+			}
+			assertEquals("imported", 1, importedJRobin.getLastValue(), 0.01);
+			final long diskUsage = JRobin.deleteObsoleteJRobinFiles(application);
+			assertTrue("diskUsage", diskUsage > 0);
+			assertEquals("imported", 1, importedJRobin.getLastValue(), 0.01);
+			// les slots libérés ont été compactés
+			final JRobin jrobin = JRobin.createInstanceIfFileExists(application,
+					"requestId01234567890123456789012345678901234567892", "request");
+			assertEquals("getLastValue after compaction", 2, jrobin.getLastValue(), 0.01);
+			assertTrue("deleteFile", jrobin.deleteFile());
+			assertTrue("deleteFile", importedJRobin.deleteFile());
+			assertEquals("no segment file", 0, JRobin.deleteObsoleteJRobinFiles(application));
+			assertNull("createInstanceIfFileExists",
+					JRobin.createInstanceIfFileExists(application, "imported", null));
+		} finally {
+			Utils.setProperty(Parameter.CONSOLIDATED_RRD_STORAGE, "false");
+			RrdSegmentStore.closeAll();
+		}
+	}
+
+	/** Test.
+	 * @throws IOException e */
+	@Test
+	public void testSyncStrategies() throws IOException {
+		final Range range = Period.JOUR.getRange();
+		for (final RrdNioBackend.SyncStrategy syncStrategy : RrdNioBackend.SyncStrategy
+				.values()) {
+			Utils.setProperty(Parameter.RRD_SYNC_STRATEGY, syncStrategy.name().toLowerCase());
+			final JRobin jrobin = JRobin.createInstance(TEST_APPLICATION, "cpu", null);
+			try {
+				jrobin.addValue(syncStrategy.ordinal());
+				assertEquals("getLastValue", syncStrategy.ordinal(), jrobin.getLastValue(), 0.01);
+				jrobin.graph(range, 80, 80);
+				RrdNioBackend.syncFiles(syncStrategy);
+			} finally {
+				jrobin.deleteFile();
+			}
+		}
+		RrdNioBackend.syncAllFiles();
+		Utils.setProperty(Parameter.RRD_SYNC_STRATEGY, "unknown");
+		try {
+			RrdNioBackend.SyncStrategy.getCurrent();
+			fail("unknown");
+		} catch (final IllegalStateException e) {
+			assertNotNull("unknown", e.getMessage());
+		}
+	}
+
+	/** Test.
+	 * @throws IOException e */
+	@Test
+	public void testBatchedSyncOfDeletedFile() throws IOException {
+		Utils.setProperty(Parameter.RRD_SYNC_STRATEGY, "batched");
+		final JRobin jrobin = JRobin.createInstance(TEST_APPLICATION, "cpu", null);
+		jrobin.addValue(1);
+		assertTrue("deleteFile", jrobin.deleteFile());
+		// le fichier écrit puis supprimé avant la synchronisation ne doit pas être recréé
+		RrdNioBackend.syncFiles(RrdNioBackend.SyncStrategy.BATCHED);
+		assertNull("createInstanceIfFileExists",
+				JRobin.createInstanceIfFileExists(TEST_APPLICATION, "cpu", null));
+	}
+
 	/** Test.
 	 * @throws IOException e */
 	@Test
@@ -0,0 +1,133 @@
+/*
+ * Copyright 2008-2019 by Emeric Vernat
+ *
+ *     This file is part of Java Melody.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.bull.javamelody.internal.model;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import net.bull.javamelody.Parameter;
+import net.bull.javamelody.Utils;
+import net.bull.javamelody.internal.model.NodeCollectScheduler.NodeCollect;
+
+/**
+ * Test unitaire de la classe NodeCollectScheduler.
+ * @author Emeric Vernat
+ */
+public class TestNodeCollectScheduler {
+	/** Check. */
+	@Before
+	public void setUp() {
+		Utils.initialize();
+	}
+
+	/** Test.
+	 * @throws Exception e */
+	@Test
+	public void testCreateExecutorService() throws Exception { // NOPMD
+		final ExecutorService executorService = NodeCollectScheduler
+				.createExecutorService("test collect", 2);
+		try {
+			final Future<String> future = executorService.submit(new Callable<String>() {
+				@Override
+				public String call() {
+					return "ok";
+				}
+			});
+			assertEquals("result", "ok", future.get());
+		} finally {
+			executorService.shutdown();
+		}
+	}
+
+	/** Test.
+	 * @throws IOException e */
+	@Test
+	public void testTimeout() throws IOException {
+		final NodeCollect<String> fastNode = NodeCollectScheduler.submit("fast:8080",
+				new Callable<String>() {
+					@Override
+					public String call() {
+						return "fast";
+					}
+				});
+		final NodeCollect<String> slowNode = NodeCollectScheduler.submit("slow:8080",
+				new Callable<String>() {
+					@Override
+					public String call() throws InterruptedException {
+						Thread.sleep(2000);
+						return "slow";
+					}
+				});
+		final long timeout = 200;
+		// le résultat du noeud rapide est gardé même si le noeud lent dépasse son timeout
+		assertEquals("fast", "fast", fastNode.get(timeout));
+		try {
+			slowNode.get(timeout);
+			fail("timeout");
+		} catch (final IOException e) {
+			assertTrue("timeout", e.getMessage().startsWith("Timeout of the collect on slow:8080"));
+		}
+		assertEquals("node", "slow:8080", slowNode.getNode());
+		assertTrue("duration", slowNode.getDuration() >= 200);
+		assertTrue("duration", fastNode.getDuration() < 2000);
+	}
+
+	/** Test.
+	 * @throws IOException e */
+	@Test
+	public void testFailure() throws IOException {
+		final NodeCollect<String> failingNode = NodeCollectScheduler.submit("failing:8080",
+				new Callable<String>() {
+					@Override
+					public String call() throws IOException {
+						throw new IOException("unavailable");
+					}
+				});
+		try {
+			failingNode.get(-1);
+			fail("failure");
+		} catch (final IOException e) {
+			assertEquals("failure", "unavailable", e.getMessage());
+		}
+	}
+
+	/** Test. */
+	@Test
+	public void testGetNodeCollectTimeout() {
+		assertEquals("default timeout", 30000, NodeCollectScheduler.getNodeCollectTimeout());
+		Utils.setProperty(Parameter.COLLECTOR_NODE_TIMEOUT_SECONDS, "5");
+		assertEquals("timeout", 5000, NodeCollectScheduler.getNodeCollectTimeout());
+		Utils.setProperty(Parameter.COLLECTOR_NODE_TIMEOUT_SECONDS, "0");
+		try {
+			NodeCollectScheduler.getNodeCollectTimeout();
+			fail("invalid timeout");
+		} catch (final IllegalStateException e) {
+			assertNotNull("message", e.getMessage());
+		}
+	}
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright 2008-2019 by Emeric Vernat
+ *
+ *     This file is part of Java Melody.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.bull.javamelody.internal.model;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import net.bull.javamelody.Utils;
+
+/**
+ * Test unitaire de la classe NodeContributions.
+ * @author Emeric Vernat
+ */
+public class TestNodeContributions {
+	private static final String NODE_KEY = "localhost:8080/test/monitoring";
+	private static final Date START_DATE = new Date(1000);
+
+	private NodeContributions nodeContributions;
+
+	/** Check. */
+	@Before
+	public void setUp() {
+		Utils.initialize();
+		nodeContributions = new NodeContributions();
+	}
+
+	/** Test. */
+	@Test
+	public void testDeltas() {
+		final List<Counter> counters = createCounters("select a", 10, 20);
+		assertSame("first counters", counters,
+				nodeContributions.add(NODE_KEY, START_DATE, counters, true));
+		final List<Counter> deltaCounters = createCounters("select a", 30);
+		assertSame("delta counters", deltaCounters,
+				nodeContributions.add(NODE_KEY, START_DATE, deltaCounters, false));
+	}
+
+	/** Test. */
+	@Test
+	public void testFullSnapshotReplacesContribution() {
+		nodeContributions.add(NODE_KEY, START_DATE, createCounters("select a", 10, 20), true);
+		nodeContributions.add(NODE_KEY, START_DATE, createCounters("select a", 30), false);
+		// le noeud renvoie ses counters complets (génération acquittée inconnue du noeud)
+		final List<Counter> snapshot = createCounters("select a", 10, 20, 30, 40);
+		snapshot.get(0).addRequest("select b", 50, 0, 0, false, -1);
+		final Counter result = nodeContributions.add(NODE_KEY, START_DATE, snapshot, true)
+				.get(0);
+		assertEquals("requests", 2, result.getRequestsCount());
+		final CounterRequest requestA = result.getCounterRequestByName("select a", false);
+		assertEquals("hits not received yet", 1, requestA.getHits());
+		assertEquals("durationsSum not received yet", 40, requestA.getDurationsSum());
+		assertEquals("new request", 1,
+				result.getCounterRequestByName("select b", false).getHits());
+
+		// le même snapshot reçu encore une fois n'ajoute rien
+		final Counter result2 = nodeContributions
+				.add(NODE_KEY, START_DATE, createCounters("select a", 10, 20, 30, 40), true)
+				.get(0);
+		assertEquals("nothing new", 0, result2.getRequestsCount());
+	}
+
+	/** Test. */
+	@Test
+	public void testNodeRestarted() {
+		nodeContributions.add(NODE_KEY, START_DATE, createCounters("select a", 10, 20), true);
+		// noeud redémarré : ses counters sont repartis de zéro et sont ajoutés
+		final List<Counter> counters = createCounters("select a", 10);
+		assertSame("counters after restart", counters,
+				nodeContributions.add(NODE_KEY, new Date(2000), counters, true));
+		nodeContributions.remove(NODE_KEY);
+		final List<Counter> counters2 = createCounters("select a", 10);
+		assertSame("counters after remove", counters2,
+				nodeContributions.add(NODE_KEY, new Date(2000), counters2, true));
+	}
+
+	/** Test. */
+	@Test
+	public void testEvictedNode() {
+		nodeContributions.add(NODE_KEY, START_DATE, createCounters("select a", 10, 20), true);
+		assertTrue("memory size", nodeContributions.getEstimatedMemorySize() > 0);
+		// noeud injoignable, ses statistiques ne sont plus gardées
+		nodeContributions.evict(NODE_KEY);
+		assertEquals("memory size", 0, nodeContributions.getEstimatedMemorySize());
+		// de nouveau joignable, avec ses counters complets : déjà reçus jusqu'à l'éviction,
+		// ils servent seulement de base
+		final Counter result = nodeContributions
+				.add(NODE_KEY, START_DATE, createCounters("select a", 10, 20, 30), true).get(0);
+		assertEquals("nothing added", 0, result.getRequestsCount());
+		final Counter result2 = nodeContributions
+				.add(NODE_KEY, START_DATE, createCounters("select a", 10, 20, 30, 40), true)
+				.get(0);
+		assertEquals("hits not received yet", 1,
+				result2.getCounterRequestByName("select a", false).getHits());
+	}
+
+	/** Test. */
+	@Test
+	public void testIncompleteContribution() {
+		// après un redémarrage du serveur de collecte, le noeud envoie d'abord un delta
+		final List<Counter> deltaCounters = createCounters("select a", 30);
+		assertSame("delta counters", deltaCounters,
+				nodeContributions.add(NODE_KEY, START_DATE, deltaCounters, false));
+		final Counter result = nodeContributions
+				.add(NODE_KEY, START_DATE, createCounters("select a", 10, 20, 30), true).get(0);
+		assertEquals("not double-counted", 0, result.getRequestsCount());
+		// noeud retiré de l'application
+		nodeContributions.retainNodes(Collections.<String> emptyList());
+		assertEquals("memory size", 0, nodeContributions.getEstimatedMemorySize());
+	}
+
+	private static List<Counter> createCounters(String requestName, long... durations) {
+		final Counter counter = new Counter(Counter.SQL_COUNTER_NAME, null);
+		counter.setApplication("test");
+		for (final long duration : durations) {
+			counter.addRequest(requestName, duration, 0, 0, false, -1);
+		}
+		return Collections.singletonList(counter);
+	}
+}
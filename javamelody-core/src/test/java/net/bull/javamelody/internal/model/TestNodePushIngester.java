@@ -0,0 +1,132 @@
+/*
+ * Copyright 2008-2019 by Emeric Vernat
+ *
+ *     This file is part of Java Melody.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.bull.javamelody.internal.model;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import net.bull.javamelody.Utils;
+import net.bull.javamelody.internal.model.NodePushIngester.NodePush;
+import net.bull.javamelody.internal.model.NodePushIngester.NodePushHandler;
+
+/**
+ * Test unitaire de la classe NodePushIngester.
+ * @author Emeric Vernat
+ */
+public class TestNodePushIngester {
+	private final List<Runnable> tasks = new ArrayList<>();
+	private final List<Integer> batchSizes = new ArrayList<>();
+	private NodePushIngester nodePushIngester;
+
+	/** Initialisation. */
+	@Before
+	public void setUp() {
+		Utils.initialize();
+		// les tâches sont exécutées dans le test, pour vérifier leur nombre
+		final Executor executor = new Executor() {
+			@Override
+			public void execute(Runnable command) {
+				tasks.add(command);
+			}
+		};
+		nodePushIngester = new NodePushIngester(executor, new NodePushHandler() {
+			@Override
+			public void ingest(String application, List<NodePush> nodePushes) {
+				assertEquals("application", "test", application);
+				batchSizes.add(nodePushes.size());
+			}
+		});
+	}
+
+	private static NodePush createNodePush() throws IOException {
+		return createNodePush(100);
+	}
+
+	private static NodePush createNodePush(long size) throws IOException {
+		return new NodePush(new URL("http://localhost/test"), "pushId",
+				Collections.<Serializable> emptyList(), size);
+	}
+
+	/** Test.
+	 * @throws IOException e */
+	@Test
+	public void testBatches() throws IOException {
+		final int count = 2 * NodePushIngester.MAX_BATCH_SIZE + 1;
+		for (int i = 0; i < count; i++) {
+			assertTrue("offer", nodePushIngester.offer("test", createNodePush()));
+		}
+		// une seule tâche pour l'application tant que la précédente n'est pas terminée
+		assertEquals("tasks", 1, tasks.size());
+		assertEquals("queue size", count, nodePushIngester.getQueueSize("test"));
+		tasks.remove(0).run();
+		assertEquals("batches", Integer.valueOf(NodePushIngester.MAX_BATCH_SIZE),
+				batchSizes.get(0));
+		assertEquals("batches", 3, batchSizes.size());
+		assertEquals("last batch", Integer.valueOf(1), batchSizes.get(2));
+		assertEquals("queue size", 0, nodePushIngester.getQueueSize("test"));
+		assertTrue("tasks", tasks.isEmpty());
+
+		assertTrue("offer", nodePushIngester.offer("test", createNodePush()));
+		assertEquals("tasks", 1, tasks.size());
+	}
+
+	/** Test.
+	 * @throws IOException e */
+	@Test
+	public void testQueueFull() throws IOException {
+		for (int i = 0; i < NodePushIngester.MAX_QUEUED_NODE_PUSHES; i++) {
+			assertTrue("offer", nodePushIngester.offer("test", createNodePush()));
+		}
+		assertFalse("hasCapacity", nodePushIngester.hasCapacity("test"));
+		assertFalse("queue full", nodePushIngester.offer("test", createNodePush()));
+		assertTrue("hasCapacity", nodePushIngester.hasCapacity("other"));
+		assertEquals("queue size", 0, nodePushIngester.getQueueSize("other"));
+		nodePushIngester.removeApplication("test");
+		assertEquals("queue size", 0, nodePushIngester.getQueueSize("test"));
+		assertEquals("queued bytes", 0, nodePushIngester.getQueuedBytes());
+	}
+
+	/** Test.
+	 * @throws IOException e */
+	@Test
+	public void testQueuedBytes() throws IOException {
+		// un envoi plus grand que le maximum est accepté s'il est seul en attente
+		assertTrue("offer", nodePushIngester
+				.offer("test", createNodePush(NodePushIngester.MAX_QUEUED_BYTES + 1)));
+		assertFalse("hasCapacity", nodePushIngester.hasCapacity("other"));
+		assertFalse("too many bytes", nodePushIngester.offer("other", createNodePush()));
+		assertEquals("queued bytes", NodePushIngester.MAX_QUEUED_BYTES + 1,
+				nodePushIngester.getQueuedBytes());
+		tasks.remove(0).run();
+		assertEquals("queued bytes", 0, nodePushIngester.getQueuedBytes());
+		assertTrue("hasCapacity", nodePushIngester.hasCapacity("other"));
+		assertTrue("offer", nodePushIngester.offer("other", createNodePush()));
+	}
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright 2008-2019 by Emeric Vernat
+ *
+ *     This file is part of Java Melody.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.bull.javamelody.internal.model;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Serializable;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import net.bull.javamelody.Utils;
+import net.bull.javamelody.internal.common.Parameters;
+
+/**
+ * Test unitaire de la classe NodePushSender.
+ * @author Emeric Vernat
+ */
+public class TestNodePushSender {
+	private HttpServer httpServer;
+	private String collectorServerUrl;
+	private final List<List<Serializable>> pushes = Collections
+			.synchronizedList(new ArrayList<List<Serializable>>());
+	private final List<String> queries = Collections.synchronizedList(new ArrayList<String>());
+	private volatile int status = 204;
+
+	/** Initialisation.
+	 * @throws IOException e */
+	@Before
+	public void setUp() throws IOException {
+		Utils.initialize();
+		Utils.setProperty(Parameters.PARAMETER_SYSTEM_PREFIX + "mockLabradorRetriever", "false");
+		httpServer = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+		httpServer.createContext("/", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				queries.add(exchange.getRequestURI().getQuery());
+				try (InputStream input = exchange.getRequestBody()) {
+					if ("gzip".equals(exchange.getRequestHeaders().getFirst("Content-Encoding"))) {
+						pushes.add(read(new GZIPInputStream(input)));
+					}
+				}
+				exchange.sendResponseHeaders(status, -1);
+				exchange.close();
+			}
+		});
+		httpServer.start();
+		collectorServerUrl = "http://localhost:" + httpServer.getAddress().getPort() + '/';
+	}
+
+	/** Finalisation. */
+	@After
+	public void tearDown() {
+		httpServer.stop(0);
+	}
+
+	@SuppressWarnings("unchecked")
+	static List<Serializable> read(InputStream input) throws IOException {
+		try {
+			return (List<Serializable>) TransportFormat.BINARY.readSerializableFrom(input);
+		} catch (final ClassNotFoundException e) {
+			throw new IOException(e);
+		}
+	}
+
+	/** Test.
+	 * @throws IOException e */
+	@Test
+	public void testPush() throws IOException {
+		final Counter counter = new Counter(Counter.HTTP_COUNTER_NAME, null);
+		final Collector collector = new Collector("test", Collections.singletonList(counter));
+		final NodePushSender nodePushSender = new NodePushSender(collector, null,
+				collectorServerUrl, "http://localhost/test");
+		try {
+			counter.addRequest("test", 100, 50, 50, false, 1000);
+			nodePushSender.push();
+			assertEquals("pushes", 1, pushes.size());
+			final CollectGeneration firstGeneration = getCollectGeneration(pushes.get(0));
+			assertTrue("fullSnapshot", firstGeneration.isFullSnapshot());
+			assertEquals("acknowledgedGeneration", firstGeneration.getGeneration(),
+					nodePushSender.getAcknowledgedGeneration());
+			final String query = queries.get(0);
+			assertTrue("query", query.contains("action=pushNode")
+					&& query.contains("pushId=" + nodePushSender.getPushId()));
+
+			// si l'envoi échoue, il est gardé pour être renvoyé tel quel au prochain envoi
+			status = 503;
+			counter.addRequest("test", 100, 50, 50, false, 1000);
+			try {
+				nodePushSender.push();
+				fail("503");
+			} catch (final IOException e) {
+				assertNotNull("e", e);
+			}
+			assertEquals("acknowledgedGeneration", firstGeneration.getGeneration(),
+					nodePushSender.getAcknowledgedGeneration());
+			status = 204;
+			counter.addRequest("test", 100, 50, 50, false, 1000);
+			nodePushSender.push();
+			assertEquals("pushes", 3, pushes.size());
+			final CollectGeneration secondGeneration = getCollectGeneration(pushes.get(1));
+			assertEquals("same generation", secondGeneration.getGeneration(),
+					getCollectGeneration(pushes.get(2)).getGeneration());
+			assertFalse("fullSnapshot", secondGeneration.isFullSnapshot());
+			assertEquals("acknowledgedGeneration", secondGeneration.getGeneration(),
+					nodePushSender.getAcknowledgedGeneration());
+			final Counter deltaCounter = (Counter) pushes.get(2).get(0);
+			assertEquals("delta hits", 1, deltaCounter.getRequests().get(0).getHits());
+
+			// le prochain delta inclut la requête ajoutée pendant l'échec
+			nodePushSender.push();
+			final Counter nextDeltaCounter = (Counter) pushes.get(3).get(0);
+			assertEquals("next delta hits", 1, nextDeltaCounter.getRequests().get(0).getHits());
+		} finally {
+			nodePushSender.stop();
+		}
+		assertTrue("unregister",
+				queries.get(queries.size() - 1).contains("action=unregisterPushNode"));
+	}
+
+	/** Test.
+	 * @throws IOException e */
+	@Test
+	public void testPushWithoutErrors() throws IOException {
+		final Collector collector = new Collector("test",
+				Collections.singletonList(new Counter(Counter.HTTP_COUNTER_NAME, null)));
+		final NodePushSender nodePushSender = new NodePushSender(collector, null,
+				"http://localhost:1/", "http://localhost/test");
+		nodePushSender.pushWithoutErrors();
+		assertEquals("acknowledgedGeneration", 0, nodePushSender.getAcknowledgedGeneration());
+		nodePushSender.stop();
+	}
+
+	private static CollectGeneration getCollectGeneration(List<Serializable> serialized) {
+		for (final Serializable serializable : serialized) {
+			if (serializable instanceof CollectGeneration) {
+				return (CollectGeneration) serializable;
+			}
+		}
+		throw new IllegalStateException("no CollectGeneration");
+	}
+}
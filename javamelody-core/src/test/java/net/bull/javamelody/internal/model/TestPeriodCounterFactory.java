@@ -17,15 +17,20 @@
  */
 package net.bull.javamelody.internal.model;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
 
+import java.io.File;
 import java.io.IOException;
+import java.util.Calendar;
 import java.util.Date;
 
 import org.junit.Before;
 import org.junit.Test;
 
 import net.bull.javamelody.Utils;
+import net.bull.javamelody.internal.common.Parameters;
 
 /**
  * Test unitaire de la classe Range.
@@ -59,4 +64,99 @@ public class TestPeriodCounterFactory {
 		assertNotNull("getWeekCounter", periodCounterFactory.getWeekCounter());
 		assertNotNull("getYearCounter", periodCounterFactory.getYearCounter());
 	}
+
+	/** Test.
+	 * @throws IOException e */
+	@Test
+	public void testRollups() throws IOException {
+		final Counter sqlCounter = new Counter("sql", "db.png");
+		sqlCounter.setApplication("test-rollups");
+		final File storageDirectory = Parameters.getStorageDirectory(sqlCounter.getApplication());
+		deleteFiles(storageDirectory);
+		try {
+			sqlCounter.addRequest("test", 1, 1, 1, false, -1);
+			final PeriodCounterFactory factory = new PeriodCounterFactory(sqlCounter);
+			// un hit par jour pendant les 400 jours précédents
+			final Calendar calendar = Calendar.getInstance();
+			for (int i = 0; i < 400; i++) {
+				calendar.add(Calendar.DAY_OF_YEAR, -1);
+				final Counter dayCounter = factory.createDayCounterAtDate(calendar.getTime());
+				dayCounter.addRequest("test", 1, 1, 1, false, -1);
+				dayCounter.writeToFile();
+			}
+			final int nbDayFiles = storageDirectory.list().length;
+			// la 1ère fois les rollups sont calculés et enregistrés, la 2ème fois ils sont relus
+			for (int i = 0; i < 2; i++) {
+				assertEquals("getWeekCounter", Period.SEMAINE.getDurationDays(),
+						getHits(factory.getWeekCounter()));
+				assertEquals("getMonthCounter", Period.MOIS.getDurationDays(),
+						getHits(factory.getMonthCounter()));
+				assertEquals("getYearCounter", Period.ANNEE.getDurationDays(),
+						getHits(factory.getYearCounter()));
+				final Calendar startDate = Calendar.getInstance();
+				startDate.add(Calendar.DAY_OF_YEAR, -100);
+				final Calendar endDate = Calendar.getInstance();
+				endDate.add(Calendar.DAY_OF_YEAR, -1);
+				final Range customRange = Range.createCustomRange(startDate.getTime(),
+						endDate.getTime());
+				assertEquals("getCustomCounter", customRange.getDurationDays(),
+						getHits(factory.getCustomCounter(customRange)));
+			}
+			assertTrue("rollups", storageDirectory.list().length > nbDayFiles);
+		} finally {
+			deleteFiles(storageDirectory);
+		}
+	}
+
+	/** Test.
+	 * @throws IOException e */
+	@Test
+	public void testEmptyRollups() throws IOException {
+		final Counter sqlCounter = new Counter("sql", "db.png");
+		sqlCounter.setApplication("test-empty-rollups");
+		final File storageDirectory = Parameters.getStorageDirectory(sqlCounter.getApplication());
+		deleteFiles(storageDirectory);
+		try {
+			final PeriodCounterFactory factory = new PeriodCounterFactory(sqlCounter);
+			assertEquals("getYearCounter", 0, getHits(factory.getYearCounter()));
+			// les rollups des périodes sans données sont enregistrés pour ne pas être recalculés
+			final String[] fileNames = storageDirectory.list();
+			assertNotNull("rollups", fileNames);
+			boolean weekRollup = false;
+			for (final String fileName : fileNames) {
+				if (fileName.startsWith("sql_w")) {
+					weekRollup = true;
+					final Calendar startDay = Calendar.getInstance();
+					startDay.set(Integer.parseInt(fileName.substring(5, 9)),
+							Integer.parseInt(fileName.substring(9, 11)) - 1,
+							Integer.parseInt(fileName.substring(11, 13)));
+					// les semaines commencent le lundi quelle que soit la locale
+					assertEquals("first day of week", Calendar.MONDAY,
+							startDay.get(Calendar.DAY_OF_WEEK));
+				}
+			}
+			assertTrue("week rollup", weekRollup);
+		} finally {
+			deleteFiles(storageDirectory);
+		}
+	}
+
+	private static long getHits(Counter counter) {
+		long hits = 0;
+		for (final CounterRequest request : counter.getRequests()) {
+			hits += request.getHits();
+		}
+		return hits;
+	}
+
+	private static void deleteFiles(File directory) {
+		final File[] files = directory.listFiles();
+		if (files != null) {
+			for (final File file : files) {
+				if (!file.delete()) {
+					file.deleteOnExit();
+				}
+			}
+		}
+	}
 }
@@ -22,7 +22,9 @@ import static org.easymock.EasyMock.expect;
 import static org.easymock.EasyMock.replay;
 import static org.easymock.EasyMock.verify;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
 
 import java.io.IOException;
 import java.net.URL;
@@ -69,4 +71,17 @@ public class TestRemoteCall {
 		verify(context);
 		assertNotNull("", new RemoteCall("http://dummy?p=1"));
 	}
+
+	/** Test. */
+	@Test
+	public void testIsBinaryFormatUnsupported() {
+		assertTrue("unknown format", RemoteCall.isBinaryFormatUnsupported(new IOException(
+				"Error connecting to http://dummy(500): java.lang.IllegalArgumentException: "
+						+ "No enum constant net.bull.javamelody.TransportFormat.BINARY")));
+		assertTrue("unexpected content type", RemoteCall.isBinaryFormatUnsupported(
+				new IOException(LabradorRetriever.UNEXPECTED_CONTENT_TYPE_MESSAGE + "text/plain")));
+		assertFalse("other error", RemoteCall.isBinaryFormatUnsupported(
+				new IOException("Error connecting to http://dummy(503): unavailable")));
+		assertFalse("no message", RemoteCall.isBinaryFormatUnsupported(new IOException()));
+	}
 }
@@ -17,10 +17,15 @@
  */
 package net.bull.javamelody.internal.model;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
 
 import java.io.IOException;
+import java.io.Serializable;
 import java.net.URL;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 
@@ -29,6 +34,7 @@ import org.junit.Test;
 
 import net.bull.javamelody.Utils;
 import net.bull.javamelody.internal.common.Parameters;
+import net.bull.javamelody.internal.model.NodePushIngester.NodePush;
 
 /**
  * Test unitaire de la classe Action.
@@ -63,6 +69,16 @@ public class TestRemoteCollector {
 				"nothing");
 	}
 
+	/** Test.
+	 * @throws IOException e */
+	@Test
+	public void testCollectData() throws IOException {
+		remoteCollector.collectData();
+		assertNotNull("getJavaInformationsList", remoteCollector.getJavaInformationsList());
+		assertEquals("getNodeCollectDurations", Collections.singleton("localhost:8090"),
+				remoteCollector.getNodeCollectDurations().keySet());
+	}
+
 	/** Test.
 	 * @throws IOException e */
 	@Test
@@ -86,4 +102,38 @@ public class TestRemoteCollector {
 		assertNotNull("collectWebappVersions", remoteCollector.collectWebappVersions());
 		assertNotNull("collectWebappDependencies", remoteCollector.collectWebappDependencies());
 	}
+
+	/** Test.
+	 * @throws IOException e */
+	@Test
+	public void testAddNodePushes() throws IOException {
+		final URL nodeUrl = remoteCollector.getURLs().get(0);
+		final Counter counter = new Counter(Counter.HTTP_COUNTER_NAME, null);
+		counter.addRequest("test", 100, 50, 50, false, 1000);
+		final List<Serializable> serialized = Arrays.<Serializable> asList(counter,
+				new CollectGeneration(1, true), new JavaInformations(null, false));
+		remoteCollector.addNodePushes(
+				Collections.singletonList(new NodePush(nodeUrl, "pushId", serialized, 0)));
+		assertTrue("isPushedByNodes", remoteCollector.isPushedByNodes());
+		final Counter httpCounter = remoteCollector.getCollector()
+				.getCounterByName(Counter.HTTP_COUNTER_NAME);
+		final long hits = httpCounter.getRequests().get(0).getHits();
+		// génération déjà reçue, ignorée
+		remoteCollector.addNodePushes(
+				Collections.singletonList(new NodePush(nodeUrl, "pushId", serialized, 0)));
+		assertEquals("hits", hits, httpCounter.getRequests().get(0).getHits());
+		assertEquals("nodePushesCount", 1, remoteCollector.getAndResetNodePushesCount());
+		assertEquals("nodePushesCount", 0, remoteCollector.getAndResetNodePushesCount());
+
+		// le noeud a envoyé ses données récemment, il n'est pas appelé
+		remoteCollector.collectData();
+		assertEquals("getJavaInformationsList", 1,
+				remoteCollector.getJavaInformationsList().size());
+		assertTrue("getNodeCollectDurations",
+				remoteCollector.getNodeCollectDurations().isEmpty());
+		assertTrue("removeStalePushedNodes", remoteCollector.removeStalePushedNodes().isEmpty());
+
+		remoteCollector.removePushedNode(nodeUrl);
+		assertFalse("isPushedByNodes", remoteCollector.isPushedByNodes());
+	}
 }
@@ -0,0 +1,71 @@
+/*
+ * Copyright 2008-2019 by Emeric Vernat
+ *
+ *     This file is part of Java Melody.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.bull.javamelody.internal.model;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+/**
+ * Test unitaire de la classe SqlNormalizer.
+ * @author Emeric Vernat
+ */
+public class TestSqlNormalizer {
+	/** Test. */
+	@Test
+	public void testLiterals() {
+		check("select * from person where id = ? and name = ?",
+				"select * from person where id = 10 and name = 'it''s'");
+		check("select * from person where amount > ? and rate < ? and flags = ?",
+				"select * from person where amount > 1.5 and rate < 2e-3 and flags = 0xFF");
+		check("select * from table1 t1 where t1.col2 = ?",
+				"select * from table1 t1 where t1.col2 = 3");
+		check("select \"col 1\", `col2` from person where name = N?",
+				"select \"col 1\", `col2` from person where name = N'test'");
+		check("select * from person where id = ?", "select * from person where id = ?");
+		check("select * from person where id = ?", "select * from person where id = 'unterminated");
+	}
+
+	/** Test. */
+	@Test
+	public void testInLists() {
+		check("select * from person where id in (?) and name IN (?)",
+				"select * from person where id in (1, 2, 3) and name IN ('a','b')");
+		check("select * from person where id in (?)",
+				"select * from person where id in (-1, ?, 3)");
+		check("select * from person where id in (select id from other where x = ?)",
+				"select * from person where id in (select id from other where x = 1)");
+		check("insert into person values (?, ?)", "insert into person values (1, 'a')");
+		check("select max(id) from person where domain(?) = ?",
+				"select max(id) from person where domain(1) = 2");
+		check("select * from person where login (?)", "select * from person where login (1)");
+	}
+
+	/** Test. */
+	@Test
+	public void testComments() {
+		check("/* 1 'a' */ select * from person -- id = 1\nwhere id = ?",
+				"/* 1 'a' */ select * from person -- id = 1\nwhere id = 2");
+		check("select ?-- comment", "select 1-- comment");
+		check("select ? /* unterminated", "select 1 /* unterminated");
+	}
+
+	private static void check(String expected, String sql) {
+		assertEquals(sql, expected, SqlNormalizer.normalize(sql));
+	}
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright 2008-2019 by Emeric Vernat
+ *
+ *     This file is part of Java Melody.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.bull.javamelody.internal.model;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import net.bull.javamelody.Utils;
+
+/**
+ * Test unitaire de la classe StackTraceCapture.
+ * @author Emeric Vernat
+ */
+public class TestStackTraceCapture {
+	/** Check. */
+	@Before
+	public void setUp() {
+		Utils.initialize();
+	}
+
+	/** Test. */
+	@Test
+	public void testCapture() {
+		final List<StackTraceCapture.CapturedStack> capturedStacks = new ArrayList<>();
+		for (int i = 0; i < 2; i++) {
+			capturedStacks.add(StackTraceCapture.capture());
+		}
+		final StackTraceCapture.CapturedStack capturedStack = capturedStacks.get(0);
+		final StackTraceElement[] stackTrace = capturedStack.getStackTrace();
+		assertTrue("stackTrace", stackTrace.length > 0);
+		assertTrue("stackTrace", stackTrace.length <= 64);
+		// les frames de StackTraceCapture sont enlevées
+		assertEquals("stackTrace", getClass().getName(), stackTrace[0].getClassName());
+		assertSame("getStackTrace", stackTrace, capturedStack.getStackTrace());
+
+		final StackTraceCapture.CapturedStack capturedStack2 = capturedStacks.get(1);
+		if (isStackWalkerAvailable()) {
+			// même point d'appel : la stack-trace est dédoublonnée
+			assertSame("interned", capturedStack, capturedStack2);
+			assertTrue("callSitesCount", StackTraceCapture.getCallSitesCount() > 0);
+		} else {
+			assertNotSame("not interned", capturedStack, capturedStack2);
+		}
+		final StackTraceCapture.CapturedStack otherCapturedStack = StackTraceCapture.capture();
+		assertNotSame("other call site", capturedStack, otherCapturedStack);
+		assertEquals("line", stackTrace[0].getMethodName(),
+				otherCapturedStack.getStackTrace()[0].getMethodName());
+		assertFalse("line",
+				stackTrace[0].getLineNumber() == otherCapturedStack.getStackTrace()[0]
+						.getLineNumber());
+	}
+
+	/** Test.
+	 * @throws IOException e
+	 * @throws ClassNotFoundException e */
+	@Test
+	public void testConnectionInformations() throws IOException, ClassNotFoundException {
+		final ConnectionInformations connectionInformations = new ConnectionInformations();
+		final List<StackTraceElement> openingStackTrace = connectionInformations
+				.getOpeningStackTrace();
+		assertFalse("openingStackTrace", openingStackTrace.isEmpty());
+		// les frames de javamelody.internal.model (dont ce test) sont enlevées
+		assertFalse("openingStackTrace", openingStackTrace.get(0).getClassName()
+				.startsWith(getClass().getPackage().getName()));
+
+		// la stack-trace est créée à la sérialisation, sans affichage avant
+		final ByteArrayOutputStream output = new ByteArrayOutputStream();
+		try (ObjectOutputStream out = new ObjectOutputStream(output)) {
+			out.writeObject(new ConnectionInformations());
+		}
+		try (ObjectInputStream in = new ObjectInputStream(
+				new ByteArrayInputStream(output.toByteArray()))) {
+			final ConnectionInformations deserialized = (ConnectionInformations) in.readObject();
+			assertFalse("deserialized openingStackTrace",
+					deserialized.getOpeningStackTrace().isEmpty());
+		}
+	}
+
+	private static boolean isStackWalkerAvailable() {
+		try {
+			Class.forName("java.lang.StackWalker");
+			return true;
+		} catch (final ClassNotFoundException e) {
+			return false;
+		}
+	}
+}
@@ -24,12 +24,18 @@ import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
 import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Locale;
 
 import org.ehcache.Status;
@@ -138,6 +144,73 @@ public class TestTransportFormat {
 		assertEquals("counter", counter.toString(), after.toString());
 	}
 
+	/** Test.
+	 * @throws IOException e
+	 * @throws ClassNotFoundException e */
+	@Test
+	public void testReadBinary() throws IOException, ClassNotFoundException {
+		final Counter counter = createCounter();
+		final Counter errorCounter = new Counter(Counter.ERROR_COUNTER_NAME, null);
+		errorCounter.addErrors(Collections.singletonList(new CounterError("erreur", null)));
+		final JavaInformations javaInformations = new JavaInformations(null, true);
+		final List<Serializable> serialized = Arrays.<Serializable> asList(counter, errorCounter,
+				javaInformations, "message", new CollectGeneration(12, true), null);
+		final List<?> after = (List<?>) serializeBinary((Serializable) serialized);
+		assertEquals("size", serialized.size(), after.size());
+		assertEquals("counter", counter.toString(), after.get(0).toString());
+		assertEquals("errors", 1, ((Counter) after.get(1)).getErrorsCount());
+		assertEquals("javaInformations", javaInformations.getPID(),
+				((JavaInformations) after.get(2)).getPID());
+		assertEquals("message", "message", after.get(3));
+		assertEquals("generation", 12, ((CollectGeneration) after.get(4)).getGeneration());
+		assertTrue("fullSnapshot", ((CollectGeneration) after.get(4)).isFullSnapshot());
+		assertNull("null", after.get(5));
+
+		// un objet seul et null
+		assertEquals("counter", counter.toString(), serializeBinary(counter).toString());
+		final HashMap<String, Long> map = new HashMap<>();
+		map.put("test", 1L);
+		assertEquals("map", map, serializeBinary(map));
+		assertNull("null", serializeBinary(null));
+		try {
+			// objects from not white-listed packages should not be deserialized
+			assertNull("should not return a result", serializeBinary(Status.UNINITIALIZED));
+		} catch (final ClassNotFoundException e) {
+			assertNotNull("e", e);
+		}
+		try {
+			TransportFormat.BINARY.readSerializableFrom(
+					new ByteArrayInputStream(new byte[] { 'J', 'M', 'T', 99 }));
+		} catch (final IOException e) {
+			assertNotNull("unsupported version", e);
+		}
+		try {
+			// longueur d'enregistrement annoncée de 1 Mo, sans allocation de cette taille
+			TransportFormat.BINARY.readSerializableFrom(new ByteArrayInputStream(new byte[] { 'J',
+					'M', 'T', 1, 0, 2, (byte) 0xFF, (byte) 0xFF, 0x3F, 'a' }));
+			fail("truncated record");
+		} catch (final EOFException e) {
+			assertNotNull("truncated record", e);
+		}
+		try {
+			// longueur de String annoncée de 2 Go
+			TransportFormat.BINARY.readSerializableFrom(new ByteArrayInputStream(new byte[] { 'J',
+					'M', 'T', 1, 0, 2, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 7, 'a' }));
+			fail("too large string");
+		} catch (final IOException e) {
+			assertEquals("too large string", "Too large string record: " + Integer.MAX_VALUE,
+					e.getMessage());
+		}
+	}
+
+	private static Serializable serializeBinary(Serializable serializable)
+			throws IOException, ClassNotFoundException {
+		final ByteArrayOutputStream output = new ByteArrayOutputStream();
+		TransportFormat.BINARY.writeSerializableTo(serializable, output);
+		final ByteArrayInputStream input = new ByteArrayInputStream(output.toByteArray());
+		return TransportFormat.BINARY.readSerializableFrom(input);
+	}
+
 	/** Test. */
 	@Test
 	public void testReadJson() {
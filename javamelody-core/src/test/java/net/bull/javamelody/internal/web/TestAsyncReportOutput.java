@@ -0,0 +1,146 @@
+/*
+ * Copyright 2008-2019 by Emeric Vernat
+ *
+ *     This file is part of Java Melody.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.bull.javamelody.internal.web;
+
+import static org.easymock.EasyMock.createNiceMock;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.expectLastCall;
+import static org.easymock.EasyMock.replay;
+import static org.easymock.EasyMock.verify;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import net.bull.javamelody.Parameter;
+import net.bull.javamelody.Utils;
+import net.bull.javamelody.internal.common.Parameters;
+
+/**
+ * Test unitaire de la classe AsyncReportOutput.
+ * @author Emeric Vernat
+ */
+public class TestAsyncReportOutput {
+	/**
+	 * Sortie qui appelle le WriteListener immédiatement, comme si le client lisait aussitôt.
+	 */
+	static class ReadyOutputStream extends ServletOutputStream {
+		private final ByteArrayOutputStream output = new ByteArrayOutputStream();
+
+		@Override
+		public void write(int b) {
+			output.write(b);
+		}
+
+		@Override
+		public boolean isReady() {
+			return true;
+		}
+
+		@Override
+		public void setWriteListener(WriteListener writeListener) {
+			try {
+				writeListener.onWritePossible();
+			} catch (final IOException e) {
+				writeListener.onError(e);
+			}
+		}
+
+		byte[] toByteArray() {
+			return output.toByteArray();
+		}
+	}
+
+	/** Check. */
+	@Before
+	public void setUp() {
+		Utils.initialize();
+		final ServletContext context = createNiceMock(ServletContext.class);
+		expect(context.getMajorVersion()).andReturn(3).anyTimes();
+		expect(context.getMinorVersion()).andReturn(1).anyTimes();
+		replay(context);
+		Parameters.initialize(context);
+	}
+
+	/** Test.
+	 * @throws IOException e */
+	@Test
+	public void testStart() throws IOException {
+		Utils.setProperty(Parameter.ASYNC_REPORT_OUTPUT_ENABLED, "true");
+		final ReadyOutputStream outputStream = new ReadyOutputStream();
+		final AsyncContext asyncContext = createNiceMock(AsyncContext.class);
+		asyncContext.complete();
+		expectLastCall().once();
+		final HttpServletRequest request = createNiceMock(HttpServletRequest.class);
+		expect(request.isAsyncSupported()).andReturn(true).anyTimes();
+		expect(request.startAsync()).andReturn(asyncContext).anyTimes();
+		final HttpServletResponse response = createNiceMock(HttpServletResponse.class);
+		expect(response.getOutputStream()).andReturn(outputStream).anyTimes();
+		response.setContentLength(100000);
+		expectLastCall().once();
+		replay(asyncContext, request, response);
+
+		final AsyncReportOutput asyncReportOutput = AsyncReportOutput.createIfPossible(request,
+				response);
+		assertNotNull("asyncReportOutput", asyncReportOutput);
+		final HttpServletResponse bufferedResponse = asyncReportOutput.getResponse();
+		assertNull("already buffered",
+				AsyncReportOutput.createIfPossible(request, bufferedResponse));
+		// plusieurs buffers de 32 Ko
+		final byte[] bytes = new byte[100000];
+		for (int i = 0; i < bytes.length; i++) {
+			bytes[i] = (byte) i;
+		}
+		bufferedResponse.getOutputStream().write(bytes, 0, 50000);
+		bufferedResponse.getOutputStream().write(bytes[50000]);
+		bufferedResponse.getOutputStream().write(bytes, 50001, bytes.length - 50001);
+		bufferedResponse.flushBuffer();
+		assertEquals("nothing written before start", 0, outputStream.toByteArray().length);
+		asyncReportOutput.start();
+		asyncReportOutput.releaseIfNotStarted();
+		assertArrayEquals("bytes", bytes, outputStream.toByteArray());
+		verify(asyncContext, response);
+	}
+
+	/** Test. */
+	@Test
+	public void testCreateIfPossible() {
+		final HttpServletRequest request = createNiceMock(HttpServletRequest.class);
+		expect(request.isAsyncSupported()).andReturn(true).anyTimes();
+		final HttpServletResponse response = createNiceMock(HttpServletResponse.class);
+		replay(request, response);
+		assertNull("disabled", AsyncReportOutput.createIfPossible(request, response));
+		Utils.setProperty(Parameter.ASYNC_REPORT_OUTPUT_ENABLED, "true");
+		assertNotNull("enabled", AsyncReportOutput.createIfPossible(request, response));
+		assertNull("compressed", AsyncReportOutput.createIfPossible(request,
+				new CompressionServletResponseWrapper(response, 4096)));
+	}
+}
@@ -301,6 +301,9 @@ public class TestHtmlReport {
 		servicesCounter.bindContext("myservices.service1", "service1", null, -1, -1);
 		sqlCounter.bindContext("sql1", "complete sql1", null, -1, -1);
 		sqlCounter.addRequest("sql1", 5, -1, -1, false, -1);
+		sqlCounter.addResultSetFetches("sql1", 100, 2000, 10000);
+		sqlCounter.addBatchExecution("sql1", 100, 5);
+		sqlCounter.addRequestShape("sql1");
 		servicesCounter.addRequest("myservices.service1", 10, 10, 10, false, -1);
 		servicesCounter.bindContext("myservices.service2", "service2", null, -1, -1);
 		servicesCounter.addRequest("myservices.service2", 10, 10, 10, false, -1);
@@ -640,6 +643,24 @@ public class TestHtmlReport {
 		}
 	}
 
+	/** Test.
+	 * @throws IOException e */
+	@Test
+	public void testWithCollectorServerAndMemoryBudget() throws IOException {
+		Utils.setProperty(Parameter.COLLECTOR_MEMORY_BUDGET_MB, "1");
+		final CollectorServer collectorServer = new CollectorServer();
+		try {
+			assertTrue("isMemoryBudgetEnabled", collectorServer.isMemoryBudgetEnabled());
+			final HtmlReport htmlReport = new HtmlReport(collector, collectorServer,
+					javaInformationsList, Period.TOUT, writer);
+			htmlReport.toHtml(null, null);
+			assertTrue("memory budget", writer.toString().contains("(budget 1 "));
+			assertNotEmptyAndClear(writer);
+		} finally {
+			collectorServer.stop();
+		}
+	}
+
 	/** Test.
 	 * @throws IOException e */
 	@Test
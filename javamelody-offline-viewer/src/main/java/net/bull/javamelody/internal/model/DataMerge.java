@@ -30,12 +30,17 @@ import java.util.Timer;
  * @author Emeric Vernat
  */
 public final class DataMerge {
+	private static final String RESUME_ARGUMENT = "-resume";
+
 	private final File storageDirectory;
 	private final File mergingDirectory;
+	private final boolean resume;
 
-	private DataMerge(final File storageDirectory, final File mergingDirectory) {
+	private DataMerge(final File storageDirectory, final File mergingDirectory,
+			final boolean resume) {
 		this.storageDirectory = storageDirectory;
 		this.mergingDirectory = mergingDirectory;
+		this.resume = resume;
 		if (!storageDirectory.exists()) {
 			throw new IllegalArgumentException("Directory " + storageDirectory + " does not exist");
 		}
@@ -49,24 +54,29 @@ public final class DataMerge {
 		if (!mergingDirectory.isDirectory()) {
 			throw new IllegalArgumentException(mergingDirectory + " is not a directory");
 		}
-		if (mergingDirectory.listFiles().length != 0) {
+		if (mergingDirectory.listFiles().length != 0 && !(resume && new File(mergingDirectory,
+				CollectorDataMerge.RESUME_FILE_NAME).exists())) {
 			throw new IllegalArgumentException(mergingDirectory + " is not empty");
 		}
 	}
 
 	/**
 	 * main.
+	 * The optional third argument "-resume" resumes an interrupted merge in the same merging directory.
 	 * @param args String[]
 	 * @throws IOException e
 	 */
 	public static void main(final String[] args) throws IOException {
-		if (args == null || args.length != 2) {
+		if (args == null || args.length != 2
+				&& !(args.length == 3 && RESUME_ARGUMENT.equals(args[2]))) {
 			throw new IllegalArgumentException(
-					"Please give the javamelody storage directory and the merging directory as arguments");
+					"Please give the javamelody storage directory and the merging directory as arguments, and optionally "
+							+ RESUME_ARGUMENT);
 		}
 		final File storageDirectory = new File(args[0]);
 		final File mergingDirectory = new File(args[1]);
-		final DataMerge dataMerge = new DataMerge(storageDirectory, mergingDirectory);
+		final boolean resume = args.length == 3;
+		final DataMerge dataMerge = new DataMerge(storageDirectory, mergingDirectory, resume);
 		dataMerge.mergeData();
 	}
 
@@ -96,8 +106,9 @@ public final class DataMerge {
 		log("Merging " + directories.size() + " subdirectories from " + storageDirectory + " to "
 				+ mergingDirectory);
 
+		// le fichier de reprise est toujours écrit, pour pouvoir reprendre si la fusion est interrompue
 		final CollectorDataMerge collectorDataMerge = new CollectorDataMerge(directories,
-				mergingDirectory) {
+				mergingDirectory, true) {
 			@Override
 			protected void log(String msg) {
 				DataMerge.log(msg);